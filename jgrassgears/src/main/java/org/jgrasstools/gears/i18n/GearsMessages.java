@@ -98,6 +98,9 @@ public class GearsMessages {
     public static final String OMSTIMESERIESITERATORWRITER_T_START_DESCRIPTION = "The start date. If available time is added as first column.";
     public static final String OMSTIMESERIESITERATORWRITER_T_TIMESTEP_DESCRIPTION = "The timestep. If available time is added as first column.";
     public static final String OMSTIMESERIESITERATORWRITER_FILE_NOVALUE_DESCRIPTION = "The novalue to use in the file (default is -9999.0).";
+    public static final String OMSTIMESERIESITERATORWRITER_DO_ASYNC_DESCRIPTION = "If true, rows are formatted and written to file by a background thread while the model runs.";
+    public static final String OMSTIMESERIESITERATORWRITER_P_BUFFER_SIZE_DESCRIPTION = "The number of rows buffered for the background writer (used with doAsync).";
+    public static final String OMSTIMESERIESITERATORWRITER_DO_BINARY_DESCRIPTION = "If true, the compact binary format is written instead of csv (convert with TimeSeriesBinarySink.toCsv).";
 
     public static final String OMSLINESRASTERIZER_DESCRIPTION = "Module to convert vector lines to raster.";
     public static final String OMSLINESRASTERIZER_DOCUMENTATION = "";
@@ -635,6 +638,7 @@ public class GearsMessages {
     public static final String OMSMAPCALC_AUTHORCONTACTS = "http://www.hydrologis.com";
     public static final String OMSMAPCALC_IN_RASTERS_DESCRIPTION = "The maps that are used in the calculation.";
     public static final String OMSMAPCALC_P_FUNCTION_DESCRIPTION = "The function to process.";
+    public static final String OMSMAPCALC_P_TILE_SIZE_DESCRIPTION = "The size of the tiles processed in parallel (if <= 0 the map is processed as a single task).";
     public static final String OMSMAPCALC_OUT_RASTER_DESCRIPTION = "The resulting map picked from the inserted function.";
 
     public static final String OMSMOSAIC12_DESCRIPTION = "Module for patching max 12 rasters.";
@@ -1095,6 +1099,7 @@ public class GearsMessages {
     public static final String OMSMOSAIC_AUTHORCONTACTS = "http://www.hydrologis.com";
     public static final String OMSMOSAIC_IN_FILES_DESCRIPTION = "The list of maps that have to be patched.";
     public static final String OMSMOSAIC_P_INTERPOLATION_DESCRIPTION = "The interpolation type to use";
+    public static final String OMSMOSAIC_P_OVERLAP_DESCRIPTION = "The rule to combine the values where maps overlap.";
     public static final String OMSMOSAIC_OUT_RASTER_DESCRIPTION = "The patched map.";
 
     public static final String EXIFGPSWRITER_DESCRIPTION = "Utility class for writing exif tags in jpegs.";
@@ -1472,6 +1477,8 @@ public class GearsMessages {
     public static final String OMSTIMESERIESITERATORREADER_T_START_DESCRIPTION = "The optional time at which start to read (format: yyyy-MM-dd HH:mm ).";
     public static final String OMSTIMESERIESITERATORREADER_T_END_DESCRIPTION = "The optional time at which end to read (format: yyyy-MM-dd HH:mm ).";
     public static final String OMSTIMESERIESITERATORREADER_T_TIMESTEP_DESCRIPTION = "The reading timestep in minutes.";
+    public static final String OMSTIMESERIESITERATORREADER_DO_REUSE_BUFFERS_DESCRIPTION = "If true, the output map and its arrays are recycled between timesteps (the previous outData must not be kept by the consumer).";
+    public static final String OMSTIMESERIESITERATORREADER_P_PREFETCH_DESCRIPTION = "The number of timesteps to read and decode ahead in a background thread (default is 0, i.e. no prefetching).";
 
     public static final String OMSPOINTDIRECTIONCALCULATOR_DESCRIPTION = "Calculates the direction of maximum slope for a source point on a dem.";
     public static final String OMSPOINTDIRECTIONCALCULATOR_DOCUMENTATION = "";
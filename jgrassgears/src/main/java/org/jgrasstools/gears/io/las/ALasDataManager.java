@@ -30,6 +30,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
+import org.jgrasstools.gears.io.las.utils.LasBlockCache;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
 import org.opengis.feature.simple.SimpleFeature;
@@ -58,6 +59,8 @@ public abstract class ALasDataManager implements AutoCloseable {
     protected int impulsesNum = -1;
     protected double[] classes;
     protected boolean hasConstraint = false;
+    protected boolean doBilinearDem = false;
+    protected LasBlockCache blockCache;
 
     protected CoordinateReferenceSystem crs;
 
@@ -119,6 +122,27 @@ public abstract class ALasDataManager implements AutoCloseable {
         hasConstraint = true;
     }
 
+    /**
+     * Set the interpolation used to sample the dem for the elevation normalization.
+     * 
+     * @param doBilinear if <code>true</code>, bilinear interpolation is used, else 
+     *          the value of the cell containing the point (the default).
+     */
+    public void setBilinearDemInterpolation( boolean doBilinear ) {
+        doBilinearDem = doBilinear;
+    }
+
+    /**
+     * Set a cache for the decoded point blocks.
+     * 
+     * <p>The same cache can be shared by several data managers.</p>
+     * 
+     * @param blockCache the cache to use or <code>null</code> to read always from the file.
+     */
+    public void setBlockCache( LasBlockCache blockCache ) {
+        this.blockCache = blockCache;
+    }
+
     /**
      * Get points inside a given geometry boundary.
      *
@@ -33,9 +33,8 @@ import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
 import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
-import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.io.las.utils.DemSampler;
 import org.jgrasstools.gears.utils.CrsUtilities;
-import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -171,26 +170,17 @@ class LasFileDataManager extends ALasDataManager {
                         continue;
                     }
 
-                    if (inDem != null) {
-                        // check geom instead of only envelope?
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                        if (JGTConstants.isNovalue(value)) {
-                            continue;
-                        }
-                        double height = lasDot.z - value;
-                        if (height > elevThreshold) {
-                            lasDot.groundElevation = height;
-                            pointsListForTile.add(lasDot);
-                        }
-                    } else {
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        pointsListForTile.add(lasDot);
+                    // check geom instead of only envelope?
+                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+                        continue;
                     }
+                    pointsListForTile.add(lasDot);
+                }
+                if (inDem != null && pointsListForTile.size() > 0) {
+                    DemSampler demSampler = new DemSampler(inDem, env, doBilinearDem);
+                    ArrayList<LasRecord> normalizedPoints = new ArrayList<LasRecord>(pointsListForTile.size());
+                    demSampler.normalize(pointsListForTile, elevThreshold, normalizedPoints);
+                    pointsListForTile = normalizedPoints;
                 }
 
             }
@@ -18,8 +18,9 @@
 package org.jgrasstools.gears.io.las;
 
 import java.io.File;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -35,23 +36,25 @@ import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
-import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
-import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.io.las.index.PackedHilbertRtree;
+import org.jgrasstools.gears.io.las.utils.DemSampler;
+import org.jgrasstools.gears.io.las.utils.LasBlockCache;
 import org.jgrasstools.gears.utils.CrsUtilities;
-import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.algorithm.locate.PointOnGeometryLocator;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Location;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
 import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
-import com.vividsolutions.jts.index.strtree.AbstractSTRtree;
-import com.vividsolutions.jts.index.strtree.ItemBoundable;
 
 /**
  * A class that manages las folder data.
@@ -59,13 +62,20 @@ import com.vividsolutions.jts.index.strtree.ItemBoundable;
  * @author Andrea Antonello (www.hydrologis.com)
  */
 class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable {
+    /**
+     * Index ranges closer than this number of points are read in one transfer.
+     */
+    private static final int RANGE_MERGE_GAP = 64;
+    private static final Envelope ALL_ENVELOPE = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE,
+            Double.MAX_VALUE);
+
     private WeakValueHashMap<String, Pair> fileName2LasReaderMap;
-    private WeakValueHashMap<String, STRtreeJGT> fileName2IndexMap;
+    private WeakValueHashMap<String, PackedHilbertRtree> fileName2IndexMap;
     private List<String> fileName4LasReaderMapSupport;
     // private int READERCACHE = 5;
     private File lasFolderIndexFile;
     private File lasFolder;
-    private STRtreeJGT mainLasFolderIndex;
+    private volatile PackedHilbertRtree mainLasFolderIndex;
     private GridCoverage2D inDem;
     private double elevThreshold;
 
@@ -110,7 +120,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         // }
         // };
         fileName2LasReaderMap = new WeakValueHashMap<String, Pair>();
-        fileName2IndexMap = new WeakValueHashMap<String, STRtreeJGT>();
+        fileName2IndexMap = new WeakValueHashMap<String, PackedHilbertRtree>();
         fileName4LasReaderMapSupport = new ArrayList<String>();
     }
 
@@ -125,7 +135,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      * @throws Exception
      */
     @Override
-    public void open() throws Exception {
+    public synchronized void open() throws Exception {
         mainLasFolderIndex = OmsLasIndexReader.readIndex(lasFolderIndexFile.getAbsolutePath());
     }
 
@@ -139,85 +149,141 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      */
     @Override
     @SuppressWarnings("rawtypes")
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+    public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
         checkOpen();
         ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
 
         Envelope env = checkGeom.getEnvelopeInternal();
+        PointOnGeometryLocator locator = null;
         PreparedGeometry preparedGeometry = null;
         if (!doOnlyEnvelope) {
-            preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+            if (checkGeom instanceof Polygonal) {
+                locator = new IndexedPointInAreaLocator(checkGeom);
+            } else {
+                preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+            }
         }
+        // reused for the geometry checks
+        Coordinate c = new Coordinate();
 
         List filesList = mainLasFolderIndex.query(env);
         for( Object fileName : filesList ) {
             if (fileName instanceof String) {
                 String name = (String) fileName;
-
-                Pair pair = fileName2LasReaderMap.get(name);
+                Pair pair = getPair(name);
                 if (pair == null) {
-                    File lasFile = new File(lasFolder, name);
-                    File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                    if (lasIndexFile.exists()) {
-                        pair = getIndexPair(lasFile);
-                        if (pair != null) {
-                            fileName2LasReaderMap.put(name, pair);
-                            fileName4LasReaderMapSupport.add(name);
-                        }
-                    } else {
-                        continue;
-                    }
+                    continue;
                 }
 
-                List addressesList = pair.strTree.query(env);
-                for( Object obj : addressesList ) {
-                    if (obj instanceof double[]) {
-                        double[] addresses = (double[]) obj;
-                        long from = (long) addresses[0];
-                        long to = (long) addresses[1];
-                        for( long pointNum = from; pointNum < to; pointNum++ ) {
-                            LasRecord lasDot = pair.reader.getPointAt(pointNum);
-                            if (!doAccept(lasDot)) {
-                                continue;
-                            }
-                            if (inDem != null) {
-                                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                                if (env.contains(c)) {
-                                    // check geom instead of only envelope?
-                                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                                        continue;
-                                    }
-                                    double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                                    if (JGTConstants.isNovalue(value)) {
-                                        continue;
-                                    }
-                                    double height = lasDot.z - value;
-                                    if (height > elevThreshold) {
-                                        // lasDot.z = height;
-                                        lasDot.groundElevation = height;
-                                        pointsListForTile.add(lasDot);
-                                    }
-                                }
-                            } else {
-                                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                                if (env.contains(c)) {
-                                    // check geom instead of only envelope?
-                                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                                        continue;
-                                    }
-                                    pointsListForTile.add(lasDot);
-                                }
-                            }
+                List addressesList = pair.index.query(env);
+                ArrayList<LasRecord> pointsInEnvelope = new ArrayList<LasRecord>();
+                if (blockCache != null) {
+                    readCachedBlocks(pair.reader, addressesList, env, pointsInEnvelope);
+                } else {
+                    long[] ranges = coalesceRanges(addressesList);
+                    for( int i = 0; i < ranges.length; i = i + 2 ) {
+                        pair.reader.getPointsInRange(ranges[i], ranges[i + 1], env, pointsInEnvelope);
+                    }
+                }
 
+                for( LasRecord lasDot : pointsInEnvelope ) {
+                    if (!doAccept(lasDot)) {
+                        continue;
+                    }
+                    // check geom instead of only envelope?
+                    if (locator != null) {
+                        c.x = lasDot.x;
+                        c.y = lasDot.y;
+                        if (locator.locate(c) != Location.INTERIOR) {
+                            continue;
                         }
+                    } else if (preparedGeometry != null
+                            && !preparedGeometry.contains(gf.createPoint(new Coordinate(lasDot.x, lasDot.y)))) {
+                        continue;
                     }
+                    pointsListForTile.add(lasDot);
                 }
             }
         }
+        if (inDem != null && pointsListForTile.size() > 0) {
+            DemSampler demSampler = new DemSampler(inDem, env, doBilinearDem);
+            ArrayList<LasRecord> normalizedPoints = new ArrayList<LasRecord>(pointsListForTile.size());
+            demSampler.normalize(pointsListForTile, elevThreshold, normalizedPoints);
+            return normalizedPoints;
+        }
         return pointsListForTile;
     }
 
+    /**
+     * Reads the points of the index leaves through the block cache.
+     * 
+     * <p>Blocks are cached per leaf, since the leaves don't change between queries.</p>
+     */
+    @SuppressWarnings("rawtypes")
+    private void readCachedBlocks( ALasReader reader, List addressesList, Envelope env, List<LasRecord> pointsInEnvelope )
+            throws Exception {
+        String lasPath = reader.getLasFile().getAbsolutePath();
+        for( Object obj : addressesList ) {
+            if (obj instanceof double[]) {
+                double[] addresses = (double[]) obj;
+                long from = (long) addresses[0];
+                long to = (long) addresses[1];
+                LasBlockCache.Block block = blockCache.get(lasPath, from, to);
+                if (block == null) {
+                    ArrayList<LasRecord> blockPoints = new ArrayList<LasRecord>((int) (to - from));
+                    reader.getPointsInRange(from, to, ALL_ENVELOPE, blockPoints);
+                    block = LasBlockCache.Block.fromRecords(blockPoints);
+                    blockCache.put(lasPath, from, to, block);
+                }
+                block.getPointsInEnvelope(env, pointsInEnvelope);
+            }
+        }
+    }
+
+    /**
+     * Sorts the [from, to] point ranges of the index leaves and merges the ones 
+     * that are contiguous or separated by less than {@link #RANGE_MERGE_GAP} points.
+     * 
+     * <p>The points in the gaps are read and then discarded by the envelope check.</p>
+     * 
+     * @param addressesList the list of index items.
+     * @return the merged ranges as [from1, to1, from2, to2, ...].
+     */
+    @SuppressWarnings("rawtypes")
+    static long[] coalesceRanges( List addressesList ) {
+        long[] ranges = new long[addressesList.size() * 2];
+        int count = 0;
+        for( Object obj : addressesList ) {
+            if (obj instanceof double[]) {
+                double[] addresses = (double[]) obj;
+                ranges[count++] = (long) addresses[0];
+                ranges[count++] = (long) addresses[1];
+            }
+        }
+        int rangesNum = count / 2;
+        long[][] sorted = new long[rangesNum][];
+        for( int i = 0; i < rangesNum; i++ ) {
+            sorted[i] = new long[]{ranges[2 * i], ranges[2 * i + 1]};
+        }
+        Arrays.sort(sorted, new Comparator<long[]>(){
+            public int compare( long[] o1, long[] o2 ) {
+                return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+            }
+        });
+        int index = 0;
+        for( int i = 0; i < rangesNum; i++ ) {
+            long from = sorted[i][0];
+            long to = sorted[i][1];
+            if (index > 0 && from <= ranges[index - 1] + RANGE_MERGE_GAP) {
+                ranges[index - 1] = Math.max(ranges[index - 1], to);
+            } else {
+                ranges[index++] = from;
+                ranges[index++] = to;
+            }
+        }
+        return Arrays.copyOf(ranges, index);
+    }
+
     /**
      * Retrieve all the trees envelopes that intersect the geometry.
      *
@@ -228,7 +294,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      * @throws Exception
      */
     @Override
-    public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+    public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
         checkOpen();
         ArrayList<Geometry> envelopeListForTile = new ArrayList<Geometry>();
@@ -247,19 +313,16 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
                 File lasFile = new File(lasFolder, name);
                 File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
 
-                String absolutePath = lasIndexFile.getAbsolutePath();
-                STRtreeJGT lasIndex = fileName2IndexMap.get(absolutePath);
-                if (lasIndex == null) {
-                    lasIndex = OmsLasIndexReader.readIndex(absolutePath);
-                    fileName2IndexMap.put(absolutePath, lasIndex);
-                }
-                List< ? > queryBoundables = lasIndex.queryBoundables(env);
-                for( Object object : queryBoundables ) {
-                    if (object instanceof ItemBoundable) {
-                        ItemBoundable itemBoundable = (ItemBoundable) object;
-                        double[] item = (double[]) itemBoundable.getItem();
+                PackedHilbertRtree lasIndex = getIndex(lasIndexFile.getAbsolutePath());
+                List<Envelope> boundsList = new ArrayList<Envelope>();
+                List<Object> itemsList = new ArrayList<Object>();
+                lasIndex.query(env, boundsList, itemsList);
+                for( int i = 0; i < itemsList.size(); i++ ) {
+                    Object object = itemsList.get(i);
+                    if (object instanceof double[]) {
+                        double[] item = (double[]) object;
                         if (item.length > 0) {
-                            Envelope bounds = (Envelope) itemBoundable.getBounds();
+                            Envelope bounds = boundsList.get(i);
                             Polygon envelopePolygon = LasIndexer.envelopeToPolygon(bounds);
                             envelopePolygon.setUserData(new double[]{item[2], item[3]});
                             if (minMaxZ != null) {
@@ -286,22 +349,18 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     }
 
     @Override
-    @SuppressWarnings("rawtypes")
     public synchronized ReferencedEnvelope getOverallEnvelope() throws Exception {
         if (referencedEnvelope2D == null) {
             checkOpen();
-            Class<AbstractSTRtree> class1 = AbstractSTRtree.class;
-            Field f1 = class1.getDeclaredField("itemBoundables");
-            f1.setAccessible(true);
-            ArrayList boundablesList = (ArrayList) f1.get(mainLasFolderIndex);
+            Envelope[] envelopes = mainLasFolderIndex.getItemEnvelopes();
             Envelope env = null;
-            for( Object item : boundablesList ) {
-                if (item instanceof ItemBoundable) {
-                    ItemBoundable boundable = (ItemBoundable) item;
-                    Envelope envelope = (Envelope) boundable.getBounds();
+            for( int i = 0; i < envelopes.length; i++ ) {
+                Object item = mainLasFolderIndex.getItem(i);
+                if (item instanceof String) {
+                    Envelope envelope = envelopes[i];
                     ReferencedEnvelope tmp = new ReferencedEnvelope(envelope, crs);
                     referencedEnvelope2DList.add(tmp);
-                    String name = (String) boundable.getItem();
+                    String name = (String) item;
                     fileNamesList.add(name);
 
                     if (env == null) {
@@ -379,23 +438,14 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         return overviewFeatures;
     }
 
-    @SuppressWarnings("rawtypes")
     private void checkReadersMap() throws Exception {
         checkOpen();
         if (fileName2LasReaderMap.size() == 0) {
-            List filesList = mainLasFolderIndex.itemsTree();
-            for( Object fileName : filesList ) {
+            for( int i = 0; i < mainLasFolderIndex.size(); i++ ) {
+                Object fileName = mainLasFolderIndex.getItem(i);
                 if (fileName instanceof String) {
                     String name = (String) fileName;
                     getReader(name);
-                } else if (fileName instanceof List) {
-                    List filesList2 = (List) fileName;
-                    for( Object fileName2 : filesList2 ) {
-                        if (fileName2 instanceof String) {
-                            String name2 = (String) fileName2;
-                            getReader(name2);
-                        }
-                    }
                 } else {
                     throw new RuntimeException();
                 }
@@ -403,6 +453,38 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         }
     }
 
+    /**
+     * Get the reader/index pair of a las file, opening it if necessary.
+     * 
+     * @param name the las file name.
+     * @return the pair or <code>null</code>, if the file is not indexed.
+     * @throws Exception
+     */
+    private synchronized Pair getPair( String name ) throws Exception {
+        Pair pair = fileName2LasReaderMap.get(name);
+        if (pair == null) {
+            File lasFile = new File(lasFolder, name);
+            File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
+            if (lasIndexFile.exists()) {
+                pair = getIndexPair(lasFile);
+                if (pair != null) {
+                    fileName2LasReaderMap.put(name, pair);
+                    fileName4LasReaderMapSupport.add(name);
+                }
+            }
+        }
+        return pair;
+    }
+
+    private synchronized PackedHilbertRtree getIndex( String absolutePath ) throws Exception {
+        PackedHilbertRtree lasIndex = fileName2IndexMap.get(absolutePath);
+        if (lasIndex == null) {
+            lasIndex = OmsLasIndexReader.readIndex(absolutePath);
+            fileName2IndexMap.put(absolutePath, lasIndex);
+        }
+        return lasIndex;
+    }
+
     private void getReader( String name ) throws Exception {
         Pair pair = fileName2LasReaderMap.get(name);
         if (pair == null) {
@@ -424,10 +506,10 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
             ALasReader reader = ALasReader.getReader(lasFile, crs);
             reader.open();
             reader.getHeader();
-            STRtreeJGT lasIndex = OmsLasIndexReader.readIndex(lasIndexFile.getAbsolutePath());
+            PackedHilbertRtree lasIndex = OmsLasIndexReader.readIndex(lasIndexFile.getAbsolutePath());
             Pair pair = new Pair();
             pair.reader = reader;
-            pair.strTree = lasIndex;
+            pair.index = lasIndex;
             return pair;
         } else {
             System.err.println("Doesn't exist: " + lasIndexFile);
@@ -437,7 +519,11 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
 
     private void checkOpen() throws Exception {
         if (mainLasFolderIndex == null) {
-            open();
+            synchronized (this) {
+                if (mainLasFolderIndex == null) {
+                    open();
+                }
+            }
         }
     }
 
@@ -455,7 +541,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
 
     private class Pair {
         ALasReader reader;
-        STRtreeJGT strTree;
+        PackedHilbertRtree index;
         public void close() {
             if (reader != null)
                 try {
@@ -464,7 +550,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
                     e.printStackTrace();
                 }
             reader = null;
-            strTree = null;
+            index = null;
         }
     }
 
@@ -19,6 +19,9 @@ package org.jgrasstools.gears.io.las.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * Interface for las readers.
@@ -88,6 +91,52 @@ public abstract class ALasReader extends Las implements AutoCloseable{
      */
     public abstract LasRecord getPointAt( long pointPosition ) throws IOException;
 
+    /**
+     * Reads the points of a range of positions that are contained in an envelope.
+     * 
+     * <p>The default implementation reads point by point and is synchronized. 
+     * Readers that can read the range in a single transfer without using the 
+     * current file position override this and can be called concurrently.</p>
+     * 
+     * @param fromPoint the first point position (inclusive).
+     * @param toPoint the last point position (exclusive).
+     * @param envelope the envelope the points have to be contained in.
+     * @param pointsList the list to which the points are added.
+     * @throws IOException
+     */
+    public synchronized void getPointsInRange( long fromPoint, long toPoint, Envelope envelope, List<LasRecord> pointsList )
+            throws IOException {
+        for( long pointNum = fromPoint; pointNum < toPoint; pointNum++ ) {
+            LasRecord lasDot = getPointAt(pointNum);
+            if (envelope.contains(lasDot.x, lasDot.y)) {
+                pointsList.add(lasDot);
+            }
+        }
+    }
+
+    /**
+     * Reads the points of a range of positions into a batch.
+     *
+     * <p>The batch is cleared first and filled with at most its capacity of points,
+     * so the range can be read in chunks. As for {@link #getPointsInRange(long, long, Envelope, List)}
+     * the default implementation is synchronized and readers that support positional
+     * reads override it.</p>
+     *
+     * @param fromPoint the first point position (inclusive).
+     * @param toPoint the last point position (exclusive).
+     * @param batch the batch to fill.
+     * @return the number of points read.
+     * @throws IOException
+     */
+    public synchronized int getPointsInRange( long fromPoint, long toPoint, LasPointBatch batch ) throws IOException {
+        batch.clear();
+        long end = Math.min(toPoint, fromPoint + batch.capacity());
+        for( long pointNum = fromPoint; pointNum < end; pointNum++ ) {
+            batch.add(getPointAt(pointNum));
+        }
+        return batch.size();
+    }
+
     /**
      * Reads the position and the record address in the file of the next point.
      * 
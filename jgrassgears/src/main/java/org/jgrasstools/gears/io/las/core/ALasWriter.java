@@ -79,6 +79,46 @@ public abstract class ALasWriter extends Las implements AutoCloseable {
      */
     public abstract void addPoint( LasRecord record ) throws IOException;
 
+    /**
+     * Writes the points of a batch to file.
+     * 
+     * <p>The default implementation writes point by point. Writers that can 
+     * encode the columns directly override it.</p>
+     * 
+     * @param batch the points to write.
+     * @throws IOException
+     */
+    public synchronized void addPoints( LasPointBatch batch ) throws IOException {
+        LasRecord record = new LasRecord();
+        for( int i = 0; i < batch.size(); i++ ) {
+            batch.getRecord(i, record);
+            addPoint(record);
+        }
+    }
+
+    /**
+     * Possibility to have the min and max bounds calculated from the written points.
+     * 
+     * <p>If set, the bounds are written to the header when the writer is closed
+     * and override the ones set through the setBounds methods. This is useful
+     * when the bounds of the data are not known before writing.</p>
+     * 
+     * @param doBoundsFromPoints if <code>true</code>, the bounds are calculated.
+     */
+    public abstract void setBoundsFromPoints( boolean doBoundsFromPoints );
+
+    /**
+     * Release the file and the buffers of the writer until more points are added.
+     * 
+     * <p>The points added so far are written. The next added point reopens the file
+     * and appends to it, so many writers can be kept without keeping their files
+     * open. The default implementation does nothing.</p>
+     * 
+     * @throws Exception
+     */
+    public void suspend() throws Exception {
+    }
+
     /**
      * Close the writer and release resources.
      * 
@@ -0,0 +1,165 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.core;
+
+/**
+ * A reusable batch of las points stored in primitive columns.
+ *
+ * <p>The columns have the same meaning as the fields of {@link LasRecord} and
+ * are public for fast access. Only the first {@link #size()} entries are valid.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPointBatch {
+    public final double[] x;
+    public final double[] y;
+    public final double[] z;
+    public final double[] gpsTime;
+    public final double[] groundElevation;
+    public final short[] intensity;
+    /**
+     * The colors as r, g, b triplets.
+     */
+    public final short[] color;
+    public final byte[] classification;
+    public final byte[] returnNumber;
+    public final byte[] numberOfReturns;
+
+    private final int capacity;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of points of the batch.
+     */
+    public LasPointBatch( int capacity ) {
+        this.capacity = capacity;
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        gpsTime = new double[capacity];
+        groundElevation = new double[capacity];
+        intensity = new short[capacity];
+        color = new short[capacity * 3];
+        classification = new byte[capacity];
+        returnNumber = new byte[capacity];
+        numberOfReturns = new byte[capacity];
+    }
+
+    /**
+     * @return the number of valid points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of points.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Empties the batch, the arrays are kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sets the number of valid points, used by readers that fill the columns directly.
+     *
+     * @param size the new size.
+     */
+    public void setSize( int size ) {
+        if (size < 0 || size > capacity) {
+            throw new IllegalArgumentException("Size out of range: " + size);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param record the record to add.
+     */
+    public void add( LasRecord record ) {
+        int i = size++;
+        x[i] = record.x;
+        y[i] = record.y;
+        z[i] = record.z;
+        gpsTime[i] = record.gpsTime;
+        groundElevation[i] = record.groundElevation;
+        intensity[i] = record.intensity;
+        color[3 * i] = record.color[0];
+        color[3 * i + 1] = record.color[1];
+        color[3 * i + 2] = record.color[2];
+        classification[i] = record.classification;
+        returnNumber[i] = (byte) record.returnNumber;
+        numberOfReturns[i] = (byte) record.numberOfReturns;
+    }
+
+    /**
+     * Append a point of another batch.
+     *
+     * @param other the batch to copy from.
+     * @param index the index of the point in the other batch.
+     */
+    public void add( LasPointBatch other, int index ) {
+        int i = size++;
+        x[i] = other.x[index];
+        y[i] = other.y[index];
+        z[i] = other.z[index];
+        gpsTime[i] = other.gpsTime[index];
+        groundElevation[i] = other.groundElevation[index];
+        intensity[i] = other.intensity[index];
+        color[3 * i] = other.color[3 * index];
+        color[3 * i + 1] = other.color[3 * index + 1];
+        color[3 * i + 2] = other.color[3 * index + 2];
+        classification[i] = other.classification[index];
+        returnNumber[i] = other.returnNumber[index];
+        numberOfReturns[i] = other.numberOfReturns[index];
+    }
+
+    /**
+     * Copy a point into a record.
+     *
+     * @param index the index of the point.
+     * @param record the record to fill.
+     */
+    public void getRecord( int index, LasRecord record ) {
+        record.x = x[index];
+        record.y = y[index];
+        record.z = z[index];
+        record.gpsTime = gpsTime[index];
+        record.groundElevation = groundElevation[index];
+        record.intensity = intensity[index];
+        record.color[0] = color[3 * index];
+        record.color[1] = color[3 * index + 1];
+        record.color[2] = color[3 * index + 2];
+        record.classification = classification[index];
+        record.returnNumber = returnNumber[index];
+        record.numberOfReturns = numberOfReturns[index];
+    }
+}
@@ -71,6 +71,14 @@ public class LiblasWriter extends ALasWriter {
     private boolean pointFormatHasBeenSet = false;
     private int gpsTimeType = 0;
 
+    private boolean doBoundsFromPoints = false;
+    private double pointsXMin = Double.POSITIVE_INFINITY;
+    private double pointsYMin = Double.POSITIVE_INFINITY;
+    private double pointsZMin = Double.POSITIVE_INFINITY;
+    private double pointsXMax = Double.NEGATIVE_INFINITY;
+    private double pointsYMax = Double.NEGATIVE_INFINITY;
+    private double pointsZMax = Double.NEGATIVE_INFINITY;
+
     /**
      * A las file writer.
      * 
@@ -232,10 +240,20 @@ public class LiblasWriter extends ALasWriter {
         WRAPPER.LASPoint_SetHeader(pointHandle, headerHandle);
         WRAPPER.LASPoint_SetX(pointHandle, record.x); // 4
         WRAPPER.LASPoint_SetY(pointHandle, record.y); // 4
+        double z;
         if (!doWriteGroundElevation) {
-            WRAPPER.LASPoint_SetZ(pointHandle, record.z); // 4
+            z = record.z;
         } else {
-            WRAPPER.LASPoint_SetZ(pointHandle, record.groundElevation); // 4
+            z = record.groundElevation;
+        }
+        WRAPPER.LASPoint_SetZ(pointHandle, z); // 4
+        if (doBoundsFromPoints) {
+            pointsXMin = Math.min(pointsXMin, record.x);
+            pointsXMax = Math.max(pointsXMax, record.x);
+            pointsYMin = Math.min(pointsYMin, record.y);
+            pointsYMax = Math.max(pointsYMax, record.y);
+            pointsZMin = Math.min(pointsZMin, z);
+            pointsZMax = Math.max(pointsZMax, z);
         }
 
         WRAPPER.LASPoint_SetIntensity(pointHandle, record.intensity); // 2
@@ -268,6 +286,10 @@ public class LiblasWriter extends ALasWriter {
 
         WRAPPER.LASHeader_SetPointRecordsCount(headerHandle, recordsNum);
         WRAPPER.LASHeader_SetDataFormatId(headerHandle, (byte) pointFormat);
+        if (doBoundsFromPoints && recordsNum > 0) {
+            WRAPPER.LASHeader_SetMin(headerHandle, pointsXMin, pointsYMin, pointsZMin);
+            WRAPPER.LASHeader_SetMax(headerHandle, pointsXMax, pointsYMax, pointsZMax);
+        }
 
         WRAPPER.LASWriter_Destroy(fileHandle);
 
@@ -278,6 +300,11 @@ public class LiblasWriter extends ALasWriter {
             CrsUtilities.writeProjectionFile(prjFile.getAbsolutePath(), null, crs);
     }
 
+    @Override
+    public void setBoundsFromPoints( boolean doBoundsFromPoints ) {
+        this.doBoundsFromPoints = doBoundsFromPoints;
+    }
+
     @Override
     public void setWriteGroundElevation( boolean doWriteGroundElevation ) {
         this.doWriteGroundElevation = doWriteGroundElevation;
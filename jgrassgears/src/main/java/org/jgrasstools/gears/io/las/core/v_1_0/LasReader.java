@@ -23,20 +23,29 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.utils.ByteUtilities;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * Las record reader for las spec 1.0. 
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class LasReader extends ALasReader {
+    /**
+     * The number of records read per transfer in {@link #getPointsInRange(long, long, Envelope, List)}.
+     */
+    private static final int RANGE_BUFFER_RECORDS = 8192;
+
     private final byte[] doubleDataArray = new byte[8];
     private final ByteBuffer doubleBb = ByteBuffer.wrap(doubleDataArray);
     private final byte[] longDataArray = new byte[4];
@@ -72,6 +81,15 @@ public class LasReader extends ALasReader {
 
     private LasHeader header;
 
+    private final ThreadLocal<ByteBuffer> rangeBuffer = new ThreadLocal<ByteBuffer>(){
+        @Override
+        protected ByteBuffer initialValue() {
+            ByteBuffer bb = ByteBuffer.allocateDirect(RANGE_BUFFER_RECORDS * recordLength);
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+            return bb;
+        }
+    };
+
     public LasReader( File lasFile, CoordinateReferenceSystem crs ) throws Exception {
         this.lasFile = lasFile;
         if (crs != null) {
@@ -308,6 +326,113 @@ public class LasReader extends ALasReader {
         return getPoint();
     }
 
+    /**
+     * Reads the range in bulk transfers using positional reads, so that
+     * the reader position is not touched and concurrent calls are safe.
+     */
+    @Override
+    public void getPointsInRange( long fromPoint, long toPoint, Envelope envelope, List<LasRecord> pointsList )
+            throws IOException {
+        checkOpen();
+        ByteBuffer bb = rangeBuffer.get();
+        long pointNum = fromPoint;
+        while( pointNum < toPoint ) {
+            int count = (int) Math.min(RANGE_BUFFER_RECORDS, toPoint - pointNum);
+            readRecords(bb, pointNum, count);
+            for( int i = 0; i < count; i++ ) {
+                int base = i * recordLength;
+                final double xd = bb.getInt(base) * xScale + xOffset;
+                final double yd = bb.getInt(base + 4) * yScale + yOffset;
+                if (!envelope.contains(xd, yd)) {
+                    continue;
+                }
+                final LasRecord dot = new LasRecord();
+                dot.x = xd;
+                dot.y = yd;
+                dot.z = bb.getInt(base + 8) * zScale + zOffset;
+                dot.intensity = bb.getShort(base + 12);
+                final byte b = bb.get(base + 14);
+                dot.returnNumber = getReturnNumber(b);
+                dot.numberOfReturns = getNumberOfReturns(b);
+                dot.classification = bb.get(base + 15);
+                // skip scan angle rank, file marker and point source id
+                int extra = base + 20;
+                if (header.pointDataFormat == 1 || header.pointDataFormat == 3) {
+                    dot.gpsTime = bb.getDouble(extra);
+                    extra = extra + 8;
+                }
+                if (header.pointDataFormat == 2 || header.pointDataFormat == 3) {
+                    dot.color[0] = bb.getShort(extra);
+                    dot.color[1] = bb.getShort(extra + 2);
+                    dot.color[2] = bb.getShort(extra + 4);
+                }
+                pointsList.add(dot);
+            }
+            pointNum = pointNum + count;
+        }
+    }
+
+    @Override
+    public int getPointsInRange( long fromPoint, long toPoint, LasPointBatch batch ) throws IOException {
+        checkOpen();
+        batch.clear();
+        ByteBuffer bb = rangeBuffer.get();
+        final boolean hasGpsTime = header.pointDataFormat == 1 || header.pointDataFormat == 3;
+        final boolean hasColor = header.pointDataFormat == 2 || header.pointDataFormat == 3;
+        long pointNum = fromPoint;
+        long end = Math.min(toPoint, fromPoint + batch.capacity());
+        int index = 0;
+        while( pointNum < end ) {
+            int count = (int) Math.min(RANGE_BUFFER_RECORDS, end - pointNum);
+            readRecords(bb, pointNum, count);
+            for( int i = 0; i < count; i++, index++ ) {
+                int base = i * recordLength;
+                batch.x[index] = bb.getInt(base) * xScale + xOffset;
+                batch.y[index] = bb.getInt(base + 4) * yScale + yOffset;
+                batch.z[index] = bb.getInt(base + 8) * zScale + zOffset;
+                batch.intensity[index] = bb.getShort(base + 12);
+                final byte b = bb.get(base + 14);
+                batch.returnNumber[index] = (byte) getReturnNumber(b);
+                batch.numberOfReturns[index] = (byte) getNumberOfReturns(b);
+                batch.classification[index] = bb.get(base + 15);
+                batch.groundElevation[index] = Double.NaN;
+                int extra = base + 20;
+                if (hasGpsTime) {
+                    batch.gpsTime[index] = bb.getDouble(extra);
+                    extra = extra + 8;
+                } else {
+                    batch.gpsTime[index] = -1;
+                }
+                if (hasColor) {
+                    batch.color[3 * index] = bb.getShort(extra);
+                    batch.color[3 * index + 1] = bb.getShort(extra + 2);
+                    batch.color[3 * index + 2] = bb.getShort(extra + 4);
+                } else {
+                    batch.color[3 * index] = 100;
+                    batch.color[3 * index + 1] = 100;
+                    batch.color[3 * index + 2] = 100;
+                }
+            }
+            pointNum = pointNum + count;
+        }
+        batch.setSize(index);
+        return index;
+    }
+
+    /**
+     * Reads a number of records into the buffer with a positional read.
+     */
+    private void readRecords( ByteBuffer bb, long pointNum, int count ) throws IOException {
+        long position = offset + pointNum * recordLength;
+        bb.clear();
+        bb.limit(count * recordLength);
+        while( bb.hasRemaining() ) {
+            if (fc.read(bb, position + bb.position()) < 0) {
+                throw new IOException("Unexpected end of file reading point " + pointNum + " of " + lasFile);
+            }
+        }
+    }
+
     private LasRecord getPoint() throws IOException {
         int read = 0;
         final long x = getLong4Bytes();
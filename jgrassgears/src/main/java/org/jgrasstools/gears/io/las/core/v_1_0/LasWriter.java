@@ -22,17 +22,17 @@ import static java.lang.Math.round;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.util.BitSet;
 
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
-import org.jgrasstools.gears.utils.ByteUtilities;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.JGTVersion;
 import org.jgrasstools.gears.utils.files.FileUtilities;
@@ -45,6 +45,16 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
  */
 public class LasWriter extends ALasWriter {
     private static final String OPEN_METHOD_MSG = "This needs to be called before the open method.";
+    /**
+     * The size of the buffer the records are encoded into before being written.
+     * 
+     * <p>Kept small, since a split can keep many writers open at the same time.</p>
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * The maximum length of a supported record (point format 3).
+     */
+    private static final int MAX_RECORD_LENGTH = 34;
     private final byte[] doubleDataArray = new byte[8];
     private final ByteBuffer doubleBb = ByteBuffer.wrap(doubleDataArray);
     private final byte[] longDataArray = new byte[4];
@@ -54,6 +64,7 @@ public class LasWriter extends ALasWriter {
     private File outFile;
     private CoordinateReferenceSystem crs;
     private FileOutputStream fos;
+    private RandomAccessFile appendFile;
     private File prjFile;
     private double xScale = 0.01;
     private double yScale = 0.01;
@@ -77,14 +88,22 @@ public class LasWriter extends ALasWriter {
     private boolean doWriteGroundElevation;
     private boolean openCalled;
 
-    private int previousReturnNumber = -999;
-    private int previousNumberOfReturns = -999;
-    private byte[] previousReturnBytes = null;
     private long offsetToData = 227;
     private int recordLengthPosition;
     private boolean pointFormatHasBeenSet = false;
     private int gpsTimeType = 0;
 
+    private ByteBuffer writeBuffer;
+    private boolean suspended = false;
+    private int boundsPosition;
+    private boolean doBoundsFromPoints = false;
+    private double pointsXMin = Double.POSITIVE_INFINITY;
+    private double pointsYMin = Double.POSITIVE_INFINITY;
+    private double pointsZMin = Double.POSITIVE_INFINITY;
+    private double pointsXMax = Double.NEGATIVE_INFINITY;
+    private double pointsYMax = Double.NEGATIVE_INFINITY;
+    private double pointsZMax = Double.NEGATIVE_INFINITY;
+
     /**
      * A las file writer.
      * 
@@ -175,9 +194,14 @@ public class LasWriter extends ALasWriter {
     public void open() throws Exception {
         openFile();
         writeHeader();
+        writeBuffer = createWriteBuffer();
         openCalled = true;
     }
 
+    private static ByteBuffer createWriteBuffer() {
+        return ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     private void writeHeader() throws IOException {
 
         // File signature: LASF
@@ -298,6 +322,7 @@ public class LasWriter extends ALasWriter {
         hLength = hLength + 3 * 8;
 
         // x,y,z - min/max
+        boundsPosition = hLength;
         fos.write(getDouble(xMax));
         fos.write(getDouble(xMin));
         fos.write(getDouble(yMax));
@@ -311,111 +336,170 @@ public class LasWriter extends ALasWriter {
 
     @Override
     public synchronized void addPoint( LasRecord record ) throws IOException {
-        int length = 0;
-        int x = (int) round((record.x - xOffset) / xScale);
-        int y = (int) round((record.y - yOffset) / yScale);
-        int z;
-        if (!doWriteGroundElevation) {
-            z = (int) round((record.z - zOffset) / zScale);
-        } else {
-            z = (int) round((record.groundElevation - zOffset) / zScale);
+        if (suspended) {
+            resume();
+        }
+        double zValue = doWriteGroundElevation ? record.groundElevation : record.z;
+        encodePoint(record.x, record.y, zValue, record.intensity, record.returnNumber, record.numberOfReturns,
+                record.classification, record.gpsTime, record.color[0], record.color[1], record.color[2]);
+    }
+
+    /**
+     * Encodes the points of the batch into the write buffer, avoiding the creation of records.
+     */
+    @Override
+    public synchronized void addPoints( LasPointBatch batch ) throws IOException {
+        if (suspended) {
+            resume();
         }
-        fos.write(getLong(x));
-        fos.write(getLong(y));
-        fos.write(getLong(z));
+        final double[] zValues = doWriteGroundElevation ? batch.groundElevation : batch.z;
+        final short[] color = batch.color;
+        for( int i = 0; i < batch.size(); i++ ) {
+            encodePoint(batch.x[i], batch.y[i], zValues[i], batch.intensity[i], batch.returnNumber[i],
+                    batch.numberOfReturns[i], batch.classification[i], batch.gpsTime[i], color[3 * i], color[3 * i + 1],
+                    color[3 * i + 2]);
+        }
+    }
+
+    private void encodePoint( double xValue, double yValue, double zValue, short intensity, int returnNumber,
+            int numberOfReturns, byte classification, double gpsTime, short red, short green, short blue ) throws IOException {
+        if (writeBuffer.remaining() < MAX_RECORD_LENGTH) {
+            flushBuffer();
+        }
+        int length = 0;
+        int x = (int) round((xValue - xOffset) / xScale);
+        int y = (int) round((yValue - yOffset) / yScale);
+        int z = (int) round((zValue - zOffset) / zScale);
+        writeBuffer.putInt(x);
+        writeBuffer.putInt(y);
+        writeBuffer.putInt(z);
         length = length + 12;
-        fos.write(getShort(record.intensity));
+        writeBuffer.putShort(intensity);
         length = length + 2;
 
         // 001 | 001 | 11 -> bits for return num, num of ret, scan dir flag, edge of flight line
-
-        int returnNumber = record.returnNumber;
-        int numberOfReturns = record.numberOfReturns;
-
-        if (returnNumber != previousReturnNumber || numberOfReturns != previousNumberOfReturns) {
-            BitSet bitsetRN = ByteUtilities.bitsetFromByte((byte) returnNumber);
-            BitSet bitsetNOR = ByteUtilities.bitsetFromByte((byte) numberOfReturns);
-            BitSet b = new BitSet(7);
-            b.set(0, bitsetRN.get(0));
-            b.set(1, bitsetRN.get(1));
-            b.set(2, bitsetRN.get(2));
-            b.set(3, bitsetNOR.get(0));
-            b.set(4, bitsetNOR.get(1));
-            b.set(5, bitsetNOR.get(2));
-            b.set(6, false);
-            b.set(7, false);
-            byte[] bb = ByteUtilities.bitSetToByteArray(b);
-            fos.write(bb[0]);
-            previousReturnBytes = bb;
-            previousReturnNumber = returnNumber;
-            previousNumberOfReturns = numberOfReturns;
-        } else {
-            fos.write(previousReturnBytes[0]);
-        }
+        writeBuffer.put((byte) ((returnNumber & 7) | ((numberOfReturns & 7) << 3)));
         length = length + 1;
 
         // class
-        byte c = (byte) record.classification;
-        fos.write(c);
+        writeBuffer.put(classification);
         length = length + 1;
 
         // scan angle rank
-        fos.write(1);
+        writeBuffer.put((byte) 1);
         length = length + 1;
         // user data
-        fos.write(0);
+        writeBuffer.put((byte) 0);
         length = length + 1;
         // point source id
-        fos.write(new byte[2]);
+        writeBuffer.putShort((short) 0);
         length = length + 2;
 
         if (pointFormatHasBeenSet) {
-        	switch (pointFormat) {
-        	case 1:
-        		length = length + writeGpstime(record);
-        		break;
-        	case 2:
-        		length = length + writeRGB(record);
-        		break;
-        	case 3:
-        		length = length + writeGpstime(record);
-        		length = length + writeRGB(record);
-        		break;
-        	}
-        }
-        else {
-        	if (record.gpsTime!=-1) {
-        		pointFormat = 1;
-        		length = length + writeGpstime(record);
-        	}
+            switch( pointFormat ) {
+            case 1:
+                length = length + writeGpstime(gpsTime);
+                break;
+            case 2:
+                length = length + writeRGB(red, green, blue);
+                break;
+            case 3:
+                length = length + writeGpstime(gpsTime);
+                length = length + writeRGB(red, green, blue);
+                break;
+            }
+        } else {
+            if (gpsTime != -1) {
+                pointFormat = 1;
+                length = length + writeGpstime(gpsTime);
+            }
         }
 
         recordLength = (short) length;
 
+        if (doBoundsFromPoints) {
+            // the bounds of the stored, i.e. quantized, values
+            double xStored = x * xScale + xOffset;
+            double yStored = y * yScale + yOffset;
+            double zStored = z * zScale + zOffset;
+            pointsXMin = Math.min(pointsXMin, xStored);
+            pointsXMax = Math.max(pointsXMax, xStored);
+            pointsYMin = Math.min(pointsYMin, yStored);
+            pointsYMax = Math.max(pointsYMax, yStored);
+            pointsZMin = Math.min(pointsZMin, zStored);
+            pointsZMax = Math.max(pointsZMax, zStored);
+        }
+
         recordsNum++;
     }
-    
-    private int writeGpstime(LasRecord record) throws IOException {
-    	fos.write(getDouble(record.gpsTime));
-    	return 8;
+
+    private int writeGpstime( double gpsTime ) {
+        writeBuffer.putDouble(gpsTime);
+        return 8;
+    }
+
+    private int writeRGB( short red, short green, short blue ) {
+        writeBuffer.putShort(red);
+        writeBuffer.putShort(green);
+        writeBuffer.putShort(blue);
+        return 6;
     }
-    
-    private int writeRGB(LasRecord record) throws IOException {
-		fos.write(getShort(record.color[0]));
-		fos.write(getShort(record.color[1]));
-		fos.write(getShort(record.color[2]));
-		return 6;
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while( writeBuffer.hasRemaining() ) {
+            fileChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
     }
 
     @Override
-    public void close() throws Exception {
-        fileChannel.position(recordsNumPosition);
-        fos.write(getLong(recordsNum));
+    public void setBoundsFromPoints( boolean doBoundsFromPoints ) {
+        this.doBoundsFromPoints = doBoundsFromPoints;
+    }
 
-        fileChannel.position(pointFormatPosition);
-        fos.write(pointFormat);
-        fileChannel.position(recordLengthPosition);
-        fos.write(getShort(recordLength));
+    @Override
+    public synchronized void suspend() throws Exception {
+        if (!openCalled || suspended) {
+            return;
+        }
+        flushBuffer();
+        closeFile();
+        writeBuffer = null;
+        suspended = true;
+    }
+
+    /**
+     * Reopen a suspended writer, appending to the points already written.
+     */
+    private void resume() throws IOException {
+        appendFile = new RandomAccessFile(outFile, "rw");
+        fileChannel = appendFile.getChannel();
+        fileChannel.position(fileChannel.size());
+        writeBuffer = createWriteBuffer();
+        suspended = false;
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        if (suspended) {
+            resume();
+        }
+        flushBuffer();
+
+        // the header fields are written in place, the file might have been reopened
+        writeAt(recordsNumPosition, getLong(recordsNum));
+        writeAt(pointFormatPosition, new byte[]{(byte) pointFormat});
+        writeAt(recordLengthPosition, getShort(recordLength));
+
+        if (doBoundsFromPoints && recordsNum > 0) {
+            writeAt(boundsPosition, getDouble(pointsXMax));
+            writeAt(boundsPosition + 8, getDouble(pointsXMin));
+            writeAt(boundsPosition + 16, getDouble(pointsYMax));
+            writeAt(boundsPosition + 24, getDouble(pointsYMin));
+            writeAt(boundsPosition + 32, getDouble(pointsZMax));
+            writeAt(boundsPosition + 40, getDouble(pointsZMin));
+        }
 
         closeFile();
 
@@ -426,6 +510,13 @@ public class LasWriter extends ALasWriter {
             CrsUtilities.writeProjectionFile(prjFile.getAbsolutePath(), null, crs);
     }
 
+    private void writeAt( long position, byte[] bytes ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while( buffer.hasRemaining() ) {
+            fileChannel.write(buffer, position + buffer.position());
+        }
+    }
+
     private byte[] getLong( int num ) {
         longBb.clear();
         longBb.putInt(num);
@@ -458,11 +549,15 @@ public class LasWriter extends ALasWriter {
         fileChannel = fos.getChannel();
     }
 
-    private void closeFile() throws Exception {
+    private void closeFile() throws IOException {
         if (fileChannel != null && fileChannel.isOpen())
             fileChannel.close();
         if (fos != null)
             fos.close();
+        if (appendFile != null)
+            appendFile.close();
+        fos = null;
+        appendFile = null;
     }
 
     @Override
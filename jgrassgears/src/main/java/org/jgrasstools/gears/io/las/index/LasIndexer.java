@@ -19,12 +19,8 @@ package org.jgrasstools.gears.io.las.index;
 
 import static java.lang.Math.round;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -58,7 +54,6 @@ import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
-import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -161,7 +156,7 @@ public class LasIndexer extends JGTModel {
 
         List<File> filesList = iter.filesList;
         pm.beginTask("Creating readers index...", filesList.size());
-        STRtreeJGT mainTree = new STRtreeJGT();
+        PackedHilbertRtree.Builder mainTree = new PackedHilbertRtree.Builder(PackedHilbertRtree.DEFAULT_NODE_SIZE);
         for( File file : filesList ) {
             try (ALasReader reader = ALasReader.getReader(file, crs)) {
                 reader.open();
@@ -171,15 +166,14 @@ public class LasIndexer extends JGTModel {
                 }
                 ReferencedEnvelope3D envelope = header.getDataEnvelope();
                 File newLasFile = getNewLasFile(file);
-                mainTree.insert(envelope, newLasFile.getName());
+                mainTree.add(envelope, newLasFile.getName());
             }
             pm.worked(1);
         }
         pm.done();
 
         File mainIndex = new File(inFolder, pIndexname);
-        byte[] mainIndexBytes = serialize(mainTree);
-        dumpBytes(mainIndex, mainIndexBytes);
+        mainTree.write(mainIndex);
 
         // write prj file
         CrsUtilities.writeProjectionFile(mainIndex.getAbsolutePath(), "lasfolder", crs);
@@ -244,7 +238,12 @@ public class LasIndexer extends JGTModel {
         File newLasFile = getNewLasFile(file);
         File indexFile = getNetIndexFile(file);
         if (indexFile.exists() && newLasFile.exists()) {
-            pm.message("Index existing already for file: " + name);
+            if (PackedHilbertRtree.isLegacy(indexFile)) {
+                pm.message("Converting existing index to the packed format for file: " + name);
+                PackedHilbertRtree.convert(indexFile, indexFile);
+            } else {
+                pm.message("Index existing already for file: " + name);
+            }
             return;
         }
         if (indexFile.exists() || newLasFile.exists()) {
@@ -333,7 +332,7 @@ public class LasIndexer extends JGTModel {
                 writer.open();
 
                 int addedTiles = 0;
-                STRtreeJGT tree = new STRtreeJGT();
+                PackedHilbertRtree.Builder tree = new PackedHilbertRtree.Builder(PackedHilbertRtree.DEFAULT_NODE_SIZE);
                 if (!isMultiThreaded) {
                     pm.beginTask("Write and index new las...", cols);
                 } else {
@@ -363,7 +362,7 @@ public class LasIndexer extends JGTModel {
                         }
                         avgElevValue /= count;
                         avgIntensityValue /= count;
-                        tree.insert(env, new double[]{tmpCount, pointCount, avgElevValue, avgIntensityValue});
+                        tree.add(env, new double[]{tmpCount, pointCount, avgElevValue, avgIntensityValue});
                         addedTiles++;
                     }
                     if (!isMultiThreaded)
@@ -372,8 +371,7 @@ public class LasIndexer extends JGTModel {
                 if (!isMultiThreaded)
                     pm.done();
 
-                byte[] serialized = serialize(tree);
-                dumpBytes(indexFile, serialized);
+                tree.write(indexFile);
 
                 pm.message("Tiles added for " + name + ": " + addedTiles);
             }
@@ -423,20 +421,5 @@ public class LasIndexer extends JGTModel {
     public void close() throws Exception {
     }
 
-    private static byte[] serialize( Object obj ) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeObject(obj);
-            out.close();
-            return bos.toByteArray();
-        }
-    }
-
-    private static void dumpBytes( File file, byte[] bytes ) throws Exception {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.write(bytes);
-        }
-    }
-
 
 }
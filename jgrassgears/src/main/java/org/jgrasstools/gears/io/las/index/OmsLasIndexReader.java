@@ -46,7 +46,6 @@ import org.geotools.referencing.CRS;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
-import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -58,7 +57,7 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import java.io.*;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -122,7 +121,7 @@ public class OmsLasIndexReader extends JGTModel {
         GeometryFactory gf = GeometryUtilities.gf();
 
         File parentFolder = new File(inFile).getParentFile();
-        STRtreeJGT mainIndexTree = readIndex(inFile);
+        PackedHilbertRtree mainIndexTree = readIndex(inFile);
 
         List<Geometry> boundsList;
         if (!doBounds) {
@@ -181,7 +180,7 @@ public class OmsLasIndexReader extends JGTModel {
 
                         if (!doBounds) {
                             // TODO check files
-                            STRtreeJGT lasIndex = readIndex(lasIndexFile.getAbsolutePath());
+                            PackedHilbertRtree lasIndex = readIndex(lasIndexFile.getAbsolutePath());
                             List lasIndexStoreInfoList = lasIndex.query(env);
                             pm.beginTask("Read data...", lasIndexStoreInfoList.size());
                             for( Object obj : lasIndexStoreInfoList ) {
@@ -231,26 +230,17 @@ public class OmsLasIndexReader extends JGTModel {
         }
     }
 
-    public static STRtreeJGT readIndex( String path ) throws Exception {
-        File file = new File(path);
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(file, "r");
-            long length = raf.length();
-            // System.out.println(length + "/" + (int) length);
-            byte[] bytes = new byte[(int) length];
-            int read = raf.read(bytes);
-            if (read != length) {
-                throw new IOException();
-            }
-            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
-            Object readObject = in.readObject();
-            STRtreeJGT indexObj = (STRtreeJGT) readObject;
-            return indexObj;
-        } finally {
-            if (raf != null)
-                raf.close();
-        }
+    /**
+     * Read a las folder or las file index.
+     *
+     * <p>Indexes in the old serialized format are converted on the fly.</p>
+     *
+     * @param path the path to the index file.
+     * @return the index.
+     * @throws Exception
+     */
+    public static PackedHilbertRtree readIndex( String path ) throws Exception {
+        return PackedHilbertRtree.read(new File(path));
     }
 
     public static Polygon envelopeToPolygon( Envelope envelope ) {
@@ -0,0 +1,662 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.ItemBoundable;
+
+/**
+ * A static packed Hilbert R-tree that is queried directly on its binary form.
+ *
+ * <p>The items are sorted by the Hilbert value of their envelope center and
+ * packed bottom up into nodes of fixed size. The whole tree is a flat array of
+ * fixed width envelopes plus an array of child/item indexes, so a file can be
+ * memory mapped and queried without deserialization. Since the buffer is only
+ * accessed with absolute reads, queries can be run concurrently.</p>
+ *
+ * <p>The binary format (little endian) is:</p>
+ * <ul>
+ *  <li>int magic ('JGTH'), int version</li>
+ *  <li>int item type ({@link #ITEMS_NAMES} or {@link #ITEMS_DOUBLES}), int doubles per item</li>
+ *  <li>int node size, int items number, int nodes number, int levels number</li>
+ *  <li>4 doubles for the overall bounds [minx, miny, maxx, maxy]</li>
+ *  <li>levels number ints with the end node position of each level</li>
+ *  <li>nodes number * 4 doubles for the node envelopes, leaves first</li>
+ *  <li>nodes number ints with the item index (leaves) or the first child position (nodes)</li>
+ *  <li>the items, as fixed width doubles or as string offsets plus UTF-8 bytes</li>
+ * </ul>
+ *
+ * <p>Indexes in the old java serialized {@link STRtreeJGT} format are
+ * converted when read, see also {@link #convert(File, File)}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PackedHilbertRtree {
+
+    /**
+     * The magic number of the file, the chars 'JGTH'.
+     */
+    public static final int MAGIC = 0x4854474A;
+    public static final int VERSION = 1;
+
+    /**
+     * Items are strings (ex. file names).
+     */
+    public static final int ITEMS_NAMES = 1;
+    /**
+     * Items are fixed width double arrays (ex. point address ranges).
+     */
+    public static final int ITEMS_DOUBLES = 2;
+
+    public static final int DEFAULT_NODE_SIZE = 16;
+
+    private static final int HEADER_SIZE = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int itemType;
+    private final int itemWidth;
+    private final int nodeSize;
+    private final int numItems;
+    private final int numNodes;
+    private final int[] levelBounds;
+    private final Envelope bounds;
+    private final int boxesStart;
+    private final int indicesStart;
+    private final int itemsStart;
+
+    private PackedHilbertRtree( ByteBuffer buffer ) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a packed index.");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported packed index version: " + version);
+        }
+        itemType = buffer.getInt(8);
+        itemWidth = buffer.getInt(12);
+        nodeSize = buffer.getInt(16);
+        numItems = buffer.getInt(20);
+        numNodes = buffer.getInt(24);
+        int numLevels = buffer.getInt(28);
+        bounds = new Envelope(buffer.getDouble(32), buffer.getDouble(48), buffer.getDouble(40), buffer.getDouble(56));
+        levelBounds = new int[numLevels];
+        for( int i = 0; i < numLevels; i++ ) {
+            levelBounds[i] = buffer.getInt(HEADER_SIZE + i * 4);
+        }
+        boxesStart = HEADER_SIZE + numLevels * 4;
+        indicesStart = boxesStart + numNodes * 32;
+        itemsStart = indicesStart + numNodes * 4;
+    }
+
+    /**
+     * Read an index file.
+     *
+     * <p>Packed indexes are memory mapped, legacy serialized indexes are converted in memory.</p>
+     *
+     * @param file the index file.
+     * @return the index.
+     * @throws Exception
+     */
+    public static PackedHilbertRtree read( File file ) throws Exception {
+        if (isLegacy(file)) {
+            return fromLegacy(readLegacy(file));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new PackedHilbertRtree(mapped);
+        }
+    }
+
+    /**
+     * Checks if an index file is in the old java serialized format.
+     *
+     * @param file the index file.
+     * @return <code>true</code>, if the file doesn't start with the packed index magic number.
+     * @throws IOException
+     */
+    public static boolean isLegacy( File file ) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return Integer.reverseBytes(in.readInt()) != MAGIC;
+        }
+    }
+
+    /**
+     * Convert a legacy serialized index file to the packed format.
+     *
+     * @param legacyFile the serialized {@link STRtreeJGT} file.
+     * @param outFile the packed index file to write. Can be the same as the input.
+     * @throws Exception
+     */
+    public static void convert( File legacyFile, File outFile ) throws Exception {
+        STRtreeJGT tree = readLegacy(legacyFile);
+        Builder builder = builderFromLegacy(tree);
+        builder.write(outFile);
+    }
+
+    /**
+     * Create a packed index from a {@link STRtreeJGT}.
+     *
+     * @param tree the tree to convert.
+     * @return the packed index.
+     * @throws IOException
+     */
+    public static PackedHilbertRtree fromLegacy( STRtreeJGT tree ) throws IOException {
+        return builderFromLegacy(tree).build();
+    }
+
+    private static Builder builderFromLegacy( STRtreeJGT tree ) {
+        Envelope all = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE);
+        List< ? > boundables = tree.queryBoundables(all);
+        Builder builder = new Builder(DEFAULT_NODE_SIZE);
+        for( Object object : boundables ) {
+            if (object instanceof ItemBoundable) {
+                ItemBoundable itemBoundable = (ItemBoundable) object;
+                Envelope envelope = (Envelope) itemBoundable.getBounds();
+                Object item = itemBoundable.getItem();
+                if (item instanceof String) {
+                    builder.add(envelope, (String) item);
+                } else if (item instanceof double[]) {
+                    builder.add(envelope, (double[]) item);
+                }
+            }
+        }
+        return builder;
+    }
+
+    private static STRtreeJGT readLegacy( File file ) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            return (STRtreeJGT) in.readObject();
+        }
+    }
+
+    /**
+     * @return the number of items in the index.
+     */
+    public int size() {
+        return numItems;
+    }
+
+    /**
+     * @return the overall bounds of the items.
+     */
+    public Envelope getBounds() {
+        return new Envelope(bounds);
+    }
+
+    /**
+     * Get the envelope of an item.
+     *
+     * @param index the item index, i.e. the insertion order.
+     * @return the envelope.
+     */
+    public Envelope getItemEnvelope( int index ) {
+        for( int pos = 0; pos < numItems; pos++ ) {
+            if (buffer.getInt(indicesStart + pos * 4) == index) {
+                return nodeEnvelope(pos);
+            }
+        }
+        throw new IndexOutOfBoundsException("No item: " + index);
+    }
+
+    /**
+     * Get the envelopes of all items in insertion order.
+     *
+     * @return the envelopes.
+     */
+    public Envelope[] getItemEnvelopes() {
+        Envelope[] envelopes = new Envelope[numItems];
+        for( int pos = 0; pos < numItems; pos++ ) {
+            envelopes[buffer.getInt(indicesStart + pos * 4)] = nodeEnvelope(pos);
+        }
+        return envelopes;
+    }
+
+    /**
+     * Get an item.
+     *
+     * @param index the item index, i.e. the insertion order.
+     * @return the item, a {@link String} or a double array, depending on the index type.
+     */
+    public Object getItem( int index ) {
+        if (itemType == ITEMS_DOUBLES) {
+            double[] item = new double[itemWidth];
+            int start = itemsStart + index * itemWidth * 8;
+            for( int i = 0; i < itemWidth; i++ ) {
+                item[i] = buffer.getDouble(start + i * 8);
+            }
+            return item;
+        } else {
+            int from = buffer.getInt(itemsStart + index * 4);
+            int to = buffer.getInt(itemsStart + index * 4 + 4);
+            int stringsStart = itemsStart + (numItems + 1) * 4;
+            byte[] bytes = new byte[to - from];
+            for( int i = 0; i < bytes.length; i++ ) {
+                bytes[i] = buffer.get(stringsStart + from + i);
+            }
+            return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * Query the items intersecting an envelope.
+     *
+     * @param searchEnv the envelope.
+     * @return the list of items.
+     */
+    public List<Object> query( Envelope searchEnv ) {
+        int[] indexes = queryIndexes(searchEnv);
+        List<Object> items = new ArrayList<Object>(indexes.length);
+        for( int index : indexes ) {
+            items.add(getItem(index));
+        }
+        return items;
+    }
+
+    /**
+     * Query the indexes of the items intersecting an envelope.
+     *
+     * @param searchEnv the envelope.
+     * @return the item indexes.
+     */
+    public int[] queryIndexes( Envelope searchEnv ) {
+        int[] leaves = queryLeaves(searchEnv);
+        for( int i = 0; i < leaves.length; i++ ) {
+            leaves[i] = buffer.getInt(indicesStart + leaves[i] * 4);
+        }
+        return leaves;
+    }
+
+    /**
+     * Query the items intersecting an envelope together with their envelopes.
+     *
+     * @param searchEnv the envelope.
+     * @param envelopes the list to which the item envelopes are added.
+     * @param items the list to which the items are added, in the same order.
+     */
+    public void query( Envelope searchEnv, List<Envelope> envelopes, List<Object> items ) {
+        for( int pos : queryLeaves(searchEnv) ) {
+            envelopes.add(nodeEnvelope(pos));
+            items.add(getItem(buffer.getInt(indicesStart + pos * 4)));
+        }
+    }
+
+    /**
+     * @return the positions of the leaves intersecting the envelope.
+     */
+    private int[] queryLeaves( Envelope searchEnv ) {
+        int[] result = new int[16];
+        int count = 0;
+        if (numItems == 0 || searchEnv.isNull()) {
+            return new int[0];
+        }
+        final double qMinX = searchEnv.getMinX();
+        final double qMinY = searchEnv.getMinY();
+        final double qMaxX = searchEnv.getMaxX();
+        final double qMaxY = searchEnv.getMaxY();
+
+        // stack of [node position, level]
+        int[] stack = new int[32];
+        int stackSize = 0;
+        int nodeIndex = numNodes - 1;
+        int level = levelBounds.length - 1;
+        while( true ) {
+            int end = Math.min(nodeIndex + nodeSize, levelBounds[level]);
+            for( int pos = nodeIndex; pos < end; pos++ ) {
+                int boxStart = boxesStart + pos * 32;
+                if (buffer.getDouble(boxStart + 16) < qMinX || buffer.getDouble(boxStart + 24) < qMinY
+                        || buffer.getDouble(boxStart) > qMaxX || buffer.getDouble(boxStart + 8) > qMaxY) {
+                    continue;
+                }
+                if (nodeIndex < numItems) {
+                    if (count == result.length) {
+                        result = Arrays.copyOf(result, count * 2);
+                    }
+                    result[count++] = pos;
+                } else {
+                    int index = buffer.getInt(indicesStart + pos * 4);
+                    if (stackSize + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = index;
+                    stack[stackSize++] = level - 1;
+                }
+            }
+            if (stackSize == 0) {
+                break;
+            }
+            level = stack[--stackSize];
+            nodeIndex = stack[--stackSize];
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private Envelope nodeEnvelope( int pos ) {
+        int boxStart = boxesStart + pos * 32;
+        return new Envelope(buffer.getDouble(boxStart), buffer.getDouble(boxStart + 16), buffer.getDouble(boxStart + 8),
+                buffer.getDouble(boxStart + 24));
+    }
+
+    /**
+     * Builder for packed indexes.
+     */
+    public static class Builder {
+        private final int nodeSize;
+        private final List<Envelope> envelopes = new ArrayList<Envelope>();
+        private final List<Object> items = new ArrayList<Object>();
+        private int itemType = 0;
+        private int itemWidth = 0;
+
+        /**
+         * @param nodeSize the number of children per node.
+         */
+        public Builder( int nodeSize ) {
+            if (nodeSize < 2) {
+                throw new IllegalArgumentException("The node size needs to be at least 2.");
+            }
+            this.nodeSize = nodeSize;
+        }
+
+        /**
+         * Add a named item.
+         *
+         * @param envelope the item envelope.
+         * @param name the item.
+         */
+        public void add( Envelope envelope, String name ) {
+            checkType(ITEMS_NAMES, 0);
+            envelopes.add(new Envelope(envelope));
+            items.add(name);
+        }
+
+        /**
+         * Add a double array item. All items need to have the same length.
+         *
+         * @param envelope the item envelope.
+         * @param values the item.
+         */
+        public void add( Envelope envelope, double[] values ) {
+            checkType(ITEMS_DOUBLES, values.length);
+            envelopes.add(new Envelope(envelope));
+            items.add(values.clone());
+        }
+
+        private void checkType( int type, int width ) {
+            if (itemType == 0) {
+                itemType = type;
+                itemWidth = width;
+            } else if (itemType != type || itemWidth != width) {
+                throw new IllegalArgumentException("All items of an index need to be of the same type and size.");
+            }
+        }
+
+        /**
+         * @return the index, held in memory.
+         * @throws IOException
+         */
+        public PackedHilbertRtree build() throws IOException {
+            return new PackedHilbertRtree(ByteBuffer.wrap(toBytes()));
+        }
+
+        /**
+         * Write the index to file.
+         *
+         * @param file the file to write to.
+         * @throws IOException
+         */
+        public void write( File file ) throws IOException {
+            byte[] bytes = toBytes();
+            File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                raf.setLength(0);
+                raf.write(bytes);
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to replace: " + file);
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            }
+        }
+
+        private byte[] toBytes() {
+            final int n = envelopes.size();
+            Envelope total = new Envelope();
+            for( Envelope envelope : envelopes ) {
+                total.expandToInclude(envelope);
+            }
+
+            // the levels: leaves first, up to the single root node
+            List<Integer> levels = new ArrayList<Integer>();
+            int numNodes = n;
+            if (n > 0) {
+                levels.add(n);
+                int m = n;
+                do {
+                    m = (m + nodeSize - 1) / nodeSize;
+                    numNodes += m;
+                    levels.add(numNodes);
+                } while( m != 1 );
+            }
+
+            // sort the leaves by the hilbert value of their center
+            final long[] hilbertValues = new long[n];
+            double width = total.getWidth();
+            double height = total.getHeight();
+            for( int i = 0; i < n; i++ ) {
+                Envelope envelope = envelopes.get(i);
+                int hx = width > 0 ? (int) (0xFFFF * ((envelope.getMinX() + envelope.getMaxX()) / 2.0 - total.getMinX()) / width) : 0;
+                int hy = height > 0
+                        ? (int) (0xFFFF * ((envelope.getMinY() + envelope.getMaxY()) / 2.0 - total.getMinY()) / height)
+                        : 0;
+                hilbertValues[i] = hilbert(hx, hy);
+            }
+            Integer[] order = new Integer[n];
+            for( int i = 0; i < n; i++ ) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>(){
+                public int compare( Integer o1, Integer o2 ) {
+                    long h1 = hilbertValues[o1];
+                    long h2 = hilbertValues[o2];
+                    return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+                }
+            });
+
+            double[] boxes = new double[numNodes * 4];
+            int[] indices = new int[numNodes];
+            for( int i = 0; i < n; i++ ) {
+                Envelope envelope = envelopes.get(order[i]);
+                boxes[4 * i] = envelope.getMinX();
+                boxes[4 * i + 1] = envelope.getMinY();
+                boxes[4 * i + 2] = envelope.getMaxX();
+                boxes[4 * i + 3] = envelope.getMaxY();
+                indices[i] = order[i];
+            }
+            // pack the parent nodes
+            int pos = n;
+            int nodeStart = 0;
+            for( int l = 0; l < levels.size() - 1; l++ ) {
+                int end = levels.get(l);
+                while( nodeStart < end ) {
+                    int childrenEnd = Math.min(nodeStart + nodeSize, end);
+                    double minX = Double.POSITIVE_INFINITY;
+                    double minY = Double.POSITIVE_INFINITY;
+                    double maxX = Double.NEGATIVE_INFINITY;
+                    double maxY = Double.NEGATIVE_INFINITY;
+                    for( int c = nodeStart; c < childrenEnd; c++ ) {
+                        minX = Math.min(minX, boxes[4 * c]);
+                        minY = Math.min(minY, boxes[4 * c + 1]);
+                        maxX = Math.max(maxX, boxes[4 * c + 2]);
+                        maxY = Math.max(maxY, boxes[4 * c + 3]);
+                    }
+                    boxes[4 * pos] = minX;
+                    boxes[4 * pos + 1] = minY;
+                    boxes[4 * pos + 2] = maxX;
+                    boxes[4 * pos + 3] = maxY;
+                    indices[pos] = nodeStart;
+                    pos++;
+                    nodeStart = childrenEnd;
+                }
+            }
+
+            // items
+            byte[][] strings = null;
+            int itemsSize;
+            if (itemType == ITEMS_DOUBLES) {
+                itemsSize = n * itemWidth * 8;
+            } else {
+                strings = new byte[n][];
+                itemsSize = (n + 1) * 4;
+                for( int i = 0; i < n; i++ ) {
+                    strings[i] = ((String) items.get(i)).getBytes(UTF8);
+                    itemsSize += strings[i].length;
+                }
+            }
+
+            int size = HEADER_SIZE + levels.size() * 4 + numNodes * 32 + numNodes * 4 + itemsSize;
+            ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            bb.putInt(MAGIC);
+            bb.putInt(VERSION);
+            bb.putInt(itemType == 0 ? ITEMS_NAMES : itemType);
+            bb.putInt(itemWidth);
+            bb.putInt(nodeSize);
+            bb.putInt(n);
+            bb.putInt(numNodes);
+            bb.putInt(levels.size());
+            if (n > 0) {
+                bb.putDouble(total.getMinX());
+                bb.putDouble(total.getMinY());
+                bb.putDouble(total.getMaxX());
+                bb.putDouble(total.getMaxY());
+            } else {
+                bb.putDouble(0).putDouble(0).putDouble(-1).putDouble(-1);
+            }
+            for( Integer levelBound : levels ) {
+                bb.putInt(levelBound);
+            }
+            for( double value : boxes ) {
+                bb.putDouble(value);
+            }
+            for( int index : indices ) {
+                bb.putInt(index);
+            }
+            if (itemType == ITEMS_DOUBLES) {
+                for( Object item : items ) {
+                    for( double value : (double[]) item ) {
+                        bb.putDouble(value);
+                    }
+                }
+            } else {
+                int offset = 0;
+                bb.putInt(offset);
+                for( int i = 0; i < n; i++ ) {
+                    offset += strings[i].length;
+                    bb.putInt(offset);
+                }
+                for( int i = 0; i < n; i++ ) {
+                    bb.put(strings[i]);
+                }
+            }
+            return bb.array();
+        }
+    }
+
+    /**
+     * Hilbert curve value of a position on a 2^16 x 2^16 grid.
+     *
+     * <p>Based on the public domain "Fast Hilbert curve" algorithm by rawrunprotected.</p>
+     */
+    static long hilbert( int x, int y ) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = (a & (a >>> 2)) ^ (b & (b >>> 2));
+        B = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+        C ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+        D ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = (a & (a >>> 4)) ^ (b & (b >>> 4));
+        B = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+        C ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+        D ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        C ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+        D ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return ((i1 << 1) | i0) & 0xFFFFFFFFL;
+    }
+}
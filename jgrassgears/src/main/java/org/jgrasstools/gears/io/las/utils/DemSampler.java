@@ -0,0 +1,198 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.utils;
+
+import java.util.List;
+
+import javax.media.jai.iterator.RandomIter;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Samples a dem on the window covering an envelope.
+ *
+ * <p>The window is read once into a primitive array and the world to
+ * grid transformation is reduced to the precomputed origin and
+ * resolution, so that no objects are created per sampled position.</p>
+ *
+ * <p>Positions outside the window or on novalues give a novalue.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class DemSampler {
+
+    private final double[] values;
+    private final int cols;
+    private final int rows;
+    private final double west;
+    private final double north;
+    private final double xRes;
+    private final double yRes;
+    private final boolean doBilinear;
+
+    /**
+     * Constructor.
+     *
+     * @param dem the dem to sample.
+     * @param envelope the envelope that will be sampled.
+     * @param doBilinear if <code>true</code>, bilinear interpolation between the
+     *              cell centers is used, else the value of the containing cell.
+     */
+    public DemSampler( GridCoverage2D dem, Envelope envelope, boolean doBilinear ) {
+        this.doBilinear = doBilinear;
+        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(dem);
+        int demCols = regionMap.getCols();
+        int demRows = regionMap.getRows();
+        xRes = regionMap.getXres();
+        yRes = regionMap.getYres();
+
+        // one cell of margin for the interpolation
+        int fromCol = Math.max(0, (int) Math.floor((envelope.getMinX() - regionMap.getWest()) / xRes) - 1);
+        int toCol = Math.min(demCols - 1, (int) Math.floor((envelope.getMaxX() - regionMap.getWest()) / xRes) + 1);
+        int fromRow = Math.max(0, (int) Math.floor((regionMap.getNorth() - envelope.getMaxY()) / yRes) - 1);
+        int toRow = Math.min(demRows - 1, (int) Math.floor((regionMap.getNorth() - envelope.getMinY()) / yRes) + 1);
+
+        cols = Math.max(0, toCol - fromCol + 1);
+        rows = Math.max(0, toRow - fromRow + 1);
+        west = regionMap.getWest() + fromCol * xRes;
+        north = regionMap.getNorth() - fromRow * yRes;
+        values = new double[cols * rows];
+
+        RandomIter demIter = CoverageUtilities.getRandomIterator(dem);
+        try {
+            for( int r = 0; r < rows; r++ ) {
+                for( int c = 0; c < cols; c++ ) {
+                    double value = demIter.getSampleDouble(fromCol + c, fromRow + r, 0);
+                    values[r * cols + c] = JGTConstants.isNovalue(value) ? Double.NaN : value;
+                }
+            }
+        } finally {
+            demIter.done();
+        }
+    }
+
+    /**
+     * Get the dem value in a position.
+     *
+     * @param x the easting.
+     * @param y the northing.
+     * @return the value or novalue.
+     */
+    public double getValue( double x, double y ) {
+        double col = (x - west) / xRes;
+        double row = (north - y) / yRes;
+        double value;
+        if (doBilinear) {
+            value = bilinear(col - 0.5, row - 0.5);
+            if (Double.isNaN(value)) {
+                value = nearest(col, row);
+            }
+        } else {
+            value = nearest(col, row);
+        }
+        return Double.isNaN(value) ? JGTConstants.doubleNovalue : value;
+    }
+
+    /**
+     * Get the dem values for a set of positions.
+     *
+     * @param xs the eastings.
+     * @param ys the northings.
+     * @param count the number of positions to sample.
+     * @param result the array to put the values in, novalues for invalid positions.
+     */
+    public void getValues( double[] xs, double[] ys, int count, double[] result ) {
+        for( int i = 0; i < count; i++ ) {
+            result[i] = getValue(xs[i], ys[i]);
+        }
+    }
+
+    /**
+     * Normalizes the elevation of points to the height over the dem.
+     *
+     * <p>The height is set as {@link LasRecord#groundElevation}. Points with a novalue
+     * dem or a height not above the threshold are discarded.</p>
+     *
+     * @param points the points to normalize.
+     * @param elevThreshold the height threshold.
+     * @param normalizedPoints the list to which the accepted points are added.
+     */
+    public void normalize( List<LasRecord> points, double elevThreshold, List<LasRecord> normalizedPoints ) {
+        int count = points.size();
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        for( int i = 0; i < count; i++ ) {
+            LasRecord lasDot = points.get(i);
+            xs[i] = lasDot.x;
+            ys[i] = lasDot.y;
+        }
+        double[] demValues = new double[count];
+        getValues(xs, ys, count, demValues);
+        for( int i = 0; i < count; i++ ) {
+            if (JGTConstants.isNovalue(demValues[i])) {
+                continue;
+            }
+            LasRecord lasDot = points.get(i);
+            double height = lasDot.z - demValues[i];
+            if (height > elevThreshold) {
+                lasDot.groundElevation = height;
+                normalizedPoints.add(lasDot);
+            }
+        }
+    }
+
+    private double nearest( double col, double row ) {
+        if (col < 0 || row < 0) {
+            return Double.NaN;
+        }
+        int c = (int) col;
+        int r = (int) row;
+        if (c >= cols || r >= rows) {
+            return Double.NaN;
+        }
+        return values[r * cols + c];
+    }
+
+    private double bilinear( double col, double row ) {
+        if (col < 0 || row < 0) {
+            return Double.NaN;
+        }
+        int c = (int) col;
+        int r = (int) row;
+        if (c + 1 >= cols || r + 1 >= rows) {
+            return Double.NaN;
+        }
+        double dx = col - c;
+        double dy = row - r;
+        int index = r * cols + c;
+        double v00 = values[index];
+        double v10 = values[index + 1];
+        double v01 = values[index + cols];
+        double v11 = values[index + cols + 1];
+        // NaN propagates if any of the cells is novalue
+        double top = v00 + (v10 - v00) * dx;
+        double bottom = v01 + (v11 - v01) * dx;
+        return top + (bottom - top) * dy;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.utils;
+
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.PartialBand;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.math.NumericsUtilities;
+
+/**
+ * Single pass statistics on las points.
+ *
+ * <p>The statistics are collected by {@link Accumulator}s that receive the points
+ * as {@link LasPointBatch}es and find the bin of each point arithmetically. A las
+ * file is read in batches by several threads, each feeding its own partial copy of
+ * the accumulators, which are merged at the end. Several accumulators can be filled
+ * in the same pass and the points are never kept in memory.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasBinning {
+
+    /**
+     * The columns that can be binned by a {@link Histogram}.
+     */
+    public static final int Z = 0;
+    public static final int GROUND_ELEVATION = 1;
+    public static final int INTENSITY = 2;
+    public static final int CLASSIFICATION = 3;
+
+    /**
+     * A statistic that is collected batch by batch.
+     */
+    public static abstract class Accumulator {
+        /**
+         * Add the points of a batch.
+         *
+         * @param batch the batch of points.
+         */
+        public abstract void add( LasPointBatch batch );
+
+        /**
+         * @return an empty accumulator with the same bins, to be filled by a single thread.
+         */
+        protected abstract Accumulator createPartial();
+
+        /**
+         * Add the values of a partial accumulator created by {@link #createPartial()}.
+         *
+         * @param partial the partial accumulator.
+         */
+        protected abstract void merge( Accumulator partial );
+    }
+
+    /**
+     * Read all the points of a las file and collect them in the accumulators.
+     *
+     * <p>The reader needs to be open and is not closed.</p>
+     *
+     * @param reader the reader to use.
+     * @param batchSize the number of points read at once.
+     * @param threads the number of threads to use.
+     * @param pm the monitor, which receives a worked unit per batch of points.
+     * @param accumulators the accumulators to fill.
+     * @throws Exception
+     */
+    public static void accumulate( final ALasReader reader, final int batchSize, int threads, IJGTProgressMonitor pm,
+            final Accumulator... accumulators ) throws Exception {
+        if (batchSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("Batch size and threads need to be positive.");
+        }
+        final long recordsCount = reader.getHeader().getRecordsCount();
+        long batchesCount = (recordsCount + batchSize - 1) / batchSize;
+        if (batchesCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The batch size is too small for the number of points.");
+        }
+        int batchesNum = (int) batchesCount;
+        threads = ThreadedBands.getThreadsNum(batchesNum, threads);
+
+        final Accumulator[][] partials = new Accumulator[threads][];
+        for( int t = 0; t < threads; t++ ) {
+            if (t == 0) {
+                partials[t] = accumulators;
+            } else {
+                partials[t] = new Accumulator[accumulators.length];
+                for( int a = 0; a < accumulators.length; a++ ) {
+                    partials[t][a] = accumulators[a].createPartial();
+                }
+            }
+        }
+
+        final LasPointBatch[] batches = new LasPointBatch[threads];
+        ThreadedBands.runBands(batchesNum, threads, "Binning las points...", pm, new PartialBand(){
+            public void run( int b, int t ) throws Exception {
+                if (batches[t] == null) {
+                    batches[t] = new LasPointBatch(batchSize);
+                }
+                reader.getPointsInRange((long) b * batchSize, recordsCount, batches[t]);
+                for( Accumulator accumulator : partials[t] ) {
+                    accumulator.add(batches[t]);
+                }
+            }
+        });
+
+        for( int t = 1; t < threads; t++ ) {
+            for( int a = 0; a < accumulators.length; a++ ) {
+                accumulators[a].merge(partials[t][a]);
+            }
+        }
+    }
+
+    /**
+     * A histogram of equal bins of a column of the points.
+     *
+     * <p>As in the original las histogram, the bins are open on the lower side and
+     * closed on the upper one, the first bin also contains the min. Values outside
+     * of the range are put in the first or last bin.</p>
+     */
+    public static class Histogram extends Accumulator {
+        private final int column;
+        private final double min;
+        private final double step;
+        private final long[] counts;
+
+        /**
+         * Constructor.
+         *
+         * @param column the column to bin, one of {@link LasBinning#Z}, {@link LasBinning#GROUND_ELEVATION},
+         *          {@link LasBinning#INTENSITY}, {@link LasBinning#CLASSIFICATION}.
+         * @param min the start of the first bin.
+         * @param step the size of the bins.
+         * @param binsNum the number of bins.
+         */
+        public Histogram( int column, double min, double step, int binsNum ) {
+            if (column < Z || column > CLASSIFICATION) {
+                throw new IllegalArgumentException("Unknown column: " + column);
+            }
+            if (step <= 0 || binsNum < 1) {
+                throw new IllegalArgumentException("The step and the number of bins need to be positive.");
+            }
+            this.column = column;
+            this.min = min;
+            this.step = step;
+            counts = new long[binsNum];
+        }
+
+        @Override
+        public void add( LasPointBatch batch ) {
+            int size = batch.size();
+            switch( column ) {
+            case Z:
+                for( int i = 0; i < size; i++ ) {
+                    counts[getBin(batch.z[i])]++;
+                }
+                break;
+            case GROUND_ELEVATION:
+                for( int i = 0; i < size; i++ ) {
+                    counts[getBin(batch.groundElevation[i])]++;
+                }
+                break;
+            case INTENSITY:
+                for( int i = 0; i < size; i++ ) {
+                    counts[getBin(batch.intensity[i])]++;
+                }
+                break;
+            default:
+                for( int i = 0; i < size; i++ ) {
+                    counts[getBin(batch.classification[i])]++;
+                }
+                break;
+            }
+        }
+
+        /**
+         * Get the bin a value falls in.
+         *
+         * @param value the value.
+         * @return the bin index.
+         */
+        public int getBin( double value ) {
+            // a value on a bin limit belongs to the lower bin
+            double bin = Math.ceil((value - min) / step) - 1;
+            if (bin < 0) {
+                return 0;
+            }
+            if (bin >= counts.length) {
+                return counts.length - 1;
+            }
+            return (int) bin;
+        }
+
+        /**
+         * Add points to a bin, used to group the counts of another histogram.
+         *
+         * @param bin the bin index.
+         * @param count the number of points to add.
+         */
+        public void add( int bin, long count ) {
+            counts[bin] += count;
+        }
+
+        public int getBinsNum() {
+            return counts.length;
+        }
+
+        /**
+         * @param bin the bin index.
+         * @return the number of points in the bin.
+         */
+        public long getCount( int bin ) {
+            return counts[bin];
+        }
+
+        /**
+         * @param bin the bin index.
+         * @return the center value of the bin.
+         */
+        public double getCenter( int bin ) {
+            return min + step * (bin + 0.5);
+        }
+
+        @Override
+        protected Accumulator createPartial() {
+            return new Histogram(column, min, step, counts.length);
+        }
+
+        @Override
+        protected void merge( Accumulator partial ) {
+            long[] partialCounts = ((Histogram) partial).counts;
+            for( int i = 0; i < counts.length; i++ ) {
+                counts[i] += partialCounts[i];
+            }
+        }
+    }
+
+    /**
+     * A grid of point counts, in total and per return number.
+     *
+     * <p>The cells are closed on the lower side and open on the upper one, the
+     * cells on the east and north border also contain the points on the border.
+     * Points outside of the grid are ignored. An optional vertical range on the
+     * ground elevation restricts the points that are counted.</p>
+     */
+    public static class DensityGrid extends Accumulator {
+        /**
+         * The return numbers counted separately.
+         */
+        public static final int MAX_RETURN = 5;
+
+        private final double west;
+        private final double south;
+        private final double xStep;
+        private final double yStep;
+        private final int cols;
+        private final int rows;
+        private final int[] counts;
+
+        private double minElevation = Double.NEGATIVE_INFINITY;
+        private double maxElevation = Double.POSITIVE_INFINITY;
+
+        /**
+         * Constructor.
+         *
+         * @param west the west bound of the grid.
+         * @param south the south bound of the grid.
+         * @param xStep the width of the cells.
+         * @param yStep the height of the cells.
+         * @param cols the number of columns.
+         * @param rows the number of rows, counted from south.
+         */
+        public DensityGrid( double west, double south, double xStep, double yStep, int cols, int rows ) {
+            if (xStep <= 0 || yStep <= 0 || cols < 1 || rows < 1) {
+                throw new IllegalArgumentException("The grid steps and size need to be positive.");
+            }
+            this.west = west;
+            this.south = south;
+            this.xStep = xStep;
+            this.yStep = yStep;
+            this.cols = cols;
+            this.rows = rows;
+            counts = new int[cols * rows * (MAX_RETURN + 1)];
+        }
+
+        /**
+         * Count only the points with a ground elevation inside a range, bounds included.
+         *
+         * @param min the min ground elevation.
+         * @param max the max ground elevation.
+         */
+        public void setVerticalRange( double min, double max ) {
+            minElevation = min;
+            maxElevation = max;
+        }
+
+        @Override
+        public void add( LasPointBatch batch ) {
+            boolean checkElevation = minElevation != Double.NEGATIVE_INFINITY || maxElevation != Double.POSITIVE_INFINITY;
+            int size = batch.size();
+            for( int i = 0; i < size; i++ ) {
+                if (checkElevation) {
+                    double elevation = batch.groundElevation[i];
+                    if (!(elevation >= minElevation && elevation <= maxElevation)) {
+                        continue;
+                    }
+                }
+                int col = getIndex(batch.x[i], west, xStep, cols);
+                int row = getIndex(batch.y[i], south, yStep, rows);
+                if (col < 0 || row < 0) {
+                    continue;
+                }
+                int cell = (row * cols + col) * (MAX_RETURN + 1);
+                counts[cell]++;
+                int returnNumber = batch.returnNumber[i];
+                if (returnNumber >= 1 && returnNumber <= MAX_RETURN) {
+                    counts[cell + returnNumber]++;
+                }
+            }
+        }
+
+        private static int getIndex( double value, double origin, double step, int num ) {
+            double index = Math.floor((value - origin) / step);
+            if (index == num) {
+                // the points on the max bound go in the last cell, also when the bound
+                // was calculated with a rounding error, as range2Bins does
+                double bound = origin + num * step;
+                if (value <= bound || NumericsUtilities.dEq(value, bound)) {
+                    return num - 1;
+                }
+            }
+            if (index < 0 || index >= num) {
+                return -1;
+            }
+            return (int) index;
+        }
+
+        public int getCols() {
+            return cols;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * @param col the column of the cell.
+         * @param row the row of the cell, counted from south.
+         * @return the number of points in the cell.
+         */
+        public int getCount( int col, int row ) {
+            return counts[(row * cols + col) * (MAX_RETURN + 1)];
+        }
+
+        /**
+         * @param col the column of the cell.
+         * @param row the row of the cell, counted from south.
+         * @param returnNumber the return number, from 1 to {@link #MAX_RETURN}.
+         * @return the number of points with the return number in the cell.
+         */
+        public int getCount( int col, int row, int returnNumber ) {
+            return counts[(row * cols + col) * (MAX_RETURN + 1) + returnNumber];
+        }
+
+        @Override
+        protected Accumulator createPartial() {
+            DensityGrid partial = new DensityGrid(west, south, xStep, yStep, cols, rows);
+            partial.setVerticalRange(minElevation, maxElevation);
+            return partial;
+        }
+
+        @Override
+        protected void merge( Accumulator partial ) {
+            int[] partialCounts = ((DensityGrid) partial).counts;
+            for( int i = 0; i < counts.length; i++ ) {
+                counts[i] += partialCounts[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.jgrasstools.gears.io.las.core.LasRecord;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A size bounded cache of decoded las point blocks.
+ *
+ * <p>Blocks are identified by las file and point range and stored as
+ * primitive columns. When the cache grows beyond its maximum size, the
+ * least recently used blocks are evicted. If a spill folder is supplied,
+ * evicted blocks are written to it in a compact columnar format and
+ * read back from there instead of being decoded from the las file again.</p>
+ *
+ * <p>The cache is thread safe and can be shared between data managers.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasBlockCache {
+
+    private static final int SPILL_MAGIC = 0x4C434F4C;
+
+    private final long maxBytes;
+    private final File spillFolder;
+    private final LinkedHashMap<String, Block> blocks = new LinkedHashMap<String, Block>(64, 0.75f, true);
+    private final HashMap<String, File> spilledBlocks = new HashMap<String, File>();
+    private final HashMap<String, Block> spillingBlocks = new HashMap<String, Block>();
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long spillHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private int spillIndex = 0;
+    private int clearCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes the maximum size of the in memory blocks in bytes.
+     * @param spillFolder an optional folder to spill evicted blocks to. If <code>null</code>,
+     *              evicted blocks are discarded.
+     */
+    public LasBlockCache( long maxBytes, File spillFolder ) {
+        this.maxBytes = maxBytes;
+        this.spillFolder = spillFolder;
+        if (spillFolder != null && !spillFolder.exists() && !spillFolder.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create the spill folder: " + spillFolder);
+        }
+    }
+
+    /**
+     * Get a cached block.
+     *
+     * <p>Reading back a spilled block happens outside of the cache lock.</p>
+     *
+     * @param lasFile the las file path.
+     * @param fromPoint the first point position of the block.
+     * @param toPoint the last point position of the block (exclusive).
+     * @return the block or <code>null</code>, if not cached.
+     * @throws IOException
+     */
+    public Block get( String lasFile, long fromPoint, long toPoint ) throws IOException {
+        String key = key(lasFile, fromPoint, toPoint);
+        Block block;
+        File spillFile = null;
+        List<Spill> spills = null;
+        synchronized (this) {
+            block = blocks.get(key);
+            if (block != null) {
+                hits++;
+                return block;
+            }
+            block = spillingBlocks.get(key);
+            if (block != null) {
+                // evicted but still being written, take it back
+                hits++;
+                spills = add(key, block);
+            } else {
+                spillFile = spilledBlocks.get(key);
+                if (spillFile == null) {
+                    misses++;
+                    return null;
+                }
+            }
+        }
+        if (spillFile != null) {
+            block = readBlock(spillFile);
+            synchronized (this) {
+                spillHits++;
+                Block cached = blocks.get(key);
+                if (cached != null) {
+                    // read back concurrently by another thread
+                    return cached;
+                }
+                spills = add(key, block);
+            }
+        }
+        spill(spills);
+        return block;
+    }
+
+    /**
+     * Add a block to the cache.
+     *
+     * <p>Spilling the evicted blocks happens outside of the cache lock.</p>
+     *
+     * @param lasFile the las file path.
+     * @param fromPoint the first point position of the block.
+     * @param toPoint the last point position of the block (exclusive).
+     * @param block the block to add.
+     * @throws IOException
+     */
+    public void put( String lasFile, long fromPoint, long toPoint, Block block ) throws IOException {
+        String key = key(lasFile, fromPoint, toPoint);
+        List<Spill> spills;
+        synchronized (this) {
+            if (blocks.containsKey(key)) {
+                return;
+            }
+            spills = add(key, block);
+        }
+        spill(spills);
+    }
+
+    /**
+     * Adds a block and evicts the least recently used ones. Has to be called holding the lock.
+     *
+     * @return the evicted blocks that have to be written to the spill folder.
+     */
+    private List<Spill> add( String key, Block block ) {
+        List<Spill> spills = new ArrayList<Spill>();
+        spillingBlocks.remove(key);
+        blocks.put(key, block);
+        currentBytes = currentBytes + block.getBytes();
+        Iterator<Entry<String, Block>> iterator = blocks.entrySet().iterator();
+        while( currentBytes > maxBytes && iterator.hasNext() ) {
+            Entry<String, Block> eldest = iterator.next();
+            if (eldest.getValue() == block) {
+                // always keep the block just added
+                continue;
+            }
+            iterator.remove();
+            currentBytes = currentBytes - eldest.getValue().getBytes();
+            evictions++;
+            if (spillFolder != null && !spilledBlocks.containsKey(eldest.getKey())) {
+                File spillFile = new File(spillFolder, "lasblock_" + spillIndex++ + ".lascol");
+                spillingBlocks.put(eldest.getKey(), eldest.getValue());
+                spills.add(new Spill(eldest.getKey(), eldest.getValue(), spillFile));
+            }
+        }
+        return spills;
+    }
+
+    /**
+     * Writes the evicted blocks to their spill files and registers them once complete.
+     */
+    private void spill( List<Spill> spills ) throws IOException {
+        for( Spill spill : spills ) {
+            try {
+                writeBlock(spill.block, spill.file);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (spillingBlocks.get(spill.key) == spill.block) {
+                        spillingBlocks.remove(spill.key);
+                    }
+                }
+                spill.file.delete();
+                throw e;
+            }
+            boolean registered = false;
+            synchronized (this) {
+                if (spillingBlocks.get(spill.key) == spill.block) {
+                    spillingBlocks.remove(spill.key);
+                }
+                if (!spilledBlocks.containsKey(spill.key) && clearCount == spill.clearCount) {
+                    spilledBlocks.put(spill.key, spill.file);
+                    registered = true;
+                }
+            }
+            if (!registered) {
+                // the cache was cleared or the block spilled twice meanwhile
+                spill.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Remove all blocks and delete the spilled files.
+     */
+    public synchronized void clear() {
+        blocks.clear();
+        spillingBlocks.clear();
+        clearCount++;
+        currentBytes = 0;
+        for( File spillFile : spilledBlocks.values() ) {
+            spillFile.delete();
+        }
+        spilledBlocks.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getSpillHits() {
+        return spillHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the size of the in memory blocks in bytes.
+     */
+    public synchronized long getSize() {
+        return currentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("LasBlockCache: blocks=").append(blocks.size());
+        sb.append(", size=").append(currentBytes).append("/").append(maxBytes).append(" bytes");
+        sb.append(", hits=").append(hits);
+        sb.append(", spill hits=").append(spillHits);
+        sb.append(", misses=").append(misses);
+        sb.append(", evictions=").append(evictions);
+        return sb.toString();
+    }
+
+    private static String key( String lasFile, long fromPoint, long toPoint ) {
+        return lasFile + "#" + fromPoint + "-" + toPoint;
+    }
+
+    private static void writeBlock( Block block, File file ) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(SPILL_MAGIC);
+            int size = block.size;
+            out.writeInt(size);
+            writeColumn(out, block.x);
+            writeColumn(out, block.y);
+            writeColumn(out, block.z);
+            writeColumn(out, block.gpsTime);
+            for( int i = 0; i < size; i++ ) {
+                out.writeShort(block.intensity[i]);
+            }
+            for( int i = 0; i < size * 3; i++ ) {
+                out.writeShort(block.color[i]);
+            }
+            out.write(block.classification);
+            out.write(block.returnNumber);
+            out.write(block.numberOfReturns);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Block readBlock( File file ) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SPILL_MAGIC) {
+                throw new IOException("Not a las block file: " + file);
+            }
+            Block block = new Block(in.readInt());
+            int size = block.size;
+            readColumn(in, block.x);
+            readColumn(in, block.y);
+            readColumn(in, block.z);
+            readColumn(in, block.gpsTime);
+            for( int i = 0; i < size; i++ ) {
+                block.intensity[i] = in.readShort();
+            }
+            for( int i = 0; i < size * 3; i++ ) {
+                block.color[i] = in.readShort();
+            }
+            in.readFully(block.classification);
+            in.readFully(block.returnNumber);
+            in.readFully(block.numberOfReturns);
+            return block;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeColumn( DataOutputStream out, double[] column ) throws IOException {
+        for( double value : column ) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static void readColumn( DataInputStream in, double[] column ) throws IOException {
+        for( int i = 0; i < column.length; i++ ) {
+            column[i] = in.readDouble();
+        }
+    }
+
+    /**
+     * An evicted block waiting to be written to its spill file.
+     */
+    private class Spill {
+        final String key;
+        final Block block;
+        final File file;
+        final int clearCount;
+
+        Spill( String key, Block block, File file ) {
+            this.key = key;
+            this.block = block;
+            this.file = file;
+            this.clearCount = LasBlockCache.this.clearCount;
+        }
+    }
+
+    /**
+     * A block of decoded points stored as columns.
+     */
+    public static class Block {
+        private final int size;
+        private final double[] x;
+        private final double[] y;
+        private final double[] z;
+        private final double[] gpsTime;
+        private final short[] intensity;
+        private final short[] color;
+        private final byte[] classification;
+        private final byte[] returnNumber;
+        private final byte[] numberOfReturns;
+
+        private Block( int size ) {
+            this.size = size;
+            x = new double[size];
+            y = new double[size];
+            z = new double[size];
+            gpsTime = new double[size];
+            intensity = new short[size];
+            color = new short[size * 3];
+            classification = new byte[size];
+            returnNumber = new byte[size];
+            numberOfReturns = new byte[size];
+        }
+
+        /**
+         * Create a block from a list of points.
+         *
+         * @param points the points.
+         * @return the block.
+         */
+        public static Block fromRecords( List<LasRecord> points ) {
+            Block block = new Block(points.size());
+            for( int i = 0; i < block.size; i++ ) {
+                LasRecord lasDot = points.get(i);
+                block.x[i] = lasDot.x;
+                block.y[i] = lasDot.y;
+                block.z[i] = lasDot.z;
+                block.gpsTime[i] = lasDot.gpsTime;
+                block.intensity[i] = lasDot.intensity;
+                block.color[3 * i] = lasDot.color[0];
+                block.color[3 * i + 1] = lasDot.color[1];
+                block.color[3 * i + 2] = lasDot.color[2];
+                block.classification[i] = lasDot.classification;
+                block.returnNumber[i] = (byte) lasDot.returnNumber;
+                block.numberOfReturns[i] = (byte) lasDot.numberOfReturns;
+            }
+            return block;
+        }
+
+        /**
+         * Add the points of the block contained in an envelope to a list.
+         *
+         * <p>New {@link LasRecord}s are created, so the cached data can't be changed.</p>
+         *
+         * @param envelope the envelope the points have to be contained in.
+         * @param pointsList the list to which the points are added.
+         */
+        public void getPointsInEnvelope( Envelope envelope, List<LasRecord> pointsList ) {
+            for( int i = 0; i < size; i++ ) {
+                if (!envelope.contains(x[i], y[i])) {
+                    continue;
+                }
+                LasRecord lasDot = new LasRecord();
+                lasDot.x = x[i];
+                lasDot.y = y[i];
+                lasDot.z = z[i];
+                lasDot.gpsTime = gpsTime[i];
+                lasDot.intensity = intensity[i];
+                lasDot.color[0] = color[3 * i];
+                lasDot.color[1] = color[3 * i + 1];
+                lasDot.color[2] = color[3 * i + 2];
+                lasDot.classification = classification[i];
+                lasDot.returnNumber = returnNumber[i];
+                lasDot.numberOfReturns = numberOfReturns[i];
+                pointsList.add(lasDot);
+            }
+        }
+
+        /**
+         * @return the number of points in the block.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return the approximate memory size of the block in bytes.
+         */
+        public long getBytes() {
+            // 4 double, 4 short and 3 byte columns + array headers
+            return size * 43L + 10 * 16L;
+        }
+    }
+}
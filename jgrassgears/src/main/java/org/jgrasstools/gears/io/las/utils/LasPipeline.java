@@ -0,0 +1,370 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.ALasWriter;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * A pipeline that copies las points from a set of readers to a set of writers.
+ *
+ * <p>The work is split into stages that run on their own threads and are connected
+ * by bounded queues of {@link LasPointBatch}es:</p>
+ * <ul>
+ *  <li>decode: the readers are read in chunks of batch size with bulk reads</li>
+ *  <li>route: a {@link PointRouter} assigns each point to an output, or drops it, and
+ *      the points are collected in a small pending batch per output</li>
+ *  <li>encode: full output batches are written by a number of encoder threads. All
+ *      the batches of an output are written by the same encoder, so the order of
+ *      the points is preserved.</li>
+ * </ul>
+ *
+ * <p>Output writers are created when the first point is routed to them through a
+ * {@link WriterFactory}. The bounds of their header are calculated from the written
+ * points and set when the pipeline closes them at the end.</p>
+ *
+ * <p>The decoded batches take batch size times queue size points. On top of that, an
+ * open output keeps its file and encoding buffer, and a pending batch of at most
+ * {@value #OUTPUT_BATCH_SIZE} points, roughly 128 KB. At most {@value #MAX_OPEN_OUTPUTS}
+ * outputs, or the number set through {@link #setMaxOpenOutputs(int)}, are kept open.
+ * When more outputs receive points, the least recently used one gets its pending points
+ * written and its writer suspended through {@link ALasWriter#suspend()}. A suspended writer
+ * reopens its file and appends to it when it receives points again.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPipeline {
+
+    /**
+     * Assigns points to outputs.
+     */
+    public static interface PointRouter {
+        /**
+         * Route the points of a batch.
+         *
+         * @param batch the batch of points.
+         * @param targets the array to fill with the output index of each point,
+         *          or a negative value for points that are dropped.
+         * @throws Exception
+         */
+        void route( LasPointBatch batch, int[] targets ) throws Exception;
+    }
+
+    /**
+     * Creates the writers for the outputs.
+     */
+    public static interface WriterFactory {
+        /**
+         * Create and open a writer.
+         *
+         * @param target the output index.
+         * @return the opened writer.
+         * @throws Exception
+         */
+        ALasWriter createWriter( int target ) throws Exception;
+    }
+
+    /**
+     * The maximum number of points collected per output before they are handed to an encoder.
+     */
+    public static final int OUTPUT_BATCH_SIZE = 1024;
+
+    /**
+     * The default maximum number of outputs kept open at the same time.
+     */
+    public static final int MAX_OPEN_OUTPUTS = 64;
+
+    private static final LasPointBatch END = new LasPointBatch(0);
+    private static final LasPointBatch SUSPEND = new LasPointBatch(0);
+
+    private final int batchSize;
+    private final int outputBatchSize;
+    private final int queueSize;
+    private final int encoderThreads;
+    private final IJGTProgressMonitor pm;
+    private int maxOpenOutputs = MAX_OPEN_OUTPUTS;
+
+    private final HashMap<Integer, Output> outputs = new HashMap<Integer, Output>();
+    /**
+     * The open outputs, from the least to the most recently used.
+     */
+    private final LinkedHashMap<Integer, Output> openOutputs = new LinkedHashMap<Integer, Output>(16, 0.75f, true);
+    private final ConcurrentLinkedQueue<LasPointBatch> freeOutputBatches = new ConcurrentLinkedQueue<LasPointBatch>();
+
+    /**
+     * Constructor.
+     *
+     * @param batchSize the number of points per batch.
+     * @param queueSize the number of batches each queue can hold.
+     * @param encoderThreads the number of encoder threads.
+     * @param pm the monitor, which receives the number of routed points as worked units.
+     */
+    public LasPipeline( int batchSize, int queueSize, int encoderThreads, IJGTProgressMonitor pm ) {
+        if (batchSize < 1 || queueSize < 1 || encoderThreads < 1) {
+            throw new IllegalArgumentException("Batch size, queue size and encoder threads need to be positive.");
+        }
+        this.batchSize = batchSize;
+        this.outputBatchSize = Math.min(batchSize, OUTPUT_BATCH_SIZE);
+        this.queueSize = queueSize;
+        this.encoderThreads = encoderThreads;
+        this.pm = pm;
+    }
+
+    /**
+     * Set the maximum number of outputs kept open at the same time.
+     *
+     * @param maxOpenOutputs the maximum number of open outputs.
+     */
+    public void setMaxOpenOutputs( int maxOpenOutputs ) {
+        if (maxOpenOutputs < 1) {
+            throw new IllegalArgumentException("The number of open outputs needs to be positive.");
+        }
+        this.maxOpenOutputs = maxOpenOutputs;
+    }
+
+    /**
+     * Run the pipeline.
+     *
+     * <p>The readers need to be open and are not closed. The writers are
+     * closed before returning, also if an error occurred.</p>
+     *
+     * @param readers the readers to read from, in order.
+     * @param router the router of the points.
+     * @param writerFactory the factory for the output writers.
+     * @return the number of outputs written.
+     * @throws Exception
+     */
+    public int run( final List<ALasReader> readers, final PointRouter router, final WriterFactory writerFactory )
+            throws Exception {
+        outputs.clear();
+        openOutputs.clear();
+        final BlockingQueue<LasPointBatch> freeBatches = new ArrayBlockingQueue<LasPointBatch>(queueSize + 2);
+        for( int i = 0; i < queueSize + 2; i++ ) {
+            freeBatches.add(new LasPointBatch(batchSize));
+        }
+        final BlockingQueue<LasPointBatch> decodedBatches = new ArrayBlockingQueue<LasPointBatch>(queueSize);
+        final BlockingQueue<WriteTask>[] lanes = createLanes();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2 + encoderThreads);
+        ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        Exception error = null;
+        try {
+            completionService.submit(new Callable<Void>(){
+                public Void call() throws Exception {
+                    decode(readers, freeBatches, decodedBatches);
+                    return null;
+                }
+            });
+            completionService.submit(new Callable<Void>(){
+                public Void call() throws Exception {
+                    route(router, writerFactory, freeBatches, decodedBatches, lanes);
+                    return null;
+                }
+            });
+            for( final BlockingQueue<WriteTask> lane : lanes ) {
+                completionService.submit(new Callable<Void>(){
+                    public Void call() throws Exception {
+                        encode(lane);
+                        return null;
+                    }
+                });
+            }
+            for( int i = 0; i < 2 + encoderThreads; i++ ) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    // stop the other stages, which might wait on the queues
+                    executor.shutdownNow();
+                    Throwable cause = e.getCause();
+                    error = cause instanceof Exception ? (Exception) cause : e;
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            // the outputs are only touched by the stages, wait for them before closing
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            for( Output output : outputs.values() ) {
+                try {
+                    output.writer.close();
+                } catch (Exception e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return outputs.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private BlockingQueue<WriteTask>[] createLanes() {
+        BlockingQueue<WriteTask>[] lanes = new BlockingQueue[encoderThreads];
+        for( int i = 0; i < encoderThreads; i++ ) {
+            lanes[i] = new ArrayBlockingQueue<WriteTask>(queueSize);
+        }
+        return lanes;
+    }
+
+    private void decode( List<ALasReader> readers, BlockingQueue<LasPointBatch> freeBatches,
+            BlockingQueue<LasPointBatch> decodedBatches ) throws Exception {
+        for( ALasReader reader : readers ) {
+            long recordsCount = reader.getHeader().getRecordsCount();
+            for( long from = 0; from < recordsCount; from = from + batchSize ) {
+                LasPointBatch batch = freeBatches.take();
+                reader.getPointsInRange(from, recordsCount, batch);
+                decodedBatches.put(batch);
+            }
+        }
+        decodedBatches.put(END);
+    }
+
+    private void route( PointRouter router, WriterFactory writerFactory, BlockingQueue<LasPointBatch> freeBatches,
+            BlockingQueue<LasPointBatch> decodedBatches, BlockingQueue<WriteTask>[] lanes ) throws Exception {
+        int[] targets = new int[batchSize];
+        while( true ) {
+            LasPointBatch batch = decodedBatches.take();
+            if (batch == END) {
+                break;
+            }
+            int size = batch.size();
+            router.route(batch, targets);
+            for( int i = 0; i < size; i++ ) {
+                int target = targets[i];
+                if (target < 0) {
+                    continue;
+                }
+                Output output = openOutputs.get(target);
+                if (output == null) {
+                    output = outputs.get(target);
+                    if (output == null) {
+                        ALasWriter writer = writerFactory.createWriter(target);
+                        writer.setBoundsFromPoints(true);
+                        output = new Output(writer, lanes[target % encoderThreads]);
+                        outputs.put(target, output);
+                    }
+                    openOutputs.put(target, output);
+                    if (openOutputs.size() > maxOpenOutputs) {
+                        suspendEldest();
+                    }
+                }
+                if (output.pending == null) {
+                    output.pending = getOutputBatch();
+                }
+                output.pending.add(batch, i);
+                if (output.pending.isFull()) {
+                    output.lane.put(new WriteTask(output.writer, output.pending));
+                    output.pending = null;
+                }
+            }
+            freeBatches.put(batch);
+            if (pm != null) {
+                pm.worked(size);
+            }
+        }
+        for( Output output : outputs.values() ) {
+            if (output.pending != null && output.pending.size() > 0) {
+                output.lane.put(new WriteTask(output.writer, output.pending));
+                output.pending = null;
+            }
+        }
+        for( BlockingQueue<WriteTask> lane : lanes ) {
+            lane.put(new WriteTask(null, END));
+        }
+    }
+
+    /**
+     * Write the pending points of the least recently used output and suspend its writer.
+     * 
+     * <p>The suspension goes through the lane of the output, after its pending writes.</p>
+     */
+    private void suspendEldest() throws InterruptedException {
+        Iterator<Output> iterator = openOutputs.values().iterator();
+        Output output = iterator.next();
+        iterator.remove();
+        if (output.pending != null && output.pending.size() > 0) {
+            output.lane.put(new WriteTask(output.writer, output.pending));
+            output.pending = null;
+        }
+        output.lane.put(new WriteTask(output.writer, SUSPEND));
+    }
+
+    private void encode( BlockingQueue<WriteTask> lane ) throws Exception {
+        while( true ) {
+            WriteTask task = lane.take();
+            if (task.batch == END) {
+                break;
+            }
+            if (task.batch == SUSPEND) {
+                task.writer.suspend();
+                continue;
+            }
+            task.writer.addPoints(task.batch);
+            task.batch.clear();
+            freeOutputBatches.offer(task.batch);
+        }
+    }
+
+    private LasPointBatch getOutputBatch() {
+        LasPointBatch batch = freeOutputBatches.poll();
+        if (batch == null) {
+            batch = new LasPointBatch(outputBatchSize);
+        }
+        return batch;
+    }
+
+    private static class Output {
+        final ALasWriter writer;
+        final BlockingQueue<WriteTask> lane;
+        LasPointBatch pending;
+
+        Output( ALasWriter writer, BlockingQueue<WriteTask> lane ) {
+            this.writer = writer;
+            this.lane = lane;
+        }
+    }
+
+    private static class WriteTask {
+        final ALasWriter writer;
+        final LasPointBatch batch;
+
+        WriteTask( ALasWriter writer, LasPointBatch batch ) {
+            this.writer = writer;
+            this.batch = batch;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -546,72 +547,81 @@ public class LasUtils {
      */
     public static List<Geometry> triangulate( List<LasRecord> lasPoints, Double elevThres, boolean useGround,
             IJGTProgressMonitor pm ) {
+        double[] triangles = triangulateToArray(lasPoints, elevThres, useGround, pm);
+
+        pm.beginTask("Triangulation1...", -1);
+        List<Coordinate> lasCoordinates2 = new ArrayList<Coordinate>(triangles.length / 3);
+        for( int i = 0; i < triangles.length; i = i + 3 ) {
+            lasCoordinates2.add(new Coordinate(triangles[i], triangles[i + 1], triangles[i + 2]));
+        }
+        triangles = null;
+        DelaunayTriangulationBuilder triangulationBuilder1 = new DelaunayTriangulationBuilder();
+        triangulationBuilder1.setSites(lasCoordinates2);
+        Geometry triangles1 = triangulationBuilder1.getTriangles(gf);
+        pm.done();
+        int numTriangles = triangles1.getNumGeometries();
+        ArrayList<Geometry> trianglesList = new ArrayList<Geometry>(numTriangles);
+        for( int i = 0; i < numTriangles; i++ ) {
+            Geometry geometryN = triangles1.getGeometryN(i);
+            trianglesList.add(geometryN);
+        }
+        return trianglesList;
+    }
+
+    /**
+     * Triangulates a set of las points into a flat array of coordinates.
+     * 
+     * <p>The triangles are taken directly from the triangulation, without 
+     * creating geometries. If a threshold is supplied, the triangles that have
+     * an elevation difference between two vertexes bigger than it are dropped.
+     * 
+     * @param lasPoints the list of points.
+     * @param elevThres the optional threshold for true dsm calculation.
+     * @param useGround use the ground elevation instead of z.
+     * @param pm the monitor.
+     * @return the triangles as [x1, y1, z1, x2, y2, z2, x3, y3, z3, ...].
+     * @see org.jgrasstools.gears.utils.coverage.TriangleRasterizer
+     */
+    @SuppressWarnings("unchecked")
+    public static double[] triangulateToArray( List<LasRecord> lasPoints, Double elevThres, boolean useGround,
+            IJGTProgressMonitor pm ) {
         pm.beginTask("Triangulation...", -1);
-        List<Coordinate> lasCoordinates = new ArrayList<Coordinate>();
+        List<Coordinate> lasCoordinates = new ArrayList<Coordinate>(lasPoints.size());
         for( LasRecord lasRecord : lasPoints ) {
             lasCoordinates.add(new Coordinate(lasRecord.x, lasRecord.y, useGround ? lasRecord.groundElevation : lasRecord.z));
         }
         DelaunayTriangulationBuilder triangulationBuilder = new DelaunayTriangulationBuilder();
         triangulationBuilder.setSites(lasCoordinates);
-        Geometry triangles = triangulationBuilder.getTriangles(gf);
+        List<Coordinate[]> trianglesCoordinates = triangulationBuilder.getSubdivision().getTriangleCoordinates(false);
+        lasCoordinates = null;
         pm.done();
 
-        ArrayList<Geometry> trianglesList = new ArrayList<Geometry>();
-        int numTriangles = triangles.getNumGeometries();
-        if (elevThres == null) {
-            // no true dsm to be calculated
-            for( int i = 0; i < numTriangles; i++ ) {
-                Geometry geometryN = triangles.getGeometryN(i);
-                trianglesList.add(geometryN);
-            }
-        } else {
-            double pElevThres = elevThres;
-            numTriangles = triangles.getNumGeometries();
-            pm.beginTask("Extracting triangles based on threshold...", numTriangles);
-            for( int i = 0; i < numTriangles; i++ ) {
-                pm.worked(1);
-                Geometry geometryN = triangles.getGeometryN(i);
-                Coordinate[] coordinates = geometryN.getCoordinates();
-                double z0 = coordinates[0].z;
-                double z1 = coordinates[1].z;
-                double z2 = coordinates[2].z;
-                double diff1 = abs(z0 - z1);
-                if (diff1 > pElevThres) {
-                    continue;
-                }
-                double diff2 = abs(z0 - z2);
-                if (diff2 > pElevThres) {
-                    continue;
-                }
-                double diff3 = abs(z1 - z2);
-                if (diff3 > pElevThres) {
+        int numTriangles = trianglesCoordinates.size();
+        double[] triangles = new double[numTriangles * 9];
+        int index = 0;
+        pm.beginTask("Extracting triangles...", numTriangles);
+        for( Coordinate[] coordinates : trianglesCoordinates ) {
+            pm.worked(1);
+            double z0 = coordinates[0].z;
+            double z1 = coordinates[1].z;
+            double z2 = coordinates[2].z;
+            if (elevThres != null) {
+                double pElevThres = elevThres;
+                if (abs(z0 - z1) > pElevThres || abs(z0 - z2) > pElevThres || abs(z1 - z2) > pElevThres) {
                     continue;
                 }
-                trianglesList.add(geometryN);
             }
-            pm.done();
+            for( int i = 0; i < 3; i++ ) {
+                triangles[index++] = coordinates[i].x;
+                triangles[index++] = coordinates[i].y;
+                triangles[index++] = coordinates[i].z;
+            }
         }
-
-        pm.beginTask("Triangulation1...", -1);
-        List<Coordinate> lasCoordinates2 = new ArrayList<Coordinate>();
-        for( Geometry g : trianglesList ) {
-            Coordinate[] c = g.getCoordinates();
-            lasCoordinates2.add(c[0]);
-            lasCoordinates2.add(c[1]);
-            lasCoordinates2.add(c[2]);
-        }
-        trianglesList.clear();
-        DelaunayTriangulationBuilder triangulationBuilder1 = new DelaunayTriangulationBuilder();
-        triangulationBuilder1.setSites(lasCoordinates2);
-        Geometry triangles1 = triangulationBuilder1.getTriangles(gf);
         pm.done();
-        numTriangles = triangles1.getNumGeometries();
-        // no true dsm to be calculated
-        for( int i = 0; i < numTriangles; i++ ) {
-            Geometry geometryN = triangles1.getGeometryN(i);
-            trianglesList.add(geometryN);
+        if (index < triangles.length) {
+            triangles = Arrays.copyOf(triangles, index);
         }
-        return trianglesList;
+        return triangles;
     }
 
     /**
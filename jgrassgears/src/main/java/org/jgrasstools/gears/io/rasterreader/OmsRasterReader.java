@@ -90,6 +90,7 @@ import oms3.annotations.Status;
 import oms3.annotations.UI;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.ViewType;
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
@@ -116,6 +117,7 @@ import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
+import org.opengis.coverage.grid.GridEnvelope;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -201,6 +203,11 @@ public class OmsRasterReader extends JGTModel {
      */
     public GeneralEnvelope originalEnvelope;
 
+    /**
+     * The original grid range of the coverage.
+     */
+    public GridEnvelope originalGridRange;
+
     private GeneralParameterValue[] generalParameter = null;
 
     private double[] pBounds;
@@ -299,6 +306,7 @@ public class OmsRasterReader extends JGTModel {
         Envelope env = readRegion.getEnvelope();
         originalEnvelope = new GeneralEnvelope(new ReferencedEnvelope(env.getMinX(), env.getMaxX(), env.getMinY(), env.getMaxY(),
                 crs));
+        originalGridRange = new GridEnvelope2D(0, 0, readRegion.getCols(), readRegion.getRows());
 
         // if bounds supplied, use them as region
         if (pBounds != null) {
@@ -349,6 +357,7 @@ public class OmsRasterReader extends JGTModel {
         final Object source = url;
         final BaseGDALGridCoverage2DReader reader = new AIGReader(source, hints);
         originalEnvelope = reader.getOriginalEnvelope();
+        originalGridRange = reader.getOriginalGridRange();
         if (!doEnvelope) {
             GridCoverage2D coverage = (GridCoverage2D) reader.read(generalParameter);
             outRaster = coverage.view(ViewType.GEOPHYSICS);
@@ -368,6 +377,7 @@ public class OmsRasterReader extends JGTModel {
             geoTiffReader = new GeoTiffReader(mapFile);
         }
         originalEnvelope = geoTiffReader.getOriginalEnvelope();
+        originalGridRange = geoTiffReader.getOriginalGridRange();
         if (!doEnvelope) {
             GridCoverage2D coverage = geoTiffReader.read(generalParameter);
             outRaster = coverage.view(ViewType.GEOPHYSICS);
@@ -380,6 +390,7 @@ public class OmsRasterReader extends JGTModel {
     private void readArcGrid( File mapFile ) throws IllegalArgumentException, IOException {
         ArcGridReader arcGridReader = new ArcGridReader(mapFile);
         originalEnvelope = arcGridReader.getOriginalEnvelope();
+        originalGridRange = arcGridReader.getOriginalGridRange();
         if (!doEnvelope) {
             GridCoverage2D coverage = arcGridReader.read(generalParameter);
             outRaster = coverage.view(ViewType.GEOPHYSICS);
@@ -392,6 +403,7 @@ public class OmsRasterReader extends JGTModel {
     private void readWorldImage( File mapFile ) throws IllegalArgumentException, IOException {
         WorldImageReader worldImageReader = new WorldImageReader(mapFile);
         originalEnvelope = worldImageReader.getOriginalEnvelope();
+        originalGridRange = worldImageReader.getOriginalGridRange();
         if (!doEnvelope) {
             GridCoverage2D coverage = worldImageReader.read(generalParameter);
             outRaster = coverage.view(ViewType.RENDERED);
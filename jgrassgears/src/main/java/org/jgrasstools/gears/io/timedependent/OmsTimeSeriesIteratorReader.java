@@ -25,6 +25,7 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREAD
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_LICENSE;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_NAME;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_STATUS;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_DO_REUSE_BUFFERS_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_FILE_NOVALUE_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_FILE_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_ID_FIELD_DESCRIPTION;
@@ -32,6 +33,7 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREAD
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_OUT_DATA_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_P_AGGREGATION_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_P_NUM_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_P_PREFETCH_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_T_CURRENT_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_T_END_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_T_PREVIOUS_DESCRIPTION;
@@ -44,6 +46,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -102,6 +107,14 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
     @In
     public int pAggregation = 0;
 
+    @Description(OMSTIMESERIESITERATORREADER_DO_REUSE_BUFFERS_DESCRIPTION)
+    @In
+    public boolean doReuseBuffers = false;
+
+    @Description(OMSTIMESERIESITERATORREADER_P_PREFETCH_DESCRIPTION)
+    @In
+    public int pPrefetch = 0;
+
     @Description(OMSTIMESERIESITERATORREADER_T_START_DESCRIPTION)
     @In
     @Out
@@ -137,6 +150,20 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
 
     private DateTime expectedTimestamp = null;
 
+    /**
+     * The ids of the column groups, in column order.
+     */
+    private int[] layoutIds;
+
+    /**
+     * The number of consecutive columns belonging to each id of {@link #layoutIds}.
+     */
+    private int[] layoutCounts;
+
+    private Thread prefetchThread;
+    private BlockingQueue<PrefetchedRecord> prefetchQueue;
+    private ConcurrentLinkedQueue<HashMap<Integer, double[]>> recycledMaps;
+
     @Initialize
     public void initProcess() {
         // activate time
@@ -170,24 +197,18 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
                 rowsIterator = (TableIterator<String[]>) table.rows().iterator();
             }
 
-        }
-    }
-
-    @Execute
-    public void nextRecord() throws IOException {
-        ensureOpen();
-        if (tCurrent == null) {
-            tPrevious = null;
-            tCurrent = tStart.trim();
-            expectedTimestamp = formatter.parseDateTime(tCurrent);
-        } else {
+            createLayout();
 
-            tPrevious = tCurrent;
-            expectedTimestamp = expectedTimestamp.plusMinutes(tTimestep);
-            tCurrent = expectedTimestamp.toString(formatter);
+            if (pPrefetch > 0) {
+                startPrefetching();
+            }
         }
-        outData = new HashMap<Integer, double[]>();
+    }
 
+    /**
+     * Reads the id metadata of the columns once and groups consecutive columns with the same id.
+     */
+    private void createLayout() {
         int columnCount = table.getColumnCount();
         List<Integer> idList = new ArrayList<Integer>();
         List<Integer> idCountList = new ArrayList<Integer>();
@@ -197,13 +218,14 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
             String id = table.getColumnInfo(i).get(idfield);
             try {
                 Integer idInteger = Integer.valueOf(id);
-                idList.add(idInteger);
                 if (previousIdInteger == null) {
+                    idList.add(idInteger);
                     count++;
                 } else {
                     if (idInteger.intValue() == previousIdInteger.intValue()) {
                         count++;
                     } else {
+                        idList.add(idInteger);
                         idCountList.add(count);
                         count = 1;
                     }
@@ -218,47 +240,150 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
             }
         }
 
-        if (rowsIterator.hasNext()) {
-            String[] row = getExpectedRow(rowsIterator, expectedTimestamp);
-
-            int idCountIndex = 0;
-            for( int i = 2; i < row.length; i++ ) {
-                Integer id = idList.get(i - 2);
-                Integer idCount = idCountList.get(idCountIndex);
-                double[] values = outData.get(id);
-                if (values == null) {
-                    values = new double[idCount];
-                    outData.put(id, values);
-                }
-                for( int j = 0; j < idCount; j++, i++ ) {
-                    if (row[i] == null || row[i].length() == 0) {
-                        values[j] = novalue;
-                    } else {
-                        String valueStr = row[i].trim();
-                        if (valueStr.equals(fileNovalue)) {
-                            values[j] = novalue;
-                        } else {
-                            values[j] = Double.parseDouble(valueStr);
-                        }
-                    }
-                }
-                idCountIndex++;
-                i--;
+        layoutIds = new int[idList.size()];
+        layoutCounts = new int[idCountList.size()];
+        for( int i = 0; i < layoutIds.length; i++ ) {
+            layoutIds[i] = idList.get(i);
+            layoutCounts[i] = idCountList.get(i);
+        }
+    }
+
+    @Execute
+    public void nextRecord() throws IOException {
+        ensureOpen();
+        if (tCurrent == null) {
+            tPrevious = null;
+            tCurrent = tStart.trim();
+            expectedTimestamp = formatter.parseDateTime(tCurrent);
+        } else {
+
+            tPrevious = tCurrent;
+            expectedTimestamp = expectedTimestamp.plusMinutes(tTimestep);
+            tCurrent = expectedTimestamp.toString(formatter);
+        }
+
+        if (prefetchThread != null) {
+            if (doReuseBuffers && outData != null) {
+                recycledMaps.offer(outData);
+            }
+            PrefetchedRecord record;
+            try {
+                record = prefetchQueue.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for the prefetched data of: " + file);
+            }
+            if (record.error != null) {
+                // the records read before the failure have all been delivered
+                doProcess = false;
+                throw new IOException("An error occurred while prefetching the data of: " + file, record.error);
+            }
+            outData = record.data;
+            if (outData == null || !record.hasNext) {
+                doProcess = false;
             }
         } else {
-            outData = null;
+            if (rowsIterator.hasNext()) {
+                String[] row = getExpectedRow(rowsIterator, expectedTimestamp);
+                if (!doReuseBuffers || outData == null) {
+                    outData = new HashMap<Integer, double[]>();
+                }
+                decodeRow(row, outData);
+            } else {
+                outData = null;
+            }
+            // data ran out
+            if (!rowsIterator.hasNext()) {
+                doProcess = false;
+            }
         }
 
         // time ran out
         if (tEnd != null && tCurrent.equals(tEnd)) {
             doProcess = false;
         }
-        // data ran out
-        if (!rowsIterator.hasNext()) {
-            doProcess = false;
+    }
+
+    /**
+     * Parses the values of a row into the per id arrays of the supplied map.
+     * 
+     * <p>Arrays already contained in the map are reused.</p>
+     * 
+     * @param row the row to decode.
+     * @param data the map to fill.
+     */
+    private void decodeRow( String[] row, HashMap<Integer, double[]> data ) {
+        int col = 2;
+        for( int g = 0; g < layoutIds.length && col < row.length; g++ ) {
+            int idCount = layoutCounts[g];
+            Integer id = layoutIds[g];
+            double[] values = data.get(id);
+            if (values == null || values.length != idCount) {
+                values = new double[idCount];
+                data.put(id, values);
+            }
+            for( int j = 0; j < idCount; j++, col++ ) {
+                String valueStr = row[col];
+                if (valueStr == null || valueStr.length() == 0) {
+                    values[j] = novalue;
+                } else {
+                    valueStr = valueStr.trim();
+                    if (valueStr.equals(fileNovalue)) {
+                        values[j] = novalue;
+                    } else {
+                        values[j] = Double.parseDouble(valueStr);
+                    }
+                }
+            }
         }
     }
 
+    private void startPrefetching() {
+        prefetchQueue = new ArrayBlockingQueue<PrefetchedRecord>(pPrefetch);
+        recycledMaps = new ConcurrentLinkedQueue<HashMap<Integer, double[]>>();
+        prefetchThread = new Thread(new Runnable(){
+            public void run() {
+                try {
+                    DateTime timestamp = formatter.parseDateTime(tStart.trim());
+                    while( !Thread.currentThread().isInterrupted() ) {
+                        if (!rowsIterator.hasNext()) {
+                            break;
+                        }
+                        String[] row = getExpectedRow(rowsIterator, timestamp);
+                        if (row == null) {
+                            break;
+                        }
+                        HashMap<Integer, double[]> data = null;
+                        if (doReuseBuffers) {
+                            data = recycledMaps.poll();
+                        }
+                        if (data == null) {
+                            data = new HashMap<Integer, double[]>();
+                        }
+                        decodeRow(row, data);
+                        boolean hasNext = rowsIterator.hasNext();
+                        prefetchQueue.put(new PrefetchedRecord(data, hasNext, null));
+                        if (!hasNext || (tEnd != null && timestamp.toString(formatter).equals(tEnd))) {
+                            return;
+                        }
+                        timestamp = timestamp.plusMinutes(tTimestep);
+                    }
+                    prefetchQueue.put(new PrefetchedRecord(null, false, null));
+                } catch (InterruptedException e) {
+                    // closed while prefetching
+                } catch (Exception e) {
+                    try {
+                        // queued behind the good records, waits for room like them
+                        prefetchQueue.put(new PrefetchedRecord(null, false, e));
+                    } catch (InterruptedException ie) {
+                        // closed while prefetching
+                    }
+                }
+            }
+        }, "tsitreader-prefetch");
+        prefetchThread.setDaemon(true);
+        prefetchThread.start();
+    }
+
     /**
      * Get the needed datarow from the table.
      * 
@@ -352,6 +477,33 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
 
     @Finalize
     public void close() throws IOException {
+        if (prefetchThread != null) {
+            prefetchThread.interrupt();
+            try {
+                prefetchThread.join();
+            } catch (InterruptedException e) {
+                // ignore and close anyways
+            }
+            prefetchThread = null;
+        }
         rowsIterator.close();
     }
+
+    /**
+     * A decoded row handed over from the prefetching thread.
+     * 
+     * <p>The last record has <code>null</code> data and carries the
+     * reading error, if the prefetching stopped because of one.</p>
+     */
+    private static class PrefetchedRecord {
+        final HashMap<Integer, double[]> data;
+        final boolean hasNext;
+        final Exception error;
+
+        PrefetchedRecord( HashMap<Integer, double[]> data, boolean hasNext, Exception error ) {
+            this.data = data;
+            this.hasNext = hasNext;
+            this.error = error;
+        }
+    }
 }
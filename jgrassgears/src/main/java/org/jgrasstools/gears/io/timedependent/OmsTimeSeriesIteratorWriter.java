@@ -25,10 +25,13 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRIT
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_LICENSE;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_NAME;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_STATUS;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_DO_ASYNC_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_DO_BINARY_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_FILE_NOVALUE_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_FILE_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_IN_DATA_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_IN_TABLENAME_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_P_BUFFER_SIZE_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_T_START_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORWRITER_T_TIMESTEP_DESCRIPTION;
 
@@ -52,6 +55,7 @@ import oms3.annotations.License;
 import oms3.annotations.Name;
 import oms3.annotations.Status;
 import oms3.annotations.UI;
+import oms3.io.AsyncRowWriter;
 import oms3.io.DataIO;
 import oms3.io.MemoryTable;
 
@@ -94,8 +98,28 @@ public class OmsTimeSeriesIteratorWriter extends JGTModel {
     @In
     public String fileNovalue = "-9999.0";
 
+    @Description(OMSTIMESERIESITERATORWRITER_DO_ASYNC_DESCRIPTION)
+    @In
+    public boolean doAsync = false;
+
+    @Description(OMSTIMESERIESITERATORWRITER_P_BUFFER_SIZE_DESCRIPTION)
+    @In
+    public int pBufferSize = AsyncRowWriter.DEFAULT_CAPACITY;
+
+    @Description(OMSTIMESERIESITERATORWRITER_DO_BINARY_DESCRIPTION)
+    @In
+    public boolean doBinary = false;
+
     private MemoryTable memoryTable;
 
+    /*
+     * streaming mode
+     */
+    private AsyncRowWriter.Sink<TimeSeriesRow> sink;
+    private AsyncRowWriter<TimeSeriesRow> asyncWriter;
+    private int[] layoutIds;
+    private int valuesCount;
+
     private DateTimeFormatter formatter = JGTConstants.utcDateFormatterYYYYMMDDHHMM;
     private String formatterPattern = JGTConstants.utcDateFormatterYYYYMMDDHHMM_string;
 
@@ -119,6 +143,10 @@ public class OmsTimeSeriesIteratorWriter extends JGTModel {
 
     @Execute
     public void writeNextLine() throws IOException {
+        if (doAsync || doBinary) {
+            streamNextLine();
+            return;
+        }
         ensureOpen();
         List<Integer> idsList = new ArrayList<Integer>();
         List<String> columnNamesList = new ArrayList<String>();
@@ -224,8 +252,86 @@ public class OmsTimeSeriesIteratorWriter extends JGTModel {
         }
     }
 
+    private void streamNextLine() throws IOException {
+        if (sink == null) {
+            if (tStart != null && tTimestep != -1) {
+                runningDateTime = formatter.parseDateTime(tStart);
+            }
+
+            List<Integer> idsList = new ArrayList<Integer>();
+            List<String> columnNamesList = new ArrayList<String>();
+            List<Integer> columnIdsList = new ArrayList<Integer>();
+            for( Entry<Integer, double[]> inDataEntry : inData.entrySet() ) {
+                Integer id = inDataEntry.getKey();
+                double[] values = inDataEntry.getValue();
+                idsList.add(id);
+                if (values.length == 1) {
+                    columnNamesList.add("value_" + id);
+                    columnIdsList.add(id);
+                } else {
+                    for( int i = 0; i < values.length; i++ ) {
+                        columnNamesList.add("value_" + id + "_" + i);
+                        columnIdsList.add(id);
+                    }
+                }
+            }
+            layoutIds = new int[idsList.size()];
+            for( int i = 0; i < layoutIds.length; i++ ) {
+                layoutIds[i] = idsList.get(i);
+            }
+            valuesCount = columnIdsList.size();
+            String[] columnNames = columnNamesList.toArray(new String[0]);
+            int[] columnIds = new int[valuesCount];
+            for( int i = 0; i < valuesCount; i++ ) {
+                columnIds[i] = columnIdsList.get(i);
+            }
+
+            String created = new DateTime().toString(formatter);
+            File outFile = new File(file);
+            if (doBinary) {
+                sink = new TimeSeriesBinarySink(outFile, inTablename, created, columnNames, columnIds, runningDateTime != null);
+            } else {
+                sink = new TimeSeriesCsvSink(outFile, inTablename, created, columnNames, columnIds, runningDateTime != null,
+                        fileNovalue);
+            }
+            if (doAsync) {
+                asyncWriter = new AsyncRowWriter<TimeSeriesRow>(sink, pBufferSize, "tsitwriter-" + outFile.getName());
+            }
+        }
+
+        // the values are copied, since the producer might reuse its buffers
+        double[] rowValues = new double[valuesCount];
+        int index = 0;
+        for( int id : layoutIds ) {
+            double[] dataArray = inData.get(id);
+            System.arraycopy(dataArray, 0, rowValues, index, dataArray.length);
+            index += dataArray.length;
+        }
+        long timestamp = 0;
+        if (runningDateTime != null) {
+            timestamp = runningDateTime.getMillis();
+            runningDateTime = runningDateTime.plusMinutes(tTimestep);
+        }
+        TimeSeriesRow row = new TimeSeriesRow(timestamp, rowValues);
+        if (asyncWriter != null) {
+            asyncWriter.add(row);
+        } else {
+            sink.write(row);
+        }
+    }
+
     @Finalize
     public void close() throws IOException {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+            asyncWriter = null;
+            sink = null;
+            return;
+        } else if (sink != null) {
+            sink.close();
+            sink = null;
+            return;
+        }
         DataIO.print(memoryTable, new PrintWriter(new File(file)));
     }
 }
@@ -0,0 +1,153 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.timedependent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import oms3.io.AsyncRowWriter;
+
+/**
+ * Streaming writer of timeseries rows to a compact binary file.
+ * 
+ * <p>The layout is:</p>
+ * <ul>
+ *  <li>header: magic (int), version (int), table name (utf), created (utf),
+ *      has timestamp (boolean), column count (int) and for each column
+ *      name (utf) and id (int)</li>
+ *  <li>rows until the end of the file: timestamp in utc millis (long, only if 
+ *      the table has a time column) and one double per column</li>
+ * </ul>
+ * 
+ * <p>Use {@link #toCsv(File, File, String)} to convert the file to the usual
+ * OMS formatted csv.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TimeSeriesBinarySink implements AsyncRowWriter.Sink<TimeSeriesRow> {
+
+    public static final int MAGIC = 0x4A475453;
+    public static final int VERSION = 1;
+
+    private DataOutputStream out;
+    private boolean hasTimestamp;
+
+    /**
+     * Constructor.
+     * 
+     * @param file the file to write to.
+     * @param tableName the name of the table.
+     * @param created the creation date string for the table metadata.
+     * @param columnNames the names of the data columns.
+     * @param columnIds the ids of the data columns.
+     * @param hasTimestamp if <code>true</code>, the timestamp is written with each row.
+     * @throws IOException
+     */
+    public TimeSeriesBinarySink( File file, String tableName, String created, String[] columnNames, int[] columnIds,
+            boolean hasTimestamp ) throws IOException {
+        this.hasTimestamp = hasTimestamp;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(tableName);
+        out.writeUTF(created);
+        out.writeBoolean(hasTimestamp);
+        out.writeInt(columnNames.length);
+        for( int i = 0; i < columnNames.length; i++ ) {
+            out.writeUTF(columnNames[i]);
+            out.writeInt(columnIds[i]);
+        }
+    }
+
+    public void write( TimeSeriesRow row ) throws IOException {
+        if (hasTimestamp) {
+            out.writeLong(row.timestamp);
+        }
+        for( double value : row.values ) {
+            out.writeDouble(value);
+        }
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Convert a binary timeseries file to an OMS formatted csv.
+     * 
+     * @param binaryFile the file written by this sink.
+     * @param csvFile the csv file to create.
+     * @param fileNovalue the novalue to use in the csv file.
+     * @throws IOException
+     */
+    public static void toCsv( File binaryFile, File csvFile, String fileNovalue ) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a binary timeseries file: " + binaryFile);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary timeseries version: " + version);
+            }
+            String tableName = in.readUTF();
+            String created = in.readUTF();
+            boolean hasTimestamp = in.readBoolean();
+            int columnCount = in.readInt();
+            String[] columnNames = new String[columnCount];
+            int[] columnIds = new int[columnCount];
+            for( int i = 0; i < columnCount; i++ ) {
+                columnNames[i] = in.readUTF();
+                columnIds[i] = in.readInt();
+            }
+
+            TimeSeriesCsvSink csvSink = new TimeSeriesCsvSink(csvFile, tableName, created, columnNames, columnIds,
+                    hasTimestamp, fileNovalue);
+            double[] values = new double[columnCount];
+            try {
+                while( true ) {
+                    long timestamp = 0;
+                    try {
+                        if (hasTimestamp) {
+                            timestamp = in.readLong();
+                        } else if (columnCount == 0) {
+                            break;
+                        }
+                        for( int i = 0; i < columnCount; i++ ) {
+                            values[i] = in.readDouble();
+                        }
+                        csvSink.write(new TimeSeriesRow(timestamp, values));
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+            } finally {
+                csvSink.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
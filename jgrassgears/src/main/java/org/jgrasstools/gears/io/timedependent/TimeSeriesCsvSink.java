@@ -0,0 +1,114 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.timedependent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import oms3.io.AsyncRowWriter;
+import oms3.io.DataIO;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Streaming writer of timeseries rows to an OMS formatted csv file.
+ * 
+ * <p>The produced layout is the same as the one of the table written by
+ * {@link OmsTimeSeriesIteratorWriter}, but rows are written as they come
+ * instead of being collected in memory.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TimeSeriesCsvSink implements AsyncRowWriter.Sink<TimeSeriesRow> {
+
+    private DateTimeFormatter formatter = JGTConstants.utcDateFormatterYYYYMMDDHHMM;
+
+    private PrintWriter writer;
+    private boolean hasTimestamp;
+    private String fileNovalue;
+
+    /**
+     * Constructor.
+     * 
+     * @param file the file to write to.
+     * @param tableName the name of the table.
+     * @param created the creation date string for the table metadata.
+     * @param columnNames the names of the data columns.
+     * @param columnIds the ids of the data columns.
+     * @param hasTimestamp if <code>true</code>, a timestamp column is added.
+     * @param fileNovalue the novalue to use in the file.
+     * @throws IOException
+     */
+    public TimeSeriesCsvSink( File file, String tableName, String created, String[] columnNames, int[] columnIds,
+            boolean hasTimestamp, String fileNovalue ) throws IOException {
+        this.hasTimestamp = hasTimestamp;
+        this.fileNovalue = fileNovalue;
+        writer = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+
+        writer.println(DataIO.TABLE + "," + tableName);
+        writer.println("Created," + created);
+        writer.println("Author,HortonMachine library");
+
+        StringBuilder names = new StringBuilder(DataIO.HEADER);
+        StringBuilder ids = new StringBuilder("ID");
+        StringBuilder types = new StringBuilder("Type");
+        StringBuilder formats = new StringBuilder("Format");
+        if (hasTimestamp) {
+            names.append(",timestamp");
+            ids.append(",");
+            types.append(",Date");
+            formats.append(",").append(JGTConstants.utcDateFormatterYYYYMMDDHHMM_string);
+        }
+        for( int i = 0; i < columnNames.length; i++ ) {
+            names.append(",").append(columnNames[i]);
+            ids.append(",").append(columnIds[i]);
+            types.append(",Double");
+            formats.append(",");
+        }
+        writer.println(names);
+        writer.println(ids);
+        writer.println(types);
+        writer.println(formats);
+    }
+
+    public void write( TimeSeriesRow row ) throws IOException {
+        if (hasTimestamp) {
+            writer.print(",");
+            writer.print(new DateTime(row.timestamp).toString(formatter));
+        }
+        for( double value : row.values ) {
+            writer.print(",");
+            if (JGTConstants.isNovalue(value)) {
+                writer.print(fileNovalue);
+            } else {
+                writer.print(String.valueOf(value));
+            }
+        }
+        writer.println();
+    }
+
+    public void close() throws IOException {
+        writer.println();
+        writer.close();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.timedependent;
+
+/**
+ * A single row of a timeseries, as handed over to the timeseries sinks.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TimeSeriesRow {
+
+    /**
+     * The utc timestamp in milliseconds (ignored if the table has no time column).
+     */
+    public final long timestamp;
+
+    /**
+     * The values of all the data columns, in column order.
+     */
+    public final double[] values;
+
+    public TimeSeriesRow( long timestamp, double[] values ) {
+        this.timestamp = timestamp;
+        this.values = values;
+    }
+}
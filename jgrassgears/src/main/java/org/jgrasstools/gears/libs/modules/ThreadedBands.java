@@ -0,0 +1,195 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsUserCancelException;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Runs independent bands of work, for example bands of raster rows, on a number of threads.
+ *
+ * <p>The bands are handed out to the threads in increasing order. The first error
+ * stops the remaining bands and is rethrown to the caller, and so is a cancel
+ * request of the monitor, which is checked before each band.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ThreadedBands {
+
+    /**
+     * The number of bands per thread. More bands than threads balance
+     * the bands that take longer than others.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * A band of work.
+     */
+    public static interface Band {
+        /**
+         * Run a band.
+         *
+         * @param band the band index.
+         * @throws Exception
+         */
+        public void run( int band ) throws Exception;
+    }
+
+    /**
+     * A band of work that collects its results in partials kept per thread,
+     * which the caller merges after the run.
+     */
+    public static interface PartialBand {
+        /**
+         * Run a band.
+         *
+         * @param band the band index.
+         * @param thread the index of the thread running the band, from 0 to
+         *          {@link ThreadedBands#getThreadsNum(int, int)} - 1.
+         * @throws Exception
+         */
+        public void run( int band, int thread ) throws Exception;
+    }
+
+    private ThreadedBands() {
+    }
+
+    /**
+     * Get the size of the bands to split a number of lines in.
+     *
+     * @param lines the number of lines, for example the rows of a raster.
+     * @param threads the number of threads that will run the bands.
+     * @return the number of lines per band.
+     */
+    public static int getBandLines( int lines, int threads ) {
+        int targetBands = Math.max(1, threads) * BANDS_PER_THREAD;
+        return Math.max(1, (lines + targetBands - 1) / targetBands);
+    }
+
+    /**
+     * Get the number of bands of a given size needed to cover a number of lines.
+     *
+     * @param lines the number of lines.
+     * @param bandLines the number of lines per band.
+     * @return the number of bands.
+     */
+    public static int getBandsNum( int lines, int bandLines ) {
+        return (lines + bandLines - 1) / bandLines;
+    }
+
+    /**
+     * Get the number of threads that will actually run the bands.
+     *
+     * @param bandsNum the number of bands.
+     * @param threads the number of threads requested.
+     * @return the number of threads used, never more than the bands.
+     */
+    public static int getThreadsNum( int bandsNum, int threads ) {
+        return Math.max(1, Math.min(threads, bandsNum));
+    }
+
+    /**
+     * Run bands of work.
+     *
+     * <p>With a single thread, or a single band, the bands are run on the calling thread.</p>
+     *
+     * @param bandsNum the number of bands.
+     * @param threads the number of threads to use.
+     * @param task the name of the task for the monitor.
+     * @param pm the monitor, which receives a worked unit per band. Can be <code>null</code>.
+     * @param band the work of a band.
+     * @throws Exception the first exception thrown by a band.
+     */
+    public static void runBands( int bandsNum, int threads, String task, IJGTProgressMonitor pm, final Band band )
+            throws Exception {
+        runBands(bandsNum, threads, task, pm, new PartialBand(){
+            public void run( int b, int thread ) throws Exception {
+                band.run(b);
+            }
+        });
+    }
+
+    /**
+     * Run bands of work that collect their results per thread.
+     *
+     * <p>Each thread runs its bands in increasing order. With a single thread,
+     * or a single band, the bands are run on the calling thread.</p>
+     *
+     * @param bandsNum the number of bands.
+     * @param threads the number of threads to use.
+     * @param task the name of the task for the monitor.
+     * @param pm the monitor, which receives a worked unit per band. Can be <code>null</code>.
+     * @param band the work of a band.
+     * @throws Exception the first exception thrown by a band.
+     */
+    public static void runBands( final int bandsNum, int threads, String task, final IJGTProgressMonitor pm,
+            final PartialBand band ) throws Exception {
+        int usedThreads = getThreadsNum(bandsNum, threads);
+        if (usedThreads == 1) {
+            if (pm != null) {
+                pm.beginTask(task == null ? "Processing..." : task, bandsNum);
+            }
+            for( int b = 0; b < bandsNum; b++ ) {
+                checkCancel(pm);
+                band.run(b, 0);
+                if (pm != null) {
+                    pm.worked(1);
+                }
+            }
+            if (pm != null) {
+                pm.done();
+            }
+            return;
+        }
+
+        final AtomicInteger nextBand = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        final ThreadedRunnable< ? > runner = new ThreadedRunnable<Object>(usedThreads, pm);
+        runner.setWorkLoad(task, bandsNum);
+        for( int t = 0; t < usedThreads; t++ ) {
+            final int thread = t;
+            runner.executeRunnable(new Runnable(){
+                public void run() {
+                    try {
+                        int b;
+                        while( error.get() == null && (b = nextBand.getAndIncrement()) < bandsNum ) {
+                            checkCancel(pm);
+                            band.run(b, thread);
+                            runner.worked(1);
+                        }
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        runner.waitAndClose();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    private static void checkCancel( IJGTProgressMonitor pm ) {
+        if (pm != null && pm.isCanceled()) {
+            throw new ModelsUserCancelException();
+        }
+    }
+}
@@ -27,6 +27,8 @@ import java.util.Arrays;
 import javax.media.jai.RasterFactory;
 
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.Band;
 
 /**
  * <p><em>This software has been released into the public domain.
@@ -35,8 +37,15 @@ import org.jgrasstools.gears.libs.modules.JGTConstants;
  * 
  * <p>This class provides a configurable implementation of the Canny edge
  * detection algorithm. This classic algorithm has a number of shortcomings,
- * but remains an effective tool in many scenarios. <em>This class is designed
- * for single threaded use only.</em></p>
+ * but remains an effective tool in many scenarios. <em>An instance is meant
+ * to be used by a single thread.</em></p>
+ * 
+ * <p>The smoothing, the gradients and the non-maximal suppression run on bands
+ * of rows, in parallel if more {@link #setThreads(int) threads} are set. The
+ * working buffers of images up to {@value #MAX_CACHED_CELLS} cells are kept per
+ * calling thread and reused by the next detection on the same thread, so the
+ * magnitude and gradient rasters have to be read before that. Larger images get
+ * their own buffers, which are released with the detector.</p>
  * 
  * <p>Sample usage:</p>
  * 
@@ -67,12 +76,29 @@ public class Canny {
     private final static float MAGNITUDE_SCALE = 100F;
     private final static float MAGNITUDE_LIMIT = 1000F;
     private final static int MAGNITUDE_MAX = (int) (MAGNITUDE_SCALE * MAGNITUDE_LIMIT);
+    /**
+     * The max size of the buffers kept per thread, 32 bytes per cell.
+     */
+    private final static int MAX_CACHED_CELLS = 1 << 20;
+
+    /**
+     * The working buffers of the detections run by a thread.
+     */
+    private final static ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>(){
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
 
     // fields
 
     private int height;
     private int width;
     private int picsize;
+    private int threads = 1;
+    private Buffers buffers;
+    private int buffersGeneration;
     private int[] data;
     private int[] magnitude;
     private RenderedImage sourceImage;
@@ -87,6 +113,7 @@ public class Canny {
     private float[] yConv;
     private float[] xGradient;
     private float[] yGradient;
+    private float[] gradMagnitude;
     private WritableRaster edgesRaster;
     private WritableRaster magnitudeRaster;
     private WritableRaster xgradRaster;
@@ -287,9 +314,29 @@ public class Canny {
         this.contrastNormalized = contrastNormalized;
     }
 
+    /**
+     * The number of threads used by the detection. The default value is 1.
+     * 
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads used by the detection.
+     * 
+     * @param threads the number of threads, at least 1.
+     */
+    public void setThreads( int threads ) {
+        if (threads < 1)
+            throw new IllegalArgumentException();
+        this.threads = threads;
+    }
+
     // methods
 
-    public void process() {
+    public void process() throws Exception {
         width = sourceImage.getWidth();
         height = sourceImage.getHeight();
         picsize = width * height;
@@ -308,15 +355,22 @@ public class Canny {
     // private utility methods
 
     private void initArrays() {
-        if (data == null || picsize != data.length) {
-            data = new int[picsize];
-            magnitude = new int[picsize];
-
-            xConv = new float[picsize];
-            yConv = new float[picsize];
-            xGradient = new float[picsize];
-            yGradient = new float[picsize];
+        if (picsize <= MAX_CACHED_CELLS) {
+            buffers = BUFFERS.get();
+        } else {
+            // too big to stay attached to the thread
+            buffers = new Buffers();
         }
+        buffers.ensureSize(picsize);
+        // a counter instead of a reference, so the thread doesn't keep this detector alive
+        buffersGeneration = ++buffers.generation;
+        data = buffers.data;
+        magnitude = buffers.magnitude;
+        xConv = buffers.xConv;
+        yConv = buffers.yConv;
+        xGradient = buffers.xGradient;
+        yGradient = buffers.yGradient;
+        gradMagnitude = buffers.gradMagnitude;
     }
 
     // NOTE: The elements of the method below (specifically the technique for
@@ -330,160 +384,189 @@ public class Canny {
     // someone's intellectual property rights. If this concerns you feel free to
     // contact me for an alternative, though less efficient, implementation.
 
-    private void computeGradients( float kernelRadius, int kernelWidth ) {
+    private void computeGradients( float kernelRadius, int kernelWidth ) throws Exception {
 
         // generate the gaussian convolution masks
-        float kernel[] = new float[kernelWidth];
-        float diffKernel[] = new float[kernelWidth];
-        int kwidth;
-        for( kwidth = 0; kwidth < kernelWidth; kwidth++ ) {
-            float g1 = gaussian(kwidth, kernelRadius);
-            if (g1 <= GAUSSIAN_CUT_OFF && kwidth >= 2)
+        final float kernel[] = new float[kernelWidth];
+        final float diffKernel[] = new float[kernelWidth];
+        int kw;
+        for( kw = 0; kw < kernelWidth; kw++ ) {
+            float g1 = gaussian(kw, kernelRadius);
+            if (g1 <= GAUSSIAN_CUT_OFF && kw >= 2)
                 break;
-            float g2 = gaussian(kwidth - 0.5f, kernelRadius);
-            float g3 = gaussian(kwidth + 0.5f, kernelRadius);
-            kernel[kwidth] = (g1 + g2 + g3) / 3f
-                    / (2f * (float) Math.PI * kernelRadius * kernelRadius);
-            diffKernel[kwidth] = g3 - g2;
+            float g2 = gaussian(kw - 0.5f, kernelRadius);
+            float g3 = gaussian(kw + 0.5f, kernelRadius);
+            kernel[kw] = (g1 + g2 + g3) / 3f / (2f * (float) Math.PI * kernelRadius * kernelRadius);
+            diffKernel[kw] = g3 - g2;
         }
-
-        int initX = kwidth - 1;
-        int maxX = width - (kwidth - 1);
-        int initY = width * (kwidth - 1);
-        int maxY = width * (height - (kwidth - 1));
-
-        // perform convolution in x and y directions
-        for( int x = initX; x < maxX; x++ ) {
-            for( int y = initY; y < maxY; y += width ) {
-                int index = x + y;
-                float sumX = data[index] * kernel[0];
-                float sumY = sumX;
-                int xOffset = 1;
-                int yOffset = width;
-                for( ; xOffset < kwidth; ) {
-                    sumY += kernel[xOffset] * (data[index - yOffset] + data[index + yOffset]);
-                    sumX += kernel[xOffset] * (data[index - xOffset] + data[index + xOffset]);
-                    yOffset += width;
-                    xOffset++;
+        final int kwidth = kw;
+
+        final int bandRows = ThreadedBands.getBandLines(height, threads);
+        final int bandsNum = ThreadedBands.getBandsNum(height, bandRows);
+
+        // perform convolution in x and y directions, the buffers of the band are cleared first
+        ThreadedBands.runBands(bandsNum, threads, null, null, new Band(){
+            public void run( int b ) {
+                int fromRow = b * bandRows;
+                int toRow = Math.min(height, fromRow + bandRows);
+                int from = fromRow * width;
+                int to = toRow * width;
+                Arrays.fill(xConv, from, to, 0f);
+                Arrays.fill(yConv, from, to, 0f);
+                Arrays.fill(xGradient, from, to, 0f);
+                Arrays.fill(yGradient, from, to, 0f);
+                Arrays.fill(gradMagnitude, from, to, 0f);
+                Arrays.fill(magnitude, from, to, 0);
+
+                int initX = kwidth - 1;
+                int maxX = width - (kwidth - 1);
+                for( int y = Math.max(fromRow, kwidth - 1); y < Math.min(toRow, height - (kwidth - 1)); y++ ) {
+                    for( int x = initX; x < maxX; x++ ) {
+                        int index = x + y * width;
+                        float sumX = data[index] * kernel[0];
+                        float sumY = sumX;
+                        int xOffset = 1;
+                        int yOffset = width;
+                        for( ; xOffset < kwidth; ) {
+                            sumY += kernel[xOffset] * (data[index - yOffset] + data[index + yOffset]);
+                            sumX += kernel[xOffset] * (data[index - xOffset] + data[index + xOffset]);
+                            yOffset += width;
+                            xOffset++;
+                        }
+
+                        yConv[index] = sumY;
+                        xConv[index] = sumX;
+                    }
                 }
-
-                yConv[index] = sumY;
-                xConv[index] = sumX;
-            }
-
-        }
-
-        for( int x = initX; x < maxX; x++ ) {
-            for( int y = initY; y < maxY; y += width ) {
-                float sum = 0f;
-                int index = x + y;
-                for( int i = 1; i < kwidth; i++ )
-                    sum += diffKernel[i] * (yConv[index - i] - yConv[index + i]);
-
-                xGradient[index] = sum;
             }
-
-        }
-
-        for( int x = kwidth; x < width - kwidth; x++ ) {
-            for( int y = initY; y < maxY; y += width ) {
-                float sum = 0.0f;
-                int index = x + y;
-                int yOffset = width;
-                for( int i = 1; i < kwidth; i++ ) {
-                    sum += diffKernel[i] * (xConv[index - yOffset] - xConv[index + yOffset]);
-                    yOffset += width;
+        });
+
+        // the gradients and their magnitude
+        ThreadedBands.runBands(bandsNum, threads, null, null, new Band(){
+            public void run( int b ) {
+                int fromRow = b * bandRows;
+                int toRow = Math.min(height, fromRow + bandRows);
+                int initX = kwidth - 1;
+                int maxX = width - (kwidth - 1);
+                for( int y = Math.max(fromRow, kwidth - 1); y < Math.min(toRow, height - (kwidth - 1)); y++ ) {
+                    for( int x = initX; x < maxX; x++ ) {
+                        float sum = 0f;
+                        int index = x + y * width;
+                        for( int i = 1; i < kwidth; i++ )
+                            sum += diffKernel[i] * (yConv[index - i] - yConv[index + i]);
+
+                        xGradient[index] = sum;
+                    }
+
+                    for( int x = kwidth; x < width - kwidth; x++ ) {
+                        float sum = 0.0f;
+                        int index = x + y * width;
+                        int yOffset = width;
+                        for( int i = 1; i < kwidth; i++ ) {
+                            sum += diffKernel[i] * (xConv[index - yOffset] - xConv[index + yOffset]);
+                            yOffset += width;
+                        }
+
+                        yGradient[index] = sum;
+                    }
+
+                    for( int x = initX; x < maxX; x++ ) {
+                        int index = x + y * width;
+                        gradMagnitude[index] = hypot(xGradient[index], yGradient[index]);
+                    }
                 }
-
-                yGradient[index] = sum;
             }
-
-        }
-
-        initX = kwidth;
-        maxX = width - kwidth;
-        initY = width * kwidth;
-        maxY = width * (height - kwidth);
-        for( int x = initX; x < maxX; x++ ) {
-            for( int y = initY; y < maxY; y += width ) {
-                int index = x + y;
-                int indexN = index - width;
-                int indexS = index + width;
-                int indexW = index - 1;
-                int indexE = index + 1;
-                int indexNW = indexN - 1;
-                int indexNE = indexN + 1;
-                int indexSW = indexS - 1;
-                int indexSE = indexS + 1;
-
-                float xGrad = xGradient[index];
-                float yGrad = yGradient[index];
-                float gradMag = hypot(xGrad, yGrad);
-
-                // perform non-maximal supression
-                float nMag = hypot(xGradient[indexN], yGradient[indexN]);
-                float sMag = hypot(xGradient[indexS], yGradient[indexS]);
-                float wMag = hypot(xGradient[indexW], yGradient[indexW]);
-                float eMag = hypot(xGradient[indexE], yGradient[indexE]);
-                float neMag = hypot(xGradient[indexNE], yGradient[indexNE]);
-                float seMag = hypot(xGradient[indexSE], yGradient[indexSE]);
-                float swMag = hypot(xGradient[indexSW], yGradient[indexSW]);
-                float nwMag = hypot(xGradient[indexNW], yGradient[indexNW]);
-                float tmp;
-                /*
-                 * An explanation of what's happening here, for those who want
-                 * to understand the source: This performs the "non-maximal
-                 * supression" phase of the Canny edge detection in which we
-                 * need to compare the gradient magnitude to that in the
-                 * direction of the gradient; only if the value is a local
-                 * maximum do we consider the point as an edge candidate.
-                 * 
-                 * We need to break the comparison into a number of different
-                 * cases depending on the gradient direction so that the
-                 * appropriate values can be used. To avoid computing the
-                 * gradient direction, we use two simple comparisons: first we
-                 * check that the partial derivatives have the same sign (1)
-                 * and then we check which is larger (2). As a consequence, we
-                 * have reduced the problem to one of four identical cases that
-                 * each test the central gradient magnitude against the values at
-                 * two points with 'identical support'; what this means is that
-                 * the geometry required to accurately interpolate the magnitude
-                 * of gradient function at those points has an identical
-                 * geometry (upto right-angled-rotation/reflection).
-                 * 
-                 * When comparing the central gradient to the two interpolated
-                 * values, we avoid performing any divisions by multiplying both
-                 * sides of each inequality by the greater of the two partial
-                 * derivatives. The common comparand is stored in a temporary
-                 * variable (3) and reused in the mirror case (4).
-                 * 
-                 */
-                if (xGrad * yGrad <= (float) 0 /*(1)*/
-                ? Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
-                ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad)
-                        * eMag) /*(3)*/
-                        && tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag) /*(4)*/
-                : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad)
-                        * nMag) /*(3)*/
-                        && tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag) /*(4)*/
-                : Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
-                ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad)
-                        * eMag) /*(3)*/
-                        && tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag) /*(4)*/
-                : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad)
-                        * sMag) /*(3)*/
-                        && tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag) /*(4)*/
-                ) {
-                    magnitude[index] = gradMag >= MAGNITUDE_LIMIT
-                            ? MAGNITUDE_MAX
-                            : (int) (MAGNITUDE_SCALE * gradMag);
-                    // NOTE: The orientation of the edge is not employed by this
-                    // implementation. It is a simple matter to compute it at
-                    // this point as: Math.atan2(yGrad, xGrad);
-                } else {
-                    magnitude[index] = 0;
+        });
+
+        // perform non-maximal supression
+        ThreadedBands.runBands(bandsNum, threads, null, null, new Band(){
+            public void run( int b ) {
+                int fromRow = b * bandRows;
+                int toRow = Math.min(height, fromRow + bandRows);
+                for( int y = Math.max(fromRow, kwidth); y < Math.min(toRow, height - kwidth); y++ ) {
+                    for( int x = kwidth; x < width - kwidth; x++ ) {
+                        suppressNonMaximum(x + y * width);
+                    }
                 }
             }
+        });
+    }
+
+    private void suppressNonMaximum( int index ) {
+        int indexN = index - width;
+        int indexS = index + width;
+        int indexW = index - 1;
+        int indexE = index + 1;
+        int indexNW = indexN - 1;
+        int indexNE = indexN + 1;
+        int indexSW = indexS - 1;
+        int indexSE = indexS + 1;
+
+        float xGrad = xGradient[index];
+        float yGrad = yGradient[index];
+        float gradMag = gradMagnitude[index];
+
+        float nMag = gradMagnitude[indexN];
+        float sMag = gradMagnitude[indexS];
+        float wMag = gradMagnitude[indexW];
+        float eMag = gradMagnitude[indexE];
+        float neMag = gradMagnitude[indexNE];
+        float seMag = gradMagnitude[indexSE];
+        float swMag = gradMagnitude[indexSW];
+        float nwMag = gradMagnitude[indexNW];
+        float tmp;
+        /*
+         * An explanation of what's happening here, for those who want
+         * to understand the source: This performs the "non-maximal
+         * supression" phase of the Canny edge detection in which we
+         * need to compare the gradient magnitude to that in the
+         * direction of the gradient; only if the value is a local
+         * maximum do we consider the point as an edge candidate.
+         * 
+         * We need to break the comparison into a number of different
+         * cases depending on the gradient direction so that the
+         * appropriate values can be used. To avoid computing the
+         * gradient direction, we use two simple comparisons: first we
+         * check that the partial derivatives have the same sign (1)
+         * and then we check which is larger (2). As a consequence, we
+         * have reduced the problem to one of four identical cases that
+         * each test the central gradient magnitude against the values at
+         * two points with 'identical support'; what this means is that
+         * the geometry required to accurately interpolate the magnitude
+         * of gradient function at those points has an identical
+         * geometry (upto right-angled-rotation/reflection).
+         * 
+         * When comparing the central gradient to the two interpolated
+         * values, we avoid performing any divisions by multiplying both
+         * sides of each inequality by the greater of the two partial
+         * derivatives. The common comparand is stored in a temporary
+         * variable (3) and reused in the mirror case (4).
+         * 
+         */
+        if (xGrad * yGrad <= (float) 0 /*(1)*/
+        ? Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
+        ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad)
+                * eMag) /*(3)*/
+                && tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag) /*(4)*/
+        : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad)
+                * nMag) /*(3)*/
+                && tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag) /*(4)*/
+        : Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
+        ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad)
+                * eMag) /*(3)*/
+                && tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag) /*(4)*/
+        : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad)
+                * sMag) /*(3)*/
+                && tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag) /*(4)*/
+        ) {
+            magnitude[index] = gradMag >= MAGNITUDE_LIMIT
+                    ? MAGNITUDE_MAX
+                    : (int) (MAGNITUDE_SCALE * gradMag);
+            // NOTE: The orientation of the edge is not employed by this
+            // implementation. It is a simple matter to compute it at
+            // this point as: Math.atan2(yGrad, xGrad);
+        } else {
+            magnitude[index] = 0;
         }
     }
 
@@ -503,32 +586,47 @@ public class Canny {
         // luminance data from the image, and edge intensity from the processing.
         // This is done for memory efficiency, other implementations may wish
         // to separate these functions.
-        Arrays.fill(data, 0);
+        Arrays.fill(data, 0, picsize, 0);
 
+        // cells without gradient are never edges
+        low = Math.max(low, 1);
+        high = Math.max(high, 1);
         int offset = 0;
-        for( int x = 0; x < width; x++ ) {
-            for( int y = 0; y < height; y++ ) {
+        for( int y = 0; y < height; y++ ) {
+            for( int x = 0; x < width; x++ ) {
                 if (data[offset] == 0 && magnitude[offset] >= high) {
-                    follow(x, y, offset, low);
+                    follow(offset, low);
                 }
                 offset++;
             }
         }
     }
 
-    private void follow( int x1, int y1, int i1, int threshold ) {
-        int x0 = x1 == 0 ? x1 : x1 - 1;
-        int x2 = x1 == width - 1 ? x1 : x1 + 1;
-        int y0 = y1 == 0 ? y1 : y1 - 1;
-        int y2 = y1 == height - 1 ? y1 : y1 + 1;
-
+    /**
+     * Mark the cells connected to an edge cell that are above the threshold,
+     * using an explicit stack of cell indexes.
+     */
+    private void follow( int i1, int threshold ) {
+        int[] stack = buffers.stack;
+        int size = 0;
         data[i1] = magnitude[i1];
-        for( int x = x0; x <= x2; x++ ) {
+        stack[size++] = i1;
+        while( size > 0 ) {
+            int i = stack[--size];
+            int x1 = i % width;
+            int y1 = i / width;
+            int x0 = x1 == 0 ? x1 : x1 - 1;
+            int x2 = x1 == width - 1 ? x1 : x1 + 1;
+            int y0 = y1 == 0 ? y1 : y1 - 1;
+            int y2 = y1 == height - 1 ? y1 : y1 + 1;
             for( int y = y0; y <= y2; y++ ) {
-                int i2 = x + y * width;
-                if ((y != y1 || x != x1) && data[i2] == 0 && magnitude[i2] >= threshold) {
-                    follow(x, y, i2, threshold);
-                    return;
+                for( int x = x0; x <= x2; x++ ) {
+                    int i2 = x + y * width;
+                    if (data[i2] == 0 && magnitude[i2] >= threshold) {
+                        // a cell is pushed only once, so the stack never exceeds the image
+                        data[i2] = magnitude[i2];
+                        stack[size++] = i2;
+                    }
                 }
             }
         }
@@ -556,7 +654,7 @@ public class Canny {
 
     private void normalizeContrast() {
         int[] histogram = new int[256];
-        for( int i = 0; i < data.length; i++ ) {
+        for( int i = 0; i < picsize; i++ ) {
             histogram[data[i]]++;
         }
         int[] remap = new int[256];
@@ -571,7 +669,7 @@ public class Canny {
             j = target;
         }
 
-        for( int i = 0; i < data.length; i++ ) {
+        for( int i = 0; i < picsize; i++ ) {
             data[i] = remap[data[i]];
         }
     }
@@ -585,20 +683,29 @@ public class Canny {
     }
 
     public WritableRaster getMagnitudeRaster() {
+        checkBuffers();
         magnitudeRaster = createDoubleWritableRaster(width, height, magnitude);
         return magnitudeRaster;
     }
 
     public WritableRaster getXgradRaster() {
+        checkBuffers();
         xgradRaster = createDoubleWritableRaster(width, height, xGradient);
         return xgradRaster;
     }
 
     public WritableRaster getYgradRaster() {
+        checkBuffers();
         ygradRaster = createDoubleWritableRaster(width, height, yGradient);
         return ygradRaster;
     }
 
+    private void checkBuffers() {
+        if (buffers == null || buffers.generation != buffersGeneration) {
+            throw new IllegalStateException("The buffers of the detection have been reused by another detection.");
+        }
+    }
+
     private WritableRaster createEdgesRaster( int width, int height, int[] pixels ) {
         int dataType = DataBuffer.TYPE_DOUBLE;
         ComponentSampleModel sampleModel = new ComponentSampleModel(dataType, width, height, 1,
@@ -652,6 +759,38 @@ public class Canny {
         return raster;
     }
 
+    /**
+     * The working arrays of a detection, grown as needed and never shrunk, which
+     * is why only the ones up to {@link #MAX_CACHED_CELLS} are kept per thread.
+     */
+    private static class Buffers {
+        /**
+         * Incremented by every detection that uses the buffers.
+         */
+        private int generation;
+        private int[] data = new int[0];
+        private int[] magnitude = new int[0];
+        private float[] xConv = new float[0];
+        private float[] yConv = new float[0];
+        private float[] xGradient = new float[0];
+        private float[] yGradient = new float[0];
+        private float[] gradMagnitude = new float[0];
+        private int[] stack = new int[0];
+
+        private void ensureSize( int size ) {
+            if (data.length < size) {
+                data = new int[size];
+                magnitude = new int[size];
+                xConv = new float[size];
+                yConv = new float[size];
+                xGradient = new float[size];
+                yGradient = new float[size];
+                gradMagnitude = new float[size];
+                stack = new int[size];
+            }
+        }
+    }
+
     // public static void main( String[] args ) throws IOException {
     // // String fname =
     // // "D:\\data\\serviziogeologico\\bacini_montani\\tests\\canny-example-source.jpg";
@@ -82,6 +82,7 @@ public class OmsCannyEdgeDetector extends JGTModel {
 
         final RenderedImage renderedImage = inMap.getRenderedImage();
         Canny canny = new Canny(pLowthres, pHighthres, pRadiusgauss, pWidthgauss, doNormcontrast, renderedImage);
+        canny.setThreads(getDefaultThreadsNum());
         pm.beginTask("Processing edgedetection...", -1);
         canny.process();
         pm.done();
@@ -14,9 +14,6 @@ import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 
 import javax.media.jai.KernelJAI;
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
-import javax.media.jai.iterator.WritableRandomIter;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -37,6 +34,7 @@ import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine;
 
 @Description("A Kernel based filter.")
 @Author(name = "Andrea Antonello, Silvia Franceschi", contact = "www.hydrologis.com")
@@ -75,34 +73,31 @@ public class OmsKernelFilter extends JGTModel {
         ValueType type = getKernelType(pKernel);
 
         KernelJAI kernel = KernelFactory.createCircle(pRadius, type);
+        float[] kernelData = kernel.getKernelData();
+        double[] weights = new double[kernelData.length];
+        for( int i = 0; i < weights.length; i++ ) {
+            weights[i] = kernelData[i];
+        }
 
         RenderedImage inImg = inRaster.getRenderedImage();
-        RandomIter inIter = RandomIterFactory.create(inImg, null);
-
-        WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, JGTConstants.doubleNovalue);
-        WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
-
-        float[] kernelData = kernel.getKernelData();
-        pm.beginTask("Processing...", cols - 2 * pRadius);
-        for( int c = pRadius; c < cols - pRadius; c++ ) {
-            for( int r = pRadius; r < rows - pRadius; r++ ) {
-                double kernelSum = 0.0;
-                int k = 0;
-                double outputValue = 0.0;
-                for( int kc = -pRadius; kc <= pRadius; kc++ ) {
-                    for( int kr = -pRadius; kr <= pRadius; kr++, k++ ) {
-                        double value = inIter.getSampleDouble(c + kc, r + kr, 0);
-                        if (!isNovalue(value)) {
-                            outputValue = outputValue + value * kernelData[k];
-                            kernelSum = kernelSum + kernelData[k];
-                        }
-                    }
+        double[] values = inImg.getData().getSamples(inImg.getMinX(), inImg.getMinY(), cols, rows, 0,
+                (double[]) null);
+
+        NeighbourhoodEngine engine = new NeighbourhoodEngine(values, cols, rows, getDefaultThreadsNum(), pm);
+        double[] filtered = engine.convolve(new NeighbourhoodEngine.Kernel(weights, kernel.getWidth(), kernel.getHeight(), kernel
+                .getXOrigin(), kernel.getYOrigin()));
+
+        // the cells nearer than the radius to the border are not filtered
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                if (c < pRadius || c >= cols - pRadius || r < pRadius || r >= rows - pRadius) {
+                    filtered[r * cols + c] = JGTConstants.doubleNovalue;
                 }
-                outIter.setSample(c, r, 0, outputValue / kernelSum);
             }
-            pm.worked(1);
         }
-        pm.done();
+
+        WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
+        outWR.setSamples(0, 0, cols, rows, 0, filtered);
 
         outRaster = CoverageUtilities.buildCoverage("filtered", outWR, regionMap, inRaster.getCoordinateReferenceSystem());
     }
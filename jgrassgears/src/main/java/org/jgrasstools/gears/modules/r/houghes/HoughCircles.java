@@ -59,7 +59,6 @@ public class HoughCircles {
     public int offy; // ROI y offset
     private int vectorMaxSize = 500;
     boolean useThreshold = false;
-    int lut[][][]; // LookUp Table for rsin e rcos values
     private BufferedImage raster;
 
     public static void main( String[] args ) throws Exception {
@@ -99,7 +98,7 @@ public class HoughCircles {
         // }
     }
 
-    public void run() {
+    public void run() throws Exception {
         offx = 0;
         offy = 0;
         width = raster.getWidth();
@@ -117,7 +116,8 @@ public class HoughCircles {
         }
         renderedImageIterator.done();
 
-        double[][][] houghValues = houghTransform();
+        HoughCirclesEngine engine = new HoughCirclesEngine(imageValues, width, height, radiusMin, radiusMax, radiusInc);
+        engine.accumulate(1, null);
 
         // Create image View for Hough Transform.
         // ImageProcessor newip = new ByteProcessor(width, height);
@@ -132,8 +132,8 @@ public class HoughCircles {
         // if (useThreshold)
         // getCenterPointsByThreshold(threshold);
         // else
-        Coordinate[] centerPoints = getCenterPoints(houghValues, maxCircles);
-        // drawCircles(houghValues, circlespixels);
+        Coordinate[] centerPoints = engine.getCenterPoints(maxCircles);
+        // drawCircles(centerPoints, circlespixels);
 
         Graphics2D g2d = (Graphics2D) raster.getGraphics();
         g2d.setColor(Color.red);
@@ -144,93 +144,8 @@ public class HoughCircles {
         }
     }
 
-    /** The parametric equation for a circle centered at (a,b) with
-        radius r is:
-
-    a = x - r*cos(theta)
-    b = y - r*sin(theta)
-
-    In order to speed calculations, we first construct a lookup
-    table (lut) containing the rcos(theta) and rsin(theta) values, for
-    theta varying from 0 to 2*PI with increments equal to
-    1/8*r. As of now, a fixed increment is being used for all
-    different radius (1/8*radiusMin). This should be corrected in
-    the future.
-
-    Return value = Number of angles for each radius
-       
-    */
-    private int buildLookUpTable() {
-
-        int i = 0;
-        int incDen = Math.round(8F * radiusMin); // increment denominator
-
-        lut = new int[2][incDen][depth];
-
-        for( int radius = radiusMin; radius <= radiusMax; radius = radius + radiusInc ) {
-            i = 0;
-            for( int incNun = 0; incNun < incDen; incNun++ ) {
-                double angle = (2 * Math.PI * (double) incNun) / (double) incDen;
-                int indexR = (radius - radiusMin) / radiusInc;
-                int rcos = (int) Math.round((double) radius * Math.cos(angle));
-                int rsin = (int) Math.round((double) radius * Math.sin(angle));
-                if ((i == 0) | (rcos != lut[0][i][indexR]) & (rsin != lut[1][i][indexR])) {
-                    lut[0][i][indexR] = rcos;
-                    lut[1][i][indexR] = rsin;
-                    i++;
-                }
-            }
-        }
-
-        return i;
-    }
-
-    private double[][][] houghTransform() {
-        int lutSize = buildLookUpTable();
-        double[][][] houghValues = new double[width][height][depth];
-        int k = width - 1;
-        int l = height - 1;
-
-        for( int y = 1; y < l; y++ ) {
-            for( int x = 1; x < k; x++ ) {
-                for( int radius = radiusMin; radius <= radiusMax; radius = radius + radiusInc ) {
-                    if (imageValues[(x + offx) + (y + offy) * offset] != 0) {// Edge pixel found
-                        int indexR = (radius - radiusMin) / radiusInc;
-                        for( int i = 0; i < lutSize; i++ ) {
-                            int a = x + lut[1][i][indexR];
-                            int b = y + lut[0][i][indexR];
-                            if ((b >= 0) & (b < height) & (a >= 0) & (a < width)) {
-                                houghValues[a][b][indexR] += 1;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-
-        return houghValues;
-
-    }
-
-    // Convert Values in Hough Space to an 8-Bit Image Space.
-    private void createHoughPixels( double[][][] houghValues, byte houghPixels[] ) {
-        double d = -1D;
-        for( int j = 0; j < height; j++ ) {
-            for( int k = 0; k < width; k++ ) {
-                if (houghValues[k][j][0] > d) {
-                    d = houghValues[k][j][0];
-                }
-            }
-        }
-        for( int l = 0; l < height; l++ ) {
-            for( int i = 0; i < width; i++ ) {
-                houghPixels[i + l * width] = (byte) Math.round((houghValues[i][l][0] * 255D) / d);
-            }
-        }
-    }
-
     // Draw the circles found in the original image.
-    public void drawCircles( double[][][] houghValues, byte[] circlespixels ) {
+    public void drawCircles( Coordinate[] centerPoints, byte[] circlespixels ) {
 
         // Copy original input pixels into output
         // circle location display image and
@@ -259,19 +174,13 @@ public class HoughCircles {
         // else
         // circlespixels[i] = 0;
         // }
-        // if (centerPoints == null) {
-        // if (useThreshold)
-        // getCenterPointsByThreshold(threshold);
-        // else
-        Coordinate[] centerPoints = getCenterPoints(houghValues, maxCircles);
-        // }
         byte cor = -1;
         // Redefine these so refer to ROI coordinates exclusively
         int offset = width;
         int offx = 0;
         int offy = 0;
 
-        for( int l = 0; l < maxCircles; l++ ) {
+        for( int l = 0; l < centerPoints.length; l++ ) {
             int i = (int) centerPoints[l].x;
             int j = (int) centerPoints[l].y;
             // Draw a gray cross marking the center of each circle.
@@ -307,43 +216,6 @@ public class HoughCircles {
         return (false);
     }
 
-    /** Search for a fixed number of circles.
-
-    @param maxCircles The number of circles that should be found.  
-     * @param houghValues 
-    */
-    private Coordinate[] getCenterPoints( double[][][] houghValues, int maxCircles ) {
-
-        Coordinate[] centerPoints = new Coordinate[maxCircles];
-        int xMax = 0;
-        int yMax = 0;
-        int rMax = 0;
-
-        for( int c = 0; c < maxCircles; c++ ) {
-            double counterMax = -1;
-            for( int radius = radiusMin; radius <= radiusMax; radius = radius + radiusInc ) {
-
-                int indexR = (radius - radiusMin) / radiusInc;
-                for( int y = 0; y < height; y++ ) {
-                    for( int x = 0; x < width; x++ ) {
-                        if (houghValues[x][y][indexR] > counterMax) {
-                            counterMax = houghValues[x][y][indexR];
-                            xMax = x;
-                            yMax = y;
-                            rMax = radius;
-                        }
-                    }
-
-                }
-            }
-
-            centerPoints[c] = new Coordinate(xMax, yMax, rMax);
-
-            clearNeighbours(houghValues, xMax, yMax, rMax);
-        }
-        return centerPoints;
-    }
-
     /** Search circles having values in the hough space higher than a threshold
 
     @param threshold The threshold used to select the higher point of Hough Space
@@ -379,44 +251,4 @@ public class HoughCircles {
     // maxCircles = countCircles;
     // }
 
-    /** Clear, from the Hough Space, all the counter that are near (radius/2) a previously found circle C.
-        
-    @param x The x coordinate of the circle C found.
-    @param x The y coordinate of the circle C found.
-    @param x The radius of the circle C found.
-    */
-    private void clearNeighbours( double[][][] houghValues, int x, int y, int radius ) {
-
-        // The following code just clean the points around the center of the circle found.
-
-        double halfRadius = radius / 2.0F;
-        double halfSquared = halfRadius * halfRadius;
-
-        int y1 = (int) Math.floor((double) y - halfRadius);
-        int y2 = (int) Math.ceil((double) y + halfRadius) + 1;
-        int x1 = (int) Math.floor((double) x - halfRadius);
-        int x2 = (int) Math.ceil((double) x + halfRadius) + 1;
-
-        if (y1 < 0)
-            y1 = 0;
-        if (y2 > height)
-            y2 = height;
-        if (x1 < 0)
-            x1 = 0;
-        if (x2 > width)
-            x2 = width;
-
-        for( int r = radiusMin; r <= radiusMax; r = r + radiusInc ) {
-            int indexR = (r - radiusMin) / radiusInc;
-            for( int i = y1; i < y2; i++ ) {
-                for( int j = x1; j < x2; j++ ) {
-                    if (Math.pow(j - x, 2D) + Math.pow(i - y, 2D) < halfSquared) {
-                        houghValues[j][i][indexR] = 0.0D;
-                    }
-                }
-            }
-        }
-
-    }
-
 }
@@ -0,0 +1,288 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.houghes;
+
+import java.util.Arrays;
+
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.PartialBand;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Hough transform for circles, one radius at a time.
+ *
+ * <p>Every edge cell votes for the centers of the circles of a radius that pass
+ * through it, using the integer offsets of the circle precomputed for the radius.
+ * The votes of a radius are collected in a single slice, after which only the best
+ * vote of every cell and its radius are kept, so that the memory does not depend on
+ * the number of radii. The radii are spread over several threads, each with its own
+ * slice and best votes, which are merged at the end.</p>
+ *
+ * <p>The circles are then extracted by decreasing votes, clearing the centers closer
+ * than half a radius to the circles already found. On equal votes the smaller radius
+ * comes first, then the cell order by rows.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class HoughCirclesEngine {
+
+    private final byte[] edges;
+    private final int width;
+    private final int height;
+    private final int radiusMin;
+    private final int radiusInc;
+    private final int depth;
+
+    private int[] votes;
+    private int[] radii;
+
+    /**
+     * Constructor.
+     *
+     * @param edges the edge cells by rows, different from 0 for edges.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param radiusMin the min radius to look for, in cells.
+     * @param radiusMax the max radius to look for, in cells.
+     * @param radiusInc the radius increment, in cells.
+     */
+    public HoughCirclesEngine( byte[] edges, int width, int height, int radiusMin, int radiusMax, int radiusInc ) {
+        this.edges = edges;
+        this.width = width;
+        this.height = height;
+        this.radiusMin = radiusMin;
+        this.radiusInc = radiusInc;
+        depth = ((radiusMax - radiusMin) / radiusInc) + 1;
+    }
+
+    /**
+     * Collect the votes of all the radii.
+     *
+     * @param threads the number of threads to use.
+     * @param pm the monitor, which receives a worked unit per radius.
+     * @throws Exception
+     */
+    public void accumulate( int threads, IJGTProgressMonitor pm ) throws Exception {
+        // the edge cells, the border is left out
+        int edgesNum = 0;
+        for( int y = 1; y < height - 1; y++ ) {
+            for( int x = 1; x < width - 1; x++ ) {
+                if (edges[x + y * width] != 0) {
+                    edgesNum++;
+                }
+            }
+        }
+        final int[] edgeX = new int[edgesNum];
+        final int[] edgeY = new int[edgesNum];
+        int index = 0;
+        for( int y = 1; y < height - 1; y++ ) {
+            for( int x = 1; x < width - 1; x++ ) {
+                if (edges[x + y * width] != 0) {
+                    edgeX[index] = x;
+                    edgeY[index] = y;
+                    index++;
+                }
+            }
+        }
+
+        threads = ThreadedBands.getThreadsNum(depth, threads);
+        final int[][] partialVotes = new int[threads][];
+        final int[][] partialRadii = new int[threads][];
+        final int[][] slices = new int[threads][];
+        for( int t = 0; t < threads; t++ ) {
+            partialVotes[t] = new int[width * height];
+            partialRadii[t] = new int[width * height];
+        }
+        // a band per radius, so a cancel request is seen after every radius
+        ThreadedBands.runBands(depth, threads, "Hough transform...", pm, new PartialBand(){
+            public void run( int indexR, int t ) {
+                // each thread gets its radii in increasing order
+                int[] threadVotes = partialVotes[t];
+                int[] threadRadii = partialRadii[t];
+                if (slices[t] == null) {
+                    slices[t] = new int[width * height];
+                }
+                int[] slice = slices[t];
+                int[] offsets = circleOffsets(radiusMin + indexR * radiusInc);
+                for( int e = 0; e < edgeX.length; e++ ) {
+                    int x = edgeX[e];
+                    int y = edgeY[e];
+                    for( int i = 0; i < offsets.length; i = i + 2 ) {
+                        int a = x + offsets[i];
+                        int b = y + offsets[i + 1];
+                        if (b >= 0 && b < height && a >= 0 && a < width) {
+                            slice[a + b * width]++;
+                        }
+                    }
+                }
+                for( int i = 0; i < slice.length; i++ ) {
+                    if (slice[i] > threadVotes[i]) {
+                        threadVotes[i] = slice[i];
+                        threadRadii[i] = indexR;
+                    }
+                    slice[i] = 0;
+                }
+            }
+        });
+
+        votes = partialVotes[0];
+        radii = partialRadii[0];
+        for( int t = 1; t < threads; t++ ) {
+            int[] threadVotes = partialVotes[t];
+            int[] threadRadii = partialRadii[t];
+            for( int i = 0; i < votes.length; i++ ) {
+                if (threadVotes[i] > votes[i] || (threadVotes[i] == votes[i] && threadRadii[i] < radii[i])) {
+                    votes[i] = threadVotes[i];
+                    radii[i] = threadRadii[i];
+                }
+            }
+            partialVotes[t] = null;
+            partialRadii[t] = null;
+        }
+    }
+
+    /**
+     * Get the distinct integer offsets of the cells of a circle.
+     *
+     * @param radius the radius of the circle.
+     * @return the offsets as x, y pairs.
+     */
+    static int[] circleOffsets( int radius ) {
+        int anglesNum = Math.max(1, 8 * radius);
+        int size = 2 * radius + 1;
+        boolean[] used = new boolean[size * size];
+        int[] offsets = new int[anglesNum * 2];
+        int count = 0;
+        for( int i = 0; i < anglesNum; i++ ) {
+            double angle = 2 * Math.PI * i / anglesNum;
+            int dx = (int) Math.round(radius * Math.cos(angle));
+            int dy = (int) Math.round(radius * Math.sin(angle));
+            int cell = (dx + radius) + (dy + radius) * size;
+            if (!used[cell]) {
+                used[cell] = true;
+                offsets[count++] = dx;
+                offsets[count++] = dy;
+            }
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Search the circles with the most votes.
+     *
+     * <p>Must be called after {@link #accumulate(int, IJGTProgressMonitor)}. Cells
+     * without votes are never circle centers, so less circles than asked
+     * can be returned.</p>
+     *
+     * @param maxCircles the max number of circles to find.
+     * @return the circles as center cell x, y and radius.
+     */
+    public Coordinate[] getCenterPoints( int maxCircles ) {
+        // a max heap of the voted cells
+        int size = 0;
+        for( int i = 0; i < votes.length; i++ ) {
+            if (votes[i] > 0) {
+                size++;
+            }
+        }
+        int[] heap = new int[size];
+        size = 0;
+        for( int i = 0; i < votes.length; i++ ) {
+            if (votes[i] > 0) {
+                heap[size++] = i;
+            }
+        }
+        for( int i = size / 2 - 1; i >= 0; i-- ) {
+            siftDown(heap, i, size);
+        }
+
+        boolean[] cleared = new boolean[votes.length];
+        Coordinate[] centerPoints = new Coordinate[maxCircles];
+        int found = 0;
+        while( found < maxCircles && size > 0 ) {
+            int best = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, 0, size);
+            if (cleared[best]) {
+                continue;
+            }
+            int x = best % width;
+            int y = best / width;
+            int radius = radiusMin + radii[best] * radiusInc;
+            centerPoints[found++] = new Coordinate(x, y, radius);
+            clearNeighbours(cleared, x, y, radius);
+        }
+        return Arrays.copyOf(centerPoints, found);
+    }
+
+    /**
+     * Whether a cell comes before another one in the heap.
+     */
+    private boolean before( int cell1, int cell2 ) {
+        if (votes[cell1] != votes[cell2]) {
+            return votes[cell1] > votes[cell2];
+        }
+        if (radii[cell1] != radii[cell2]) {
+            return radii[cell1] < radii[cell2];
+        }
+        return cell1 < cell2;
+    }
+
+    private void siftDown( int[] heap, int i, int size ) {
+        int cell = heap[i];
+        while( true ) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], cell)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = cell;
+    }
+
+    /**
+     * Clear the centers that are nearer than half the radius to a circle found.
+     */
+    private void clearNeighbours( boolean[] cleared, int x, int y, int radius ) {
+        double halfRadius = radius / 2.0;
+        double halfSquared = halfRadius * halfRadius;
+
+        int y1 = Math.max(0, (int) Math.floor(y - halfRadius));
+        int y2 = Math.min(height, (int) Math.ceil(y + halfRadius) + 1);
+        int x1 = Math.max(0, (int) Math.floor(x - halfRadius));
+        int x2 = Math.min(width, (int) Math.ceil(x + halfRadius) + 1);
+        for( int i = y1; i < y2; i++ ) {
+            for( int j = x1; j < x2; j++ ) {
+                double dx = j - x;
+                double dy = i - y;
+                if (dx * dx + dy * dy < halfSquared) {
+                    cleared[j + i * width] = true;
+                }
+            }
+        }
+    }
+}
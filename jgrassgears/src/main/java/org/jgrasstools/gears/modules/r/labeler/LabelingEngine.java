@@ -0,0 +1,301 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.labeler;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.util.Arrays;
+
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.Band;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Two pass connected components labeling of the valid cells of a raster.
+ *
+ * <p>The raster is split in bands of rows that are labeled by several threads. In the
+ * first pass every cell gets a provisional label, equivalent labels being joined
+ * in a union-find forest on an int array, with path compression. The seams between
+ * the bands are then merged and the second pass replaces the provisional labels with
+ * the final ones.</p>
+ *
+ * <p>A provisional label is the index of the cell that created it and joined labels
+ * always keep the smaller one, so the final labels are numbered from 1 in the order
+ * in which the components are met scanning the raster by rows. Novalues get the
+ * label 0.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LabelingEngine {
+
+    private final int cols;
+    private final int rows;
+    private final int threads;
+    private final IJGTProgressMonitor pm;
+
+    private int labelsNum;
+    private int[] areas;
+    private int[] minCols;
+    private int[] maxCols;
+    private int[] minRows;
+    private int[] maxRows;
+
+    /**
+     * Constructor.
+     *
+     * @param cols the number of columns of the raster.
+     * @param rows the number of rows of the raster.
+     * @param threads the number of threads to use.
+     * @param pm the monitor.
+     */
+    public LabelingEngine( int cols, int rows, int threads, IJGTProgressMonitor pm ) {
+        this.cols = cols;
+        this.rows = rows;
+        this.threads = threads;
+        this.pm = pm;
+    }
+
+    /**
+     * Label the connected valid cells.
+     *
+     * @param data the raster values by rows, novalues are not labeled.
+     * @param diagonal if <code>true</code>, cells are connected also through their
+     *          corners (8 connectivity), else only through their sides (4 connectivity).
+     * @return the labels by rows.
+     * @throws Exception
+     */
+    public int[] label( final double[] data, final boolean diagonal ) throws Exception {
+        final int[] labels = new int[cols * rows];
+        // the provisional label of a cell is its index + 1
+        final int[] parents = new int[cols * rows + 1];
+
+        final int bandRows = ThreadedBands.getBandLines(rows, threads);
+        final int bandsNum = ThreadedBands.getBandsNum(rows, bandRows);
+
+        // first pass, every band on its own
+        ThreadedBands.runBands(bandsNum, threads, "Labeling...", pm, new Band(){
+            public void run( int b ) {
+                int fromRow = b * bandRows;
+                int toRow = Math.min(rows, fromRow + bandRows);
+                for( int r = fromRow; r < toRow; r++ ) {
+                    for( int c = 0; c < cols; c++ ) {
+                        int i = r * cols + c;
+                        if (isNovalue(data[i])) {
+                            continue;
+                        }
+                        int label = 0;
+                        if (c > 0) {
+                            label = join(parents, label, labels[i - 1]);
+                        }
+                        if (r > fromRow) {
+                            int up = i - cols;
+                            label = join(parents, label, labels[up]);
+                            if (diagonal) {
+                                if (c > 0) {
+                                    label = join(parents, label, labels[up - 1]);
+                                }
+                                if (c < cols - 1) {
+                                    label = join(parents, label, labels[up + 1]);
+                                }
+                            }
+                        }
+                        if (label == 0) {
+                            label = i + 1;
+                            parents[label] = label;
+                        }
+                        labels[i] = label;
+                    }
+                }
+            }
+        });
+
+        // merge the seams between the bands
+        for( int b = 1; b < bandsNum; b++ ) {
+            int r = b * bandRows;
+            for( int c = 0; c < cols; c++ ) {
+                int i = r * cols + c;
+                if (labels[i] == 0) {
+                    continue;
+                }
+                int up = i - cols;
+                join(parents, labels[i], labels[up]);
+                if (diagonal) {
+                    if (c > 0) {
+                        join(parents, labels[i], labels[up - 1]);
+                    }
+                    if (c < cols - 1) {
+                        join(parents, labels[i], labels[up + 1]);
+                    }
+                }
+            }
+        }
+
+        // resolve the roots, the forest is only read from now on
+        final int[] bandRoots = new int[bandsNum];
+        ThreadedBands.runBands(bandsNum, threads, "Resolving labels...", pm, new Band(){
+            public void run( int b ) {
+                int from = b * bandRows * cols;
+                int to = Math.min(rows, (b + 1) * bandRows) * cols;
+                int roots = 0;
+                for( int i = from; i < to; i++ ) {
+                    int label = labels[i];
+                    if (label == 0) {
+                        continue;
+                    }
+                    int root = find(parents, label);
+                    labels[i] = root;
+                    if (root == i + 1) {
+                        roots++;
+                    }
+                }
+                bandRoots[b] = roots;
+            }
+        });
+
+        // number the roots in scan order
+        final int[] bandOffsets = new int[bandsNum];
+        int offset = 0;
+        for( int b = 0; b < bandsNum; b++ ) {
+            bandOffsets[b] = offset;
+            offset += bandRoots[b];
+        }
+        labelsNum = offset;
+        ThreadedBands.runBands(bandsNum, threads, "Numbering labels...", pm, new Band(){
+            public void run( int b ) {
+                int from = b * bandRows * cols;
+                int to = Math.min(rows, (b + 1) * bandRows) * cols;
+                int number = bandOffsets[b];
+                for( int i = from; i < to; i++ ) {
+                    if (labels[i] == i + 1) {
+                        parents[i + 1] = ++number;
+                    }
+                }
+            }
+        });
+        ThreadedBands.runBands(bandsNum, threads, "Assigning labels...", pm, new Band(){
+            public void run( int b ) {
+                int from = b * bandRows * cols;
+                int to = Math.min(rows, (b + 1) * bandRows) * cols;
+                for( int i = from; i < to; i++ ) {
+                    int label = labels[i];
+                    if (label != 0) {
+                        labels[i] = parents[label];
+                    }
+                }
+            }
+        });
+
+        collectStatistics(labels);
+        return labels;
+    }
+
+    /**
+     * Join two provisional labels.
+     *
+     * @return the root of the joined labels, the other label if one is 0.
+     */
+    private static int join( int[] parents, int label1, int label2 ) {
+        if (label1 == 0) {
+            return label2 == 0 ? 0 : findAndCompress(parents, label2);
+        }
+        if (label2 == 0) {
+            return findAndCompress(parents, label1);
+        }
+        int root1 = findAndCompress(parents, label1);
+        int root2 = findAndCompress(parents, label2);
+        if (root1 < root2) {
+            parents[root2] = root1;
+            return root1;
+        }
+        parents[root1] = root2;
+        return root2;
+    }
+
+    private static int find( int[] parents, int label ) {
+        int root = label;
+        while( parents[root] != root ) {
+            root = parents[root];
+        }
+        return root;
+    }
+
+    private static int findAndCompress( int[] parents, int label ) {
+        int root = find(parents, label);
+        while( parents[label] != root ) {
+            int next = parents[label];
+            parents[label] = root;
+            label = next;
+        }
+        return root;
+    }
+
+    private void collectStatistics( int[] labels ) {
+        areas = new int[labelsNum + 1];
+        minCols = new int[labelsNum + 1];
+        maxCols = new int[labelsNum + 1];
+        minRows = new int[labelsNum + 1];
+        maxRows = new int[labelsNum + 1];
+        Arrays.fill(minCols, Integer.MAX_VALUE);
+        Arrays.fill(maxCols, -1);
+        Arrays.fill(minRows, Integer.MAX_VALUE);
+        Arrays.fill(maxRows, -1);
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                int label = labels[r * cols + c];
+                if (label == 0) {
+                    continue;
+                }
+                areas[label]++;
+                if (c < minCols[label]) {
+                    minCols[label] = c;
+                }
+                if (c > maxCols[label]) {
+                    maxCols[label] = c;
+                }
+                if (r < minRows[label]) {
+                    minRows[label] = r;
+                }
+                maxRows[label] = r;
+            }
+        }
+    }
+
+    /**
+     * @return the number of labels of the last labeling.
+     */
+    public int getLabelsNum() {
+        return labelsNum;
+    }
+
+    /**
+     * @param label the label, from 1 to {@link #getLabelsNum()}.
+     * @return the number of cells with the label.
+     */
+    public int getArea( int label ) {
+        return areas[label];
+    }
+
+    /**
+     * @param label the label, from 1 to {@link #getLabelsNum()}.
+     * @return the bounding box of the cells with the label as
+     *          [minCol, minRow, maxCol, maxRow], bounds included.
+     */
+    public int[] getBounds( int label ) {
+        return new int[]{minCols[label], minRows[label], maxCols[label], maxRows[label]};
+    }
+}
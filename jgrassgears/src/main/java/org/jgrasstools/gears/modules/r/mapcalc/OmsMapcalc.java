@@ -29,16 +29,24 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSMAPCALC_STATUS;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMAPCALC_IN_RASTERS_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMAPCALC_OUT_RASTER_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMAPCALC_P_FUNCTION_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSMAPCALC_P_TILE_SIZE_DESCRIPTION;
 
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRenderedImage;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Documentation;
@@ -64,6 +72,8 @@ import org.jaitools.jiffle.runtime.JiffleProgressListener;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.PartialBand;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -86,6 +96,10 @@ public class OmsMapcalc extends JGTModel {
     @In
     public String pFunction;
 
+    @Description(OMSMAPCALC_P_TILE_SIZE_DESCRIPTION)
+    @In
+    public int pTileSize = 512;
+
     @Description(OMSMAPCALC_OUT_RASTER_DESCRIPTION)
     @Out
     public GridCoverage2D outRaster = null;
@@ -96,6 +110,8 @@ public class OmsMapcalc extends JGTModel {
 
     private Rectangle2D worldBounds;
 
+    private CoordinateTransform jiffleCRS;
+
     private long updateInterval;
     private long totalCount = 100;
 
@@ -112,35 +128,30 @@ public class OmsMapcalc extends JGTModel {
         Jiffle jiffle = new Jiffle();
         jiffle.setScript(script);
         jiffle.compile();
-        JiffleDirectRuntime jiffleRuntime = jiffle.getRuntimeInstance();
-
-        CoordinateTransform jiffleCRS = null;
-
-        // gather maps
-        for( GridCoverage2D mapGC : inRasters ) {
-            if (regionParameters == null) {
-                regionParameters = CoverageUtilities.getRegionParamsFromGridCoverage(mapGC);
-                crs = mapGC.getCoordinateReferenceSystem();
-
-                worldBounds = mapGC.getEnvelope2D().getBounds2D();
-                Rectangle gridBounds = mapGC.getGridGeometry().getGridRange2D().getBounds();
-
-                jiffleCRS = getTransform(worldBounds, gridBounds);
 
-                double xRes = regionParameters.get(CoverageUtilities.XRES).doubleValue();
-                double yRes = regionParameters.get(CoverageUtilities.YRES).doubleValue();
-                jiffleRuntime.setWorldByResolution(worldBounds, xRes, yRes);
-            }
-            RenderedImage renderedImage = mapGC.getRenderedImage();
-            // add map
-            String name = mapGC.getName().toString();
-            jiffleRuntime.setSourceImage(name, renderedImage, jiffleCRS);
+        // the region is taken from the first map
+        if (inRasters != null && inRasters.size() > 0) {
+            GridCoverage2D mapGC = inRasters.get(0);
+            regionParameters = CoverageUtilities.getRegionParamsFromGridCoverage(mapGC);
+            crs = mapGC.getCoordinateReferenceSystem();
+            worldBounds = mapGC.getEnvelope2D().getBounds2D();
+            Rectangle gridBounds = mapGC.getGridGeometry().getGridRange2D().getBounds();
+            jiffleCRS = getTransform(worldBounds, gridBounds);
         }
         if (regionParameters == null) {
             throw new ModelsIllegalargumentException("No map has been supplied.", this.getClass().getSimpleName(), pm);
         }
         int nCols = regionParameters.get(CoverageUtilities.COLS).intValue();
         int nRows = regionParameters.get(CoverageUtilities.ROWS).intValue();
+
+        JiffleDirectRuntime jiffleRuntime = createRuntime(jiffle);
+        String destName = jiffleRuntime.getDestinationVarNames()[0];
+        if (pTileSize > 0) {
+            RenderedImage destImage = processTiled(jiffle, jiffleRuntime, destName, nCols, nRows);
+            outRaster = CoverageUtilities.buildCoverage(destName, destImage, regionParameters, crs);
+            return;
+        }
+
         long pixelsNum = (long) nCols * nRows;
 
         if (pixelsNum < totalCount) {
@@ -148,7 +159,6 @@ public class OmsMapcalc extends JGTModel {
         }
         updateInterval = pixelsNum / totalCount;
 
-        String destName = jiffleRuntime.getDestinationVarNames()[0];
         WritableRenderedImage destImg = ImageUtils.createConstantImage(nCols, nRows, 0d);
         jiffleRuntime.setDestinationImage(destName, destImg, jiffleCRS);
 
@@ -201,6 +211,80 @@ public class OmsMapcalc extends JGTModel {
         executor.shutdown();
     }
 
+    /**
+     * Create a runtime of the compiled script with the world and the source maps set.
+     */
+    private JiffleDirectRuntime createRuntime( Jiffle jiffle ) throws Exception {
+        JiffleDirectRuntime jiffleRuntime = jiffle.getRuntimeInstance();
+        double xRes = regionParameters.get(CoverageUtilities.XRES).doubleValue();
+        double yRes = regionParameters.get(CoverageUtilities.YRES).doubleValue();
+        jiffleRuntime.setWorldByResolution(worldBounds, xRes, yRes);
+        for( GridCoverage2D mapGC : inRasters ) {
+            RenderedImage renderedImage = mapGC.getRenderedImage();
+            // add map
+            String name = mapGC.getName().toString();
+            jiffleRuntime.setSourceImage(name, renderedImage, jiffleCRS);
+        }
+        return jiffleRuntime;
+    }
+
+    /**
+     * Evaluate the script on the tiles of a tiled destination image in parallel.
+     * 
+     * <p>Each worker gets its own runtime of the compiled script and evaluates whole
+     * tiles of the destination, which are disjoint, so no locking is needed. The 
+     * source maps are read through the runtimes, so neighbourhood references 
+     * reach beyond the tile bounds.</p>
+     */
+    private RenderedImage processTiled( Jiffle jiffle, JiffleDirectRuntime firstRuntime, String destName, final int nCols,
+            final int nRows ) throws Exception {
+        final int tileSize = Math.min(pTileSize, Math.max(nCols, nRows));
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(DataBuffer.TYPE_DOUBLE, tileSize, tileSize,
+                1);
+        ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        TiledImage destImg = new TiledImage(0, 0, nCols, nRows, 0, 0, sampleModel, colorModel);
+
+        final int tileCols = destImg.getNumXTiles();
+        final int tileRows = destImg.getNumYTiles();
+        final int tilesNum = tileCols * tileRows;
+        // create the tiles up front, the workers then only write into them
+        for( int ty = 0; ty < tileRows; ty++ ) {
+            for( int tx = 0; tx < tileCols; tx++ ) {
+                destImg.getWritableTile(tx, ty);
+                destImg.releaseWritableTile(tx, ty);
+            }
+        }
+
+        int threads = ThreadedBands.getThreadsNum(tilesNum, getDefaultThreadsNum());
+        final double minX = worldBounds.getMinX();
+        final double minY = worldBounds.getMinY();
+        final double xRes = regionParameters.get(CoverageUtilities.XRES).doubleValue();
+        final double yRes = regionParameters.get(CoverageUtilities.YRES).doubleValue();
+        final JiffleDirectRuntime[] runtimes = new JiffleDirectRuntime[threads];
+        for( int t = 0; t < threads; t++ ) {
+            runtimes[t] = t == 0 ? firstRuntime : createRuntime(jiffle);
+            runtimes[t].setDestinationImage(destName, destImg, jiffleCRS);
+        }
+
+        ThreadedBands.runBands(tilesNum, threads, "Processing maps...", pm, new PartialBand(){
+            public void run( int tile, int t ) throws Exception {
+                JiffleDirectRuntime runtime = runtimes[t];
+                int fromCol = (tile % tileCols) * tileSize;
+                int fromRow = (tile / tileCols) * tileSize;
+                int toCol = Math.min(nCols, fromCol + tileSize);
+                int toRow = Math.min(nRows, fromRow + tileSize);
+                for( int r = fromRow; r < toRow; r++ ) {
+                    // same world positions as the runtime uses in evaluateAll
+                    double y = minY + r * yRes;
+                    for( int c = fromCol; c < toCol; c++ ) {
+                        runtime.evaluate(minX + c * xRes, y);
+                    }
+                }
+            }
+        });
+        return destImg;
+    }
+
     private static CoordinateTransform getTransform( Rectangle2D worldBounds, Rectangle imageBounds ) {
         if (worldBounds == null || worldBounds.isEmpty()) {
             throw new IllegalArgumentException("worldBounds must not be null or empty");
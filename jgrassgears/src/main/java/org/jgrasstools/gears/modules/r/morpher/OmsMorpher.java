@@ -48,13 +48,13 @@ import oms3.annotations.UI;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
-import org.jgrasstools.gears.libs.modules.GridNode;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.modules.utils.BinaryFast;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine;
 
 @Description("Mophologic binary operations")
 @Author(name = "Simon Horne, Andrea Antonello", contact = "http://homepages.inf.ed.ac.uk/rbf/HIPR2/, www.hydrologis.com")
@@ -142,70 +142,39 @@ public class OmsMorpher extends JGTModel {
     /**
      * Morphologically dilates an input raster by a given kernel. 
      * 
+     * <p>The novalue cells get the max of the valid cells in the kernel, the valid
+     * cells are kept.</p>
+     * 
      * @param inWR the input raster.
      * @param regionMap the {@link RegionMap}.
      * @param outWR the raster to modify.
      * @param kernelArray the kernel to use.
-     * @param binary if <code>true</code>, binary mode is used.
+     * @param binary if <code>true</code>, binary mode is used. Since the max of the 
+     *          valid cells is taken, the result is the same in both modes.
      * @param pm 
      */
     public static void dilate( WritableRaster inWR, RegionMap regionMap, WritableRaster outWR, int[] kernelArray, boolean binary,
             IJGTProgressMonitor pm ) {
         int cols = regionMap.getCols();
         int rows = regionMap.getRows();
-        double xres = regionMap.getXres();
-        double yres = regionMap.getYres();
-
-        WritableRandomIter inIter = RandomIterFactory.createWritable(inWR, null);
-        WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
-
-        int[][] kernel = MorpherHelp.getSquareKernelMatrix(kernelArray);
 
-        pm.beginTask("Perform dilation...", cols);
-        for( int c = 0; c < cols; c++ ) {
-            for( int r = 0; r < rows; r++ ) {
-                GridNode node = new GridNode(inIter, cols, rows, xres, yres, c, r);
-                if (!node.isValid()) {
-                    double[][] nodeNeighbours = node.getWindow(kernel.length, false);
-                    // apply the kernel
-                    boolean set = false;
-                    boolean doBreak = false;
-                    double max = Double.NEGATIVE_INFINITY;
-                    for( int kr = 0; kr < kernel.length; kr++ ) {
-                        for( int kc = 0; kc < kernel[0].length; kc++ ) {
-                            if (kernel[kr][kc] == 1) {
-                                // valid kernel value
-                                if (!isNovalue(nodeNeighbours[kr][kc]) && nodeNeighbours[kr][kc] > max) {
-                                    max = nodeNeighbours[kr][kc];
-                                    set = true;
-                                    if (binary) {
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                        if (doBreak) {
-                            break;
-                        }
-                    }
-                    if (set) {
-                        node.setValueInMap(outIter, max);
-                    } else {
-                        node.setValueInMap(outIter, JGTConstants.doubleNovalue);
-                    }
-                    continue;
-                } else {
-                    node.setValueInMap(outIter, node.elevation);
-                }
+        double[] values = inWR.getSamples(0, 0, cols, rows, 0, (double[]) null);
+        NeighbourhoodEngine engine = new NeighbourhoodEngine(values, cols, rows, getDefaultThreadsNum(), pm);
+        double[] max = engine.max(toKernel(kernelArray), false);
+        for( int i = 0; i < values.length; i++ ) {
+            if (isNovalue(values[i])) {
+                values[i] = max[i];
             }
-            pm.worked(1);
         }
-        pm.done();
+        outWR.setSamples(0, 0, cols, rows, 0, values);
     }
 
     /**
      * Morphologically erodes an input raster by a given kernel. 
      * 
+     * <p>The valid cells get the min of the cells in the kernel, novalue if any of them
+     * is novalue or outside of the raster.</p>
+     * 
      * @param inWR the input raster.
      * @param regionMap the {@link RegionMap}.
      * @param outWR the raster to modify.
@@ -215,53 +184,25 @@ public class OmsMorpher extends JGTModel {
             IJGTProgressMonitor pm ) {
         int cols = regionMap.getCols();
         int rows = regionMap.getRows();
-        double xres = regionMap.getXres();
-        double yres = regionMap.getYres();
 
-        WritableRandomIter inIter = RandomIterFactory.createWritable(inWR, null);
-        WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
-
-        int[][] kernel = MorpherHelp.getSquareKernelMatrix(kernelArray);
-
-        pm.beginTask("Perform erosion...", cols);
-        for( int c = 0; c < cols; c++ ) {
-            for( int r = 0; r < rows; r++ ) {
-                GridNode node = new GridNode(inIter, cols, rows, xres, yres, c, r);
-                if (node.isValid()) {
-                    double[][] nodeNeighbours = node.getWindow(kernel.length, false);
-                    // apply the kernel
-                    boolean set = false;
-                    double min = Double.POSITIVE_INFINITY;
-                    for( int kr = 0; kr < kernel.length; kr++ ) {
-                        for( int kc = 0; kc < kernel[0].length; kc++ ) {
-                            if (kernel[kr][kc] == 1) {
-                                // valid kernel value
-                                if (isNovalue(nodeNeighbours[kr][kc])) {
-                                    // novalue is the absolute min
-                                    min = doubleNovalue;
-                                    set = true;
-                                    break;
-                                } else if (nodeNeighbours[kr][kc] < min) {
-                                    min = nodeNeighbours[kr][kc];
-                                    set = true;
-                                }
-                            }
-                        }
-                        if (isNovalue(min)) {
-                            break;
-                        }
-                    }
-                    if (set) {
-                        node.setValueInMap(outIter, min);
-                    } else {
-                        node.setValueInMap(outIter, node.elevation);
-                    }
-                    continue;
-                }
+        double[] values = inWR.getSamples(0, 0, cols, rows, 0, (double[]) null);
+        NeighbourhoodEngine engine = new NeighbourhoodEngine(values, cols, rows, getDefaultThreadsNum(), pm);
+        double[] min = engine.min(toKernel(kernelArray), true);
+        for( int i = 0; i < values.length; i++ ) {
+            if (!isNovalue(values[i])) {
+                values[i] = min[i];
             }
-            pm.worked(1);
         }
-        pm.done();
+        outWR.setSamples(0, 0, cols, rows, 0, values);
+    }
+
+    private static NeighbourhoodEngine.Kernel toKernel( int[] kernelArray ) {
+        int side = MorpherHelp.getSquareKernelSide(kernelArray);
+        double[] weights = new double[side * side];
+        for( int i = 0; i < weights.length; i++ ) {
+            weights[i] = kernelArray[i] == 1 ? 1.0 : 0.0;
+        }
+        return new NeighbourhoodEngine.Kernel(weights, side);
     }
 
     /**
@@ -0,0 +1,353 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.mosaic;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.EAST;
+import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.NORTH;
+import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.SOUTH;
+import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.WEST;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.jgrasstools.gears.io.rasterreader.OmsRasterReader;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.Band;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Engine that patches raster files with the same resolution into a single raster.
+ *
+ * <p>The bounds of the output are calculated from the headers of the files only.
+ * The output is a tiled image whose tiles are filled in parallel: each tile requests
+ * from the inputs only the part that falls into it, so the inputs are read once and
+ * by several threads. The inputs are opened when they are first needed and released
+ * as soon as the last tile they fall into has been filled. Since the tiles are filled
+ * row after row, only the inputs that cross the rows being filled are kept in memory.</p>
+ *
+ * <p>Where inputs overlap, the valid values are combined following an overlap rule,
+ * which considers the inputs in the order they are supplied.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class MosaicEngine {
+    /**
+     * Keep the value of the first input that has one.
+     */
+    public static final String FIRST = "first";
+    /**
+     * Keep the value of the last input that has one.
+     */
+    public static final String LAST = "last";
+    /**
+     * Average the values of the inputs.
+     */
+    public static final String MEAN = "mean";
+    /**
+     * Keep the min value of the inputs.
+     */
+    public static final String MIN = "min";
+    /**
+     * Keep the max value of the inputs.
+     */
+    public static final String MAX = "max";
+
+    private static final int TILE_SIZE = 512;
+
+    private final List<File> files;
+    private final String overlapRule;
+    private final IJGTProgressMonitor pm;
+
+    private final GridCoverage2D[] coverages;
+    private final Object[] locks;
+    /**
+     * The number of tiles of each input that still have to be filled.
+     */
+    private final AtomicInteger[] pendingTiles;
+    /**
+     * The bounds of the inputs in output pixels.
+     */
+    private final Rectangle[] placements;
+
+    private CoordinateReferenceSystem crs;
+    private int width;
+    private int height;
+    private double n;
+    private double s;
+    private double e;
+    private double w;
+
+    /**
+     * Constructor.
+     *
+     * @param files the files to patch, the first one gives the crs and the grid.
+     * @param overlapRule the overlap rule, one of {@link #FIRST}, {@link #LAST}, {@link #MEAN},
+     *              {@link #MIN}, {@link #MAX}.
+     * @param pm the monitor.
+     */
+    public MosaicEngine( List<File> files, String overlapRule, IJGTProgressMonitor pm ) {
+        if (!Arrays.asList(FIRST, LAST, MEAN, MIN, MAX).contains(overlapRule)) {
+            throw new IllegalArgumentException("Unknown overlap rule: " + overlapRule);
+        }
+        this.files = files;
+        this.overlapRule = overlapRule;
+        this.pm = pm;
+        coverages = new GridCoverage2D[files.size()];
+        locks = new Object[files.size()];
+        for( int i = 0; i < locks.length; i++ ) {
+            locks[i] = new Object();
+        }
+        placements = new Rectangle[files.size()];
+        pendingTiles = new AtomicInteger[files.size()];
+    }
+
+    /**
+     * Patch the files.
+     *
+     * @param threads the number of threads to use.
+     * @return the patched coverage.
+     * @throws Exception
+     */
+    public GridCoverage2D run( int threads ) throws Exception {
+        calculateBounds();
+
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(DataBuffer.TYPE_DOUBLE,
+                Math.min(TILE_SIZE, width), Math.min(TILE_SIZE, height), 1);
+        ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        final TiledImage outputImage = new TiledImage(0, 0, width, height, 0, 0, sampleModel, colorModel);
+        final int tileCols = outputImage.getNumXTiles();
+        final int tilesNum = tileCols * outputImage.getNumYTiles();
+        // create the tiles up front, the workers then only fill them
+        for( int i = 0; i < pendingTiles.length; i++ ) {
+            pendingTiles[i] = new AtomicInteger();
+        }
+        for( int tileY = 0; tileY < outputImage.getNumYTiles(); tileY++ ) {
+            for( int tileX = 0; tileX < tileCols; tileX++ ) {
+                WritableRaster tileRaster = outputImage.getWritableTile(tileX, tileY);
+                Rectangle tileBounds = tileRaster.getBounds();
+                outputImage.releaseWritableTile(tileX, tileY);
+                for( int i = 0; i < placements.length; i++ ) {
+                    if (intersects(i, tileBounds)) {
+                        pendingTiles[i].incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        try {
+            ThreadedBands.runBands(tilesNum, threads, "Patching maps...", pm, new Band(){
+                public void run( int tile ) throws Exception {
+                    int tileX = tile % tileCols;
+                    int tileY = tile / tileCols;
+                    WritableRaster tileRaster = outputImage.getWritableTile(tileX, tileY);
+                    Rectangle tileBounds = tileRaster.getBounds();
+                    try {
+                        fillTile(tileRaster);
+                    } finally {
+                        outputImage.releaseWritableTile(tileX, tileY);
+                    }
+                    releaseCoverages(tileBounds);
+                }
+            });
+        } finally {
+            // left over only if an error stopped the filling
+            for( int i = 0; i < coverages.length; i++ ) {
+                releaseCoverage(i);
+            }
+        }
+
+        HashMap<String, Double> envelopeParams = new HashMap<String, Double>();
+        envelopeParams.put(NORTH, n);
+        envelopeParams.put(SOUTH, s);
+        envelopeParams.put(WEST, w);
+        envelopeParams.put(EAST, e);
+        return CoverageUtilities.buildCoverage("patch", outputImage, envelopeParams, crs); //$NON-NLS-1$
+    }
+
+    /**
+     * Calculate the output bounds and the placement of the inputs from the headers.
+     */
+    private void calculateBounds() throws Exception {
+        GridGeometry2D referenceGridGeometry = null;
+        n = Double.NEGATIVE_INFINITY;
+        s = Double.POSITIVE_INFINITY;
+        e = Double.NEGATIVE_INFINITY;
+        w = Double.POSITIVE_INFINITY;
+        int np = Integer.MIN_VALUE;
+        int sp = Integer.MAX_VALUE;
+        int ep = Integer.MIN_VALUE;
+        int wp = Integer.MAX_VALUE;
+
+        pm.beginTask("Calculating final bounds...", files.size());
+        for( int i = 0; i < files.size(); i++ ) {
+            OmsRasterReader reader = new OmsRasterReader();
+            reader.file = files.get(i).getAbsolutePath();
+            reader.doEnvelope = true;
+            reader.process();
+            GeneralEnvelope envelope = reader.originalEnvelope;
+            GridEnvelope gridRange = reader.originalGridRange;
+
+            if (referenceGridGeometry == null) {
+                // take the first as reference
+                crs = envelope.getCoordinateReferenceSystem();
+                referenceGridGeometry = new GridGeometry2D(gridRange, envelope);
+            }
+
+            Envelope2D worldEnv = new Envelope2D(envelope);
+            GridEnvelope2D pixelEnv = referenceGridGeometry.worldToGrid(worldEnv);
+            placements[i] = new Rectangle((int) pixelEnv.getMinX(), (int) pixelEnv.getMinY(), gridRange.getSpan(0),
+                    gridRange.getSpan(1));
+
+            wp = Math.min(wp, (int) pixelEnv.getMinX());
+            sp = Math.min(sp, (int) pixelEnv.getMinY());
+            ep = Math.max(ep, (int) pixelEnv.getMaxX());
+            np = Math.max(np, (int) pixelEnv.getMaxY());
+
+            w = Math.min(w, worldEnv.getMinX());
+            s = Math.min(s, worldEnv.getMinY());
+            e = Math.max(e, worldEnv.getMaxX());
+            n = Math.max(n, worldEnv.getMaxY());
+            pm.worked(1);
+        }
+        pm.done();
+
+        width = ep - wp;
+        height = np - sp;
+        for( Rectangle placement : placements ) {
+            placement.translate(-wp, -sp);
+        }
+    }
+
+    private void fillTile( WritableRaster tileRaster ) throws Exception {
+        Rectangle tileBounds = tileRaster.getBounds();
+        int tileWidth = tileBounds.width;
+        double[] values = new double[tileWidth * tileBounds.height];
+        Arrays.fill(values, JGTConstants.doubleNovalue);
+        int[] counts = null;
+        if (overlapRule.equals(MEAN)) {
+            counts = new int[values.length];
+        }
+
+        for( int i = 0; i < placements.length; i++ ) {
+            if (!intersects(i, tileBounds)) {
+                continue;
+            }
+            Rectangle part = placements[i].intersection(tileBounds);
+            RenderedImage image = getCoverage(i).getRenderedImage();
+            Rectangle imagePart = new Rectangle(image.getMinX() + part.x - placements[i].x, image.getMinY() + part.y
+                    - placements[i].y, part.width, part.height);
+            Raster data = image.getData(imagePart);
+            double[] inValues = data.getSamples(imagePart.x, imagePart.y, part.width, part.height, 0, (double[]) null);
+
+            for( int r = 0; r < part.height; r++ ) {
+                int offset = (part.y - tileBounds.y + r) * tileWidth + part.x - tileBounds.x;
+                for( int c = 0; c < part.width; c++ ) {
+                    double value = inValues[r * part.width + c];
+                    if (isNovalue(value)) {
+                        continue;
+                    }
+                    int index = offset + c;
+                    double current = values[index];
+                    if (isNovalue(current)) {
+                        values[index] = value;
+                    } else if (overlapRule.equals(LAST)) {
+                        values[index] = value;
+                    } else if (overlapRule.equals(MEAN)) {
+                        values[index] = current + value;
+                    } else if (overlapRule.equals(MIN)) {
+                        values[index] = Math.min(current, value);
+                    } else if (overlapRule.equals(MAX)) {
+                        values[index] = Math.max(current, value);
+                    }
+                    if (counts != null) {
+                        counts[index]++;
+                    }
+                }
+            }
+        }
+        if (counts != null) {
+            for( int i = 0; i < values.length; i++ ) {
+                if (counts[i] > 1) {
+                    values[i] = values[i] / counts[i];
+                }
+            }
+        }
+        tileRaster.setSamples(tileBounds.x, tileBounds.y, tileBounds.width, tileBounds.height, 0, values);
+    }
+
+    private boolean intersects( int index, Rectangle tileBounds ) {
+        return !placements[index].intersection(tileBounds).isEmpty();
+    }
+
+    /**
+     * Release the inputs for which the tile was the last one to fill.
+     */
+    private void releaseCoverages( Rectangle tileBounds ) {
+        for( int i = 0; i < placements.length; i++ ) {
+            if (intersects(i, tileBounds) && pendingTiles[i].decrementAndGet() == 0) {
+                releaseCoverage(i);
+            }
+        }
+    }
+
+    private void releaseCoverage( int index ) {
+        synchronized (locks[index]) {
+            if (coverages[index] != null) {
+                coverages[index].dispose(true);
+                coverages[index] = null;
+            }
+        }
+    }
+
+    /**
+     * Get an input coverage, reading it the first time it is needed.
+     */
+    private GridCoverage2D getCoverage( int index ) throws Exception {
+        // one lock per input, so that different inputs are opened in parallel
+        synchronized (locks[index]) {
+            if (coverages[index] == null) {
+                coverages[index] = OmsRasterReader.readRaster(files.get(index).getAbsolutePath());
+            }
+            return coverages[index];
+        }
+    }
+}
@@ -40,8 +40,6 @@ import static org.jgrasstools.gears.libs.modules.Variables.BICUBIC;
 import static org.jgrasstools.gears.libs.modules.Variables.BILINEAR;
 import static org.jgrasstools.gears.libs.modules.Variables.NEAREST_NEIGHTBOUR;
 
-import javax.media.jai.Interpolation;
-
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Documentation;
@@ -57,12 +55,11 @@ import oms3.annotations.UI;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.coverage.processing.Operations;
 import org.geotools.referencing.CRS;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
-import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.WarpEngine;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 @Description(OMSRASTERREPROJECTOR_DESCRIPTION)
@@ -131,27 +128,17 @@ public class OmsRasterReprojector extends JGTModel {
 
         CoordinateReferenceSystem targetCrs = CRS.decode(pCode);
 
-        Interpolation interpolation = Interpolation.getInstance(Interpolation.INTERP_NEAREST);
-        if (pInterpolation.equals(BILINEAR)) {
-            interpolation = Interpolation.getInstance(Interpolation.INTERP_BILINEAR);
-        } else if (pInterpolation.equals(BICUBIC)) {
-            interpolation = Interpolation.getInstance(Interpolation.INTERP_BICUBIC);
-        }
-
         GridGeometry2D gridGeometry = null;
         if (pNorth != null && pSouth != null && pWest != null && pEast != null && pRows != null && pCols != null) {
             gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(pNorth, pSouth, pEast, pWest, pCols, pRows, targetCrs);
             pm.message("Using supplied gridgeometry: " + gridGeometry);
         }
-        pm.beginTask("Reprojecting...", IJGTProgressMonitor.UNKNOWN);
-
         if (gridGeometry == null) {
-            outRaster = (GridCoverage2D) Operations.DEFAULT.resample(inRaster, targetCrs, null, interpolation);
-        } else {
-            outRaster = (GridCoverage2D) Operations.DEFAULT.resample(inRaster, targetCrs, gridGeometry, interpolation);
+            gridGeometry = WarpEngine.getTransformedGridGeometry(inRaster, targetCrs);
         }
-        pm.done();
 
+        WarpEngine warpEngine = new WarpEngine(inRaster, gridGeometry, pInterpolation, pm);
+        outRaster = warpEngine.run(getDefaultThreadsNum());
     }
 
 }
@@ -42,7 +42,6 @@ import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.gridGeometr
 import static org.jgrasstools.gears.utils.geometry.GeometryUtilities.getGeometryType;
 
 import java.awt.image.WritableRaster;
-import java.text.MessageFormat;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -62,31 +61,24 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 import oms3.annotations.UI;
 
-import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.coverage.grid.InvalidGridGeometryException;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.geometry.DirectPosition2D;
-import org.jgrasstools.gears.libs.exceptions.ModelsIOException;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
-import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.gears.utils.geometry.PolygonScanConverter;
+import org.jgrasstools.gears.utils.geometry.PolygonScanConverter.SpanHandler;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.GeometryType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.TransformException;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
 
 @Description(OMSSCANLINERASTERIZER_DESCRIPTION)
 @Documentation(OMSSCANLINERASTERIZER_DOCUMENTATION)
@@ -154,12 +146,8 @@ public class OmsScanLineRasterizer extends JGTModel {
 
     private int width;
 
-    private GeometryFactory gf = GeometryUtilities.gf();
-
     private RegionMap paramsMap;
 
-    private double xRes;
-
     private RandomIter inIter;
 
     @Execute
@@ -200,7 +188,6 @@ public class OmsScanLineRasterizer extends JGTModel {
             paramsMap = gridGeometry2RegionParamsMap(pGrid);
             height = paramsMap.getRows();
             width = paramsMap.getCols();
-            xRes = paramsMap.getXres();
 
             outWR = CoverageUtilities.createDoubleWritableRaster(width, height, null, null, doubleNovalue);
         }
@@ -221,13 +208,14 @@ public class OmsScanLineRasterizer extends JGTModel {
                 .getCoordinateReferenceSystem());
 
     }
-    private void rasterizepolygon( final GridGeometry2D gridGeometry ) throws InvalidGridGeometryException, TransformException {
+    private void rasterizepolygon( final GridGeometry2D gridGeometry ) {
 
         int size = inVector.size();
         pm.beginTask("Rasterizing features...", size);
         FeatureIterator<SimpleFeature> featureIterator = inVector.features();
 
         ExecutorService fixedThreadPool = Executors.newFixedThreadPool(getDefaultThreadsNum());
+        final PolygonScanConverter converter = new PolygonScanConverter(gridGeometry);
 
         while( featureIterator.hasNext() ) {
             final SimpleFeature feature = featureIterator.next();
@@ -240,73 +228,23 @@ public class OmsScanLineRasterizer extends JGTModel {
                 tmpValue = pValue;
             }
             final double value = tmpValue;
-            final double delta = xRes / 4.0;
 
             Runnable runner = new Runnable(){
                 public void run() {
                     try {
                         Geometry geometry = (Geometry) feature.getDefaultGeometry();
-                        int numGeometries = geometry.getNumGeometries();
-                        for( int i = 0; i < numGeometries; i++ ) {
-                            final Geometry geometryN = geometry.getGeometryN(i);
-                            // PreparedGeometry preparedGeometryN =
-                            // PreparedGeometryFactory.prepare(geometryN);
-                            for( int r = 0; r < height; r++ ) {
-                                // do scan line to fill the polygon
-                                double[] westPos = gridGeometry.gridToWorld(new GridCoordinates2D(0, r)).getCoordinate();
-                                double[] eastPos = gridGeometry.gridToWorld(new GridCoordinates2D(width - 1, r)).getCoordinate();
-                                Coordinate west = new Coordinate(westPos[0], westPos[1]);
-                                Coordinate east = new Coordinate(eastPos[0], eastPos[1]);
-                                LineString line = gf.createLineString(new Coordinate[]{west, east});
-                                if (geometryN.intersects(line)) {
-                                    Geometry internalLines = geometryN.intersection(line);
-                                    int lineNums = internalLines.getNumGeometries();
-                                    for( int l = 0; l < lineNums; l++ ) {
-                                        Coordinate[] coords = internalLines.getGeometryN(l).getCoordinates();
-                                        if (coords.length == 2) {
-                                            for( int j = 0; j < coords.length; j = j + 2 ) {
-                                                Coordinate startC = new Coordinate(coords[j].x + delta, coords[j].y);
-                                                Coordinate endC = new Coordinate(coords[j + 1].x - delta, coords[j + 1].y);
-
-                                                DirectPosition2D startDP;
-                                                DirectPosition2D endDP;
-                                                if (startC.x < endC.x) {
-                                                    startDP = new DirectPosition2D(startC.x, startC.x);
-                                                    endDP = new DirectPosition2D(endC.x, endC.x);
-                                                } else {
-                                                    startDP = new DirectPosition2D(endC.x, endC.x);
-                                                    endDP = new DirectPosition2D(startC.x, startC.x);
-                                                }
-                                                GridCoordinates2D startGridCoord = gridGeometry.worldToGrid(startDP);
-                                                GridCoordinates2D endGridCoord = gridGeometry.worldToGrid(endDP);
-
-                                                /*
-                                                 * the part in between has to be filled
-                                                 */
-                                                for( int k = startGridCoord.x; k <= endGridCoord.x; k++ ) {
-                                                    if (inIter != null && fCat == null) {
-                                                        double v = inIter.getSampleDouble(k, r, 0);
-                                                        outWR.setSample(k, r, 0, v);
-                                                    } else {
-                                                        outWR.setSample(k, r, 0, value);
-                                                    }
-                                                }
-                                            }
-                                        } else {
-                                            if (coords.length == 1) {
-                                                pm.errorMessage(MessageFormat.format("Found a cusp in: {0}/{1}", coords[0].x,
-                                                        coords[0].y));
-                                            } else {
-                                                throw new ModelsIOException(MessageFormat.format(
-                                                        "Found intersection with more than 2 points in: {0}/{1}", coords[0].x,
-                                                        coords[0].y), this);
-                                            }
-                                        }
+                        converter.scan(geometry, new SpanHandler(){
+                            public void span( int r, int fromCol, int toCol ) {
+                                for( int k = fromCol; k <= toCol; k++ ) {
+                                    if (inIter != null && fCat == null) {
+                                        double v = inIter.getSampleDouble(k, r, 0);
+                                        outWR.setSample(k, r, 0, v);
+                                    } else {
+                                        outWR.setSample(k, r, 0, value);
                                     }
-
                                 }
                             }
-                        }
+                        });
 
                         pm.worked(1);
                     } catch (Exception e) {
@@ -38,11 +38,6 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSRASTERSUMMARY_OUT_SUM_
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSRASTERSUMMARY_P_BINS_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
-import java.util.List;
-
-import javax.media.jai.JAI;
-import javax.media.jai.ParameterBlockJAI;
-import javax.media.jai.RenderedOp;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -57,12 +52,9 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.jaitools.media.jai.zonalstats.Result;
-import org.jaitools.media.jai.zonalstats.ZonalStats;
-import org.jaitools.media.jai.zonalstats.ZonalStatsDescriptor;
-import org.jaitools.numeric.Statistic;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.modules.r.summary.ZonalStatistics.Spans;
 import org.jgrasstools.gears.utils.math.CoupledFieldsMoments;
 
 @Description(OMSRASTERSUMMARY_DESCRIPTION)
@@ -115,57 +107,32 @@ public class OmsRasterSummary extends JGTModel {
     @Out
     public double[][] outCb = null;
 
-    private Statistic[] stats;
-
     @Execute
     public void process() throws Exception {
         if (!concatOr(outMin == null, doReset)) {
             return;
         }
 
-        // TODO use the geotools bridge instead of jaitools:
-        // http://svn.osgeo.org/geotools/trunk/modules/library/coverage/src/test/java/org/geotools/coverage/processing/operation/ZonalStasTest.java
-
+        // the whole raster as a single zone, a span per row
         RenderedImage inRI = inRaster.getRenderedImage();
-        ParameterBlockJAI pb = new ParameterBlockJAI("ZonalStats");
-        pb.setSource("dataImage", inRI);
-        // pb.setSource("zoneImage", null);
-
-        if (stats == null) {
-            stats = new Statistic[]{Statistic.MIN, Statistic.MAX, Statistic.MEAN, Statistic.SDEV, Statistic.RANGE, Statistic.SUM};
+        int minX = inRI.getMinX();
+        int maxX = minX + inRI.getWidth() - 1;
+        Spans spans = new Spans();
+        for( int r = inRI.getMinY(); r < inRI.getMinY() + inRI.getHeight(); r++ ) {
+            spans.add(0, r, minX, maxX);
         }
-        pb.setParameter("stats", stats);
-
-        RenderedOp op = JAI.create("ZonalStats", pb);
-
-        ZonalStats zonalStats = (ZonalStats) op.getProperty(ZonalStatsDescriptor.ZONAL_STATS_PROPERTY);
-        List<Result> results = zonalStats.results();
-        for( Result result : results ) {
-            Statistic statistic = result.getStatistic();
-            Double value = result.getValue();
-
-            switch( statistic ) {
-            case MIN:
-                outMin = value;
-                break;
-            case MAX:
-                outMax = value;
-                break;
-            case MEAN:
-                outMean = value;
-                break;
-            case SDEV:
-                outSdev = value;
-                break;
-            case RANGE:
-                outRange = value;
-                break;
-            case SUM:
-                outSum = value;
-                break;
-            default:
-                break;
-            }
+        ZonalStatistics stats = new ZonalStatistics(1);
+        stats.accumulate(inRI, spans, getDefaultThreadsNum(), pm);
+
+        if (stats.getCount(0) > 0) {
+            outMin = stats.getMin(0);
+            outMax = stats.getMax(0);
+            outMean = stats.getMean(0);
+            outSdev = stats.getCount(0) > 1 ? Math.sqrt(stats.getSampleVariance(0)) : 0.0;
+            outRange = outMax - outMin;
+            outSum = stats.getSum(0);
+        } else {
+            outMin = outMax = outMean = outSdev = outRange = outSum = Double.NaN;
         }
 
         if (!doHistogram)
@@ -200,7 +167,6 @@ public class OmsRasterSummary extends JGTModel {
         OmsRasterSummary summary = new OmsRasterSummary();
         summary.inRaster = raster;
         summary.doHistogram = false;
-        summary.stats = new Statistic[]{Statistic.MIN, Statistic.MAX};
         summary.process();
 
         double min = summary.outMin;
@@ -212,7 +178,6 @@ public class OmsRasterSummary extends JGTModel {
         OmsRasterSummary summary = new OmsRasterSummary();
         summary.inRaster = raster;
         summary.doHistogram = false;
-        summary.stats = new Statistic[]{Statistic.MIN, Statistic.MAX, Statistic.MEAN, Statistic.SUM};
         summary.process();
 
         double min = summary.outMin;
@@ -17,17 +17,11 @@
  */
 package org.jgrasstools.gears.modules.r.summary;
 
-import static java.lang.Math.abs;
-import static java.lang.Math.ceil;
-import static java.lang.Math.pow;
 import static java.lang.Math.sqrt;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_AUTHORCONTACTS;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_AUTHORNAMES;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
-import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
-import java.awt.geom.AffineTransform;
-import java.text.MessageFormat;
 import java.util.List;
 
 import javax.media.jai.iterator.RandomIter;
@@ -43,35 +37,27 @@ import oms3.annotations.Name;
 import oms3.annotations.Out;
 import oms3.annotations.Status;
 
-import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geometry.DirectPosition2D;
-import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.geotools.referencing.operation.matrix.XAffineTransform;
-import org.jgrasstools.gears.libs.exceptions.ModelsIOException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.PartialBand;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
-import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.modules.r.summary.ZonalStatistics.Spans;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
-import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.gears.utils.geometry.PolygonScanConverter;
+import org.jgrasstools.gears.utils.geometry.PolygonScanConverter.SpanHandler;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Polygon;
 
 @Description("Calculate zonal stats.")
@@ -139,22 +125,48 @@ public class OmsZonalStats extends JGTModel {
         SimpleFeatureBuilder featureBuilder = createFeatureBuilder(crs, hasUserTotalMean);
 
         outVector = new DefaultFeatureCollection();
-        List<Geometry> geometriesList = FeatureUtilities.featureCollectionToGeometriesList(inVector, true, null);
-
-        // pm.message("" + readEnvelope);
-        GridGeometry2D gridGeometry = inRaster.getGridGeometry();
-        RandomIter readIter = CoverageUtilities.getRandomIterator(inRaster);
-        pm.beginTask("Processing polygons...", geometriesList.size());
-        for( Geometry geometry : geometriesList ) {
-            double[] polygonStats = polygonStats(geometry, gridGeometry, readIter, hasUserTotalMean, tm_usertm_tactivecells,
-                    pPercentageThres, pm);
+        final List<Geometry> geometriesList = FeatureUtilities.featureCollectionToGeometriesList(inVector, true, null);
+        final int geometriesNum = geometriesList.size();
+        final PolygonScanConverter converter = new PolygonScanConverter(inRaster.getGridGeometry());
+
+        // scan the polygons into spans of cells
+        int threads = getDefaultThreadsNum();
+        int scanThreads = ThreadedBands.getThreadsNum(geometriesNum, threads);
+        final Spans[] threadSpans = new Spans[scanThreads];
+        for( int t = 0; t < scanThreads; t++ ) {
+            threadSpans[t] = new Spans();
+        }
+        ThreadedBands.runBands(geometriesNum, scanThreads, "Scanning polygons...", pm, new PartialBand(){
+            public void run( int i, int t ) throws Exception {
+                polygonSpans(converter, geometriesList.get(i), i, threadSpans[t]);
+            }
+        });
+        Spans spans = threadSpans[0];
+        for( int t = 1; t < scanThreads; t++ ) {
+            spans.addAll(threadSpans[t]);
+            threadSpans[t] = null;
+        }
+
+        // collect the stats of all the polygons in a single pass on the raster
+        ZonalStatistics stats = new ZonalStatistics(geometriesNum);
+        if (hasUserTotalMean) {
+            stats.setReferenceMean(pTotalMean);
+        }
+        stats.accumulate(inRaster.getRenderedImage(), spans, threads, pm);
+
+        for( int i = 0; i < geometriesNum; i++ ) {
+            if (!hasUserTotalMean) {
+                tm_usertm_tactivecells[0] = tm_usertm_tactivecells[0] + stats.getSum(i);
+                tm_usertm_tactivecells[2] = tm_usertm_tactivecells[2] + stats.getCount(i);
+            }
+            double[] polygonStats = zoneStats(stats, i, hasUserTotalMean, pPercentageThres);
             if (polygonStats == null) {
                 continue;
             }
 
             Object[] values;
             if (!hasUserTotalMean) {
-                values = new Object[]{geometry, //
+                values = new Object[]{geometriesList.get(i), //
                         polygonStats[0], //
                         polygonStats[1], //
                         polygonStats[2], //
@@ -164,7 +176,7 @@ public class OmsZonalStats extends JGTModel {
                         (int) polygonStats[6] //
                 };
             } else {
-                values = new Object[]{geometry, //
+                values = new Object[]{geometriesList.get(i), //
                         polygonStats[0], //
                         polygonStats[1], //
                         polygonStats[2], //
@@ -179,9 +191,7 @@ public class OmsZonalStats extends JGTModel {
             featureBuilder.addAll(values);
             SimpleFeature feature = featureBuilder.buildFeature(null);
             ((DefaultFeatureCollection) outVector).add(feature);
-            pm.worked(1);
         }
-        pm.done();
 
         if (!hasUserTotalMean) {
             tm_usertm_tactivecells[0] = tm_usertm_tactivecells[0] / tm_usertm_tactivecells[2];
@@ -200,133 +210,58 @@ public class OmsZonalStats extends JGTModel {
      *                      <li>totalActiveCells</li>
      *                  </ul>
      * @param percentageThres
-     * @param monitor an optional monitor. If <code>null</code> an exception
-     *          is thrown in case of cusps, else an errormessage is given, but
-     *          processing will go on ignoring the geometry.
+     * @param monitor an optional monitor.
      * @return
      * @throws Exception
      */
     public static double[] polygonStats( Geometry geometry, GridGeometry2D gridGeometry, RandomIter inIter,
             boolean hasUserTotalMean, double[] tm_utm_tac, double percentageThres, IJGTProgressMonitor monitor ) throws Exception {
-        GeometryFactory gf = GeometryUtilities.gf();
-        GridEnvelope2D gridRange = gridGeometry.getGridRange2D();
-        int rows = gridRange.height;
-        int cols = gridRange.width;
-        int startX = gridRange.x;
-        int startY = gridRange.y;
-        AffineTransform gridToCRS = (AffineTransform) gridGeometry.getGridToCRS();
-        double xRes = XAffineTransform.getScaleX0(gridToCRS);
-        double yRes = XAffineTransform.getScaleY0(gridToCRS);
-
-        final double delta = xRes / 4.0;
-        Envelope env = geometry.getEnvelopeInternal();
-        env.expandBy(xRes, yRes);
-        double geometryUpperBound = env.getMaxY();
-        double envArea = env.getWidth() * env.getHeight();
-        int maxCells = (int) ceil(envArea / (xRes * yRes));
-
-        int activeCellCount = 0;
-        int passiveCellCount = 0;
-        double min = Double.POSITIVE_INFINITY;
-        double max = Double.NEGATIVE_INFINITY;
-
-        MathTransform gridToCRS2 = gridGeometry.getGridToCRS();
-
-        double[] values = new double[maxCells];
-
-        LineString previousLine = null;
-        final Coordinate worldWestCoord = new Coordinate();
-        final Coordinate worldEastCoord = new Coordinate();
-        for( int r = startY; r < startY + rows; r++ ) {
-            // do scan line to fill the polygon
-            Coordinate gridWestCoord = new Coordinate(startX, r);
-            JTS.transform(gridWestCoord, worldWestCoord, gridToCRS2);
-            if (geometryUpperBound < worldWestCoord.y) {
-                continue;
-            }
-            Coordinate gridEastCoord = new Coordinate(startX + cols - 1, r);
-            JTS.transform(gridEastCoord, worldEastCoord, gridToCRS2);
-            LineString line = gf.createLineString(new Coordinate[]{worldWestCoord, worldEastCoord});
-            if (previousLine != null && previousLine.equals(line)) {
-                previousLine = line;
-                continue;
-            }
-            if (geometry.intersects(line)) {
-                Geometry internalLines = geometry.intersection(line);
-                int lineNums = internalLines.getNumGeometries();
-                for( int l = 0; l < lineNums; l++ ) {
-                    Coordinate[] coords = internalLines.getGeometryN(l).getCoordinates();
-                    if (coords.length == 2) {
-                        for( int j = 0; j < coords.length; j = j + 2 ) {
-                            Coordinate startC = new Coordinate(coords[j].x + delta, coords[j].y);
-                            Coordinate endC = new Coordinate(coords[j + 1].x - delta, coords[j + 1].y);
-
-                            DirectPosition2D startDP;
-                            DirectPosition2D endDP;
-                            if (startC.x < endC.x) {
-                                startDP = new DirectPosition2D(startC.x, startC.x);
-                                endDP = new DirectPosition2D(endC.x, endC.x);
-                            } else {
-                                startDP = new DirectPosition2D(endC.x, endC.x);
-                                endDP = new DirectPosition2D(startC.x, startC.x);
-                            }
-                            GridCoordinates2D startGridCoord = gridGeometry.worldToGrid(startDP);
-                            GridCoordinates2D endGridCoord = gridGeometry.worldToGrid(endDP);
-
-                            /*
-                             * the part in between has to be filled
-                             */
-                            for( int k = startGridCoord.x; k <= endGridCoord.x; k++ ) {
-                                double v = inIter.getSampleDouble(k, r, 0);
-                                if (isNovalue(v)) {
-                                    passiveCellCount++;
-                                    continue;
-                                }
-                                min = Math.min(min, v);
-                                max = Math.max(max, v);
-                                values[activeCellCount] = v;
-                                activeCellCount++;
-
-                                if (!hasUserTotalMean) {
-                                    tm_utm_tac[0] = tm_utm_tac[0] + v;
-                                    tm_utm_tac[2] = tm_utm_tac[2] + 1;
-                                }
-                            }
-                        }
-                    } else {
-                        if (coords.length == 1) {
-                            String message = MessageFormat.format("Found a cusp in: {0}/{1}", coords[0].x, coords[0].y);
-                            if (monitor != null) {
-                                monitor.errorMessage(message);
-                            } else {
-                                throw new ModelsIOException(message, "ZonalStats");
-                            }
-                        } else {
-                            throw new ModelsIOException(MessageFormat.format(
-                                    "Found intersection with more than 2 points in: {0}/{1}", coords[0].x, coords[0].y),
-                                    "ZonalStats");
-                        }
-                    }
-                }
+        Spans spans = new Spans();
+        polygonSpans(new PolygonScanConverter(gridGeometry), geometry, 0, spans);
 
+        ZonalStatistics stats = new ZonalStatistics(1);
+        if (hasUserTotalMean) {
+            stats.setReferenceMean(tm_utm_tac[1]);
+        }
+        for( int i = 0; i < spans.size(); i++ ) {
+            int r = spans.getRow(i);
+            for( int k = spans.getFromCol(i); k <= spans.getToCol(i); k++ ) {
+                stats.add(0, inIter.getSampleDouble(k, r, 0));
             }
-
-            previousLine = line;
         }
+        if (!hasUserTotalMean) {
+            tm_utm_tac[0] = tm_utm_tac[0] + stats.getSum(0);
+            tm_utm_tac[2] = tm_utm_tac[2] + stats.getCount(0);
+        }
+        return zoneStats(stats, 0, hasUserTotalMean, percentageThres);
+    }
+
+    private static void polygonSpans( PolygonScanConverter converter, Geometry geometry, final int zone, final Spans spans ) {
+        converter.scan(geometry, new SpanHandler(){
+            public void span( int row, int fromCol, int toCol ) {
+                spans.add(zone, row, fromCol, toCol);
+            }
+        });
+    }
 
-        int all = activeCellCount + passiveCellCount;
+    private static double[] zoneStats( ZonalStatistics stats, int zone, boolean hasUserTotalMean, double percentageThres ) {
+        long activeCellCount = stats.getCount(zone);
+        long passiveCellCount = stats.getNovalueCount(zone);
+        long all = activeCellCount + passiveCellCount;
         double ratio = 100.0 * activeCellCount / all;
         if (ratio < percentageThres) {
             return null;
         }
 
-        double mean = mean(values, activeCellCount);
-        double sdev = standardDeviation(values, mean, activeCellCount);
-        double var = variance(values, mean, activeCellCount);
+        double min = stats.getMin(zone);
+        double max = stats.getMax(zone);
+        double mean = stats.getMean(zone);
+        double var = stats.getVariance(zone);
+        double sdev = sqrt(var);
 
         double[] result;
         if (hasUserTotalMean) {
-            double meanAbsoluteDeviation = meanAbsoluteDeviation(values, activeCellCount, tm_utm_tac[1]);
+            double meanAbsoluteDeviation = stats.getMeanAbsoluteDeviation(zone);
             result = new double[]{min, max, mean, var, sdev, meanAbsoluteDeviation, activeCellCount, passiveCellCount};
         } else {
             result = new double[]{min, max, mean, var, sdev, activeCellCount, passiveCellCount};
@@ -352,37 +287,6 @@ public class OmsZonalStats extends JGTModel {
         return new SimpleFeatureBuilder(type);
     }
 
-    private static double meanAbsoluteDeviation( double[] values, int count, double userTotalMean ) {
-        double mean = 0;
-        for( int i = 0; i < count; i++ ) {
-            mean = mean + abs(values[i] - userTotalMean);
-        }
-        return mean / count;
-    }
-
-    private static double mean( double[] values, int count ) {
-        double mean = 0;
-        for( int i = 0; i < count; i++ ) {
-            mean += values[i];
-        }
-        return mean / count;
-    }
-
-    private static double standardDeviation( double[] values, double mean, int count ) {
-        double sd = variance(values, mean, count);
-        sd = sqrt(sd);
-        return sd;
-    }
-
-    private static double variance( double[] values, double mean, int count ) {
-        double variance = 0;
-        for( int i = 0; i < count; i++ ) {
-            variance = variance + pow(values[i] - mean, 2.0);
-        }
-        variance = variance / (count);
-        return variance;
-    }
-
     protected void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows, int writeCols,
             int writeRows ) {
         // not used in this case
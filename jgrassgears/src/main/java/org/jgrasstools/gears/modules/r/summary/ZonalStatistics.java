@@ -0,0 +1,364 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.summary;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.PartialBand;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Single pass statistics of the raster values that fall in a set of zones.
+ *
+ * <p>The zones are given as {@link Spans} of cells along the raster rows, so that
+ * zones can overlap. The values are accumulated with the Welford algorithm, which
+ * needs no second pass for the variance, and nothing is kept per value.</p>
+ *
+ * <p>The raster is read in bands of rows by several threads, each one filling its
+ * own partial statistics, which are merged at the end.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ZonalStatistics {
+
+    /**
+     * The max number of cells read at once by a thread.
+     */
+    private static final int BAND_CELLS = 1 << 20;
+
+    private final int zonesNum;
+    private final long[] counts;
+    private final long[] novalueCounts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] sums;
+    private final double[] means;
+    private final double[] m2s;
+    private final double[] absDeviationSums;
+    private double referenceMean = Double.NaN;
+
+    /**
+     * Constructor.
+     *
+     * @param zonesNum the number of zones, identified by their index.
+     */
+    public ZonalStatistics( int zonesNum ) {
+        this.zonesNum = zonesNum;
+        counts = new long[zonesNum];
+        novalueCounts = new long[zonesNum];
+        mins = new double[zonesNum];
+        maxs = new double[zonesNum];
+        sums = new double[zonesNum];
+        means = new double[zonesNum];
+        m2s = new double[zonesNum];
+        absDeviationSums = new double[zonesNum];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Set a mean, known in advance, from which the mean absolute deviation is calculated.
+     *
+     * @param referenceMean the mean.
+     */
+    public void setReferenceMean( double referenceMean ) {
+        this.referenceMean = referenceMean;
+    }
+
+    /**
+     * Add a value to a zone.
+     *
+     * @param zone the zone index.
+     * @param value the value, novalues are only counted.
+     */
+    public void add( int zone, double value ) {
+        if (isNovalue(value)) {
+            novalueCounts[zone]++;
+            return;
+        }
+        long count = ++counts[zone];
+        double delta = value - means[zone];
+        means[zone] += delta / count;
+        m2s[zone] += delta * (value - means[zone]);
+        sums[zone] += value;
+        if (value < mins[zone]) {
+            mins[zone] = value;
+        }
+        if (value > maxs[zone]) {
+            maxs[zone] = value;
+        }
+        if (!Double.isNaN(referenceMean)) {
+            absDeviationSums[zone] += Math.abs(value - referenceMean);
+        }
+    }
+
+    /**
+     * Add the values of other statistics on the same zones.
+     *
+     * @param partial the statistics to add.
+     */
+    public void merge( ZonalStatistics partial ) {
+        for( int zone = 0; zone < zonesNum; zone++ ) {
+            novalueCounts[zone] += partial.novalueCounts[zone];
+            long countB = partial.counts[zone];
+            if (countB == 0) {
+                continue;
+            }
+            long countA = counts[zone];
+            long count = countA + countB;
+            double delta = partial.means[zone] - means[zone];
+            means[zone] += delta * countB / count;
+            m2s[zone] += partial.m2s[zone] + delta * delta * countA * countB / count;
+            counts[zone] = count;
+            sums[zone] += partial.sums[zone];
+            mins[zone] = Math.min(mins[zone], partial.mins[zone]);
+            maxs[zone] = Math.max(maxs[zone], partial.maxs[zone]);
+            absDeviationSums[zone] += partial.absDeviationSums[zone];
+        }
+    }
+
+    /**
+     * Read the raster values of the spans and add them to their zones.
+     *
+     * @param image the raster, the spans being in its pixel coordinates.
+     * @param spans the spans of the zones, which need to be inside the image.
+     * @param threads the number of threads to use.
+     * @param pm the monitor, which receives a worked unit per band of rows.
+     * @throws Exception
+     */
+    public void accumulate( final RenderedImage image, Spans spans, int threads, IJGTProgressMonitor pm ) throws Exception {
+        final int minRow = image.getMinY();
+        final int rows = image.getHeight();
+        final int bandRows = Math.max(1,
+                Math.min(ThreadedBands.getBandLines(rows, threads), BAND_CELLS / Math.max(1, image.getWidth())));
+        final int bandsNum = ThreadedBands.getBandsNum(rows, bandRows);
+
+        // sort the spans by band
+        final int[] bandStart = new int[bandsNum + 1];
+        for( int i = 0; i < spans.size; i++ ) {
+            bandStart[(spans.rows[i] - minRow) / bandRows + 1]++;
+        }
+        for( int b = 0; b < bandsNum; b++ ) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        final int[] bandSpans = new int[spans.size];
+        int[] fill = Arrays.copyOf(bandStart, bandsNum);
+        for( int i = 0; i < spans.size; i++ ) {
+            bandSpans[fill[(spans.rows[i] - minRow) / bandRows]++] = i;
+        }
+        fill = null;
+
+        threads = ThreadedBands.getThreadsNum(bandsNum, threads);
+        final ZonalStatistics[] partials = new ZonalStatistics[threads];
+        partials[0] = this;
+        for( int t = 1; t < threads; t++ ) {
+            partials[t] = new ZonalStatistics(zonesNum);
+            partials[t].setReferenceMean(referenceMean);
+        }
+        final double[][] buffers = new double[threads][];
+
+        final Spans s = spans;
+        ThreadedBands.runBands(bandsNum, threads, "Collecting zonal statistics...", pm, new PartialBand(){
+            public void run( int b, int t ) throws Exception {
+                int from = bandStart[b];
+                int to = bandStart[b + 1];
+                if (from == to) {
+                    return;
+                }
+                // read only the columns covered by the spans of the band
+                int fromCol = Integer.MAX_VALUE;
+                int toCol = Integer.MIN_VALUE;
+                for( int k = from; k < to; k++ ) {
+                    fromCol = Math.min(fromCol, s.fromCols[bandSpans[k]]);
+                    toCol = Math.max(toCol, s.toCols[bandSpans[k]]);
+                }
+                int fromRow = minRow + b * bandRows;
+                int height = Math.min(bandRows, minRow + rows - fromRow);
+                int width = toCol - fromCol + 1;
+                Rectangle rect = new Rectangle(fromCol, fromRow, width, height);
+                double[] values = buffers[t];
+                if (values == null || values.length < width * height) {
+                    values = new double[width * height];
+                }
+                values = image.getData(rect).getSamples(fromCol, fromRow, width, height, 0, values);
+                buffers[t] = values;
+                ZonalStatistics partial = partials[t];
+                for( int k = from; k < to; k++ ) {
+                    int span = bandSpans[k];
+                    int zone = s.zones[span];
+                    int offset = (s.rows[span] - fromRow) * width - fromCol;
+                    for( int c = s.fromCols[span]; c <= s.toCols[span]; c++ ) {
+                        partial.add(zone, values[offset + c]);
+                    }
+                }
+            }
+        });
+        for( int t = 1; t < threads; t++ ) {
+            merge(partials[t]);
+        }
+    }
+
+    public int getZonesNum() {
+        return zonesNum;
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the number of valid values.
+     */
+    public long getCount( int zone ) {
+        return counts[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the number of novalues.
+     */
+    public long getNovalueCount( int zone ) {
+        return novalueCounts[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the min, positive infinity if the zone has no valid values.
+     */
+    public double getMin( int zone ) {
+        return mins[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the max, negative infinity if the zone has no valid values.
+     */
+    public double getMax( int zone ) {
+        return maxs[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the sum of the valid values.
+     */
+    public double getSum( int zone ) {
+        return sums[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the mean, NaN if the zone has no valid values.
+     */
+    public double getMean( int zone ) {
+        return counts[zone] == 0 ? Double.NaN : means[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the population variance, NaN if the zone has no valid values.
+     */
+    public double getVariance( int zone ) {
+        return counts[zone] == 0 ? Double.NaN : m2s[zone] / counts[zone];
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the sample variance, NaN if the zone has less than two valid values.
+     */
+    public double getSampleVariance( int zone ) {
+        return counts[zone] < 2 ? Double.NaN : m2s[zone] / (counts[zone] - 1);
+    }
+
+    /**
+     * @param zone the zone index.
+     * @return the mean absolute deviation from the {@link #setReferenceMean(double) reference mean}.
+     */
+    public double getMeanAbsoluteDeviation( int zone ) {
+        return counts[zone] == 0 ? Double.NaN : absDeviationSums[zone] / counts[zone];
+    }
+
+    /**
+     * Horizontal runs of cells, each assigned to a zone.
+     */
+    public static class Spans {
+        private int[] zones = new int[64];
+        private int[] rows = new int[64];
+        private int[] fromCols = new int[64];
+        private int[] toCols = new int[64];
+        private int size = 0;
+
+        /**
+         * Add a span.
+         *
+         * @param zone the zone index.
+         * @param row the row of the span.
+         * @param fromCol the first column of the span.
+         * @param toCol the last column of the span, included.
+         */
+        public void add( int zone, int row, int fromCol, int toCol ) {
+            if (fromCol > toCol) {
+                return;
+            }
+            if (size == zones.length) {
+                int newLength = size * 2;
+                zones = Arrays.copyOf(zones, newLength);
+                rows = Arrays.copyOf(rows, newLength);
+                fromCols = Arrays.copyOf(fromCols, newLength);
+                toCols = Arrays.copyOf(toCols, newLength);
+            }
+            zones[size] = zone;
+            rows[size] = row;
+            fromCols[size] = fromCol;
+            toCols[size] = toCol;
+            size++;
+        }
+
+        /**
+         * Add all the spans of another collection.
+         *
+         * @param other the spans to add.
+         */
+        public void addAll( Spans other ) {
+            for( int i = 0; i < other.size; i++ ) {
+                add(other.zones[i], other.rows[i], other.fromCols[i], other.toCols[i]);
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getZone( int i ) {
+            return zones[i];
+        }
+
+        public int getRow( int i ) {
+            return rows[i];
+        }
+
+        public int getFromCol( int i ) {
+            return fromCols[i];
+        }
+
+        public int getToCol( int i ) {
+            return toCols[i];
+        }
+    }
+}
@@ -35,8 +35,6 @@ import static org.jgrasstools.gears.libs.modules.Variables.BICUBIC;
 import static org.jgrasstools.gears.libs.modules.Variables.BILINEAR;
 import static org.jgrasstools.gears.libs.modules.Variables.NEAREST_NEIGHTBOUR;
 
-import javax.media.jai.Interpolation;
-
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Documentation;
@@ -52,10 +50,9 @@ import oms3.annotations.UI;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.coverage.processing.Operations;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.modules.JGTProcessingRegion;
-import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.WarpEngine;
 
 @Description(OMSRASTERRESOLUTIONRESAMPLER_DESCRIPTION)
 @Documentation(OMSRASTERRESOLUTIONRESAMPLER_DOCUMENTATION)
@@ -101,17 +98,8 @@ public class OmsRasterResolutionResampler extends JGTModel {
 
         GridGeometry2D newGridGeometry = region.getGridGeometry(inGeodata.getCoordinateReferenceSystem());
 
-        Interpolation interpolation = Interpolation.getInstance(Interpolation.INTERP_NEAREST);
-        if (pInterpolation.equals(BILINEAR)) {
-            interpolation = Interpolation.getInstance(Interpolation.INTERP_BILINEAR);
-        } else if (pInterpolation.equals(BICUBIC)) {
-            interpolation = Interpolation.getInstance(Interpolation.INTERP_BICUBIC);
-        }
-
-        pm.beginTask("Resampling...", IJGTProgressMonitor.UNKNOWN);
-        outGeodata = (GridCoverage2D) Operations.DEFAULT.resample(inGeodata, inGeodata.getCoordinateReferenceSystem(),
-                newGridGeometry, interpolation);
-        pm.done();
+        WarpEngine warpEngine = new WarpEngine(inGeodata, newGridGeometry, pInterpolation, pm);
+        outGeodata = warpEngine.run(getDefaultThreadsNum());
     }
 
 }
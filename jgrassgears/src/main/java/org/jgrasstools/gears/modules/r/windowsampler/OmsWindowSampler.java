@@ -18,8 +18,6 @@
 package org.jgrasstools.gears.modules.r.windowsampler;
 
 import static java.lang.Math.ceil;
-import static java.lang.Math.max;
-import static java.lang.Math.min;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_AUTHORCONTACTS;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_AUTHORNAMES;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_DESCRIPTION;
@@ -36,10 +34,8 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_P_MODE_D
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_P_ROWS_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_P_X_STEP_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSWINDOWSAMPLER_P_Y_STEP_DESCRIPTION;
-import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
-import java.awt.Dimension;
-import java.awt.Point;
+import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 
 import oms3.annotations.Author;
@@ -55,12 +51,14 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.jaitools.imageutils.iterator.WindowIterator;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine.Kernel;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine.SummedAreaTable;
 
 @Description(OMSWINDOWSAMPLER_DESCRIPTION)
 @Documentation(OMSWINDOWSAMPLER_DOCUMENTATION)
@@ -124,72 +122,47 @@ public class OmsWindowSampler extends JGTModel {
         WritableRaster outputWR = CoverageUtilities.createDoubleWritableRaster(newCols, newRows, null, null,
                 JGTConstants.doubleNovalue);
 
-        WindowIterator iter = new WindowIterator(inGeodata.getRenderedImage(), null, new Dimension(pCols, pRows),
-                new Point(0, 0), xstep, ystep, JGTConstants.doubleNovalue);
+        RenderedImage inImg = inGeodata.getRenderedImage();
+        double[] values = inImg.getData().getSamples(inImg.getMinX(), inImg.getMinY(), cols, rows, 0,
+                (double[]) null);
+        NeighbourhoodEngine engine = new NeighbourhoodEngine(values, cols, rows, getDefaultThreadsNum(), pm);
 
-        for( int r = 0; r < newRows; r++ ) {
-            for( int c = 0; c < newCols; c++ ) {
-                double[][] window = iter.getWindowDouble(null);
-                double newValue = calculateValue(window);
-                iter.next();
-
-                outputWR.setSample(c, r, 0, newValue);
-            }
-        }
-
-        outGeodata = CoverageUtilities
-                .buildCoverage("downsampled", outputWR, regionMap, inGeodata.getCoordinateReferenceSystem());
-
-    }
-
-    private double calculateValue( double[][] window ) {
         switch( pMode ) {
         case 0:
-            double avg = 0;
-            int num = 0;
-            for( int i = 0; i < window.length; i++ ) {
-                for( int j = 0; j < window[0].length; j++ ) {
-                    if (!isNovalue(window[i][j])) {
-                        avg = avg + window[i][j];
-                        num++;
-                    }
-                }
-            }
-            avg = avg / num;
-            return avg;
         case 1:
-            double sum = 0;
-            for( int i = 0; i < window.length; i++ ) {
-                for( int j = 0; j < window[0].length; j++ ) {
-                    if (!isNovalue(window[i][j])) {
-                        sum = sum + window[i][j];
+            SummedAreaTable table = engine.createSummedAreaTable();
+            for( int r = 0; r < newRows; r++ ) {
+                for( int c = 0; c < newCols; c++ ) {
+                    int fromCol = c * xstep;
+                    int fromRow = r * ystep;
+                    double newValue;
+                    if (pMode == 0) {
+                        newValue = table.getMean(fromCol, fromRow, fromCol + pCols, fromRow + pRows);
+                    } else {
+                        newValue = table.getSum(fromCol, fromRow, fromCol + pCols, fromRow + pRows);
                     }
+                    outputWR.setSample(c, r, 0, newValue);
                 }
             }
-            return sum;
+            break;
         case 2:
-            double max = Double.NEGATIVE_INFINITY;
-            for( int i = 0; i < window.length; i++ ) {
-                for( int j = 0; j < window[0].length; j++ ) {
-                    if (!isNovalue(window[i][j])) {
-                        max = max(window[i][j], max);
-                    }
-                }
-            }
-            return max;
         case 3:
-            double min = Double.POSITIVE_INFINITY;
-            for( int i = 0; i < window.length; i++ ) {
-                for( int j = 0; j < window[0].length; j++ ) {
-                    if (!isNovalue(window[i][j])) {
-                        min = min(window[i][j], min);
-                    }
+            // the windows start on the cell they are assigned to
+            Kernel window = Kernel.rectangle(pCols, pRows, 0, 0);
+            double[] extremes = pMode == 2 ? engine.max(window, false) : engine.min(window, false);
+            for( int r = 0; r < newRows; r++ ) {
+                for( int c = 0; c < newCols; c++ ) {
+                    outputWR.setSample(c, r, 0, extremes[r * ystep * cols + c * xstep]);
                 }
             }
-            return min;
+            break;
         default:
             throw new ModelsIllegalargumentException("Mode not recognized: " + pMode, this, pm);
         }
+
+        outGeodata = CoverageUtilities
+                .buildCoverage("downsampled", outputWR, regionMap, inGeodata.getCoordinateReferenceSystem());
+
     }
 
 }
@@ -32,14 +32,12 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSCONTOUREXTRACTOR_P_INT
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSCONTOUREXTRACTOR_P_MAX_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSCONTOUREXTRACTOR_P_MIN_DESCRIPTION;
 
-import java.awt.geom.AffineTransform;
+import java.awt.image.RenderedImage;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
-import javax.media.jai.JAI;
-import javax.media.jai.ParameterBlockJAI;
-import javax.media.jai.RenderedOp;
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -58,16 +56,15 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.jaitools.media.jai.contour.ContourDescriptor;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTModel;
-import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine.GeometrySink;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.metadata.spatial.PixelOrientation;
 
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.util.AffineTransformation;
 
 @Description(OMSCONTOUREXTRACTOR_DESCRIPTION)
 @Documentation(OMSCONTOUREXTRACTOR_DOCUMENTATION)
@@ -99,7 +96,6 @@ public class OmsContourExtractor extends JGTModel {
     @Out
     public SimpleFeatureCollection outGeodata = null;
 
-    @SuppressWarnings("unchecked")
     @Execute
     public void process() throws Exception {
         if (!concatOr(outGeodata == null, doReset)) {
@@ -111,8 +107,6 @@ public class OmsContourExtractor extends JGTModel {
             throw new ModelsIllegalargumentException("Min has to be bigger than Max.", this, pm);
         }
 
-        final AffineTransform mt2D = (AffineTransform) inCoverage.getGridGeometry().getGridToCRS2D(PixelOrientation.CENTER);
-
         List<Double> contourIntervals = new ArrayList<Double>();
         pm.message("Adding levels:");
         for( double level = pMin; level <= pMax; level += pInterval ) {
@@ -120,40 +114,44 @@ public class OmsContourExtractor extends JGTModel {
             pm.message("-> " + level);
         }
 
-        pm.beginTask("Extracting contours...", IJGTProgressMonitor.UNKNOWN);
-        ParameterBlockJAI pb = new ParameterBlockJAI("Contour");
-        pb.setSource("source0", inCoverage.getRenderedImage());
-        pb.setParameter("levels", contourIntervals);
-        RenderedOp dest = JAI.create("Contour", pb);
-        Collection<LineString> contours = (Collection<LineString>) dest.getProperty(ContourDescriptor.CONTOUR_PROPERTY_NAME);
-        pm.done();
+        RenderedImage renderedImage = inCoverage.getRenderedImage();
+        int width = renderedImage.getWidth();
+        int height = renderedImage.getHeight();
+        double[] data = new double[width * height];
+        RandomIter iter = RandomIterFactory.create(renderedImage, null);
+        int index = 0;
+        for( int r = 0; r < height; r++ ) {
+            for( int c = 0; c < width; c++ ) {
+                data[index++] = iter.getSampleDouble(c, r, 0);
+            }
+        }
+        iter.done();
 
-        outGeodata = new DefaultFeatureCollection();
         SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
         b.setName("contours");
         b.setCRS(inCoverage.getCoordinateReferenceSystem());
         b.add("the_geom", LineString.class);
         b.add("elevation", Double.class);
-        SimpleFeatureType type = b.buildFeatureType();
-        int id = 0;
-
-        final AffineTransformation jtsTransformation = new AffineTransformation(mt2D.getScaleX(), mt2D.getShearX(),
-                mt2D.getTranslateX(), mt2D.getShearY(), mt2D.getScaleY(), mt2D.getTranslateY());
-        for( LineString lineString : contours ) {
-            Object userData = lineString.getUserData();
-            double elev = -1.0;
-            if (userData instanceof Double) {
-                elev = (Double) userData;
-                lineString.setUserData(null);
+        final SimpleFeatureType type = b.buildFeatureType();
+        final DefaultFeatureCollection contours = new DefaultFeatureCollection();
+
+        // the features are built as the lines are complete
+        GeometrySink sink = new GeometrySink(){
+            private int id = 0;
+            public void geometry( Geometry geometry, double value ) {
+                SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+                Object[] values = new Object[]{geometry, value};
+                builder.addAll(values);
+                SimpleFeature feature = builder.buildFeature(type.getTypeName() + "." + id);
+                id++;
+                contours.add(feature);
             }
-            lineString.apply(jtsTransformation);
-            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-            Object[] values = new Object[]{lineString, elev};
-            builder.addAll(values);
-            SimpleFeature feature = builder.buildFeature(type.getTypeName() + "." + id);
-            id++;
-            ((DefaultFeatureCollection) outGeodata).add(feature);
+        };
+        MarchingSquaresEngine engine = new MarchingSquaresEngine(data, width, height, inCoverage.getGridGeometry(),
+                getDefaultThreadsNum(), pm);
+        for( double level : contourIntervals ) {
+            engine.contours(level, sink);
         }
-
+        outGeodata = contours;
     }
 }
@@ -17,7 +17,6 @@
  */
 package org.jgrasstools.gears.modules.v.marchingsquares;
 
-import static java.lang.Math.abs;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMARCHINGSQUARESVECTORIALIZER_AUTHORCONTACTS;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMARCHINGSQUARESVECTORIALIZER_AUTHORNAMES;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMARCHINGSQUARESVECTORIALIZER_DESCRIPTION;
@@ -35,18 +34,12 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSMARCHINGSQUARESVECTORI
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSMARCHINGSQUARESVECTORIALIZER_P_VALUE_DESCRIPTION;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
-import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.COLS;
-import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.ROWS;
 import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.XRES;
 import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.YRES;
 import static org.jgrasstools.gears.utils.coverage.CoverageUtilities.getRegionParamsFromGridCoverage;
 
-import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
-import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.HashMap;
-import java.util.List;
 
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
@@ -65,21 +58,17 @@ import oms3.annotations.Status;
 import oms3.annotations.UI;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.jgrasstools.gears.libs.modules.JGTModel;
-import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine.GeometrySink;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.TransformException;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Polygon;
 
 @Description(OMSMARCHINGSQUARESVECTORIALIZER_DESCRIPTION)
@@ -113,307 +102,58 @@ public class OmsMarchingSquaresVectorializer extends JGTModel {
     @Out
     public SimpleFeatureCollection outGeodata = null;
 
-    public List<java.awt.Polygon> awtGeometriesList;
-
-    private RandomIter iter = null;
-
-    private double xRes;
-
-    private double yRes;
-
-    private GridGeometry2D gridGeometry;
-
-    private int height;
-
-    private int width;
-
-    private BitSet bitSet = null;
-
-    private CoordinateReferenceSystem crs;
-
     @Execute
     public void process() throws Exception {
         if (!concatOr(outGeodata == null, doReset)) {
             return;
         }
-        if (iter == null) {
-            RenderedImage inputRI = inGeodata.getRenderedImage();
-            iter = RandomIterFactory.create(inputRI, null);
-
-            HashMap<String, Double> regionMap = getRegionParamsFromGridCoverage(inGeodata);
-            height = regionMap.get(ROWS).intValue();
-            width = regionMap.get(COLS).intValue();
-            xRes = regionMap.get(XRES);
-            yRes = regionMap.get(YRES);
-            crs = inGeodata.getCoordinateReferenceSystem();
-
-            bitSet = new BitSet(width * height);
-
-            gridGeometry = inGeodata.getGridGeometry();
-        }
-
-        List<Polygon> geometriesList = new ArrayList<Polygon>();
-        awtGeometriesList = new ArrayList<java.awt.Polygon>();
-
-        pm.beginTask("Extracting vectors...", height);
-        /*
-         * a List where to store the different value of the raster if pValue is
-         * null, otherwise only pValue is putted into.
-         */
-        ArrayList<Double> valueRaster = new ArrayList<Double>();
-        /*
-         * if pValue is a number then extract the polygon from the raster (if
-         * the pixel value is equals to pValue).
-         */
-        if (pValue != null) {
-            valueRaster.add(0, pValue);
-            for( int row = 0; row < height; row++ ) {
-                for( int col = 0; col < width; col++ ) {
-                    double value = iter.getSampleDouble(col, row, 0);
-                    if (!isNovalue(value) && !bitSet.get(row * width + col)) {
-
-                        if (abs(value - pValue) < .0000001) {
-                            java.awt.Polygon awtPolygon = new java.awt.Polygon();
-                            Polygon polygon = identifyPerimeter(col, row, awtPolygon);
-                            if (polygon != null) {
-                                geometriesList.add(polygon);
-                                awtGeometriesList.add(awtPolygon);
-                            }
-                        }
-                    }
-                }
-                pm.worked(1);
-            }
-        } else {
-            /*
-             * 
-             */
-            pValue = doubleNovalue;
-            for( int row = 0; row < height; row++ ) {
-                for( int col = 0; col < width; col++ ) {
-                    double value = iter.getSampleDouble(col, row, 0);
-                    if (value != pValue) {
-                        pValue = value;
-
-                        if (!isNovalue(value) && !bitSet.get(row * width + col)) {
-
-                            if (value == pValue) {
-                                java.awt.Polygon awtPolygon = new java.awt.Polygon();
-                                Polygon polygon = identifyPerimeter(col, row, awtPolygon);
-                                if (polygon != null) {
-                                    valueRaster.add(pValue);
-                                    geometriesList.add(polygon);
-                                    awtGeometriesList.add(awtPolygon);
-                                }
-                            }
-                        }
-                    }
-                }
-                pm.worked(1);
+        RenderedImage inputRI = inGeodata.getRenderedImage();
+        int width = inputRI.getWidth();
+        int height = inputRI.getHeight();
+        double[] data = new double[width * height];
+        RandomIter iter = RandomIterFactory.create(inputRI, null);
+        int index = 0;
+        for( int r = 0; r < height; r++ ) {
+            for( int c = 0; c < width; c++ ) {
+                data[index++] = iter.getSampleDouble(c, r, 0);
             }
-
         }
+        iter.done();
 
-        pm.done();
+        HashMap<String, Double> regionMap = getRegionParamsFromGridCoverage(inGeodata);
+        double xRes = regionMap.get(XRES);
+        double yRes = regionMap.get(YRES);
+        // the threshold is on cells
+        final double areaThreshold = pThres * xRes * yRes;
 
         SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
         b.setName("raster2vector");
-        b.setCRS(crs);
+        b.setCRS(inGeodata.getCoordinateReferenceSystem());
         b.add("the_geom", Polygon.class);
         b.add("cat", Integer.class);
         b.add(defaultFeatureField, Double.class);
-        SimpleFeatureType type = b.buildFeatureType();
-
-        outGeodata = new DefaultFeatureCollection();
-        int index = 0;
-        for( Polygon polygon : geometriesList ) {
-            Double tmpValue = valueRaster.get(index);
-            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-            Object[] values = new Object[]{polygon, index, tmpValue};
-            builder.addAll(values);
-            SimpleFeature feature = builder.buildFeature(type.getTypeName() + "." + index);
-            index++;
-            ((DefaultFeatureCollection) outGeodata).add(feature);
-        }
-
-    }
-
-    private Polygon identifyPerimeter( int initialX, int initialY, java.awt.Polygon awtPolygon ) throws TransformException {
-        if (initialX < 0 || initialX > width - 1 || initialY < 0 || initialY > height - 1)
-            throw new IllegalArgumentException("Coordinate outside the bounds.");
-
-        int initialValue = value(initialX, initialY);
-        if (initialValue == 0) {
-            throw new IllegalArgumentException(String.format("Supplied initial coordinates (%d, %d) do not lie on a perimeter.",
-                    initialX, initialY));
-        }
-        final Point2D worldPosition = new Point2D.Double(initialX, initialY);
-        gridGeometry.getGridToCRS2D().transform(worldPosition, worldPosition);
-        if (initialValue == 15) {
-            // not a border pixel
-            return null;
-        }
-
-        Coordinate startCoordinate = new Coordinate(worldPosition.getX() + xRes / 2.0, worldPosition.getY() - yRes / 2.0);
-        List<Coordinate> coordinateList = new ArrayList<Coordinate>(200);
-        coordinateList.add(startCoordinate);
-
-        double currentX = startCoordinate.x;
-        double currentY = startCoordinate.y;
-        int x = initialX;
-        int y = initialY;
-        awtPolygon.addPoint(x, y);
-
-        boolean previousWentNorth = false;
-        boolean previousWentEast = false;
-
-        do {
-            Coordinate direction = null;
-            int dx = 0;
-            int dy = 0;
-            int v = value(x, y);
-            switch( v ) {
-            case 1:
-                dy = -1; // N
-                currentY = currentY + yRes;
-                previousWentNorth = true;
-                break;
-            case 2:
-                dx = +1; // E
-                currentX = currentX + xRes;
-                previousWentEast = true;
-                break;
-            case 3:
-                dx = +1; // E
-                currentX = currentX + xRes;
-                previousWentEast = true;
-                break;
-            case 4:
-                dx = -1; // W
-                currentX = currentX - xRes;
-                previousWentEast = false;
-                break;
-            case 5:
-                dy = -1; // N
-                currentY = currentY + yRes;
-                previousWentNorth = true;
-                break;
-            case 6:
-                if (!previousWentNorth) {// W
-                    dx = -1;
-                    currentX = currentX - xRes;
-                    previousWentEast = false;
-                } else {
-                    dx = +1;// E
-                    currentX = currentX + xRes;
-                    previousWentEast = true;
-                }
-                break;
-            case 7:
-                dx = +1; // E
-                currentX = currentX + xRes;
-                previousWentEast = true;
-                break;
-            case 8:
-                dy = +1; // S
-                currentY = currentY - yRes;
-                previousWentNorth = false;
-                break;
-            case 9:
-                if (previousWentEast) {
-                    dy = -1; // N
-                    currentY = currentY + yRes;
-                    previousWentNorth = true;
-                } else {
-                    dy = +1; // S
-                    currentY = currentY - yRes;
-                    previousWentNorth = false;
+        final SimpleFeatureType type = b.buildFeatureType();
+
+        final DefaultFeatureCollection polygons = new DefaultFeatureCollection();
+        // without a value all the values of the raster are traced
+        Double regionValue = pValue == null || isNovalue(pValue) ? null : pValue;
+        MarchingSquaresEngine engine = new MarchingSquaresEngine(data, width, height, inGeodata.getGridGeometry(),
+                getDefaultThreadsNum(), pm);
+        engine.polygons(regionValue, new GeometrySink(){
+            private int id = 0;
+            public void geometry( Geometry geometry, double value ) {
+                if (geometry.getArea() < areaThreshold) {
+                    return;
                 }
-                break;
-            case 10:
-                dy = +1; // S
-                currentY = currentY - yRes;
-                previousWentNorth = false;
-                break;
-            case 11:
-                dy = +1; // S
-                currentY = currentY - yRes;
-                previousWentNorth = false;
-                break;
-            case 12:
-                dx = -1; // W
-                currentX = currentX - xRes;
-                previousWentEast = false;
-                break;
-            case 13:
-                dy = -1; // N
-                currentY = currentY + yRes;
-                previousWentNorth = true;
-                break;
-            case 14:
-                dx = -1; // W
-                currentX = currentX - xRes;
-                previousWentEast = false;
-                break;
-            default:
-                throw new IllegalStateException("Illegat state: " + v);
+                SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+                Object[] values = new Object[]{geometry, id, value};
+                builder.addAll(values);
+                SimpleFeature feature = builder.buildFeature(type.getTypeName() + "." + id);
+                id++;
+                polygons.add(feature);
             }
-            direction = new Coordinate(currentX, currentY);
-            coordinateList.add(direction);
-            x = x + dx;
-            y = y + dy;
-
-            awtPolygon.addPoint(x, y);
-        } while( x != initialX || y != initialY );
-
-        double polygonArea = GeometryUtilities.getPolygonArea(awtPolygon.xpoints, awtPolygon.ypoints, coordinateList.size() - 1);
-        if (polygonArea < pThres) {
-            return null;
-        }
-
-        GeometryFactory gf = GeometryUtilities.gf();
-
-        coordinateList.add(startCoordinate);
-
-        Coordinate[] coordinateArray = (Coordinate[]) coordinateList.toArray(new Coordinate[coordinateList.size()]);
-        LinearRing linearRing = gf.createLinearRing(coordinateArray);
-        Polygon polygon = gf.createPolygon(linearRing, null);
-        return polygon;
-    }
-
-    private int value( int x, int y ) {
-        int sum = 0;
-        if (isSet(x, y)) // UL
-            sum |= 1;
-        if (isSet(x + 1, y)) // UR
-            sum |= 2;
-        if (isSet(x, y + 1)) // LL
-            sum |= 4;
-        if (isSet(x + 1, y + 1)) // LR
-            sum |= 8;
-
-        if (sum == 0) {
-            System.out.println(x + "/" + y);
-        }
-        // mark the used position
-        bitSet.set(y * width + x);
-        return sum;
-    }
-
-    private boolean isSet( int x, int y ) {
-        boolean isOutsideGrid = x < 0 || x >= width || y < 0 || y >= height;
-        if (isOutsideGrid) {
-            return false;
-        }
-        double value = iter.getSampleDouble(x, y, 0);
-        if (isNovalue(value)) {
-            return false;
-        }
-
-        if (value == pValue) {
-            return true;
-        }
-        return false;
+        });
+        outGeodata = polygons;
     }
 
 }
@@ -38,17 +38,10 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSVECTORIZER_P_VALUE_DES
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
 import java.awt.Point;
-import java.awt.geom.AffineTransform;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 
-import javax.media.jai.JAI;
-import javax.media.jai.ParameterBlockJAI;
-import javax.media.jai.RenderedOp;
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
@@ -74,23 +67,23 @@ import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.Envelope2D;
-import org.jaitools.media.jai.vectorize.VectorizeDescriptor;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.modules.r.rangelookup.OmsRangeLookup;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine.GeometrySink;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.geom.util.AffineTransformation;
 
 @Description(OMSVECTORIZER_DESCRIPTION)
 @Documentation(OMSVECTORIZER_DOCUMENTATION)
@@ -186,19 +179,24 @@ public class OmsVectorizer extends JGTModel {
             inRaster = maskRaster();
         }
 
-        pm.beginTask("Vectorizing map...", IJGTProgressMonitor.UNKNOWN);
-        Map<String, Object> args = new HashMap<String, Object>();
-        // args.put("outsideValues", Collections.singleton(0));
-        Collection<Polygon> polygonsList = doVectorize(inRaster.getRenderedImage(), args);
-        pm.done();
+        RenderedImage renderedImage = inRaster.getRenderedImage();
+        int width = renderedImage.getWidth();
+        int height = renderedImage.getHeight();
+        double[] data = new double[width * height];
+        RandomIter iter = RandomIterFactory.create(renderedImage, null);
+        int index = 0;
+        for( int r = 0; r < height; r++ ) {
+            for( int c = 0; c < width; c++ ) {
+                data[index++] = iter.getSampleDouble(c, r, 0);
+            }
+        }
+        iter.done();
 
         HashMap<String, Double> regionParams = CoverageUtilities.getRegionParamsFromGridCoverage(inRaster);
         double xRes = regionParams.get(CoverageUtilities.XRES);
         double yRes = regionParams.get(CoverageUtilities.YRES);
-
-        final AffineTransform mt2D = (AffineTransform) inRaster.getGridGeometry().getGridToCRS2D(PixelOrientation.CENTER);
-        final AffineTransformation awt2WorldTransformation = new AffineTransformation(mt2D.getScaleX(), mt2D.getShearX(),
-                mt2D.getTranslateX() - xRes / 2.0, mt2D.getShearY(), mt2D.getScaleY(), mt2D.getTranslateY() + yRes / 2.0);
+        // the threshold is on cells
+        final double areaThreshold = pThres * xRes * yRes;
 
         SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
         b.setName("raster2vector");
@@ -210,39 +208,38 @@ public class OmsVectorizer extends JGTModel {
         b.add("perimeter", Double.class);
         b.add("xcentroid", Double.class);
         b.add("ycentroid", Double.class);
-        SimpleFeatureType type = b.buildFeatureType();
-
-        outVector = new DefaultFeatureCollection();
-
-        for( Polygon polygon : polygonsList ) {
-            double area = polygon.getArea();
-            if (area <= pThres) {
-                continue;
-            }
+        final SimpleFeatureType type = b.buildFeatureType();
+
+        final DefaultFeatureCollection polygons = new DefaultFeatureCollection();
+        MarchingSquaresEngine engine = new MarchingSquaresEngine(data, width, height, inRaster.getGridGeometry(),
+                getDefaultThreadsNum(), pm);
+        // the features are built as the polygons are complete
+        engine.polygons(null, new GeometrySink(){
+            public void geometry( Geometry geometry, double value ) {
+                Polygon polygon = (Polygon) geometry;
+                double area = polygon.getArea();
+                if (area <= areaThreshold) {
+                    return;
+                }
+                SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
 
-            Double tmpValue = -1.0;
-            Object userData = polygon.getUserData();
-            if (userData instanceof Double) {
-                tmpValue = (Double) userData;
-            }
-            polygon.apply(awt2WorldTransformation);
-            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+                if (doRemoveHoles) {
+                    LineString exteriorRing = polygon.getExteriorRing();
+                    polygon = gf.createPolygon(exteriorRing.getCoordinates());
+                }
 
-            if (doRemoveHoles) {
-                LineString exteriorRing = polygon.getExteriorRing();
-                polygon = gf.createPolygon(exteriorRing.getCoordinates());
+                area = polygon.getArea();
+                double perim = polygon.getLength();
+                com.vividsolutions.jts.geom.Point centroid = polygon.getCentroid();
+                Coordinate centroidCoord = centroid.getCoordinate();
+                Object[] values = new Object[]{polygon, featureIndex, value, area, perim, centroidCoord.x, centroidCoord.y};
+                builder.addAll(values);
+                SimpleFeature feature = builder.buildFeature(type.getTypeName() + "." + featureIndex);
+                featureIndex++;
+                polygons.add(feature);
             }
-
-            area = polygon.getArea();
-            double perim = polygon.getLength();
-            com.vividsolutions.jts.geom.Point centroid = polygon.getCentroid();
-            Coordinate centroidCoord = centroid.getCoordinate();
-            Object[] values = new Object[]{polygon, featureIndex, tmpValue, area, perim, centroidCoord.x, centroidCoord.y};
-            builder.addAll(values);
-            SimpleFeature feature = builder.buildFeature(type.getTypeName() + "." + featureIndex);
-            featureIndex++;
-            ((DefaultFeatureCollection) outVector).add(feature);
-        }
+        });
+        outVector = polygons;
     }
 
     private GridCoverage2D maskRaster() {
@@ -319,32 +316,4 @@ public class OmsVectorizer extends JGTModel {
         }
     }
 
-    /**
-     * Helper function to run the Vectorize operation with given parameters and
-     * retrieve the vectors.
-     * 
-     * @param src the source image
-     * @param args a {@code Map} of parameter names and values
-     * 
-     * @return the generated vectors as JTS Polygons
-     */
-    @SuppressWarnings("unchecked")
-    private Collection<Polygon> doVectorize( RenderedImage src, Map<String, Object> args ) {
-        ParameterBlockJAI pb = new ParameterBlockJAI("Vectorize");
-        pb.setSource("source0", src);
-
-        // Set any parameters that were passed in
-        for( Entry<String, Object> e : args.entrySet() ) {
-            pb.setParameter(e.getKey(), e.getValue());
-        }
-
-        // Get the desintation image: this is the unmodified source image data
-        // plus a property for the generated vectors
-        RenderedOp dest = JAI.create("Vectorize", pb);
-
-        // Get the vectors
-        Object property = dest.getProperty(VectorizeDescriptor.VECTOR_PROPERTY_NAME);
-        return (Collection<Polygon>) property;
-    }
-
 }
@@ -0,0 +1,791 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.Band;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.opengis.metadata.spatial.PixelOrientation;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+/**
+ * Marching squares over the rows of a raster, for contour lines and for the polygons
+ * of the regions of equal value.
+ *
+ * <p>The raster is split in bands of rows that are traced by several threads. Inside a
+ * band the lines are followed as long as they stay in the band, so that the lines that
+ * close in the band are complete and the others are pieces that stop at the seams. The
+ * bands are then merged in row order as soon as they are ready, joining the pieces at
+ * the seams, and every geometry that is complete is handed to a {@link GeometrySink},
+ * so that the geometries of the raster are never all in memory.</p>
+ *
+ * <p>Contours are traced on the lattice of the cell centers, with the crossings
+ * interpolated linearly and saddles solved by the mean of the square. Squares with
+ * novalues have no contours, so lines end there and at the raster borders.</p>
+ *
+ * <p>Region polygons follow the borders of the cells, with the region on the right
+ * side on screen, and the cells of a region are connected through their sides only.
+ * Where a ring touches itself at a corner, it is split there into simple rings, so that
+ * holes touching each other or their shell in a point give valid polygons. Holes lie in
+ * the rows of their shell, so a polygon is complete as soon as its shell is closed.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class MarchingSquaresEngine {
+
+    /**
+     * Receives the complete geometries.
+     *
+     * <p>The sink is called by one thread at a time.</p>
+     */
+    public static interface GeometrySink {
+        /**
+         * Called for every complete geometry.
+         *
+         * @param geometry the geometry, in the crs of the raster.
+         * @param value the contour level or the value of the region.
+         * @throws Exception
+         */
+        public void geometry( Geometry geometry, double value ) throws Exception;
+    }
+
+    /*
+     * Sides of cells and squares, in clockwise order on screen, and their
+     * directions with the region or the higher values on the right.
+     */
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+    /*
+     * Corners in clockwise order, side s runs from corner s to corner s + 1.
+     */
+    private static final int[] CORNER_X = {0, 1, 1, 0};
+    private static final int[] CORNER_Y = {0, 0, 1, 1};
+
+    private final double[] data;
+    private final int cols;
+    private final int rows;
+    private final AffineTransform gridToWorld;
+    private final int threads;
+    private final IJGTProgressMonitor pm;
+    private final GeometryFactory gf = GeometryUtilities.gf();
+
+    /**
+     * Constructor.
+     *
+     * @param data the raster values by rows.
+     * @param cols the number of columns of the raster.
+     * @param rows the number of rows of the raster.
+     * @param gridGeometry the grid geometry of the raster.
+     * @param threads the number of threads to use.
+     * @param pm the monitor.
+     */
+    public MarchingSquaresEngine( double[] data, int cols, int rows, GridGeometry2D gridGeometry, int threads,
+            IJGTProgressMonitor pm ) {
+        this.data = data;
+        this.cols = cols;
+        this.rows = rows;
+        this.threads = threads;
+        this.pm = pm;
+        gridToWorld = (AffineTransform) gridGeometry.getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+    }
+
+    /**
+     * Extract the contour lines of a level.
+     *
+     * <p>The lines have the higher values on their right side. Lines that close on
+     * themselves are given as closed linestrings.</p>
+     *
+     * @param level the level.
+     * @param sink the sink of the linestrings.
+     * @throws Exception
+     */
+    public void contours( final double level, GeometrySink sink ) throws Exception {
+        run("Extracting contours at " + level + "...", rows - 1, new Tracer(){
+            public List<Piece> trace( int fromRow, int toRow ) {
+                return traceContours(level, fromRow, toRow);
+            }
+        }, new Stitcher(sink, false));
+    }
+
+    /**
+     * Extract the polygons of the regions of equal value.
+     *
+     * @param value the value of the regions to extract, if <code>null</code> the
+     *          regions of all the values are extracted.
+     * @param sink the sink of the polygons.
+     * @throws Exception
+     */
+    public void polygons( final Double value, GeometrySink sink ) throws Exception {
+        run("Extracting polygons...", rows, new Tracer(){
+            public List<Piece> trace( int fromRow, int toRow ) {
+                return traceRegions(value, fromRow, toRow);
+            }
+        }, new Stitcher(sink, true));
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * contours, squares are identified by their upper left cell
+     * ------------------------------------------------------------------------
+     */
+
+    private List<Piece> traceContours( double level, int fromRow, int toRow ) {
+        List<Piece> pieces = new ArrayList<Piece>();
+        int squareCols = cols - 1;
+        // the entry sides already followed, a bit per side
+        byte[] visited = new byte[squareCols * (toRow - fromRow)];
+        for( int pass = 0; pass < 2; pass++ ) {
+            for( int r = fromRow; r < toRow; r++ ) {
+                for( int c = 0; c < squareCols; c++ ) {
+                    int config = config(level, c, r);
+                    if (config <= 0 || config == 15) {
+                        continue;
+                    }
+                    for( int s = 0; s < 4; s++ ) {
+                        if (!isEntry(config, s) || (visited[(r - fromRow) * squareCols + c] & (1 << s)) != 0) {
+                            continue;
+                        }
+                        int previousC = c + DY[s];
+                        int previousR = r - DX[s];
+                        boolean terminal = config(level, previousC, previousR) < 0;
+                        if (pass == 0 && !terminal && previousR >= fromRow && previousR < toRow) {
+                            // the piece starts before, the rest is closed lines for the second pass
+                            continue;
+                        }
+                        Piece piece = new Piece(level, false);
+                        piece.first = terminal ? -1 : sideId(c, r, s);
+                        addCrossing(piece, level, c, r, s);
+                        int squareC = c;
+                        int squareR = r;
+                        int entry = s;
+                        int squareConfig = config;
+                        while( true ) {
+                            visited[(squareR - fromRow) * squareCols + squareC] |= 1 << entry;
+                            int exit = exit(level, squareConfig, entry, squareC, squareR);
+                            addCrossing(piece, level, squareC, squareR, exit);
+                            // the square across the exit side, where the side is an entry
+                            int nextC = squareC + DY[exit];
+                            int nextR = squareR - DX[exit];
+                            int nextConfig = config(level, nextC, nextR);
+                            if (nextConfig < 0) {
+                                piece.need = -1;
+                                break;
+                            }
+                            if (nextR < fromRow || nextR >= toRow) {
+                                piece.need = sideId(squareC, squareR, exit);
+                                break;
+                            }
+                            squareC = nextC;
+                            squareR = nextR;
+                            entry = (exit + 2) % 4;
+                            squareConfig = nextConfig;
+                            if ((visited[(squareR - fromRow) * squareCols + squareC] & (1 << entry)) != 0) {
+                                // back to the start of a closed line
+                                piece.closed = true;
+                                break;
+                            }
+                        }
+                        pieces.add(piece);
+                    }
+                }
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * The corners of a square that are higher or equal than the level, as bits
+     * in clockwise order from the upper left.
+     *
+     * @return the configuration or -1 if the square is outside of the raster or
+     *          has novalues.
+     */
+    private int config( double level, int c, int r ) {
+        if (c < 0 || r < 0 || c >= cols - 1 || r >= rows - 1) {
+            return -1;
+        }
+        int config = 0;
+        for( int k = 0; k < 4; k++ ) {
+            double value = data[(r + CORNER_Y[k]) * cols + c + CORNER_X[k]];
+            if (isNovalue(value)) {
+                return -1;
+            }
+            if (value >= level) {
+                config |= 1 << k;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Whether the contour enters the square through a side, going from a high to a low corner.
+     */
+    private static boolean isEntry( int config, int side ) {
+        return (config & (1 << side)) != 0 && (config & (1 << ((side + 1) % 4))) == 0;
+    }
+
+    private int exit( double level, int config, int entry, int c, int r ) {
+        if (config == 5 || config == 10) {
+            // saddle, the mean decides whether the high corners are connected
+            double mean = (data[r * cols + c] + data[r * cols + c + 1] + data[(r + 1) * cols + c] + data[(r + 1) * cols + c
+                    + 1]) / 4.0;
+            return mean >= level ? (entry + 1) % 4 : (entry + 3) % 4;
+        }
+        for( int s = 0; s < 4; s++ ) {
+            if ((config & (1 << s)) == 0 && (config & (1 << ((s + 1) % 4))) != 0) {
+                return s;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * The id of a side, shared by the two squares of the side.
+     */
+    private long sideId( int c, int r, int side ) {
+        int fromC = c + CORNER_X[side];
+        int fromR = r + CORNER_Y[side];
+        int toC = c + CORNER_X[(side + 1) % 4];
+        int toR = r + CORNER_Y[(side + 1) % 4];
+        long cell = (long) Math.min(fromR, toR) * cols + Math.min(fromC, toC);
+        return 2 * cell + (fromR == toR ? 0 : 1);
+    }
+
+    /**
+     * Add the crossing of a side, always interpolated from its upper left cell, so that
+     * the two squares of the side give the same point.
+     */
+    private void addCrossing( Piece piece, double level, int c, int r, int side ) {
+        int fromC = c + CORNER_X[side];
+        int fromR = r + CORNER_Y[side];
+        int toC = c + CORNER_X[(side + 1) % 4];
+        int toR = r + CORNER_Y[(side + 1) % 4];
+        if (fromC > toC || fromR > toR) {
+            int tmp = fromC;
+            fromC = toC;
+            toC = tmp;
+            tmp = fromR;
+            fromR = toR;
+            toR = tmp;
+        }
+        double fromValue = data[fromR * cols + fromC];
+        double toValue = data[toR * cols + toC];
+        double t = (level - fromValue) / (toValue - fromValue);
+        piece.add(fromC + 0.5 + t * (toC - fromC), fromR + 0.5 + t * (toR - fromR));
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * regions, edges are the sides of the cells of the regions
+     * ------------------------------------------------------------------------
+     */
+
+    private List<Piece> traceRegions( Double regionValue, int fromRow, int toRow ) {
+        List<Piece> pieces = new ArrayList<Piece>();
+        byte[] visited = new byte[cols * (toRow - fromRow)];
+        for( int pass = 0; pass < 2; pass++ ) {
+            for( int r = fromRow; r < toRow; r++ ) {
+                for( int c = 0; c < cols; c++ ) {
+                    double value = value(regionValue, c, r);
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+                    for( int s = 0; s < 4; s++ ) {
+                        if ((visited[(r - fromRow) * cols + c] & (1 << s)) != 0
+                                || value(regionValue, c + DY[s], r - DX[s]) == value) {
+                            continue;
+                        }
+                        long previous = previousEdge(regionValue, value, c, r, s);
+                        int previousR = (int) (previous / 4 / cols);
+                        if (pass == 0 && previousR >= fromRow && previousR < toRow) {
+                            // the piece starts before, the rest is closed rings for the second pass
+                            continue;
+                        }
+                        Piece piece = new Piece(value, true);
+                        piece.first = edgeId(c, r, s);
+                        piece.add(c + CORNER_X[s], r + CORNER_Y[s]);
+                        int edgeC = c;
+                        int edgeR = r;
+                        int side = s;
+                        while( true ) {
+                            visited[(edgeR - fromRow) * cols + edgeC] |= 1 << side;
+                            long next = nextEdge(regionValue, value, edgeC, edgeR, side);
+                            int nextSide = (int) (next % 4);
+                            int nextC = (int) (next / 4 % cols);
+                            int nextR = (int) (next / 4 / cols);
+                            if (nextR < fromRow || nextR >= toRow) {
+                                piece.add(edgeC + CORNER_X[(side + 1) % 4], edgeR + CORNER_Y[(side + 1) % 4]);
+                                piece.need = next;
+                                break;
+                            }
+                            if ((visited[(nextR - fromRow) * cols + nextC] & (1 << nextSide)) != 0) {
+                                // back to the start of a closed ring
+                                piece.add(edgeC + CORNER_X[(side + 1) % 4], edgeR + CORNER_Y[(side + 1) % 4]);
+                                piece.closed = true;
+                                break;
+                            }
+                            if (nextSide != side) {
+                                // only the corners of the ring are kept
+                                piece.add(nextC + CORNER_X[nextSide], nextR + CORNER_Y[nextSide]);
+                            }
+                            edgeC = nextC;
+                            edgeR = nextR;
+                            side = nextSide;
+                        }
+                        pieces.add(piece);
+                    }
+                }
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * The value of a cell in a region.
+     *
+     * @return the value or NaN for cells outside of the raster, novalues and cells of
+     *          other values than the region value, if given.
+     */
+    private double value( Double regionValue, int c, int r ) {
+        if (c < 0 || r < 0 || c >= cols || r >= rows) {
+            return Double.NaN;
+        }
+        double value = data[r * cols + c];
+        if (isNovalue(value) || (regionValue != null && value != regionValue)) {
+            return Double.NaN;
+        }
+        return value;
+    }
+
+    private long edgeId( int c, int r, int side ) {
+        return ((long) r * cols + c) * 4 + side;
+    }
+
+    /**
+     * The edge that follows an edge, turning toward the region, so that cells that
+     * touch at a corner are not connected.
+     */
+    private long nextEdge( Double regionValue, double value, int c, int r, int side ) {
+        int aheadC = c + DX[side];
+        int aheadR = r + DY[side];
+        if (value(regionValue, aheadC, aheadR) != value) {
+            return edgeId(c, r, (side + 1) % 4);
+        }
+        int leftC = aheadC + DY[side];
+        int leftR = aheadR - DX[side];
+        if (value(regionValue, leftC, leftR) == value) {
+            return edgeId(leftC, leftR, (side + 3) % 4);
+        }
+        return edgeId(aheadC, aheadR, side);
+    }
+
+    /**
+     * The edge that precedes an edge, the inverse of {@link #nextEdge(Double, double, int, int, int)}.
+     */
+    private long previousEdge( Double regionValue, double value, int c, int r, int side ) {
+        int behindC = c - DX[side];
+        int behindR = r - DY[side];
+        if (value(regionValue, behindC, behindR) != value) {
+            return edgeId(c, r, (side + 3) % 4);
+        }
+        int leftC = behindC + DY[side];
+        int leftR = behindR - DX[side];
+        if (value(regionValue, leftC, leftR) == value) {
+            return edgeId(leftC, leftR, (side + 1) % 4);
+        }
+        return edgeId(behindC, behindR, side);
+    }
+
+    /*
+     * ------------------------------------------------------------------------
+     * bands and stitching
+     * ------------------------------------------------------------------------
+     */
+
+    private static interface Tracer {
+        public List<Piece> trace( int fromRow, int toRow );
+    }
+
+    private void run( String task, final int rowsNum, final Tracer tracer, final Stitcher stitcher ) throws Exception {
+        if (rowsNum <= 0) {
+            return;
+        }
+        final int bandRows = ThreadedBands.getBandLines(rowsNum, threads);
+        final int bandsNum = ThreadedBands.getBandsNum(rowsNum, bandRows);
+        final List<List<Piece>> traced = new ArrayList<List<Piece>>(Collections.nCopies(bandsNum, (List<Piece>) null));
+
+        ThreadedBands.runBands(bandsNum, threads, task, pm, new Band(){
+            public void run( int b ) throws Exception {
+                int fromRow = b * bandRows;
+                int toRow = Math.min(rowsNum, fromRow + bandRows);
+                List<Piece> pieces = tracer.trace(fromRow, toRow);
+                synchronized (stitcher) {
+                    // merge the bands in order, as far as they are ready
+                    traced.set(b, pieces);
+                    while( stitcher.merged < bandsNum && traced.get(stitcher.merged) != null ) {
+                        stitcher.merge(traced.get(stitcher.merged));
+                        traced.set(stitcher.merged, null);
+                        stitcher.merged++;
+                    }
+                }
+            }
+        });
+        stitcher.checkDone();
+    }
+
+    /**
+     * A piece of line in grid coordinates.
+     */
+    private static class Piece {
+        private final double value;
+        /**
+         * Whether the piece follows the borders of the cells, which have straight runs.
+         */
+        private final boolean borders;
+        /**
+         * The id of the first side or edge, -1 for contours that start at a novalue or border.
+         */
+        private long first = -1;
+        /**
+         * The id of the side or edge that follows, -1 for contours that end at a novalue or border.
+         */
+        private long need = -1;
+        private boolean closed;
+        private double[] xy = new double[16];
+        private int size;
+
+        private double area;
+        private double minX;
+        private double minY;
+        private double maxX;
+        private double maxY;
+
+        private Piece( double value, boolean borders ) {
+            this.value = value;
+            this.borders = borders;
+        }
+
+        private void add( double x, double y ) {
+            if (size * 2 == xy.length) {
+                xy = Arrays.copyOf(xy, xy.length * 2);
+            }
+            xy[size * 2] = x;
+            xy[size * 2 + 1] = y;
+            size++;
+        }
+
+        /**
+         * Append the piece that follows, whose first point is the last of this one.
+         */
+        private void append( Piece other ) {
+            if (borders && size > 1 && isStraight(xy[size * 2 - 4], xy[size * 2 - 3], xy[size * 2 - 2], xy[size * 2 - 1], other.xy[2],
+                    other.xy[3])) {
+                // the seam is in the middle of a straight border
+                size--;
+            }
+            int newSize = size + other.size - 1;
+            if (newSize * 2 > xy.length) {
+                xy = Arrays.copyOf(xy, Math.max(xy.length * 2, newSize * 2));
+            }
+            System.arraycopy(other.xy, 2, xy, size * 2, (other.size - 1) * 2);
+            size = newSize;
+            need = other.need;
+        }
+
+        /**
+         * Move the start of a closed ring off a straight border, so that rings
+         * do not depend on where they have been closed.
+         */
+        private void dropStraightStart() {
+            if (size > 4 && isStraight(xy[size * 2 - 4], xy[size * 2 - 3], xy[0], xy[1], xy[2], xy[3])) {
+                System.arraycopy(xy, 2, xy, 0, (size - 2) * 2);
+                size--;
+                xy[size * 2 - 2] = xy[0];
+                xy[size * 2 - 1] = xy[1];
+            }
+        }
+
+        private static boolean isStraight( double x1, double y1, double x2, double y2, double x3, double y3 ) {
+            return (x1 == x2 && x2 == x3) || (y1 == y2 && y2 == y3);
+        }
+
+        /**
+         * Split a closed ring at the vertices it passes more than once, where its cells
+         * touch at a corner, into simple rings.
+         *
+         * @param stride the number of vertices per row of the grid.
+         * @return the simple rings, this one if it has no such vertices.
+         */
+        private List<Piece> splitTouching( int stride ) {
+            int vertices = size - 1;
+            long[] keys = new long[vertices];
+            for( int i = 0; i < vertices; i++ ) {
+                keys[i] = (long) xy[i * 2 + 1] * stride + (long) xy[i * 2];
+            }
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+            // the position in the current path of the vertices that are passed more than once
+            HashMap<Long, Integer> touching = new HashMap<Long, Integer>();
+            for( int i = 1; i < vertices; i++ ) {
+                if (sorted[i] == sorted[i - 1]) {
+                    touching.put(sorted[i], -1);
+                }
+            }
+            if (touching.isEmpty()) {
+                return Collections.singletonList(this);
+            }
+
+            List<Piece> rings = new ArrayList<Piece>();
+            int[] path = new int[vertices];
+            int pathSize = 0;
+            for( int i = 0; i < vertices; i++ ) {
+                Integer position = touching.get(keys[i]);
+                if (position == null) {
+                    path[pathSize++] = i;
+                } else if (position < 0) {
+                    touching.put(keys[i], pathSize);
+                    path[pathSize++] = i;
+                } else {
+                    // the loop since the last visit of the vertex is a ring of its own
+                    Piece ring = new Piece(value, borders);
+                    for( int k = position; k < pathSize; k++ ) {
+                        ring.add(xy[path[k] * 2], xy[path[k] * 2 + 1]);
+                        if (k > position && touching.containsKey(keys[path[k]])) {
+                            touching.put(keys[path[k]], -1);
+                        }
+                    }
+                    ring.add(xy[i * 2], xy[i * 2 + 1]);
+                    rings.add(ring);
+                    pathSize = position + 1;
+                }
+            }
+            Piece ring = new Piece(value, borders);
+            for( int k = 0; k < pathSize; k++ ) {
+                ring.add(xy[path[k] * 2], xy[path[k] * 2 + 1]);
+            }
+            ring.add(xy[path[0] * 2], xy[path[0] * 2 + 1]);
+            rings.add(ring);
+            return rings;
+        }
+
+        /**
+         * Compute the signed area, positive for shells, and the bounds of a ring.
+         */
+        private void measure() {
+            minX = minY = Double.POSITIVE_INFINITY;
+            maxX = maxY = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            for( int i = 0; i < size - 1; i++ ) {
+                double x1 = xy[i * 2];
+                double y1 = xy[i * 2 + 1];
+                double x2 = xy[i * 2 + 2];
+                double y2 = xy[i * 2 + 3];
+                sum += x1 * y2 - x2 * y1;
+                minX = Math.min(minX, x1);
+                minY = Math.min(minY, y1);
+                maxX = Math.max(maxX, x1);
+                maxY = Math.max(maxY, y1);
+            }
+            area = sum / 2.0;
+        }
+
+        private Envelope getBounds() {
+            return new Envelope(minX, maxX, minY, maxY);
+        }
+
+        /**
+         * Whether a ring is inside this ring, tested at the middle of one of its
+         * vertical edges, which can't lie on the border of this ring.
+         */
+        private boolean contains( Piece ring ) {
+            if (ring.minX < minX || ring.maxX > maxX || ring.minY < minY || ring.maxY > maxY) {
+                return false;
+            }
+            double x = Double.NaN;
+            double y = Double.NaN;
+            for( int i = 0; i < ring.size - 1; i++ ) {
+                if (ring.xy[i * 2] == ring.xy[i * 2 + 2]) {
+                    x = ring.xy[i * 2];
+                    y = Math.min(ring.xy[i * 2 + 1], ring.xy[i * 2 + 3]) + 0.5;
+                    break;
+                }
+            }
+            boolean inside = false;
+            for( int i = 0; i < size - 1; i++ ) {
+                double x1 = xy[i * 2];
+                double y1 = xy[i * 2 + 1];
+                double y2 = xy[i * 2 + 3];
+                if (x1 == xy[i * 2 + 2] && x1 > x && Math.min(y1, y2) < y && Math.max(y1, y2) > y) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+
+    /**
+     * Joins the pieces of the bands and hands the complete geometries to the sink.
+     */
+    private class Stitcher {
+        private final GeometrySink sink;
+        private final boolean polygons;
+        private final HashMap<Long, Piece> byFirst = new HashMap<Long, Piece>();
+        private final HashMap<Long, Piece> byNeed = new HashMap<Long, Piece>();
+        private final List<Piece> closedRings = new ArrayList<Piece>();
+        /**
+         * The holes waiting for their shell, by their bounds.
+         */
+        private final Quadtree pendingHoles = new Quadtree();
+        private int merged = 0;
+
+        private Stitcher( GeometrySink sink, boolean polygons ) {
+            this.sink = sink;
+            this.polygons = polygons;
+        }
+
+        private void merge( List<Piece> pieces ) throws Exception {
+            for( Piece piece : pieces ) {
+                if (piece.closed) {
+                    complete(piece);
+                } else {
+                    add(piece);
+                }
+            }
+            if (polygons) {
+                completeRings();
+            }
+        }
+
+        private void add( Piece piece ) throws Exception {
+            if (piece.first != -1) {
+                Piece before = byNeed.remove(piece.first);
+                if (before != null) {
+                    byFirst.remove(before.first);
+                    before.append(piece);
+                    piece = before;
+                }
+            }
+            if (piece.need != -1 && piece.need == piece.first) {
+                piece.closed = true;
+                complete(piece);
+                return;
+            }
+            if (piece.need != -1) {
+                Piece after = byFirst.remove(piece.need);
+                if (after != null) {
+                    byNeed.remove(after.need);
+                    piece.append(after);
+                    if (piece.need != -1 && piece.need == piece.first) {
+                        piece.closed = true;
+                        complete(piece);
+                        return;
+                    }
+                }
+            }
+            if (piece.first == -1 && piece.need == -1) {
+                complete(piece);
+                return;
+            }
+            if (piece.first != -1) {
+                byFirst.put(piece.first, piece);
+            }
+            if (piece.need != -1) {
+                byNeed.put(piece.need, piece);
+            }
+        }
+
+        private void complete( Piece piece ) throws Exception {
+            if (polygons) {
+                for( Piece ring : piece.splitTouching(cols + 1) ) {
+                    ring.dropStraightStart();
+                    closedRings.add(ring);
+                }
+            } else {
+                sink.geometry(gf.createLineString(toWorld(piece)), piece.value);
+            }
+        }
+
+        /**
+         * Build the polygons of the shells closed in the last band, from the inner ones.
+         */
+        private void completeRings() throws Exception {
+            List<Piece> shells = new ArrayList<Piece>();
+            for( Piece ring : closedRings ) {
+                ring.measure();
+                if (ring.area > 0) {
+                    shells.add(ring);
+                } else {
+                    pendingHoles.insert(ring.getBounds(), ring);
+                }
+            }
+            closedRings.clear();
+            Collections.sort(shells, new Comparator<Piece>(){
+                public int compare( Piece o1, Piece o2 ) {
+                    return Double.compare(o1.area, o2.area);
+                }
+            });
+            for( Piece shell : shells ) {
+                List<LinearRing> holes = new ArrayList<LinearRing>();
+                Envelope shellBounds = shell.getBounds();
+                for( Object item : pendingHoles.query(shellBounds) ) {
+                    Piece hole = (Piece) item;
+                    if (hole.value == shell.value && shell.contains(hole)) {
+                        holes.add(gf.createLinearRing(toWorld(hole)));
+                        pendingHoles.remove(hole.getBounds(), hole);
+                    }
+                }
+                LinearRing shellRing = gf.createLinearRing(toWorld(shell));
+                sink.geometry(gf.createPolygon(shellRing, holes.toArray(new LinearRing[holes.size()])), shell.value);
+            }
+        }
+
+        private void checkDone() {
+            if (!byFirst.isEmpty() || !byNeed.isEmpty() || pendingHoles.size() > 0) {
+                throw new IllegalStateException("Lines left open after the merge of the bands.");
+            }
+        }
+    }
+
+    private Coordinate[] toWorld( Piece piece ) {
+        double[] xy = Arrays.copyOf(piece.xy, piece.size * 2);
+        gridToWorld.transform(xy, 0, xy, 0, piece.size);
+        Coordinate[] coordinates = new Coordinate[piece.size];
+        for( int i = 0; i < piece.size; i++ ) {
+            coordinates[i] = new Coordinate(xy[i * 2], xy[i * 2 + 1]);
+        }
+        return coordinates;
+    }
+}
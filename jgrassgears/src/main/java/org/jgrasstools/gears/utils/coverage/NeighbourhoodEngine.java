@@ -0,0 +1,692 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.util.Arrays;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Neighbourhood operations on a raster held in a primitive array.
+ *
+ * <p>The values are given row major, novalues are skipped by all the operations
+ * and the cells outside of the raster are treated as novalues. The rows (or the
+ * columns for vertical passes) are split into bands that are processed in parallel,
+ * each band writing only its own part of the result.</p>
+ *
+ * <p>The cost per cell does not depend on the kernel area where possible:
+ * <ul>
+ * <li>kernels that are the product of a row and a column factor (box, gaussian)
+ * are applied as two one dimensional passes;</li>
+ * <li>other kernels are split in runs of equal weight along the rows, which are
+ * summed through prefix sums of the rows;</li>
+ * <li>min and max use the van Herk/Gil-Werman sliding window algorithm along the
+ * rows, and also along the columns for rectangular kernels;</li>
+ * <li>window sums and means are read from a {@link SummedAreaTable}.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class NeighbourhoodEngine {
+
+    /**
+     * Tolerance used to decide whether a kernel is separable.
+     */
+    private static final double EPSILON = 1E-9;
+
+    private final double[] data;
+    private final int cols;
+    private final int rows;
+    private final int threads;
+    private final IJGTProgressMonitor pm;
+
+    /**
+     * Constructor.
+     *
+     * @param data the raster values, row major.
+     * @param cols the columns of the raster.
+     * @param rows the rows of the raster.
+     * @param threads the number of threads to use.
+     * @param pm the monitor, which receives a worked unit per band.
+     */
+    public NeighbourhoodEngine( double[] data, int cols, int rows, int threads, IJGTProgressMonitor pm ) {
+        if (data.length < cols * rows) {
+            throw new IllegalArgumentException("The data array is smaller than the raster.");
+        }
+        this.data = data;
+        this.cols = cols;
+        this.rows = rows;
+        this.threads = Math.max(1, threads);
+        this.pm = pm;
+    }
+
+    /**
+     * A kernel of weights, applied with its key element on the processed cell.
+     *
+     * <p>The kernel element (kc, kr) falls on the raster cell (c + kc - keyCol, r + kr - keyRow).
+     * Elements with zero weight are not part of the neighbourhood.</p>
+     */
+    public static class Kernel {
+        private final double[] weights;
+        private final int cols;
+        private final int rows;
+        private final int keyCol;
+        private final int keyRow;
+
+        /*
+         * the runs of equal, non zero weight along the kernel rows
+         */
+        private final int[] runRow;
+        private final int[] runCol;
+        private final int[] runLength;
+        private final double[] runWeight;
+
+        /*
+         * the factors of a separable kernel, null if not separable
+         */
+        private double[] rowFactor;
+        private double[] colFactor;
+
+        /**
+         * Constructor.
+         *
+         * @param weights the weights, row major.
+         * @param cols the columns of the kernel.
+         * @param rows the rows of the kernel.
+         * @param keyCol the column of the key element.
+         * @param keyRow the row of the key element.
+         */
+        public Kernel( double[] weights, int cols, int rows, int keyCol, int keyRow ) {
+            if (cols < 1 || rows < 1 || weights.length != cols * rows) {
+                throw new IllegalArgumentException("The kernel weights don't match the kernel size.");
+            }
+            if (keyCol < 0 || keyCol >= cols || keyRow < 0 || keyRow >= rows) {
+                throw new IllegalArgumentException("The key element needs to be inside the kernel.");
+            }
+            this.weights = weights;
+            this.cols = cols;
+            this.rows = rows;
+            this.keyCol = keyCol;
+            this.keyRow = keyRow;
+
+            int runsNum = 0;
+            for( int i = 0; i < weights.length; i++ ) {
+                if (weights[i] != 0 && (i % cols == 0 || weights[i - 1] != weights[i])) {
+                    runsNum++;
+                }
+            }
+            runRow = new int[runsNum];
+            runCol = new int[runsNum];
+            runLength = new int[runsNum];
+            runWeight = new double[runsNum];
+            int run = -1;
+            for( int i = 0; i < weights.length; i++ ) {
+                if (weights[i] == 0) {
+                    continue;
+                }
+                if (i % cols == 0 || weights[i - 1] != weights[i]) {
+                    run++;
+                    runRow[run] = i / cols;
+                    runCol[run] = i % cols;
+                    runWeight[run] = weights[i];
+                }
+                runLength[run]++;
+            }
+
+            factorize();
+        }
+
+        /**
+         * Constructor for a square kernel centered on the processed cell.
+         *
+         * @param weights the weights, row major.
+         * @param size the side of the kernel, odd.
+         */
+        public Kernel( double[] weights, int size ) {
+            this(weights, size, size, size / 2, size / 2);
+        }
+
+        /**
+         * Create a rectangular kernel of unit weights.
+         *
+         * @param cols the columns of the kernel.
+         * @param rows the rows of the kernel.
+         * @param keyCol the column of the key element.
+         * @param keyRow the row of the key element.
+         * @return the kernel.
+         */
+        public static Kernel rectangle( int cols, int rows, int keyCol, int keyRow ) {
+            double[] weights = new double[cols * rows];
+            Arrays.fill(weights, 1.0);
+            return new Kernel(weights, cols, rows, keyCol, keyRow);
+        }
+
+        public int getCols() {
+            return cols;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getKeyCol() {
+            return keyCol;
+        }
+
+        public int getKeyRow() {
+            return keyRow;
+        }
+
+        /**
+         * @param col the column of the element.
+         * @param row the row of the element.
+         * @return the weight of the element.
+         */
+        public double getWeight( int col, int row ) {
+            return weights[row * cols + col];
+        }
+
+        /**
+         * Try to split the weights in the product of a column and a row factor.
+         */
+        private void factorize() {
+            int pivot = 0;
+            for( int i = 1; i < weights.length; i++ ) {
+                if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                    pivot = i;
+                }
+            }
+            double pivotWeight = weights[pivot];
+            if (pivotWeight == 0) {
+                return;
+            }
+            double[] row = new double[cols];
+            double[] col = new double[rows];
+            System.arraycopy(weights, (pivot / cols) * cols, row, 0, cols);
+            for( int r = 0; r < rows; r++ ) {
+                col[r] = weights[r * cols + pivot % cols] / pivotWeight;
+            }
+            double tolerance = Math.abs(pivotWeight) * EPSILON;
+            for( int r = 0; r < rows; r++ ) {
+                for( int c = 0; c < cols; c++ ) {
+                    if (Math.abs(weights[r * cols + c] - col[r] * row[c]) > tolerance) {
+                        return;
+                    }
+                }
+            }
+            rowFactor = row;
+            colFactor = col;
+        }
+
+        /**
+         * @return <code>true</code> if the kernel is the product of a row and a column factor.
+         */
+        public boolean isSeparable() {
+            return rowFactor != null;
+        }
+
+        /**
+         * @return <code>true</code> if all the elements are part of the neighbourhood.
+         */
+        public boolean isFull() {
+            for( double weight : weights ) {
+                if (weight == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Weighted average of the valid values in the kernel.
+     *
+     * <p>The sum of the weights of the valid cells is used as divisor, cells without
+     * valid values in the kernel get novalue.</p>
+     *
+     * @param kernel the kernel.
+     * @return the filtered values.
+     */
+    public double[] convolve( final Kernel kernel ) {
+        final double[] out = new double[cols * rows];
+        if (kernel.isSeparable()) {
+            final double[] sums = new double[cols * rows];
+            final double[] weights = new double[cols * rows];
+            runBands("Filtering rows...", rows, new Band(){
+                public void run( int from, int to ) {
+                    double[] line = new double[cols];
+                    double[] valid = new double[cols];
+                    double[] prefix = new double[cols + 1];
+                    double[] lineOut = new double[cols];
+                    for( int r = from; r < to; r++ ) {
+                        for( int c = 0; c < cols; c++ ) {
+                            double value = data[r * cols + c];
+                            boolean isValid = !isNovalue(value);
+                            line[c] = isValid ? value : 0.0;
+                            valid[c] = isValid ? 1.0 : 0.0;
+                        }
+                        correlate(line, cols, kernel.rowFactor, kernel.keyCol, prefix, lineOut);
+                        System.arraycopy(lineOut, 0, sums, r * cols, cols);
+                        correlate(valid, cols, kernel.rowFactor, kernel.keyCol, prefix, lineOut);
+                        System.arraycopy(lineOut, 0, weights, r * cols, cols);
+                    }
+                }
+            });
+            runBands("Filtering columns...", cols, new Band(){
+                public void run( int from, int to ) {
+                    double[] sumLine = new double[rows];
+                    double[] weightLine = new double[rows];
+                    double[] prefix = new double[rows + 1];
+                    double[] sumOut = new double[rows];
+                    double[] weightOut = new double[rows];
+                    for( int c = from; c < to; c++ ) {
+                        for( int r = 0; r < rows; r++ ) {
+                            sumLine[r] = sums[r * cols + c];
+                            weightLine[r] = weights[r * cols + c];
+                        }
+                        correlate(sumLine, rows, kernel.colFactor, kernel.keyRow, prefix, sumOut);
+                        correlate(weightLine, rows, kernel.colFactor, kernel.keyRow, prefix, weightOut);
+                        for( int r = 0; r < rows; r++ ) {
+                            out[r * cols + c] = weightOut[r] == 0 ? doubleNovalue : sumOut[r] / weightOut[r];
+                        }
+                    }
+                }
+            });
+        } else {
+            runBands("Filtering...", rows, new Band(){
+                public void run( int from, int to ) {
+                    // prefix sums of values and valid cells of the rows the band reads
+                    int fromSource = Math.max(0, from - kernel.keyRow);
+                    int toSource = Math.min(rows, to - 1 + kernel.rows - kernel.keyRow);
+                    int stride = cols + 1;
+                    double[] sums = new double[(toSource - fromSource) * stride];
+                    int[] counts = new int[sums.length];
+                    for( int r = fromSource; r < toSource; r++ ) {
+                        int offset = (r - fromSource) * stride;
+                        for( int c = 0; c < cols; c++ ) {
+                            double value = data[r * cols + c];
+                            boolean isValid = !isNovalue(value);
+                            sums[offset + c + 1] = sums[offset + c] + (isValid ? value : 0.0);
+                            counts[offset + c + 1] = counts[offset + c] + (isValid ? 1 : 0);
+                        }
+                    }
+                    for( int r = from; r < to; r++ ) {
+                        for( int c = 0; c < cols; c++ ) {
+                            double sum = 0;
+                            double weight = 0;
+                            for( int k = 0; k < kernel.runLength.length; k++ ) {
+                                int sourceRow = r + kernel.runRow[k] - kernel.keyRow;
+                                if (sourceRow < 0 || sourceRow >= rows) {
+                                    continue;
+                                }
+                                int fromCol = c + kernel.runCol[k] - kernel.keyCol;
+                                int toCol = Math.min(cols, fromCol + kernel.runLength[k]);
+                                fromCol = Math.max(0, fromCol);
+                                if (fromCol >= toCol) {
+                                    continue;
+                                }
+                                int offset = (sourceRow - fromSource) * stride;
+                                sum += kernel.runWeight[k] * (sums[offset + toCol] - sums[offset + fromCol]);
+                                weight += kernel.runWeight[k] * (counts[offset + toCol] - counts[offset + fromCol]);
+                            }
+                            out[r * cols + c] = weight == 0 ? doubleNovalue : sum / weight;
+                        }
+                    }
+                }
+            });
+        }
+        return out;
+    }
+
+    /**
+     * Max of the values in the kernel elements with non zero weight.
+     *
+     * @param kernel the kernel.
+     * @param strict if <code>true</code> a novalue in the kernel gives novalue, else
+     *          the novalues are skipped.
+     * @return the max values, novalue where no valid value is in the kernel.
+     */
+    public double[] max( Kernel kernel, boolean strict ) {
+        return extreme(kernel, true, strict);
+    }
+
+    /**
+     * Min of the values in the kernel elements with non zero weight.
+     *
+     * @param kernel the kernel.
+     * @param strict if <code>true</code> a novalue in the kernel gives novalue, else
+     *          the novalues are skipped.
+     * @return the min values, novalue where no valid value is in the kernel.
+     */
+    public double[] min( Kernel kernel, boolean strict ) {
+        return extreme(kernel, false, strict);
+    }
+
+    private double[] extreme( final Kernel kernel, final boolean isMax, boolean strict ) {
+        /*
+         * novalues are replaced by the value that is skipped by the operation or,
+         * if strict, by the one that wins over all others. Infinite results are
+         * then set back to novalue.
+         */
+        final double skipped = isMax ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        final double padding = strict ? -skipped : skipped;
+        final double[] out = new double[cols * rows];
+        if (kernel.isFull()) {
+            final double[] lines = new double[cols * rows];
+            runBands("Filtering rows...", rows, new Band(){
+                public void run( int from, int to ) {
+                    SlidingWindow window = new SlidingWindow(cols + 2 * kernel.cols, isMax);
+                    for( int r = from; r < to; r++ ) {
+                        window.clear(padding);
+                        for( int c = 0; c < cols; c++ ) {
+                            double value = data[r * cols + c];
+                            window.line[kernel.cols + c] = isNovalue(value) ? padding : value;
+                        }
+                        window.slide(kernel.cols);
+                        System.arraycopy(window.result, kernel.cols - kernel.keyCol, lines, r * cols, cols);
+                    }
+                }
+            });
+            runBands("Filtering columns...", cols, new Band(){
+                public void run( int from, int to ) {
+                    SlidingWindow window = new SlidingWindow(rows + 2 * kernel.rows, isMax);
+                    for( int c = from; c < to; c++ ) {
+                        window.clear(padding);
+                        for( int r = 0; r < rows; r++ ) {
+                            window.line[kernel.rows + r] = lines[r * cols + c];
+                        }
+                        window.slide(kernel.rows);
+                        for( int r = 0; r < rows; r++ ) {
+                            double value = window.result[kernel.rows - kernel.keyRow + r];
+                            out[r * cols + c] = Double.isInfinite(value) ? doubleNovalue : value;
+                        }
+                    }
+                }
+            });
+        } else {
+            // the distinct run lengths, each needs its own sliding window
+            int[] lengths = new int[kernel.runLength.length];
+            int lengthsNum = 0;
+            final int[] runLengthIndex = new int[kernel.runLength.length];
+            for( int k = 0; k < kernel.runLength.length; k++ ) {
+                int index = 0;
+                while( index < lengthsNum && lengths[index] != kernel.runLength[k] ) {
+                    index++;
+                }
+                if (index == lengthsNum) {
+                    lengths[lengthsNum++] = kernel.runLength[k];
+                }
+                runLengthIndex[k] = index;
+            }
+            final int[] distinctLengths = Arrays.copyOf(lengths, lengthsNum);
+            runBands("Filtering...", rows, new Band(){
+                public void run( int from, int to ) {
+                    int fromSource = Math.max(0, from - kernel.keyRow);
+                    int toSource = Math.min(rows, to - 1 + kernel.rows - kernel.keyRow);
+                    int pad = kernel.cols;
+                    int stride = cols + 2 * pad;
+                    // the sliding extremes of every run length on the rows the band reads
+                    double[][] slided = new double[distinctLengths.length][(toSource - fromSource) * stride];
+                    SlidingWindow window = new SlidingWindow(stride, isMax);
+                    for( int r = fromSource; r < toSource; r++ ) {
+                        window.clear(padding);
+                        for( int c = 0; c < cols; c++ ) {
+                            double value = data[r * cols + c];
+                            window.line[pad + c] = isNovalue(value) ? padding : value;
+                        }
+                        for( int l = 0; l < distinctLengths.length; l++ ) {
+                            window.slide(distinctLengths[l]);
+                            System.arraycopy(window.result, 0, slided[l], (r - fromSource) * stride, stride);
+                        }
+                    }
+                    for( int r = from; r < to; r++ ) {
+                        for( int c = 0; c < cols; c++ ) {
+                            double value = skipped;
+                            for( int k = 0; k < kernel.runLength.length; k++ ) {
+                                int sourceRow = r + kernel.runRow[k] - kernel.keyRow;
+                                double runValue;
+                                if (sourceRow < 0 || sourceRow >= rows) {
+                                    runValue = padding;
+                                } else {
+                                    int index = (sourceRow - fromSource) * stride + pad + c + kernel.runCol[k] - kernel.keyCol;
+                                    runValue = slided[runLengthIndex[k]][index];
+                                }
+                                value = isMax ? Math.max(value, runValue) : Math.min(value, runValue);
+                            }
+                            out[r * cols + c] = Double.isInfinite(value) ? doubleNovalue : value;
+                        }
+                    }
+                }
+            });
+        }
+        return out;
+    }
+
+    /**
+     * Create the summed area table of the raster, for window sums and means.
+     *
+     * @return the table.
+     */
+    public SummedAreaTable createSummedAreaTable() {
+        final int stride = cols + 1;
+        final double[] sums = new double[stride * (rows + 1)];
+        final int[] counts = new int[sums.length];
+        runBands("Summing rows...", rows, new Band(){
+            public void run( int from, int to ) {
+                for( int r = from; r < to; r++ ) {
+                    int offset = (r + 1) * stride;
+                    for( int c = 0; c < cols; c++ ) {
+                        double value = data[r * cols + c];
+                        boolean isValid = !isNovalue(value);
+                        sums[offset + c + 1] = sums[offset + c] + (isValid ? value : 0.0);
+                        counts[offset + c + 1] = counts[offset + c] + (isValid ? 1 : 0);
+                    }
+                }
+            }
+        });
+        runBands("Summing columns...", cols, new Band(){
+            public void run( int from, int to ) {
+                for( int r = 1; r <= rows; r++ ) {
+                    int offset = r * stride;
+                    for( int c = from + 1; c <= to; c++ ) {
+                        sums[offset + c] += sums[offset - stride + c];
+                        counts[offset + c] += counts[offset - stride + c];
+                    }
+                }
+            }
+        });
+        return new SummedAreaTable(sums, counts, cols, rows);
+    }
+
+    /**
+     * Sums and counts of the valid values of a raster, readable for any window in constant time.
+     */
+    public static class SummedAreaTable {
+        private final double[] sums;
+        private final int[] counts;
+        private final int cols;
+        private final int rows;
+
+        private SummedAreaTable( double[] sums, int[] counts, int cols, int rows ) {
+            this.sums = sums;
+            this.counts = counts;
+            this.cols = cols;
+            this.rows = rows;
+        }
+
+        /**
+         * Get the sum of the valid values in a window, clipped to the raster.
+         *
+         * @param fromCol the first column of the window.
+         * @param fromRow the first row of the window.
+         * @param toCol the column after the last one of the window.
+         * @param toRow the row after the last one of the window.
+         * @return the sum, 0 if no valid value is in the window.
+         */
+        public double getSum( int fromCol, int fromRow, int toCol, int toRow ) {
+            int c1 = Math.max(0, Math.min(cols, fromCol));
+            int c2 = Math.max(c1, Math.min(cols, toCol));
+            int r1 = Math.max(0, Math.min(rows, fromRow));
+            int r2 = Math.max(r1, Math.min(rows, toRow));
+            int stride = cols + 1;
+            return sums[r2 * stride + c2] - sums[r1 * stride + c2] - sums[r2 * stride + c1] + sums[r1 * stride + c1];
+        }
+
+        /**
+         * Get the number of valid values in a window, clipped to the raster.
+         *
+         * @param fromCol the first column of the window.
+         * @param fromRow the first row of the window.
+         * @param toCol the column after the last one of the window.
+         * @param toRow the row after the last one of the window.
+         * @return the number of valid values.
+         */
+        public int getCount( int fromCol, int fromRow, int toCol, int toRow ) {
+            int c1 = Math.max(0, Math.min(cols, fromCol));
+            int c2 = Math.max(c1, Math.min(cols, toCol));
+            int r1 = Math.max(0, Math.min(rows, fromRow));
+            int r2 = Math.max(r1, Math.min(rows, toRow));
+            int stride = cols + 1;
+            return counts[r2 * stride + c2] - counts[r1 * stride + c2] - counts[r2 * stride + c1] + counts[r1 * stride + c1];
+        }
+
+        /**
+         * Get the mean of the valid values in a window, clipped to the raster.
+         *
+         * @param fromCol the first column of the window.
+         * @param fromRow the first row of the window.
+         * @param toCol the column after the last one of the window.
+         * @param toRow the row after the last one of the window.
+         * @return the mean, novalue if no valid value is in the window.
+         */
+        public double getMean( int fromCol, int fromRow, int toCol, int toRow ) {
+            int count = getCount(fromCol, fromRow, toCol, toRow);
+            if (count == 0) {
+                return doubleNovalue;
+            }
+            return getSum(fromCol, fromRow, toCol, toRow) / count;
+        }
+    }
+
+    /**
+     * Correlate a line with a one dimensional kernel, the values outside of the line being 0.
+     */
+    private static void correlate( double[] line, int n, double[] kernel, int key, double[] prefix, double[] out ) {
+        boolean constant = true;
+        for( int k = 1; k < kernel.length; k++ ) {
+            if (kernel[k] != kernel[0]) {
+                constant = false;
+                break;
+            }
+        }
+        if (constant) {
+            for( int i = 0; i < n; i++ ) {
+                prefix[i + 1] = prefix[i] + line[i];
+            }
+            for( int i = 0; i < n; i++ ) {
+                int from = Math.max(0, i - key);
+                int to = Math.min(n, i - key + kernel.length);
+                out[i] = from < to ? kernel[0] * (prefix[to] - prefix[from]) : 0.0;
+            }
+        } else {
+            for( int i = 0; i < n; i++ ) {
+                int from = Math.max(0, key - i);
+                int to = Math.min(kernel.length, n - i + key);
+                double sum = 0;
+                for( int k = from; k < to; k++ ) {
+                    sum += kernel[k] * line[i + k - key];
+                }
+                out[i] = sum;
+            }
+        }
+    }
+
+    /**
+     * The van Herk/Gil-Werman sliding min or max on a line, with constant cost per element.
+     */
+    private static class SlidingWindow {
+        private final double[] line;
+        private final double[] result;
+        private final double[] forward;
+        private final double[] backward;
+        private final boolean isMax;
+
+        SlidingWindow( int length, boolean isMax ) {
+            this.isMax = isMax;
+            line = new double[length];
+            result = new double[length];
+            forward = new double[length];
+            backward = new double[length];
+        }
+
+        void clear( double value ) {
+            Arrays.fill(line, value);
+        }
+
+        /**
+         * Set result[i] to the extreme of line[i ... i + window - 1], for all the windows inside the line.
+         */
+        void slide( int window ) {
+            int n = line.length;
+            for( int i = 0; i < n; i++ ) {
+                forward[i] = i % window == 0 ? line[i] : extreme(forward[i - 1], line[i]);
+            }
+            for( int i = n - 1; i >= 0; i-- ) {
+                backward[i] = i == n - 1 || (i + 1) % window == 0 ? line[i] : extreme(backward[i + 1], line[i]);
+            }
+            for( int i = 0; i + window <= n; i++ ) {
+                result[i] = extreme(backward[i], forward[i + window - 1]);
+            }
+        }
+
+        private double extreme( double a, double b ) {
+            return isMax ? Math.max(a, b) : Math.min(a, b);
+        }
+    }
+
+    private interface Band {
+        void run( int from, int to );
+    }
+
+    /**
+     * Split a number of lines in bands and run them in parallel.
+     */
+    private void runBands( String task, final int lines, final Band band ) {
+        final int bandLines = ThreadedBands.getBandLines(lines, threads);
+        int bandsNum = ThreadedBands.getBandsNum(lines, bandLines);
+        try {
+            ThreadedBands.runBands(bandsNum, threads, task, pm, new ThreadedBands.Band(){
+                public void run( int b ) {
+                    int from = b * bandLines;
+                    band.run(from, Math.min(lines, from + bandLines));
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // the bands only throw unchecked exceptions
+            throw new ModelsRuntimeException(e.getLocalizedMessage(), this);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.Band;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.RegionMap;
+
+/**
+ * Rasterizer of 3d triangles by scan conversion.
+ *
+ * <p>The triangles are supplied as a flat array of x, y, z values, nine values
+ * per triangle. Every cell whose center falls inside a triangle gets the value
+ * of the triangle plane in the center, calculated through barycentric coordinates.
+ * Where triangles overlap the highest value is kept.</p>
+ *
+ * <p>The rows of the raster are split into bands that are processed in parallel.
+ * Each band only visits the triangles that touch its rows and only writes its
+ * own rows, so no locking is needed.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TriangleRasterizer {
+
+    /**
+     * Tolerance on the barycentric coordinates, so that centers on shared edges are not lost.
+     */
+    private static final double EPSILON = 1E-9;
+
+    private final double[] triangles;
+    private final int trianglesCount;
+
+    /**
+     * Constructor.
+     *
+     * @param triangles the triangles as [x1, y1, z1, x2, y2, z2, x3, y3, z3, ...].
+     */
+    public TriangleRasterizer( double[] triangles ) {
+        if (triangles.length % 9 != 0) {
+            throw new IllegalArgumentException("The triangles array needs to contain 9 values per triangle.");
+        }
+        this.triangles = triangles;
+        this.trianglesCount = triangles.length / 9;
+    }
+
+    /**
+     * @return the number of triangles.
+     */
+    public int getTrianglesCount() {
+        return trianglesCount;
+    }
+
+    /**
+     * Rasterize the triangles.
+     *
+     * <p>All the cells of the raster are set, the ones not covered by any triangle
+     * to novalue.</p>
+     *
+     * @param outWR the raster to write to, of the size of the region.
+     * @param regionMap the region of the raster.
+     * @param threads the number of threads to use.
+     * @param pm the monitor, which receives a worked unit per band.
+     * @throws Exception
+     */
+    public void rasterize( final WritableRaster outWR, RegionMap regionMap, int threads, IJGTProgressMonitor pm )
+            throws Exception {
+        final int cols = regionMap.getCols();
+        final int rows = regionMap.getRows();
+        final double west = regionMap.getWest();
+        final double north = regionMap.getNorth();
+        final double xres = regionMap.getXres();
+        final double yres = regionMap.getYres();
+
+        final int bandRows = ThreadedBands.getBandLines(rows, threads);
+        int bandsNum = ThreadedBands.getBandsNum(rows, bandRows);
+
+        // assign the triangles to the bands their rows fall in
+        int[] fromRows = new int[trianglesCount];
+        int[] toRows = new int[trianglesCount];
+        final int[] bandStart = new int[bandsNum + 1];
+        for( int t = 0; t < trianglesCount; t++ ) {
+            int i = t * 9;
+            double minY = min(triangles[i + 1], min(triangles[i + 4], triangles[i + 7]));
+            double maxY = max(triangles[i + 1], max(triangles[i + 4], triangles[i + 7]));
+            int fromRow = max(0, (int) ceil((north - maxY) / yres - 0.5));
+            int toRow = min(rows - 1, (int) floor((north - minY) / yres - 0.5));
+            fromRows[t] = fromRow;
+            toRows[t] = toRow;
+            if (fromRow > toRow) {
+                continue;
+            }
+            for( int b = fromRow / bandRows; b <= toRow / bandRows; b++ ) {
+                bandStart[b + 1]++;
+            }
+        }
+        for( int b = 0; b < bandsNum; b++ ) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        final int[] bandTriangles = new int[bandStart[bandsNum]];
+        int[] fill = Arrays.copyOf(bandStart, bandsNum);
+        for( int t = 0; t < trianglesCount; t++ ) {
+            if (fromRows[t] > toRows[t]) {
+                continue;
+            }
+            for( int b = fromRows[t] / bandRows; b <= toRows[t] / bandRows; b++ ) {
+                bandTriangles[fill[b]++] = t;
+            }
+        }
+        fromRows = null;
+        toRows = null;
+        fill = null;
+
+        ThreadedBands.runBands(bandsNum, threads, "Rasterizing triangles...", pm, new Band(){
+            public void run( int b ) throws Exception {
+                int fromRow = b * bandRows;
+                int toRow = min(rows, fromRow + bandRows);
+                double[] values = rasterizeBand(bandTriangles, bandStart[b], bandStart[b + 1], fromRow, toRow, cols, west,
+                        north, xres, yres);
+                outWR.setSamples(0, fromRow, cols, toRow - fromRow, 0, values);
+            }
+        });
+    }
+
+    private double[] rasterizeBand( int[] bandTriangles, int from, int to, int fromRow, int toRow, int cols, double west,
+            double north, double xres, double yres ) {
+        double[] values = new double[(toRow - fromRow) * cols];
+        Arrays.fill(values, JGTConstants.doubleNovalue);
+        for( int k = from; k < to; k++ ) {
+            int i = bandTriangles[k] * 9;
+            double x1 = triangles[i];
+            double y1 = triangles[i + 1];
+            double z1 = triangles[i + 2];
+            double x2 = triangles[i + 3];
+            double y2 = triangles[i + 4];
+            double z2 = triangles[i + 5];
+            double x3 = triangles[i + 6];
+            double y3 = triangles[i + 7];
+            double z3 = triangles[i + 8];
+
+            double det = (y2 - y3) * (x1 - x3) + (x3 - x2) * (y1 - y3);
+            if (det == 0) {
+                // degenerate triangle
+                continue;
+            }
+
+            double minX = min(x1, min(x2, x3));
+            double maxX = max(x1, max(x2, x3));
+            double minY = min(y1, min(y2, y3));
+            double maxY = max(y1, max(y2, y3));
+            int fromCol = max(0, (int) ceil((minX - west) / xres - 0.5));
+            int toCol = min(cols - 1, (int) floor((maxX - west) / xres - 0.5));
+            int r1 = max(fromRow, (int) ceil((north - maxY) / yres - 0.5));
+            int r2 = min(toRow - 1, (int) floor((north - minY) / yres - 0.5));
+
+            for( int r = r1; r <= r2; r++ ) {
+                double dy = north - (r + 0.5) * yres - y3;
+                int offset = (r - fromRow) * cols;
+                for( int c = fromCol; c <= toCol; c++ ) {
+                    double dx = west + (c + 0.5) * xres - x3;
+                    double l1 = ((y2 - y3) * dx + (x3 - x2) * dy) / det;
+                    if (l1 < -EPSILON) {
+                        continue;
+                    }
+                    double l2 = ((y3 - y1) * dx + (x1 - x3) * dy) / det;
+                    if (l2 < -EPSILON) {
+                        continue;
+                    }
+                    double l3 = 1.0 - l1 - l2;
+                    if (l3 < -EPSILON) {
+                        continue;
+                    }
+                    double z = l1 * z1 + l2 * z2 + l3 * z3;
+                    double current = values[offset + c];
+                    if (JGTConstants.isNovalue(current) || z > current) {
+                        values[offset + c] = z;
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+}
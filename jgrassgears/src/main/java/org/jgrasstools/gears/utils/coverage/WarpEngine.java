@@ -0,0 +1,580 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.referencing.CRS;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedBands;
+import org.jgrasstools.gears.libs.modules.ThreadedBands.Band;
+import org.jgrasstools.gears.libs.modules.Variables;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Engine that resamples a coverage into a target grid, possibly in another crs.
+ *
+ * <p>The position in the source of every target cell is interpolated from a
+ * {@link WarpGrid}, which transforms exactly only the nodes of a coarse grid.
+ * The grid is refined until the interpolated positions are within {@link #MAX_ERROR}
+ * source cells from the exact ones, and is cached for the pair of grid geometries,
+ * so that the maps of a time series are warped with a single grid.</p>
+ *
+ * <p>The output is a tiled image whose tiles are filled in parallel, each tile reading
+ * from the source only the window it falls into. Cells that fall outside of the source
+ * are novalues, while cells whose interpolation would involve novalues fall back to
+ * the nearest source cell.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class WarpEngine {
+
+    /**
+     * The max error of the interpolated source positions, in source cells.
+     */
+    public static final double MAX_ERROR = 0.125;
+
+    private static final int TILE_SIZE = 512;
+    private static final int MAX_STEP = 64;
+    /**
+     * The max number of source cells read at once by a thread.
+     */
+    private static final int MAX_WINDOW_CELLS = 1 << 22;
+    /**
+     * The max number of warp grid nodes kept in the cache.
+     */
+    private static final long MAX_CACHED_NODES = 1 << 22;
+
+    private static final int NEAREST = 0;
+    private static final int BILINEAR = 1;
+    private static final int BICUBIC = 2;
+
+    private static final LinkedHashMap<GridPair, WarpGrid> GRIDS = new LinkedHashMap<GridPair, WarpGrid>(16, 0.75f, true);
+    private static long cachedNodes = 0;
+
+    private final GridCoverage2D source;
+    private final GridGeometry2D target;
+    private final int interpolation;
+    private final IJGTProgressMonitor pm;
+
+    /**
+     * Constructor.
+     *
+     * @param source the coverage to resample.
+     * @param target the grid into which to resample.
+     * @param interpolation the interpolation, one of {@link Variables#NEAREST_NEIGHTBOUR},
+     *              {@link Variables#BILINEAR}, {@link Variables#BICUBIC}.
+     * @param pm the monitor, which receives a worked unit per tile.
+     */
+    public WarpEngine( GridCoverage2D source, GridGeometry2D target, String interpolation, IJGTProgressMonitor pm ) {
+        if (Variables.NEAREST_NEIGHTBOUR.equals(interpolation)) {
+            this.interpolation = NEAREST;
+        } else if (Variables.BILINEAR.equals(interpolation)) {
+            this.interpolation = BILINEAR;
+        } else if (Variables.BICUBIC.equals(interpolation)) {
+            this.interpolation = BICUBIC;
+        } else {
+            throw new IllegalArgumentException("Unknown interpolation: " + interpolation);
+        }
+        this.source = source;
+        this.target = target;
+        this.pm = pm;
+    }
+
+    /**
+     * Get the grid of a coverage transformed to another crs.
+     *
+     * <p>The grid keeps the columns and rows of the coverage and takes the
+     * envelope of the coverage transformed to the crs.</p>
+     *
+     * @param coverage the coverage.
+     * @param crs the crs.
+     * @return the grid geometry.
+     * @throws Exception
+     */
+    public static GridGeometry2D getTransformedGridGeometry( GridCoverage2D coverage, CoordinateReferenceSystem crs )
+            throws Exception {
+        GeneralEnvelope envelope = CRS.transform(coverage.getEnvelope(), crs);
+        GridEnvelope2D gridRange = coverage.getGridGeometry().getGridRange2D();
+        return new GridGeometry2D(new GridEnvelope2D(0, 0, gridRange.width, gridRange.height), envelope);
+    }
+
+    /**
+     * Resample the coverage.
+     *
+     * @param threads the number of threads to use.
+     * @return the resampled coverage.
+     * @throws Exception
+     */
+    public GridCoverage2D run( int threads ) throws Exception {
+        final WarpGrid grid = getWarpGrid(source.getGridGeometry(), target);
+        final RenderedImage image = source.getRenderedImage();
+
+        GridEnvelope2D gridRange = target.getGridRange2D();
+        int width = gridRange.width;
+        int height = gridRange.height;
+        SampleModel sampleModel = RasterFactory.createPixelInterleavedSampleModel(DataBuffer.TYPE_DOUBLE,
+                Math.min(TILE_SIZE, width), Math.min(TILE_SIZE, height), 1);
+        ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        final TiledImage outputImage = new TiledImage(0, 0, width, height, 0, 0, sampleModel, colorModel);
+        final int tileCols = outputImage.getNumXTiles();
+        final int tilesNum = tileCols * outputImage.getNumYTiles();
+        // create the tiles up front, the workers then only fill them
+        for( int tileY = 0; tileY < outputImage.getNumYTiles(); tileY++ ) {
+            for( int tileX = 0; tileX < tileCols; tileX++ ) {
+                outputImage.getWritableTile(tileX, tileY);
+                outputImage.releaseWritableTile(tileX, tileY);
+            }
+        }
+
+        ThreadedBands.runBands(tilesNum, threads, "Resampling...", pm, new Band(){
+            public void run( int tile ) throws Exception {
+                int tileX = tile % tileCols;
+                int tileY = tile / tileCols;
+                WritableRaster tileRaster = outputImage.getWritableTile(tileX, tileY);
+                try {
+                    // the last tiles can exceed the image
+                    Rectangle bounds = tileRaster.getBounds().intersection(outputImage.getBounds());
+                    fillRows(tileRaster, grid, image, bounds.x, bounds.width, bounds.y, bounds.y + bounds.height);
+                } finally {
+                    outputImage.releaseWritableTile(tileX, tileY);
+                }
+            }
+        });
+
+        RegionMap regionMap = CoverageUtilities.gridGeometry2RegionParamsMap(target);
+        return CoverageUtilities.buildCoverage(source.getName().toString(), outputImage, regionMap,
+                target.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * Fill rows of a tile, splitting them if they need too large a source window.
+     */
+    private void fillRows( WritableRaster tileRaster, WarpGrid grid, RenderedImage image, int fromCol, int width,
+            int fromRow, int toRow ) {
+        int height = toRow - fromRow;
+        double[] xs = new double[width * height];
+        double[] ys = new double[width * height];
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for( int r = 0; r < height; r++ ) {
+            grid.getSourcePositions(fromRow + r, fromCol, width, xs, ys, r * width);
+        }
+        for( int i = 0; i < xs.length; i++ ) {
+            // NaN positions are outside of the transform domain and fail all the comparisons
+            if (xs[i] < minX) {
+                minX = xs[i];
+            }
+            if (xs[i] > maxX) {
+                maxX = xs[i];
+            }
+            if (ys[i] < minY) {
+                minY = ys[i];
+            }
+            if (ys[i] > maxY) {
+                maxY = ys[i];
+            }
+        }
+
+        double[] values = new double[width * height];
+        Arrays.fill(values, JGTConstants.doubleNovalue);
+        int margin = interpolation == BICUBIC ? 2 : 1;
+        int imageMinX = image.getMinX();
+        int imageMinY = image.getMinY();
+        int x1 = Math.max(imageMinX, (int) Math.floor(Math.max(minX, imageMinX - margin)) - margin);
+        int y1 = Math.max(imageMinY, (int) Math.floor(Math.max(minY, imageMinY - margin)) - margin);
+        int x2 = Math.min(imageMinX + image.getWidth() - 1,
+                (int) Math.floor(Math.min(maxX, imageMinX + image.getWidth() + margin)) + margin);
+        int y2 = Math.min(imageMinY + image.getHeight() - 1,
+                (int) Math.floor(Math.min(maxY, imageMinY + image.getHeight() + margin)) + margin);
+        if (x1 <= x2 && y1 <= y2) {
+            Rectangle window = new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+            if ((long) window.width * window.height > MAX_WINDOW_CELLS && height > 1) {
+                int middleRow = fromRow + height / 2;
+                fillRows(tileRaster, grid, image, fromCol, width, fromRow, middleRow);
+                fillRows(tileRaster, grid, image, fromCol, width, middleRow, toRow);
+                return;
+            }
+            double[] windowValues = image.getData(window).getSamples(window.x, window.y, window.width, window.height, 0,
+                    (double[]) null);
+            Rectangle imageBounds = new Rectangle(imageMinX, imageMinY, image.getWidth(), image.getHeight());
+            for( int i = 0; i < values.length; i++ ) {
+                values[i] = sample(windowValues, window, imageBounds, xs[i], ys[i]);
+            }
+        }
+        tileRaster.setSamples(fromCol, fromRow, width, height, 0, values);
+    }
+
+    /**
+     * Sample the source at a position in source cells.
+     */
+    private double sample( double[] values, Rectangle window, Rectangle imageBounds, double x, double y ) {
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            return JGTConstants.doubleNovalue;
+        }
+        int col = (int) Math.floor(x);
+        int row = (int) Math.floor(y);
+        if (!imageBounds.contains(col, row)) {
+            return JGTConstants.doubleNovalue;
+        }
+        double nearest = values[(row - window.y) * window.width + col - window.x];
+        if (interpolation == NEAREST || isNovalue(nearest)) {
+            return nearest;
+        }
+
+        // interpolate between the cell centers
+        double u = x - 0.5;
+        double v = y - 0.5;
+        int col0 = (int) Math.floor(u);
+        int row0 = (int) Math.floor(v);
+        double fx = u - col0;
+        double fy = v - row0;
+        int first = interpolation == BICUBIC ? -1 : 0;
+        int last = interpolation == BICUBIC ? 2 : 1;
+        if (!imageBounds.contains(col0 + first, row0 + first) || !imageBounds.contains(col0 + last, row0 + last)) {
+            return nearest;
+        }
+        double result = 0;
+        for( int j = first; j <= last; j++ ) {
+            double wy = weight(j - fy);
+            double rowResult = 0;
+            int offset = (row0 + j - window.y) * window.width - window.x;
+            for( int i = first; i <= last; i++ ) {
+                double value = values[offset + col0 + i];
+                if (isNovalue(value)) {
+                    return nearest;
+                }
+                rowResult += weight(i - fx) * value;
+            }
+            result += wy * rowResult;
+        }
+        return result;
+    }
+
+    /**
+     * The weight of a cell at a distance, linear or the cubic convolution kernel with a = -0.5.
+     */
+    private double weight( double distance ) {
+        double d = Math.abs(distance);
+        if (interpolation == BILINEAR) {
+            return 1 - d;
+        }
+        if (d <= 1) {
+            return (1.5 * d - 2.5) * d * d + 1;
+        }
+        if (d < 2) {
+            return ((-0.5 * d + 2.5) * d - 4) * d + 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Get the warp grid between two grid geometries, from the cache if available.
+     *
+     * @param source the source grid.
+     * @param target the target grid.
+     * @return the warp grid.
+     * @throws Exception
+     */
+    public static WarpGrid getWarpGrid( GridGeometry2D source, GridGeometry2D target ) throws Exception {
+        GridPair key = new GridPair(source, target);
+        synchronized (GRIDS) {
+            WarpGrid grid = GRIDS.get(key);
+            if (grid != null) {
+                return grid;
+            }
+        }
+        // computed outside of the lock, so that different pairs are computed in parallel
+        WarpGrid grid = new WarpGrid(source, target);
+        synchronized (GRIDS) {
+            WarpGrid cached = GRIDS.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            GRIDS.put(key, grid);
+            cachedNodes = cachedNodes + grid.getNodesNum();
+            Iterator<Entry<GridPair, WarpGrid>> iterator = GRIDS.entrySet().iterator();
+            while( cachedNodes > MAX_CACHED_NODES && iterator.hasNext() ) {
+                Entry<GridPair, WarpGrid> eldest = iterator.next();
+                if (eldest.getValue() == grid) {
+                    // always keep the grid just added
+                    continue;
+                }
+                iterator.remove();
+                cachedNodes = cachedNodes - eldest.getValue().getNodesNum();
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * The positions in source cells of the centers of the target cells,
+     * transformed exactly on the nodes of a coarse grid and interpolated bilinearly
+     * between them.
+     */
+    public static class WarpGrid {
+        private final int step;
+        private final int[] colNodes;
+        private final int[] rowNodes;
+        private final double[] nodeXs;
+        private final double[] nodeYs;
+
+        private final int targetCol;
+        private final int targetRow;
+        private final AffineTransform targetToWorld;
+        private final AffineTransform worldToSource;
+        private final MathTransform crsTransform;
+
+        /**
+         * Constructor.
+         *
+         * @param source the source grid.
+         * @param target the target grid.
+         * @throws Exception
+         */
+        public WarpGrid( GridGeometry2D source, GridGeometry2D target ) throws Exception {
+            targetToWorld = (AffineTransform) target.getGridToCRS2D(PixelOrientation.CENTER);
+            worldToSource = (AffineTransform) source.getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+            crsTransform = CRS.findMathTransform(target.getCoordinateReferenceSystem2D(),
+                    source.getCoordinateReferenceSystem2D(), true);
+            GridEnvelope2D gridRange = target.getGridRange2D();
+            targetCol = gridRange.x;
+            targetRow = gridRange.y;
+
+            int step = MAX_STEP;
+            int[] cols;
+            int[] rows;
+            double[] xs;
+            double[] ys;
+            while( true ) {
+                cols = nodes(gridRange.width, step);
+                rows = nodes(gridRange.height, step);
+                xs = new double[cols.length * rows.length];
+                ys = new double[cols.length * rows.length];
+                transform(cols, rows, xs, ys);
+                if (step == 1 || isAccurate(cols, rows, xs, ys)) {
+                    break;
+                }
+                step = step / 2;
+            }
+            this.step = step;
+            colNodes = cols;
+            rowNodes = rows;
+            nodeXs = xs;
+            nodeYs = ys;
+        }
+
+        /**
+         * @return the distance between the nodes, in target cells.
+         */
+        public int getStep() {
+            return step;
+        }
+
+        /**
+         * @return the number of nodes.
+         */
+        public int getNodesNum() {
+            return nodeXs.length;
+        }
+
+        /**
+         * Get the positions in the source of the centers of consecutive cells of a target row.
+         *
+         * @param row the target row, from 0.
+         * @param fromCol the first target column, from 0.
+         * @param cols the number of columns.
+         * @param xs the array in which to put the source columns, as fractional cells.
+         * @param ys the array in which to put the source rows, as fractional cells.
+         * @param offset the position in the arrays of the first cell.
+         */
+        public void getSourcePositions( int row, int fromCol, int cols, double[] xs, double[] ys, int offset ) {
+            for( int c = 0; c < cols; c++ ) {
+                xs[offset + c] = interpolate(colNodes, rowNodes, nodeXs, fromCol + c, row);
+                ys[offset + c] = interpolate(colNodes, rowNodes, nodeYs, fromCol + c, row);
+            }
+        }
+
+        /**
+         * The positions of the nodes, every step cells and on the last cell.
+         */
+        private static int[] nodes( int size, int step ) {
+            int last = Math.max(0, size - 1);
+            int nodesNum = last / step + (last % step == 0 ? 1 : 2);
+            int[] nodes = new int[nodesNum];
+            for( int i = 0; i < nodesNum - 1; i++ ) {
+                nodes[i] = i * step;
+            }
+            nodes[nodesNum - 1] = last;
+            return nodes;
+        }
+
+        private static double interpolate( int[] cols, int[] rows, double[] nodeValues, int col, int row ) {
+            int i = cols.length == 1 ? 0 : Math.min(col / (cols[1] - cols[0]), cols.length - 2);
+            int j = rows.length == 1 ? 0 : Math.min(row / (rows[1] - rows[0]), rows.length - 2);
+            int i2 = Math.min(i + 1, cols.length - 1);
+            int j2 = Math.min(j + 1, rows.length - 1);
+            double fx = i2 == i ? 0 : (col - cols[i]) / (double) (cols[i2] - cols[i]);
+            double fy = j2 == j ? 0 : (row - rows[j]) / (double) (rows[j2] - rows[j]);
+            double v00 = nodeValues[j * cols.length + i];
+            double v01 = nodeValues[j * cols.length + i2];
+            double v10 = nodeValues[j2 * cols.length + i];
+            double v11 = nodeValues[j2 * cols.length + i2];
+            return (1 - fy) * ((1 - fx) * v00 + fx * v01) + fy * ((1 - fx) * v10 + fx * v11);
+        }
+
+        /**
+         * Transform exactly the cells at the crossings of columns and rows.
+         */
+        private void transform( int[] cols, int[] rows, double[] xs, double[] ys ) throws TransformException {
+            int n = cols.length * rows.length;
+            double[] points = new double[n * 2];
+            int index = 0;
+            for( int row : rows ) {
+                for( int col : cols ) {
+                    points[index++] = targetCol + col;
+                    points[index++] = targetRow + row;
+                }
+            }
+            transform(points, n);
+            for( int i = 0; i < n; i++ ) {
+                xs[i] = points[i * 2];
+                ys[i] = points[i * 2 + 1];
+            }
+        }
+
+        /**
+         * Transform target cell positions to source cell positions, in place.
+         */
+        private void transform( double[] points, int n ) throws TransformException {
+            targetToWorld.transform(points, 0, points, 0, n);
+            if (!crsTransform.isIdentity()) {
+                double[] world = points.clone();
+                try {
+                    crsTransform.transform(points, 0, points, 0, n);
+                } catch (TransformException e) {
+                    // points out of the domain of the projection are NaN
+                    System.arraycopy(world, 0, points, 0, world.length);
+                    for( int i = 0; i < n; i++ ) {
+                        try {
+                            crsTransform.transform(points, i * 2, points, i * 2, 1);
+                        } catch (TransformException e1) {
+                            points[i * 2] = Double.NaN;
+                            points[i * 2 + 1] = Double.NaN;
+                        }
+                    }
+                }
+            }
+            worldToSource.transform(points, 0, points, 0, n);
+        }
+
+        /**
+         * Check the interpolation at the center of every grid cell against the exact position.
+         */
+        private boolean isAccurate( int[] cols, int[] rows, double[] xs, double[] ys ) throws TransformException {
+            if (cols.length == 1 && rows.length == 1) {
+                return true;
+            }
+            // with a single row or column of nodes, check between the nodes
+            int n = Math.max(1, cols.length - 1) * Math.max(1, rows.length - 1);
+            int[] checkCols = new int[n];
+            int[] checkRows = new int[n];
+            double[] points = new double[n * 2];
+            int index = 0;
+            for( int j = 0; j < Math.max(1, rows.length - 1); j++ ) {
+                for( int i = 0; i < Math.max(1, cols.length - 1); i++ ) {
+                    int col = cols.length == 1 ? cols[0] : (cols[i] + cols[i + 1]) / 2;
+                    int row = rows.length == 1 ? rows[0] : (rows[j] + rows[j + 1]) / 2;
+                    checkCols[index] = col;
+                    checkRows[index] = row;
+                    points[index * 2] = targetCol + col;
+                    points[index * 2 + 1] = targetRow + row;
+                    index++;
+                }
+            }
+            transform(points, n);
+            for( int k = 0; k < n; k++ ) {
+                double x = interpolate(cols, rows, xs, checkCols[k], checkRows[k]);
+                double y = interpolate(cols, rows, ys, checkCols[k], checkRows[k]);
+                double exactX = points[k * 2];
+                double exactY = points[k * 2 + 1];
+                if (Double.isNaN(x) != Double.isNaN(exactX) || Double.isNaN(y) != Double.isNaN(exactY)) {
+                    return false;
+                }
+                if (Math.abs(x - exactX) > MAX_ERROR || Math.abs(y - exactY) > MAX_ERROR) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The key of the cached warp grids.
+     */
+    private static class GridPair {
+        private final GridGeometry2D source;
+        private final GridGeometry2D target;
+
+        private GridPair( GridGeometry2D source, GridGeometry2D target ) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source.hashCode() + target.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if (!(obj instanceof GridPair)) {
+                return false;
+            }
+            GridPair other = (GridPair) obj;
+            return source.equals(other.source) && target.equals(other.target);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.geometry;
+
+import java.awt.geom.AffineTransform;
+
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.opengis.metadata.spatial.PixelOrientation;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Scan conversion of polygons into the rows of a grid.
+ *
+ * <p>The rings of a polygon are transformed to grid coordinates in primitive arrays
+ * and their edges are put in an edge table sorted by first row. Each row is scanned
+ * at the height of the cell centers, keeping a list of the edges that cross it, and
+ * the crossings are paired with the even-odd rule, so that holes are left out.</p>
+ *
+ * <p>A span covers the cells that are at least a quarter of a cell inside the
+ * crossings, as the scanline rasterization always did.</p>
+ *
+ * <p>The converter keeps no state between the scans, so it can be shared by several
+ * threads that scan different polygons.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PolygonScanConverter {
+
+    /**
+     * The part of a cell the crossings need to cover to have the cell in the span.
+     */
+    private static final double DELTA = 0.25;
+
+    /**
+     * Receives the spans of a scanned polygon.
+     */
+    public static interface SpanHandler {
+        /**
+         * Called for every span of cells inside the polygon.
+         *
+         * @param row the row of the span.
+         * @param fromCol the first column of the span.
+         * @param toCol the last column of the span, included.
+         */
+        public void span( int row, int fromCol, int toCol );
+    }
+
+    private final AffineTransform crsToGrid;
+    private final int minCol;
+    private final int maxCol;
+    private final int minRow;
+    private final int maxRow;
+
+    /**
+     * Constructor.
+     *
+     * @param gridGeometry the grid into which to scan the polygons.
+     */
+    public PolygonScanConverter( GridGeometry2D gridGeometry ) {
+        crsToGrid = (AffineTransform) gridGeometry.getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+        GridEnvelope2D gridRange = gridGeometry.getGridRange2D();
+        minCol = gridRange.x;
+        maxCol = gridRange.x + gridRange.width - 1;
+        minRow = gridRange.y;
+        maxRow = gridRange.y + gridRange.height - 1;
+    }
+
+    /**
+     * Scan a geometry, with all of its polygons, into spans of cells.
+     *
+     * <p>Parts that are not polygons are ignored. The spans are clipped to the grid
+     * and given row by row, from the top, for each polygon.</p>
+     *
+     * @param geometry the geometry to scan.
+     * @param handler the handler of the spans.
+     */
+    public void scan( Geometry geometry, SpanHandler handler ) {
+        int numGeometries = geometry.getNumGeometries();
+        for( int i = 0; i < numGeometries; i++ ) {
+            Geometry geometryN = geometry.getGeometryN(i);
+            if (geometryN instanceof Polygon) {
+                scanPolygon((Polygon) geometryN, handler);
+            } else if (geometryN != geometry) {
+                scan(geometryN, handler);
+            }
+        }
+    }
+
+    private void scanPolygon( Polygon polygon, SpanHandler handler ) {
+        if (polygon.isEmpty()) {
+            return;
+        }
+        int ringsNum = polygon.getNumInteriorRing() + 1;
+        int pointsNum = 0;
+        for( int i = 0; i < ringsNum; i++ ) {
+            pointsNum += getRing(polygon, i).getNumPoints();
+        }
+
+        // all the rings in grid coordinates
+        double[] xy = new double[pointsNum * 2];
+        int[] ringStart = new int[ringsNum + 1];
+        int index = 0;
+        for( int i = 0; i < ringsNum; i++ ) {
+            ringStart[i] = index;
+            Coordinate[] coordinates = getRing(polygon, i).getCoordinates();
+            for( Coordinate coordinate : coordinates ) {
+                xy[index * 2] = coordinate.x;
+                xy[index * 2 + 1] = coordinate.y;
+                index++;
+            }
+        }
+        ringStart[ringsNum] = index;
+        crsToGrid.transform(xy, 0, xy, 0, pointsNum);
+
+        // the edge table, the rows are scanned at the cell centers
+        double[] edgeX = new double[pointsNum];
+        double[] edgeY = new double[pointsNum];
+        double[] edgeSlope = new double[pointsNum];
+        int[] edgeFromRow = new int[pointsNum];
+        int[] edgeToRow = new int[pointsNum];
+        int edgesNum = 0;
+        int fromRow = Integer.MAX_VALUE;
+        int toRow = Integer.MIN_VALUE;
+        for( int i = 0; i < ringsNum; i++ ) {
+            for( int p = ringStart[i]; p < ringStart[i + 1] - 1; p++ ) {
+                double x1 = xy[p * 2];
+                double y1 = xy[p * 2 + 1];
+                double x2 = xy[p * 2 + 2];
+                double y2 = xy[p * 2 + 3];
+                if (y1 > y2) {
+                    double tmp = x1;
+                    x1 = x2;
+                    x2 = tmp;
+                    tmp = y1;
+                    y1 = y2;
+                    y2 = tmp;
+                }
+                // the rows with y1 <= row + 0.5 < y2, horizontal edges have none
+                int edgeFrom = (int) Math.ceil(y1 - 0.5);
+                int edgeTo = (int) Math.ceil(y2 - 0.5) - 1;
+                edgeFrom = Math.max(edgeFrom, minRow);
+                edgeTo = Math.min(edgeTo, maxRow);
+                if (edgeFrom > edgeTo) {
+                    continue;
+                }
+                edgeX[edgesNum] = x1;
+                edgeY[edgesNum] = y1;
+                edgeSlope[edgesNum] = (x2 - x1) / (y2 - y1);
+                edgeFromRow[edgesNum] = edgeFrom;
+                edgeToRow[edgesNum] = edgeTo;
+                edgesNum++;
+                fromRow = Math.min(fromRow, edgeFrom);
+                toRow = Math.max(toRow, edgeTo);
+            }
+        }
+        if (edgesNum == 0) {
+            return;
+        }
+
+        // sort the edges by first row
+        int rowsNum = toRow - fromRow + 1;
+        int[] rowStart = new int[rowsNum + 1];
+        for( int e = 0; e < edgesNum; e++ ) {
+            rowStart[edgeFromRow[e] - fromRow + 1]++;
+        }
+        for( int r = 0; r < rowsNum; r++ ) {
+            rowStart[r + 1] += rowStart[r];
+        }
+        int[] rowEdges = new int[edgesNum];
+        int[] fill = new int[rowsNum];
+        System.arraycopy(rowStart, 0, fill, 0, rowsNum);
+        for( int e = 0; e < edgesNum; e++ ) {
+            rowEdges[fill[edgeFromRow[e] - fromRow]++] = e;
+        }
+        fill = null;
+
+        // scan with the list of active edges
+        int[] active = new int[edgesNum];
+        double[] crossings = new double[edgesNum];
+        int activeNum = 0;
+        double westBound = minCol + 0.5;
+        double eastBound = maxCol + 0.5;
+        for( int r = fromRow; r <= toRow; r++ ) {
+            int kept = 0;
+            for( int a = 0; a < activeNum; a++ ) {
+                int e = active[a];
+                if (edgeToRow[e] >= r) {
+                    active[kept++] = e;
+                }
+            }
+            activeNum = kept;
+            for( int k = rowStart[r - fromRow]; k < rowStart[r - fromRow + 1]; k++ ) {
+                active[activeNum++] = rowEdges[k];
+            }
+            if (activeNum == 0) {
+                continue;
+            }
+
+            double y = r + 0.5;
+            for( int a = 0; a < activeNum; a++ ) {
+                int e = active[a];
+                double x = edgeX[e] + (y - edgeY[e]) * edgeSlope[e];
+                int j = a - 1;
+                while( j >= 0 && crossings[j] > x ) {
+                    crossings[j + 1] = crossings[j];
+                    j--;
+                }
+                crossings[j + 1] = x;
+            }
+            int lastCol = Integer.MIN_VALUE;
+            for( int a = 0; a + 1 < activeNum; a = a + 2 ) {
+                // the scanline runs from the center of the first to the center of the last column
+                double west = Math.max(crossings[a], westBound);
+                double east = Math.min(crossings[a + 1], eastBound);
+                if (west > east) {
+                    continue;
+                }
+                // close crossings could give the same cell to two spans
+                int fromCol = Math.max((int) Math.floor(west + DELTA), lastCol + 1);
+                int toCol = (int) Math.floor(east - DELTA);
+                if (fromCol <= toCol) {
+                    handler.span(r, fromCol, toCol);
+                    lastCol = toCol;
+                }
+            }
+        }
+    }
+
+    private static LineString getRing( Polygon polygon, int i ) {
+        if (i == 0) {
+            return polygon.getExteriorRing();
+        }
+        return polygon.getInteriorRingN(i - 1);
+    }
+}
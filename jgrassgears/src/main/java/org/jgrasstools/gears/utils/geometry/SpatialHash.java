@@ -0,0 +1,343 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.geometry;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid spatial hash for neighbour searches on points.
+ *
+ * <p>The points are given as primitive coordinate arrays and referenced by their
+ * index in them. They are bucketed in square cells that are stored in a single
+ * index array, sorted by cell.</p>
+ *
+ * <p>The hash is not modified after construction, so it can be queried from
+ * several threads at the same time. The results of a query are collected in a
+ * {@link Neighbours} buffer, which is reused between queries and should be kept
+ * one per thread. Once the buffer is big enough, queries don't allocate.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialHash {
+
+    private final double[] x;
+    private final double[] y;
+    private final int size;
+
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int cols;
+    private final int rows;
+
+    /**
+     * The start of each cell in the {@link #cellPoints}, with an additional end value.
+     */
+    private final int[] cellStart;
+    private final int[] cellPoints;
+
+    /**
+     * Constructor.
+     *
+     * <p>A good cell size is the usual search radius. If the cell size is too small for
+     * the extent of the points, it is enlarged to keep the number of cells in the order
+     * of the number of points.</p>
+     *
+     * @param x the x coordinates of the points.
+     * @param y the y coordinates of the points.
+     * @param size the number of points to consider from the arrays.
+     * @param cellSize the size of the cells.
+     */
+    public SpatialHash( double[] x, double[] y, int size, double cellSize ) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("The cell size needs to be positive.");
+        }
+        this.x = x;
+        this.y = y;
+        this.size = size;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for( int i = 0; i < size; i++ ) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        if (size == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        this.minX = minX;
+        this.minY = minY;
+
+        double maxCells = 4.0 * size + 16;
+        double width = maxX - minX;
+        double height = maxY - minY;
+        while( (width / cellSize + 1) * (height / cellSize + 1) > maxCells ) {
+            cellSize = cellSize * 2.0;
+        }
+        this.cellSize = cellSize;
+        cols = (int) (width / cellSize) + 1;
+        rows = (int) (height / cellSize) + 1;
+
+        cellStart = new int[cols * rows + 1];
+        int[] pointCell = new int[size];
+        for( int i = 0; i < size; i++ ) {
+            int cell = cellRow(y[i]) * cols + cellCol(x[i]);
+            pointCell[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for( int c = 0; c < cols * rows; c++ ) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellPoints = new int[size];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for( int i = 0; i < size; i++ ) {
+            cellPoints[fill[pointCell[i]]++] = i;
+        }
+    }
+
+    /**
+     * @return the number of indexed points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the points within a radius from a position, the boundary included.
+     *
+     * <p>The points are not sorted by distance.</p>
+     *
+     * @param px the x of the position.
+     * @param py the y of the position.
+     * @param radius the search radius.
+     * @param result the buffer to fill, which is cleared first.
+     */
+    public void radius( double px, double py, double radius, Neighbours result ) {
+        result.clear();
+        if (radius < 0 || size == 0) {
+            return;
+        }
+        double radius2 = radius * radius;
+        int fromCol = Math.max(0, (int) Math.floor((px - radius - minX) / cellSize));
+        int toCol = Math.min(cols - 1, (int) Math.floor((px + radius - minX) / cellSize));
+        int fromRow = Math.max(0, (int) Math.floor((py - radius - minY) / cellSize));
+        int toRow = Math.min(rows - 1, (int) Math.floor((py + radius - minY) / cellSize));
+        for( int r = fromRow; r <= toRow; r++ ) {
+            for( int c = fromCol; c <= toCol; c++ ) {
+                int cell = r * cols + c;
+                for( int k = cellStart[cell]; k < cellStart[cell + 1]; k++ ) {
+                    int i = cellPoints[k];
+                    double dx = x[i] - px;
+                    double dy = y[i] - py;
+                    double d2 = dx * dx + dy * dy;
+                    if (d2 <= radius2) {
+                        result.add(i, d2);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the nearest points to a position.
+     *
+     * <p>The points are sorted by distance, nearest first.</p>
+     *
+     * @param px the x of the position.
+     * @param py the y of the position.
+     * @param k the number of points to find.
+     * @param result the buffer to fill, which is cleared first.
+     */
+    public void nearest( double px, double py, int k, Neighbours result ) {
+        result.clear();
+        if (k < 1 || size == 0) {
+            return;
+        }
+        result.ensureCapacity(k);
+        // the cell of the position, also if outside of the grid
+        int pc = (int) Math.floor((px - minX) / cellSize);
+        int pr = (int) Math.floor((py - minY) / cellSize);
+        int maxRing = Math.max(Math.max(pc, cols - 1 - pc), Math.max(pr, rows - 1 - pr));
+        for( int ring = 0; ring <= maxRing; ring++ ) {
+            int fromRow = pr - ring;
+            int toRow = pr + ring;
+            for( int r = Math.max(0, fromRow); r <= Math.min(rows - 1, toRow); r++ ) {
+                if (r == fromRow || r == toRow) {
+                    for( int c = Math.max(0, pc - ring); c <= Math.min(cols - 1, pc + ring); c++ ) {
+                        offerCell(r * cols + c, px, py, k, result);
+                    }
+                } else {
+                    if (pc - ring >= 0 && pc - ring < cols) {
+                        offerCell(r * cols + pc - ring, px, py, k, result);
+                    }
+                    if (ring > 0 && pc + ring >= 0 && pc + ring < cols) {
+                        offerCell(r * cols + pc + ring, px, py, k, result);
+                    }
+                }
+            }
+            // the cells of the next rings are at least this far
+            double ringDistance = ring * cellSize;
+            if (result.size() == k && result.distances2[0] <= ringDistance * ringDistance) {
+                break;
+            }
+        }
+        result.sortHeap();
+    }
+
+    private void offerCell( int cell, double px, double py, int k, Neighbours result ) {
+        for( int j = cellStart[cell]; j < cellStart[cell + 1]; j++ ) {
+            int i = cellPoints[j];
+            double dx = x[i] - px;
+            double dy = y[i] - py;
+            result.offer(i, dx * dx + dy * dy, k);
+        }
+    }
+
+    private int cellCol( double px ) {
+        return Math.min(cols - 1, (int) ((px - minX) / cellSize));
+    }
+
+    private int cellRow( double py ) {
+        return Math.min(rows - 1, (int) ((py - minY) / cellSize));
+    }
+
+    /**
+     * A reusable buffer of query results.
+     */
+    public static class Neighbours {
+        private int[] indexes;
+        private double[] distances2;
+        private int size = 0;
+
+        public Neighbours() {
+            this(16);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param capacity the initial capacity.
+         */
+        public Neighbours( int capacity ) {
+            indexes = new int[Math.max(1, capacity)];
+            distances2 = new double[indexes.length];
+        }
+
+        /**
+         * @return the number of points found.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param i the result position.
+         * @return the index of the point in the coordinate arrays.
+         */
+        public int get( int i ) {
+            return indexes[i];
+        }
+
+        /**
+         * @param i the result position.
+         * @return the distance of the point from the query position.
+         */
+        public double getDistance( int i ) {
+            return Math.sqrt(distances2[i]);
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void ensureCapacity( int capacity ) {
+            if (capacity > indexes.length) {
+                int newLength = Math.max(capacity, indexes.length * 2);
+                indexes = Arrays.copyOf(indexes, newLength);
+                distances2 = Arrays.copyOf(distances2, newLength);
+            }
+        }
+
+        void add( int index, double distance2 ) {
+            ensureCapacity(size + 1);
+            indexes[size] = index;
+            distances2[size] = distance2;
+            size++;
+        }
+
+        /**
+         * Offer a point to a max heap of the k nearest points.
+         */
+        void offer( int index, double distance2, int k ) {
+            if (size < k) {
+                int i = size++;
+                // sift up
+                while( i > 0 ) {
+                    int parent = (i - 1) / 2;
+                    if (distances2[parent] >= distance2) {
+                        break;
+                    }
+                    indexes[i] = indexes[parent];
+                    distances2[i] = distances2[parent];
+                    i = parent;
+                }
+                indexes[i] = index;
+                distances2[i] = distance2;
+            } else if (distance2 < distances2[0]) {
+                siftDown(0, index, distance2, size);
+            }
+        }
+
+        private void siftDown( int i, int index, double distance2, int heapSize ) {
+            while( true ) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && distances2[child + 1] > distances2[child]) {
+                    child++;
+                }
+                if (distances2[child] <= distance2) {
+                    break;
+                }
+                indexes[i] = indexes[child];
+                distances2[i] = distances2[child];
+                i = child;
+            }
+            indexes[i] = index;
+            distances2[i] = distance2;
+        }
+
+        /**
+         * Sort the heap in ascending distance order.
+         */
+        void sortHeap() {
+            for( int end = size - 1; end > 0; end-- ) {
+                int index = indexes[end];
+                double distance2 = distances2[end];
+                indexes[end] = indexes[0];
+                distances2[end] = distances2[0];
+                siftDown(0, index, distance2, end);
+            }
+        }
+    }
+}
@@ -17,8 +17,14 @@
  */
 package org.jgrasstools.gears.utils.optimizers.particleswarm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
@@ -29,6 +35,16 @@ import org.jgrasstools.gears.utils.math.NumericsUtilities;
  * <p>http://www.borgelt.net/psopt.html
  * <p>Biblio: http://ncra.ucd.ie/COMP30290/crc2006/Olapeju_Ayoola_03304281.pdf ?</p>
  * 
+ * <p>The particles state (locations, velocities, local bests) is kept in contiguous
+ * arrays of size <code>particlesNum * parametersNum</code>.</p>
+ * 
+ * <p>If an executor is set through {@link #setExecutor(ExecutorService)}, the fitting 
+ * function is evaluated for the particles in parallel, in which case the
+ * {@link IPSFunction} has to be threadsafe. With a synchronous best update 
+ * (see {@link #setSynchronousBestUpdate(boolean)}) all particles of an iteration move towards
+ * the global best of the previous iteration and the bests are merged in particle order, 
+ * which makes runs with a fixed seed deterministic regardless of the executor.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class PSEngine {
@@ -39,7 +55,7 @@ public class PSEngine {
     private int maxIterations;
     private double decayFactor;
     private int particlesNum;
-    private Particle[] swarm;
+    private int parametersNum;
     private double globalBest;
     private double[] globalBestLocations;
     private IPSFunction function;
@@ -48,6 +64,26 @@ public class PSEngine {
     private double[][] ranges;
     private String prefix;
 
+    /*
+     * particles state, particle i uses the range [i * parametersNum, (i + 1) * parametersNum)
+     */
+    private double[] locations;
+    private double[] velocities;
+    private double[] localBests;
+    private double[] localBestFunctions;
+
+    /*
+     * per particle buffers handed over to the fitting function
+     */
+    private double[][] evaluationLocations;
+    private double[] evaluated;
+    private boolean[] toEvaluate;
+
+    private ExecutorService executor;
+    private boolean synchronousBestUpdate = false;
+    private Long seed;
+    private final Object bestLock = new Object();
+
     /**
      * Constructor.
      * 
@@ -84,6 +120,38 @@ public class PSEngine {
         this.ranges = ranges;
     }
 
+    /**
+     * Set the executor to use to evaluate the particles in parallel.
+     * 
+     * <p>The executor is not shut down by the engine.</p>
+     * 
+     * @param executor the executor or <code>null</code> to evaluate sequentially.
+     */
+    public void setExecutor( ExecutorService executor ) {
+        this.executor = executor;
+    }
+
+    /**
+     * Set the global best update strategy.
+     * 
+     * @param synchronousBestUpdate if <code>true</code>, the global best is updated once
+     *          all the particles of an iteration have been evaluated. If <code>false</code>
+     *          (the default), it is updated as soon as a particle is evaluated, which
+     *          with an executor makes the run depend on the evaluation order.
+     */
+    public void setSynchronousBestUpdate( boolean synchronousBestUpdate ) {
+        this.synchronousBestUpdate = synchronousBestUpdate;
+    }
+
+    /**
+     * Set the seed for the random numbers used for initialization and updates.
+     * 
+     * @param seed the seed to use.
+     */
+    public void setSeed( long seed ) {
+        this.seed = seed;
+    }
+
     /**
      * Run the particle swarm engine.
      * @throws Exception 
@@ -138,33 +206,70 @@ public class PSEngine {
     }
 
     private void createSwarm() throws Exception {
-        rand = new Random();
+        Random initRand;
+        if (seed != null) {
+            initRand = new Random(seed);
+            rand = initRand;
+        } else {
+            initRand = new Random(2);
+            rand = new Random();
+        }
         iterationStep = 0;
         globalBest = function.getInitialGlobalBest();
-        swarm = new Particle[particlesNum];
-        for( int j = 0; j < swarm.length; j++ ) {
-            swarm[j] = new Particle(ranges);
-            double[] currentLocations = swarm[j].getInitialLocations();
-            double evaluated = function.evaluate(iterationStep, j, currentLocations, ranges);
-            swarm[j].setParticleBestFunction(evaluated);
+        globalBestLocations = null;
+
+        parametersNum = ranges.length;
+        int size = particlesNum * parametersNum;
+        locations = new double[size];
+        velocities = new double[size];
+        localBests = new double[size];
+        localBestFunctions = new double[particlesNum];
+        evaluationLocations = new double[particlesNum][parametersNum];
+        evaluated = new double[particlesNum];
+        toEvaluate = new boolean[particlesNum];
+
+        for( int j = 0; j < particlesNum; j++ ) {
+            /*
+             * initialize random positions inside the 
+             * parameter space
+             */
+            int offset = j * parametersNum;
+            for( int i = 0; i < parametersNum; i++ ) {
+                double min = ranges[i][0];
+                double max = ranges[i][1];
+
+                double delta = max - min;
+                double random = initRand.nextDouble() - 1;
+                double smallRand = 0.5 * delta * random;
+                double value = min + delta / 2.0 + 0.8 * smallRand;
+
+                locations[offset + i] = value;
+                localBests[offset + i] = value;
+                evaluationLocations[j][i] = value;
+            }
+            toEvaluate[j] = true;
+        }
+
+        evaluateParticles();
+
+        for( int j = 0; j < particlesNum; j++ ) {
+            double[] currentLocations = evaluationLocations[j];
+            localBestFunctions[j] = evaluated[j];
             /* find globally best function value */
-            if (function.isBetter(evaluated, globalBest)) {
-                globalBest = evaluated;
+            if (function.isBetter(evaluated[j], globalBest)) {
+                globalBest = evaluated[j];
                 if (globalBestLocations == null) {
                     globalBestLocations = new double[currentLocations.length];
                 }
-                for( int k = 0; k < currentLocations.length; k++ ) {
-                    globalBestLocations[k] = currentLocations[k];
-                }
+                System.arraycopy(currentLocations, 0, globalBestLocations, 0, parametersNum);
             } else if (globalBestLocations == null) {
-                throw new RuntimeException("No evaluated value found better than the initial global best: " + evaluated + " vs. "
-                        + globalBest);
+                throw new RuntimeException("No evaluated value found better than the initial global best: " + evaluated[j]
+                        + " vs. " + globalBest);
             }
         }
     }
 
     private void updateSwarm() throws Exception {
-        // System.out.println("UPDATE SWARM");
         iterationStep++;
         /* 
          * velocity decay factor:
@@ -172,32 +277,172 @@ public class PSEngine {
          *  - it decreases when the iteration number increases
          *  - it decreases when the decay factor increases 
          */
-        double w = initDecelerationFactor * Math.pow(iterationStep, -decayFactor);
-        // System.out.println("W = " + w);
-        /* traverse the particles */
-        for( int i = 0; i < swarm.length; i++ ) {
-            Particle particle = this.swarm[i];
-            double[] currentLocations = particle.update(w, accelerationFactorLocal, rand.nextDouble(), accelerationFactorGlobal,
-                    rand.nextDouble(), globalBestLocations);
-            double evaluated;
-            if (currentLocations != null) {
-                evaluated = function.evaluate(iterationStep, i, currentLocations, ranges);
-            } else {
-                // parameters were outside, ignore and try next round with new position
-                continue;
-            }
-            /* update best local function value */
-            if (function.isBetter(evaluated, particle.getParticleBestFunction())) {
-                particle.setParticleBestFunction(evaluated);
-                particle.setParticleLocalBeststoCurrent();
-            }
-            /* update best global function value */
-            if (function.isBetter(evaluated, globalBest)) {
-                globalBest = evaluated;
-                for( int j = 0; j < currentLocations.length; j++ ) {
-                    globalBestLocations[j] = currentLocations[j];
+        final double w = initDecelerationFactor * Math.pow(iterationStep, -decayFactor);
+        if (synchronousBestUpdate) {
+            for( int i = 0; i < particlesNum; i++ ) {
+                toEvaluate[i] = moveParticle(i, w, rand.nextDouble(), rand.nextDouble(), globalBestLocations);
+            }
+            evaluateParticles();
+            for( int i = 0; i < particlesNum; i++ ) {
+                if (toEvaluate[i]) {
+                    updateBests(i, evaluated[i]);
+                }
+            }
+        } else if (executor == null) {
+            /* traverse the particles */
+            for( int i = 0; i < particlesNum; i++ ) {
+                if (moveParticle(i, w, rand.nextDouble(), rand.nextDouble(), globalBestLocations)) {
+                    double value = function.evaluate(iterationStep, i, evaluationLocations[i], ranges);
+                    updateBests(i, value);
                 }
+                // else parameters were outside, ignore and try next round with new position
+            }
+        } else {
+            final double[] randoms = new double[2 * particlesNum];
+            for( int i = 0; i < randoms.length; i++ ) {
+                randoms[i] = rand.nextDouble();
+            }
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(particlesNum);
+            for( int i = 0; i < particlesNum; i++ ) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<Object>(){
+                    public Object call() throws Exception {
+                        double[] currentGlobalBest;
+                        synchronized (bestLock) {
+                            currentGlobalBest = globalBestLocations.clone();
+                        }
+                        if (moveParticle(index, w, randoms[2 * index], randoms[2 * index + 1], currentGlobalBest)) {
+                            double value = function.evaluate(iterationStep, index, evaluationLocations[index], ranges);
+                            synchronized (bestLock) {
+                                updateBests(index, value);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            waitFor(futures);
+        }
+    }
+
+    /**
+     * Particle swarming formula to update positions.
+     * 
+     * <p>The new locations are placed in the evaluation buffer of the particle.</p>
+     * 
+     * @param particle the index of the particle.
+     * @param w inertia weight (controls the impact of the past velocity of the
+     *              particle over the current one). 
+     * @param rand1 random factor introduced in search process for the local best.
+     * @param rand2 random factor introduced in search process for the global best.
+     * @param globalBest leader particle (global best) in all dimensions.
+     * @return <code>true</code> if the new locations are inside the ranges and need to be evaluated.
+     */
+    private boolean moveParticle( int particle, double w, double rand1, double rand2, double[] globalBest ) {
+        int offset = particle * parametersNum;
+        double[] tmpLocations = evaluationLocations[particle];
+        double c1 = accelerationFactorLocal;
+        double c2 = accelerationFactorGlobal;
+        boolean inRange = true;
+        for( int i = 0; i < parametersNum; i++ ) {
+            int index = offset + i;
+            double location = locations[index];
+            double velocity = w * velocities[index] + //
+                    c1 * rand1 * (localBests[index] - location) + //
+                    c2 * rand2 * (globalBest[i] - location);
+            velocities[index] = velocity;
+            tmpLocations[i] = location + velocity;
+            if (!NumericsUtilities.isBetween(tmpLocations[i], ranges[i])) {
+                inRange = false;
+            }
+        }
+
+        if (!inRange) {
+            /*
+             * mirror the value back, the particle is not evaluated
+             */
+            for( int i = 0; i < parametersNum; i++ ) {
+                double min = ranges[i][0];
+                double max = ranges[i][1];
+                double tmpLocation = tmpLocations[i];
+                if (tmpLocation > max) {
+                    double tmp = max - (tmpLocation - max);
+                    if (tmp < min) {
+                        tmp = max;
+                    }
+                    locations[offset + i] = tmp;
+                } else if (tmpLocation < min) {
+                    double tmp = min + (min - tmpLocation);
+                    if (tmp > max) {
+                        tmp = min;
+                    }
+                    locations[offset + i] = tmp;
+                } else {
+                    locations[offset + i] = tmpLocation;
+                }
+            }
+            return false;
+        }
+        System.arraycopy(tmpLocations, 0, locations, offset, parametersNum);
+        return true;
+    }
+
+    private void updateBests( int particle, double value ) {
+        /* update best local function value */
+        if (function.isBetter(value, localBestFunctions[particle])) {
+            localBestFunctions[particle] = value;
+            System.arraycopy(locations, particle * parametersNum, localBests, particle * parametersNum, parametersNum);
+        }
+        /* update best global function value */
+        if (function.isBetter(value, globalBest)) {
+            globalBest = value;
+            System.arraycopy(locations, particle * parametersNum, globalBestLocations, 0, parametersNum);
+        }
+    }
+
+    /**
+     * Evaluates the fitting function for the flagged particles, in parallel if an executor is available.
+     */
+    private void evaluateParticles() throws Exception {
+        if (executor == null) {
+            for( int i = 0; i < particlesNum; i++ ) {
+                if (toEvaluate[i]) {
+                    evaluated[i] = function.evaluate(iterationStep, i, evaluationLocations[i], ranges);
+                }
+            }
+            return;
+        }
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(particlesNum);
+        for( int i = 0; i < particlesNum; i++ ) {
+            if (toEvaluate[i]) {
+                final int index = i;
+                final int step = iterationStep;
+                futures.add(executor.submit(new Callable<Object>(){
+                    public Object call() throws Exception {
+                        evaluated[index] = function.evaluate(step, index, evaluationLocations[index], ranges);
+                        return null;
+                    }
+                }));
+            }
+        }
+        waitFor(futures);
+    }
+
+    private void waitFor( List<Future<Object>> futures ) throws Exception {
+        try {
+            for( Future<Object> future : futures ) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            for( Future<Object> future : futures ) {
+                future.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
+            throw e;
         }
     }
 
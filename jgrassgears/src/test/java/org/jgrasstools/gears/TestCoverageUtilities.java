@@ -17,22 +17,47 @@
  */
 package org.jgrasstools.gears;
 
+import static java.lang.Double.NaN;
+
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.jgrasstools.gears.libs.modules.Variables;
 import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
 import org.jgrasstools.gears.utils.HMTestCase;
 import org.jgrasstools.gears.utils.HMTestMaps;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine;
+import org.jgrasstools.gears.utils.coverage.MarchingSquaresEngine.GeometrySink;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine.Kernel;
+import org.jgrasstools.gears.utils.coverage.NeighbourhoodEngine.SummedAreaTable;
 import org.jgrasstools.gears.utils.coverage.ProfilePoint;
+import org.jgrasstools.gears.utils.coverage.TriangleRasterizer;
+import org.jgrasstools.gears.utils.coverage.WarpEngine;
+import org.jgrasstools.gears.utils.coverage.WarpEngine.WarpGrid;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
 /**
  * Test {@link CoverageUtilities}.
  * 
@@ -222,6 +247,290 @@ public class TestCoverageUtilities extends HMTestCase {
         }
     }
 
+    public void testTriangleRasterizer() throws Exception {
+        // 5 cols and 4 rows of 1 meter, the last column is not covered
+        RegionMap region = CoverageUtilities.makeRegionParamsMap(4.0, 0.0, 0.0, 5.0, 1.0, 1.0, 5, 4);
+        double[] triangles = {//
+        /*    */0, 0, 0, 4, 0, 4, 4, 4, 8, //
+                0, 0, 0, 4, 4, 8, 0, 4, 4, //
+                // higher triangle that covers only the upper left cell center
+                0, 3, 100, 1.8, 3, 100, 0, 4.8, 100 //
+        };
+        TriangleRasterizer rasterizer = new TriangleRasterizer(triangles);
+        assertEquals(3, rasterizer.getTrianglesCount());
+
+        WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(5, 4, null, null, null);
+        rasterizer.rasterize(outWR, region, 2, new DummyProgressMonitor());
+        for( int r = 0; r < 4; r++ ) {
+            for( int c = 0; c < 5; c++ ) {
+                double value = outWR.getSampleDouble(c, r, 0);
+                if (c == 4) {
+                    assertTrue(Double.isNaN(value));
+                } else if (c == 0 && r == 0) {
+                    assertEquals(100.0, value, DELTA);
+                } else {
+                    // the plane is z = x + y in the cell center
+                    assertEquals(c + 0.5 + 4 - r - 0.5, value, DELTA);
+                }
+            }
+        }
+    }
+
+    public void testNeighbourhoodEngine() throws Exception {
+        int cols = 6;
+        int rows = 5;
+        double[] data = {//
+        /*    */1, 2, 3, 4, 5, 6, //
+                7, NaN, 9, 10, 11, 12, //
+                13, 14, 15, NaN, 17, 18, //
+                19, 20, 21, 22, 23, 24, //
+                NaN, 26, 27, 28, 29, 30 //
+        };
+        NeighbourhoodEngine engine = new NeighbourhoodEngine(data, cols, rows, 2, new DummyProgressMonitor());
+
+        // separable, a gaussian like product of [1, 2, 1] with itself
+        Kernel separable = new Kernel(new double[]{1, 2, 1, 2, 4, 2, 1, 2, 1}, 3);
+        assertTrue(separable.isSeparable());
+        // not separable, a cross
+        Kernel cross = new Kernel(new double[]{0, 1, 0, 1, 1, 1, 0, 1, 0}, 3);
+        assertFalse(cross.isSeparable());
+        // full, not centered
+        Kernel window = Kernel.rectangle(2, 3, 0, 0);
+        assertTrue(window.isFull());
+
+        for( Kernel kernel : new Kernel[]{separable, cross, window} ) {
+            double[] convolved = engine.convolve(kernel);
+            double[] max = engine.max(kernel, false);
+            double[] min = engine.min(kernel, true);
+            for( int r = 0; r < rows; r++ ) {
+                for( int c = 0; c < cols; c++ ) {
+                    double[] expected = neighbourhood(data, cols, rows, kernel, c, r);
+                    int i = r * cols + c;
+                    checkValue(expected[0], convolved[i]);
+                    checkValue(expected[1], max[i]);
+                    checkValue(expected[2], min[i]);
+                }
+            }
+        }
+
+        SummedAreaTable table = engine.createSummedAreaTable();
+        assertEquals(1 + 2 + 7, table.getSum(-1, -1, 2, 2), DELTA);
+        assertEquals(3, table.getCount(-1, -1, 2, 2));
+        assertEquals((15 + 17 + 21 + 22 + 23) / 5.0, table.getMean(2, 2, 5, 4), DELTA);
+        assertTrue(Double.isNaN(table.getMean(1, 1, 2, 2)));
+    }
+
+    public void testWarpEngine() throws Exception {
+        double[][] mapData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D mapCoverage = CoverageUtilities.buildCoverage("elev", mapData, envelopeParams, crs, true);
+        GridGeometry2D gridGeometry = mapCoverage.getGridGeometry();
+
+        // on the same grid every interpolation gives back the source
+        WarpGrid grid = WarpEngine.getWarpGrid(gridGeometry, gridGeometry);
+        assertSame(grid, WarpEngine.getWarpGrid(gridGeometry, gridGeometry));
+        for( String interpolation : new String[]{Variables.NEAREST_NEIGHTBOUR, Variables.BILINEAR, Variables.BICUBIC} ) {
+            WarpEngine engine = new WarpEngine(mapCoverage, gridGeometry, interpolation, pm);
+            GridCoverage2D outCoverage = engine.run(2);
+            checkMatrixEqual(outCoverage.getRenderedImage(), mapData, DELTA);
+        }
+    }
+
+    public void testWarpEngineCrs() throws Exception {
+        // a 100x80 km grid in utm 32N, warped to a coarser grid in wgs84
+        int cols = 500;
+        int rows = 400;
+        RegionMap regionMap = CoverageUtilities.makeRegionParamsMap(5180000.0, 5100000.0, 600000.0, 700000.0, 200.0, 200.0,
+                cols, rows);
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                data[r][c] = r * cols + c;
+            }
+        }
+        CoordinateReferenceSystem utm = CRS.decode("EPSG:32632");
+        GridCoverage2D coverage = CoverageUtilities.buildCoverage("index", data, regionMap, utm, true);
+        GridGeometry2D source = coverage.getGridGeometry();
+        GeneralEnvelope envelope = CRS.transform(coverage.getEnvelope(), DefaultGeographicCRS.WGS84);
+        int targetCols = 300;
+        int targetRows = 250;
+        GridGeometry2D target = new GridGeometry2D(new GridEnvelope2D(0, 0, targetCols, targetRows), envelope);
+
+        WarpGrid grid = WarpEngine.getWarpGrid(source, target);
+        assertTrue(grid.getNodesNum() < targetCols * targetRows);
+        GridCoverage2D outCoverage = new WarpEngine(coverage, target, Variables.NEAREST_NEIGHTBOUR, pm).run(4);
+        RandomIter outIter = RandomIterFactory.create(outCoverage.getRenderedImage(), null);
+
+        // the exact positions of the target cell centers in the source grid
+        MathTransform targetToWorld = target.getGridToCRS2D(PixelOrientation.CENTER);
+        MathTransform worldToWorld = CRS.findMathTransform(DefaultGeographicCRS.WGS84, utm, true);
+        MathTransform worldToSource = source.getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+        double[] xs = new double[targetCols];
+        double[] ys = new double[targetCols];
+        double[] exact = new double[targetCols * 2];
+        int checked = 0;
+        for( int r = 0; r < targetRows; r++ ) {
+            grid.getSourcePositions(r, 0, targetCols, xs, ys, 0);
+            for( int c = 0; c < targetCols; c++ ) {
+                exact[c * 2] = c;
+                exact[c * 2 + 1] = r;
+            }
+            targetToWorld.transform(exact, 0, exact, 0, targetCols);
+            worldToWorld.transform(exact, 0, exact, 0, targetCols);
+            worldToSource.transform(exact, 0, exact, 0, targetCols);
+            for( int c = 0; c < targetCols; c++ ) {
+                double x = exact[c * 2];
+                double y = exact[c * 2 + 1];
+                assertEquals(x, xs[c], WarpEngine.MAX_ERROR);
+                assertEquals(y, ys[c], WarpEngine.MAX_ERROR);
+
+                // the nearest neighbour is the cell of the exact position, where the error can't move it to the next one
+                int col = (int) Math.floor(x);
+                int row = (int) Math.floor(y);
+                double dx = x - col;
+                double dy = y - row;
+                if (col < 0 || col >= cols || row < 0 || row >= rows || dx < WarpEngine.MAX_ERROR
+                        || dx > 1 - WarpEngine.MAX_ERROR || dy < WarpEngine.MAX_ERROR || dy > 1 - WarpEngine.MAX_ERROR) {
+                    continue;
+                }
+                assertEquals(data[row][col], outIter.getSampleDouble(c, r, 0), DELTA);
+                checked++;
+            }
+        }
+        outIter.done();
+        // the target envelope also covers the corners outside of the source
+        assertTrue(checked > targetCols * targetRows / 4);
+    }
+
+    public void testMarchingSquaresEngine() throws Exception {
+        double[][] data = new double[][]{//
+        /*    */{1, 1, 1, 1, 2}, //
+                {1, 2, 2, 1, 2}, //
+                {1, 1, 1, 1, 2}, //
+                {NaN, NaN, 2, 2, 2}};
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D coverage = CoverageUtilities.buildCoverage("data", data, envelopeParams, crs, true);
+        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(coverage);
+        double cellArea = regionMap.getXres() * regionMap.getYres();
+        double[] array = new double[20];
+        for( int r = 0; r < 4; r++ ) {
+            System.arraycopy(data[r], 0, array, r * 5, 5);
+        }
+
+        final List<Geometry> geometries = new ArrayList<Geometry>();
+        final List<Double> values = new ArrayList<Double>();
+        GeometrySink sink = new GeometrySink(){
+            public void geometry( Geometry geometry, double value ) {
+                geometries.add(geometry);
+                values.add(value);
+            }
+        };
+
+        // with three threads the rows are split in bands
+        MarchingSquaresEngine engine = new MarchingSquaresEngine(array, 5, 4, coverage.getGridGeometry(), 3, pm);
+        engine.polygons(null, sink);
+        assertEquals(3, geometries.size());
+        for( int i = 0; i < geometries.size(); i++ ) {
+            Polygon polygon = (Polygon) geometries.get(i);
+            if (values.get(i) == 1.0) {
+                assertEquals(1, polygon.getNumInteriorRing());
+                assertEquals(10 * cellArea, polygon.getArea(), DELTA);
+            } else {
+                assertEquals(0, polygon.getNumInteriorRing());
+                double cells = polygon.getArea() / cellArea;
+                assertTrue(Math.abs(cells - 2) < DELTA || Math.abs(cells - 6) < DELTA);
+            }
+        }
+
+        // a peak gives a closed contour
+        geometries.clear();
+        values.clear();
+        double[] peak = {1, 1, 1, 1, 2, 1, 1, 1, 1};
+        engine = new MarchingSquaresEngine(peak, 3, 3, coverage.getGridGeometry(), 3, pm);
+        engine.contours(1.5, sink);
+        assertEquals(1, geometries.size());
+        assertEquals(1.5, values.get(0), DELTA);
+        LineString contour = (LineString) geometries.get(0);
+        assertTrue(contour.isClosed());
+        assertEquals(5, contour.getNumPoints());
+    }
+
+    public void testMarchingSquaresEngineTouchingRings() throws Exception {
+        // two holes touching at a corner and a shell touching itself at a corner
+        double[][] data = new double[][]{//
+        /*    */{2, 1, 1, 1, 1}, //
+                {1, 2, 1, 1, 1}, //
+                {1, 1, 1, 2, 1}, //
+                {1, 1, 2, 1, 1}, //
+                {1, 1, 1, 1, 1}};
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D coverage = CoverageUtilities.buildCoverage("data", data, envelopeParams, crs, true);
+        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(coverage);
+        double cellArea = regionMap.getXres() * regionMap.getYres();
+        double[] array = new double[25];
+        for( int r = 0; r < 5; r++ ) {
+            System.arraycopy(data[r], 0, array, r * 5, 5);
+        }
+
+        for( int threads : new int[]{1, 3} ) {
+            final List<Geometry> geometries = new ArrayList<Geometry>();
+            GeometrySink sink = new GeometrySink(){
+                public void geometry( Geometry geometry, double value ) {
+                    geometries.add(geometry);
+                }
+            };
+            MarchingSquaresEngine engine = new MarchingSquaresEngine(array, 5, 5, coverage.getGridGeometry(), threads, pm);
+            engine.polygons(1.0, sink);
+            assertEquals(1, geometries.size());
+            Polygon polygon = (Polygon) geometries.get(0);
+            assertTrue(polygon.isValid());
+            // the hole touching the shell and the two holes touching each other
+            assertEquals(3, polygon.getNumInteriorRing());
+            assertEquals(21 * cellArea, polygon.getArea(), DELTA);
+        }
+    }
+
+    /**
+     * Weighted average, max of the valid cells and strict min, computed cell by cell.
+     */
+    private double[] neighbourhood( double[] data, int cols, int rows, Kernel kernel, int col, int row ) {
+        double sum = 0;
+        double weights = 0;
+        double max = NaN;
+        double min = Double.POSITIVE_INFINITY;
+        for( int kr = 0; kr < kernel.getRows(); kr++ ) {
+            for( int kc = 0; kc < kernel.getCols(); kc++ ) {
+                double weight = kernel.getWeight(kc, kr);
+                if (weight == 0) {
+                    continue;
+                }
+                int c = col + kc - kernel.getKeyCol();
+                int r = row + kr - kernel.getKeyRow();
+                double value = c < 0 || r < 0 || c >= cols || r >= rows ? NaN : data[r * cols + c];
+                if (Double.isNaN(value)) {
+                    min = NaN;
+                    continue;
+                }
+                sum += weight * value;
+                weights += weight;
+                max = Double.isNaN(max) ? value : Math.max(max, value);
+                min = Math.min(min, value);
+            }
+        }
+        return new double[]{weights == 0 ? NaN : sum / weights, max, min};
+    }
+
+    private void checkValue( double expected, double value ) {
+        if (Double.isNaN(expected)) {
+            assertTrue(Double.isNaN(value));
+        } else {
+            assertEquals(expected, value, DELTA);
+        }
+    }
+
     private void checkProfile( List<ProfilePoint> profile, double[][] expected ) {
         for( int i = 0; i < expected.length; i++ ) {
             ProfilePoint point = profile.get(i);
@@ -6,10 +6,14 @@ import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.gears.utils.geometry.PolygonScanConverter;
+import org.jgrasstools.gears.utils.geometry.SpatialHash;
 import org.opengis.feature.simple.SimpleFeatureType;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -460,4 +464,48 @@ public class TestGeometryUtilities extends HMTestCase {
 
     }
 
+    public void testSpatialHash() {
+        double[] x = {0, 1, 2, 0, 1, 2, 0, 1, 2, 10};
+        double[] y = {0, 0, 0, 1, 1, 1, 2, 2, 2, 10};
+        SpatialHash hash = new SpatialHash(x, y, x.length, 1.0);
+        SpatialHash.Neighbours neighbours = new SpatialHash.Neighbours(2);
+
+        hash.radius(1, 1, 1.0, neighbours);
+        assertEquals(5, neighbours.size());
+        hash.radius(1, 1, 1.5, neighbours);
+        assertEquals(9, neighbours.size());
+        hash.radius(5, 5, 1.0, neighbours);
+        assertEquals(0, neighbours.size());
+
+        hash.nearest(9, 9, 2, neighbours);
+        assertEquals(2, neighbours.size());
+        assertEquals(9, neighbours.get(0));
+        assertEquals(8, neighbours.get(1));
+        assertEquals(Math.sqrt(2), neighbours.getDistance(0), DELTA);
+        assertEquals(Math.sqrt(98), neighbours.getDistance(1), DELTA);
+    }
+
+    public void testPolygonScanConverter() throws Exception {
+        // a square with a square hole on a 10x10 grid of unit cells
+        GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(10, 0, 10, 0, 10, 10,
+                DefaultGeographicCRS.WGS84);
+        WKTReader reader = new WKTReader();
+        Geometry polygon = reader.read("POLYGON ((1 1, 9 1, 9 9, 1 9, 1 1), (4 4, 6 4, 6 6, 4 6, 4 4))");
+
+        final int[][] cells = new int[10][10];
+        new PolygonScanConverter(gridGeometry).scan(polygon, new PolygonScanConverter.SpanHandler(){
+            public void span( int row, int fromCol, int toCol ) {
+                for( int c = fromCol; c <= toCol; c++ ) {
+                    cells[row][c]++;
+                }
+            }
+        });
+        for( int r = 0; r < 10; r++ ) {
+            for( int c = 0; c < 10; c++ ) {
+                boolean inShell = r >= 1 && r <= 8 && c >= 1 && c <= 8;
+                boolean inHole = r >= 4 && r <= 5 && c >= 4 && c <= 5;
+                assertEquals(inShell && !inHole ? 1 : 0, cells[r][c]);
+            }
+        }
+    }
 }
@@ -1,15 +1,32 @@
 package org.jgrasstools.gears;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.index.PackedHilbertRtree;
+import org.jgrasstools.gears.io.las.utils.DemSampler;
+import org.jgrasstools.gears.io.las.utils.LasBinning;
+import org.jgrasstools.gears.io.las.utils.LasBinning.DensityGrid;
+import org.jgrasstools.gears.io.las.utils.LasBinning.Histogram;
+import org.jgrasstools.gears.io.las.utils.LasBlockCache;
 import org.jgrasstools.gears.io.las.utils.LasUtils;
 import org.jgrasstools.gears.io.las.utils.LasUtils.VALUETYPE;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.math.NumericsUtilities;
 import org.joda.time.DateTime;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * Test las utils.
  * 
@@ -129,4 +146,180 @@ public class TestLasUtilities extends HMTestCase {
         assertEquals(131.8103148957786, lastVisiblePointData[9], DELTA);
     }
 
+    public void testDemSampler() throws Exception {
+        RegionMap ep = HMTestMaps.getEnvelopeparams();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", HMTestMaps.mapData, ep,
+                HMTestMaps.getCrs(), true);
+
+        Envelope envelope = new Envelope(ep.getWest() + ep.getXres() * 2.3, ep.getWest() + ep.getXres() * 6.6,
+                ep.getSouth() + ep.getYres() * 1.2, ep.getSouth() + ep.getYres() * 4.9);
+        DemSampler sampler = new DemSampler(elevationCoverage, envelope, false);
+        for( double x = envelope.getMinX(); x <= envelope.getMaxX(); x = x + ep.getXres() / 3.0 ) {
+            for( double y = envelope.getMinY(); y <= envelope.getMaxY(); y = y + ep.getYres() / 3.0 ) {
+                double expected = CoverageUtilities.getValue(elevationCoverage, x, y);
+                assertEquals(expected, sampler.getValue(x, y), DELTA);
+            }
+        }
+
+        // bilinear in the center of a cell is the cell value
+        DemSampler bilinearSampler = new DemSampler(elevationCoverage, envelope, true);
+        double x = ep.getWest() + ep.getXres() * 4.5;
+        double y = ep.getNorth() - ep.getYres() * 5.5;
+        assertEquals(HMTestMaps.mapData[5][4], bilinearSampler.getValue(x, y), DELTA);
+
+        LasRecord r1 = new LasRecord();
+        r1.x = x;
+        r1.y = y;
+        r1.z = HMTestMaps.mapData[5][4] + 10.0;
+        LasRecord r2 = new LasRecord();
+        r2.x = x;
+        r2.y = y;
+        r2.z = HMTestMaps.mapData[5][4] + 1.0;
+        List<LasRecord> normalized = new ArrayList<LasRecord>();
+        sampler.normalize(Arrays.asList(r1, r2), 2.0, normalized);
+        assertEquals(1, normalized.size());
+        assertEquals(10.0, normalized.get(0).groundElevation, DELTA);
+    }
+
+    public void testLasBlockCache() throws Exception {
+        File spillFolder = File.createTempFile("jgt-lasblocks", "");
+        spillFolder.delete();
+        LasBlockCache.Block block = LasBlockCache.Block.fromRecords(records);
+        // room for a single block only
+        LasBlockCache cache = new LasBlockCache(block.getBytes() + 1, spillFolder);
+        try {
+            assertNull(cache.get("test.las", 0, 3));
+            cache.put("test.las", 0, 3, block);
+            cache.put("test.las", 3, 6, LasBlockCache.Block.fromRecords(records));
+            assertEquals(1, cache.getEvictions());
+
+            // read back from the spill folder
+            LasBlockCache.Block spilled = cache.get("test.las", 0, 3);
+            assertNotNull(spilled);
+            assertEquals(1, cache.getSpillHits());
+            assertEquals(1, cache.getMisses());
+
+            List<LasRecord> points = new ArrayList<LasRecord>();
+            spilled.getPointsInEnvelope(new Envelope(1.5, 3.5, 1.5, 3.5), points);
+            assertEquals(2, points.size());
+            LasRecord r2 = points.get(0);
+            assertEquals(2.0, r2.x, DELTA);
+            assertEquals(6.0, r2.z, DELTA);
+            assertEquals(2, r2.classification);
+            assertEquals(128, r2.intensity);
+            assertEquals(2, r2.returnNumber);
+            assertEquals(3, r2.numberOfReturns);
+
+            cache.get("test.las", 0, 3);
+            assertEquals(1, cache.getHits());
+        } finally {
+            cache.clear();
+            spillFolder.delete();
+        }
+    }
+
+    public void testPackedHilbertRtree() throws Exception {
+        Random random = new Random(11);
+        List<Envelope> envelopes = new ArrayList<Envelope>();
+        PackedHilbertRtree.Builder builder = new PackedHilbertRtree.Builder(4);
+        for( int i = 0; i < 200; i++ ) {
+            double x = random.nextDouble() * 100;
+            double y = random.nextDouble() * 100;
+            Envelope envelope = new Envelope(x, x + 5, y, y + 5);
+            envelopes.add(envelope);
+            builder.add(envelope, new double[]{i, i + 1, 10.0, 20.0});
+        }
+        File indexFile = File.createTempFile("jgt-index", ".lasfix");
+        try {
+            builder.write(indexFile);
+            assertFalse(PackedHilbertRtree.isLegacy(indexFile));
+            PackedHilbertRtree index = PackedHilbertRtree.read(indexFile);
+            assertEquals(200, index.size());
+
+            Envelope searchEnv = new Envelope(20, 40, 30, 60);
+            int expected = 0;
+            for( Envelope envelope : envelopes ) {
+                if (envelope.intersects(searchEnv)) {
+                    expected++;
+                }
+            }
+            List<Object> items = index.query(searchEnv);
+            assertEquals(expected, items.size());
+            for( Object item : items ) {
+                double[] addresses = (double[]) item;
+                assertTrue(envelopes.get((int) addresses[0]).intersects(searchEnv));
+                assertEquals(20.0, addresses[3], DELTA);
+            }
+            assertEquals(envelopes.get(7), index.getItemEnvelope(7));
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    public void testLasBinning() throws Exception {
+        LasPointBatch batch = new LasPointBatch(5);
+        double[][] xyzr = {{0.5, 0.5, 1.0, 1}, {1.5, 0.5, 2.0, 1}, {1.5, 0.7, 2.5, 2}, {2.0, 2.0, 4.0, 1}, {5.0, 5.0, 0.2, 3}};
+        for( double[] p : xyzr ) {
+            LasRecord record = new LasRecord();
+            record.x = p[0];
+            record.y = p[1];
+            record.z = p[2];
+            record.groundElevation = p[2];
+            record.returnNumber = (short) p[3];
+            batch.add(record);
+        }
+
+        Histogram histogram = new Histogram(LasBinning.Z, 0.0, 1.0, 4);
+        histogram.add(batch);
+        // values on a limit fall in the lower bin
+        assertEquals(2, histogram.getCount(0));
+        assertEquals(1, histogram.getCount(1));
+        assertEquals(1, histogram.getCount(2));
+        assertEquals(1, histogram.getCount(3));
+        assertEquals(2.5, histogram.getCenter(2), DELTA);
+
+        // classes 1 to 5 in 4 bins, the min goes in the first bin
+        Histogram classes = new Histogram(LasBinning.CLASSIFICATION, 1.0, (5.0 - 1.0) / 4, 4);
+        int[] expectedBins = {0, 0, 1, 2, 3};
+        for( int i = 0; i < expectedBins.length; i++ ) {
+            assertEquals(expectedBins[i], classes.getBin(i + 1));
+        }
+        // exact counts of integer values
+        Histogram valuesCount = new Histogram(LasBinning.INTENSITY, Short.MIN_VALUE - 1, 1.0, Short.MAX_VALUE
+                - Short.MIN_VALUE + 1);
+        assertEquals(0, valuesCount.getBin(Short.MIN_VALUE));
+        assertEquals(1 - Short.MIN_VALUE, valuesCount.getBin(1));
+        assertEquals(valuesCount.getBinsNum() - 1, valuesCount.getBin(Short.MAX_VALUE));
+
+        DensityGrid grid = new DensityGrid(0.0, 0.0, 1.0, 1.0, 2, 2);
+        grid.add(batch);
+        assertEquals(1, grid.getCount(0, 0));
+        assertEquals(2, grid.getCount(1, 0));
+        assertEquals(1, grid.getCount(1, 0, 1));
+        assertEquals(1, grid.getCount(1, 0, 2));
+        // on the north-east bound
+        assertEquals(1, grid.getCount(1, 1));
+        assertEquals(0, grid.getCount(0, 1));
+
+        DensityGrid rangeGrid = new DensityGrid(0.0, 0.0, 1.0, 1.0, 2, 2);
+        rangeGrid.setVerticalRange(1.5, 3.0);
+        rangeGrid.add(batch);
+        assertEquals(0, rangeGrid.getCount(0, 0));
+        assertEquals(2, rangeGrid.getCount(1, 0));
+        assertEquals(0, rangeGrid.getCount(1, 1));
+
+        // a max bound that the bins reach only with a rounding error
+        double max = 0.3000000000000001;
+        double[] bins = NumericsUtilities.range2Bins(0.1, max, 0.1, false);
+        assertEquals(3, bins.length);
+        DensityGrid boundGrid = new DensityGrid(bins[0], bins[0], 0.1, 0.1, bins.length - 1, bins.length - 1);
+        LasPointBatch boundBatch = new LasPointBatch(1);
+        LasRecord record = new LasRecord();
+        record.x = max;
+        record.y = max;
+        record.returnNumber = 1;
+        boundBatch.add(record);
+        boundGrid.add(boundBatch);
+        assertEquals(1, boundGrid.getCount(1, 1));
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.optimizers.particleswarm.IPSFunction;
+import org.jgrasstools.gears.utils.optimizers.particleswarm.PSEngine;
+
+/**
+ * Test {@link PSEngine}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestPSEngine extends HMTestCase {
+
+    public void testParallelSynchronousIsDeterministic() throws Exception {
+        double[] sequential = runEngine(null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            double[] parallel = runEngine(executor);
+            assertEquals(sequential.length, parallel.length);
+            for( int i = 0; i < sequential.length; i++ ) {
+                assertEquals(sequential[i], parallel[i], 0.0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // minimum of the paraboloid is in (1, -2)
+        assertEquals(1.0, sequential[0], 0.01);
+        assertEquals(-2.0, sequential[1], 0.01);
+    }
+
+    private double[] runEngine( ExecutorService executor ) throws Exception {
+        PSEngine engine = new PSEngine(20, 200, 1.0, 2.0, 0.5, 0.1, new ParaboloidFunction(), "test");
+        engine.initializeRanges(new double[]{-10, 10}, new double[]{-10, 10});
+        engine.setSeed(42);
+        engine.setSynchronousBestUpdate(true);
+        engine.setExecutor(executor);
+        engine.run();
+        double[] solution = engine.getSolution();
+        return new double[]{solution[0], solution[1], engine.getSolutionFittingValue()};
+    }
+
+    private static class ParaboloidFunction implements IPSFunction {
+        public double evaluate( int iterationStep, int particleNum, double[] parameters, double[]... ranges ) {
+            return optimization(parameters);
+        }
+        public double optimization( double... parameters ) {
+            double dx = parameters[0] - 1.0;
+            double dy = parameters[1] + 2.0;
+            return dx * dx + dy * dy;
+        }
+        public String optimizationDescription() {
+            return "paraboloid";
+        }
+        public boolean isBetter( double evaluatedValue, double consideredBest ) {
+            return evaluatedValue < consideredBest;
+        }
+        public boolean hasConverged( double globalBest, double[] globalBestLocations, double[] previousBestLocations ) {
+            return false;
+        }
+        public double getInitialGlobalBest() {
+            return Double.POSITIVE_INFINITY;
+        }
+        public String getPostInfoString() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+
+import org.jgrasstools.gears.modules.r.edgedetection.Canny;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+/**
+ * Test for the {@link Canny} edge detector.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestCanny extends HMTestCase {
+
+    public void testCannyThreads() throws Exception {
+        int width = 160;
+        int height = 120;
+        // a smooth surface with a bright disc and a bright rectangle
+        double[][] data = new double[height][width];
+        for( int y = 0; y < height; y++ ) {
+            for( int x = 0; x < width; x++ ) {
+                double value = Math.sin(x * 0.05) * Math.cos(y * 0.04);
+                if ((x - 50) * (x - 50) + (y - 60) * (y - 60) < 25 * 25) {
+                    value = value + 5.0;
+                }
+                if (x > 100 && x < 140 && y > 20 && y < 90) {
+                    value = value + 3.0;
+                }
+                data[y][x] = value;
+            }
+        }
+        RenderedImage image = CoverageUtilities.buildCoverage("synthetic", data, HMTestMaps.getEnvelopeparams(),
+                HMTestMaps.getCrs(), true).getRenderedImage();
+
+        double[] single = null;
+        for( int threads : new int[]{1, 3, 8} ) {
+            Canny canny = new Canny(2.5f, 7.5f, 2f, 16, false, image);
+            canny.setThreads(threads);
+            canny.process();
+            WritableRaster edgesRaster = canny.getEdgesRaster();
+            double[] edges = edgesRaster.getSamples(0, 0, width, height, 0, (double[]) null);
+            if (single == null) {
+                single = edges;
+                int edgesNum = 0;
+                for( double edge : edges ) {
+                    if (!isNovalue(edge)) {
+                        edgesNum++;
+                    }
+                }
+                assertTrue(edgesNum > 0);
+            } else {
+                for( int i = 0; i < edges.length; i++ ) {
+                    assertEquals("Difference at cell " + i + " with " + threads + " threads", isNovalue(single[i]),
+                            isNovalue(edges[i]));
+                }
+            }
+        }
+
+        // a second detection on the same thread reuses the buffers of the first
+        Canny first = new Canny(2.5f, 7.5f, 2f, 16, false, image);
+        first.process();
+        first.getMagnitudeRaster();
+        Canny second = new Canny(2.5f, 7.5f, 2f, 16, false, image);
+        second.process();
+        second.getMagnitudeRaster();
+        try {
+            first.getMagnitudeRaster();
+            fail("The buffers of the first detection have been reused.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsUserCancelException;
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.modules.r.houghes.HoughCirclesEngine;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+/**
+ * Test for the {@link HoughCirclesEngine}.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestHoughCircles extends HMTestCase {
+
+    public void testHoughCircles() throws Exception {
+        int width = 120;
+        int height = 100;
+        // center x, center y, radius
+        int[][] circles = {{30, 30, 10}, {85, 60, 15}, {40, 75, 8}};
+        byte[] edges = new byte[width * height];
+        for( int[] circle : circles ) {
+            for( int i = 0; i < 720; i++ ) {
+                double angle = Math.PI * i / 360.0;
+                int x = (int) Math.round(circle[0] + circle[2] * Math.cos(angle));
+                int y = (int) Math.round(circle[1] + circle[2] * Math.sin(angle));
+                edges[x + y * width] = 1;
+            }
+        }
+
+        Coordinate[] single = null;
+        for( int threads : new int[]{1, 4} ) {
+            HoughCirclesEngine engine = new HoughCirclesEngine(edges, width, height, 5, 20, 1);
+            engine.accumulate(threads, new DummyProgressMonitor());
+            Coordinate[] centers = engine.getCenterPoints(circles.length);
+            assertEquals(circles.length, centers.length);
+
+            for( int[] circle : circles ) {
+                boolean found = false;
+                for( Coordinate center : centers ) {
+                    if (Math.abs(center.x - circle[0]) <= 1 && Math.abs(center.y - circle[1]) <= 1) {
+                        assertEquals(circle[2], center.z, 1.0);
+                        found = true;
+                    }
+                }
+                assertTrue("Circle not found: " + circle[0] + "/" + circle[1], found);
+            }
+
+            if (single == null) {
+                single = centers;
+            } else {
+                // the threads only split the radii, the result is the same
+                for( int i = 0; i < centers.length; i++ ) {
+                    assertEquals(single[i].x, centers[i].x, DELTA);
+                    assertEquals(single[i].y, centers[i].y, DELTA);
+                    assertEquals(single[i].z, centers[i].z, DELTA);
+                }
+            }
+        }
+    }
+
+    public void testHoughCirclesCancel() throws Exception {
+        int width = 60;
+        int height = 50;
+        byte[] edges = new byte[width * height];
+        for( int i = 0; i < 360; i++ ) {
+            double angle = Math.PI * i / 180.0;
+            edges[(int) Math.round(30 + 10 * Math.cos(angle)) + (int) Math.round(25 + 10 * Math.sin(angle)) * width] = 1;
+        }
+
+        for( int threads : new int[]{1, 4} ) {
+            // cancel as soon as the first radius is done
+            final int[] worked = new int[1];
+            DummyProgressMonitor pm = new DummyProgressMonitor(){
+                public synchronized void worked( int work ) {
+                    worked[0] += work;
+                }
+                public synchronized boolean isCanceled() {
+                    return worked[0] > 0;
+                }
+            };
+            HoughCirclesEngine engine = new HoughCirclesEngine(edges, width, height, 5, 20, 1);
+            try {
+                engine.accumulate(threads, pm);
+                fail("The transform should have been canceled.");
+            } catch (ModelsUserCancelException e) {
+                // the remaining radii are skipped
+                assertTrue(worked[0] < 16);
+            }
+        }
+    }
+
+}
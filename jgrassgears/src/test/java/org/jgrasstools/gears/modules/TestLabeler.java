@@ -0,0 +1,115 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import static java.lang.Double.NaN;
+
+import java.util.HashMap;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.modules.r.labeler.LabelingEngine;
+import org.jgrasstools.gears.modules.r.labeler.OmsLabeler;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+/**
+ * Test {@link OmsLabeler}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestLabeler extends HMTestCase {
+
+    private double[][] data = new double[][]{//
+    /*    */{1, 1, NaN, NaN, NaN, NaN, NaN, 1, NaN, NaN}, //
+            {NaN, 1, NaN, NaN, 1, NaN, NaN, 1, NaN, NaN}, //
+            {NaN, NaN, 1, NaN, 1, NaN, NaN, NaN, NaN, 1}, //
+            {NaN, NaN, NaN, NaN, NaN, NaN, 1, 1, NaN, 1}, //
+            {1, NaN, NaN, NaN, NaN, NaN, NaN, NaN, NaN, NaN}, //
+            {1, 1, NaN, NaN, NaN, 1, 1, 1, 1, NaN}, //
+            {NaN, NaN, NaN, NaN, NaN, 1, NaN, NaN, 1, NaN}, //
+            {NaN, NaN, NaN, NaN, NaN, 1, 1, 1, 1, NaN}};
+
+    public void testLabeler() throws Exception {
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D inCoverage = CoverageUtilities.buildCoverage("data", data, envelopeParams, crs, true);
+
+        OmsLabeler labeler = new OmsLabeler();
+        labeler.inMap = inCoverage;
+        labeler.process();
+        GridCoverage2D outCoverage = labeler.outMap;
+
+        double[][] expected = new double[][]{//
+        /*    */{1, 1, 0, 0, 0, 0, 0, 2, 0, 0}, //
+                {0, 1, 0, 0, 3, 0, 0, 2, 0, 0}, //
+                {0, 0, 1, 0, 3, 0, 0, 0, 0, 4}, //
+                {0, 0, 0, 0, 0, 0, 5, 5, 0, 4}, //
+                {6, 0, 0, 0, 0, 0, 0, 0, 0, 0}, //
+                {6, 6, 0, 0, 0, 7, 7, 7, 7, 0}, //
+                {0, 0, 0, 0, 0, 7, 0, 0, 7, 0}, //
+                {0, 0, 0, 0, 0, 7, 7, 7, 7, 0} //
+        };
+        checkMatrixEqual(outCoverage.getRenderedImage(), expected, 0);
+    }
+
+    public void testLabelerFourConnectivity() throws Exception {
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D inCoverage = CoverageUtilities.buildCoverage("data", data, envelopeParams, crs, true);
+
+        OmsLabeler labeler = new OmsLabeler();
+        labeler.inMap = inCoverage;
+        labeler.doDiagonal = false;
+        labeler.process();
+        GridCoverage2D outCoverage = labeler.outMap;
+
+        double[][] expected = new double[][]{//
+        /*    */{1, 1, 0, 0, 0, 0, 0, 2, 0, 0}, //
+                {0, 1, 0, 0, 3, 0, 0, 2, 0, 0}, //
+                {0, 0, 4, 0, 3, 0, 0, 0, 0, 5}, //
+                {0, 0, 0, 0, 0, 0, 6, 6, 0, 5}, //
+                {7, 0, 0, 0, 0, 0, 0, 0, 0, 0}, //
+                {7, 7, 0, 0, 0, 8, 8, 8, 8, 0}, //
+                {0, 0, 0, 0, 0, 8, 0, 0, 8, 0}, //
+                {0, 0, 0, 0, 0, 8, 8, 8, 8, 0} //
+        };
+        checkMatrixEqual(outCoverage.getRenderedImage(), expected, 0);
+    }
+
+    public void testLabelingEngineStats() throws Exception {
+        int rows = data.length;
+        int cols = data[0].length;
+        double[] array = new double[rows * cols];
+        for( int r = 0; r < rows; r++ ) {
+            System.arraycopy(data[r], 0, array, r * cols, cols);
+        }
+
+        // with three threads every row is a band, so all the rows are seams
+        LabelingEngine engine = new LabelingEngine(cols, rows, 3, pm);
+        engine.label(array, true);
+        assertEquals(7, engine.getLabelsNum());
+        assertEquals(4, engine.getArea(1));
+        assertEquals(10, engine.getArea(7));
+        int[] bounds = engine.getBounds(7);
+        assertEquals(5, bounds[0]);
+        assertEquals(5, bounds[1]);
+        assertEquals(8, bounds[2]);
+        assertEquals(7, bounds[3]);
+    }
+}
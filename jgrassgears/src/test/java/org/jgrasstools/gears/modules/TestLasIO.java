@@ -21,10 +21,24 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
+import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.jgrasstools.gears.io.las.ALasDataManager;
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasHeader;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasJNALibrary;
@@ -33,9 +47,23 @@ import org.jgrasstools.gears.io.las.core.liblas.LiblasWrapper;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasWriter;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasReader;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasWriter;
+import org.jgrasstools.gears.io.las.index.LasIndexer;
+import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
+import org.jgrasstools.gears.io.las.index.PackedHilbertRtree;
+import org.jgrasstools.gears.io.las.utils.LasPipeline;
 import org.jgrasstools.gears.io.las.utils.LasUtils;
 import org.jgrasstools.gears.modules.utils.fileiterator.OmsFileIterator;
 import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 @SuppressWarnings("nls")
 public class TestLasIO extends HMTestCase {
 
@@ -184,6 +212,253 @@ public class TestLasIO extends HMTestCase {
         lasTmp.deleteOnExit();
     }
 
+    public void testLasWriterBatches() throws Exception {
+        URL lasUrl = this.getClass().getClassLoader().getResource("las/1.2-with-color.las");
+        File lasFile = new File(lasUrl.toURI());
+
+        LasReader lasReader = new LasReader(lasFile, null);
+        lasReader.open();
+        ILasHeader lasHeader = lasReader.getHeader();
+        long recordsCount = lasHeader.getRecordsCount();
+
+        File lasTmp = File.createTempFile("laswriterbatches", ".las");
+        LasWriter lasWriter = new LasWriter(lasTmp, DefaultGeographicCRS.WGS84);
+        lasWriter.setBounds(lasHeader);
+        // wrong bounds, which have to be replaced by the ones of the points
+        lasWriter.setBounds(0, 0, 0, 0, 0, 0);
+        lasWriter.setBoundsFromPoints(true);
+        lasWriter.open();
+        // a batch size that doesn't divide the records count
+        LasPointBatch batch = new LasPointBatch(100);
+        double[] bounds = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for( long from = 0; from < recordsCount; from = from + batch.capacity() ) {
+            lasReader.getPointsInRange(from, recordsCount, batch);
+            for( int i = 0; i < batch.size(); i++ ) {
+                bounds[0] = Math.min(bounds[0], batch.x[i]);
+                bounds[1] = Math.max(bounds[1], batch.x[i]);
+                bounds[2] = Math.min(bounds[2], batch.y[i]);
+                bounds[3] = Math.max(bounds[3], batch.y[i]);
+                bounds[4] = Math.min(bounds[4], batch.z[i]);
+                bounds[5] = Math.max(bounds[5], batch.z[i]);
+            }
+            lasWriter.addPoints(batch);
+        }
+        lasWriter.close();
+
+        LasReader tmpLasReader = new LasReader(lasTmp, null);
+        tmpLasReader.open();
+        ILasHeader tmpLasHeader = tmpLasReader.getHeader();
+        assertEquals(recordsCount, tmpLasHeader.getRecordsCount());
+        ReferencedEnvelope3D tmpLasEnv = tmpLasHeader.getDataEnvelope();
+        assertEquals(bounds[0], tmpLasEnv.getMinX(), DELTA);
+        assertEquals(bounds[1], tmpLasEnv.getMaxX(), DELTA);
+        assertEquals(bounds[2], tmpLasEnv.getMinY(), DELTA);
+        assertEquals(bounds[3], tmpLasEnv.getMaxY(), DELTA);
+        assertEquals(bounds[4], tmpLasEnv.getMinZ(), DELTA);
+        assertEquals(bounds[5], tmpLasEnv.getMaxZ(), DELTA);
+        for( long i = 0; i < recordsCount; i++ ) {
+            assertTrue(LasUtils.lasRecordEqual(lasReader.getPointAt(i), tmpLasReader.getPointAt(i)));
+        }
+        tmpLasReader.close();
+        lasReader.close();
+
+        lasTmp.deleteOnExit();
+    }
+
+    public void testLasPipeline() throws Exception {
+        URL lasUrl = this.getClass().getClassLoader().getResource("las/1.2-with-color.las");
+        File lasFile = new File(lasUrl.toURI());
+
+        final LasReader lasReader = new LasReader(lasFile, null);
+        lasReader.open();
+        final ILasHeader lasHeader = lasReader.getHeader();
+        long recordsCount = lasHeader.getRecordsCount();
+        ReferencedEnvelope3D env = lasHeader.getDataEnvelope();
+        final double xSplit = env.getMinX() + env.getWidth() / 2.0;
+        final double ySplit = env.getMinY() + env.getHeight() / 2.0;
+
+        // the points of each output in original order, the upper half is dropped
+        List<List<LasRecord>> expected = new ArrayList<List<LasRecord>>();
+        expected.add(new ArrayList<LasRecord>());
+        expected.add(new ArrayList<LasRecord>());
+        for( long i = 0; i < recordsCount; i++ ) {
+            LasRecord dot = lasReader.getPointAt(i);
+            if (dot.y < ySplit) {
+                expected.get(dot.x < xSplit ? 0 : 1).add(dot);
+            }
+        }
+
+        // with a single open output the writers are suspended and reopened at every switch
+        for( int maxOpenOutputs : new int[]{LasPipeline.MAX_OPEN_OUTPUTS, 1} ) {
+            final File[] outFiles = {File.createTempFile("laspipeline0", ".las"), File.createTempFile("laspipeline1", ".las")};
+            LasPipeline pipeline = new LasPipeline(100, 2, 2, null);
+            pipeline.setMaxOpenOutputs(maxOpenOutputs);
+            int outputs = pipeline.run(Arrays.<ALasReader> asList(lasReader), new LasPipeline.PointRouter(){
+                public void route( LasPointBatch batch, int[] targets ) {
+                    for( int i = 0; i < batch.size(); i++ ) {
+                        if (batch.y[i] < ySplit) {
+                            targets[i] = batch.x[i] < xSplit ? 0 : 1;
+                        } else {
+                            targets[i] = -1;
+                        }
+                    }
+                }
+            }, new LasPipeline.WriterFactory(){
+                public ALasWriter createWriter( int target ) throws Exception {
+                    LasWriter writer = new LasWriter(outFiles[target], DefaultGeographicCRS.WGS84);
+                    writer.setBounds(lasHeader);
+                    writer.open();
+                    return writer;
+                }
+            });
+            assertEquals(2, outputs);
+
+            for( int target = 0; target < 2; target++ ) {
+                List<LasRecord> expectedDots = expected.get(target);
+                LasReader tmpLasReader = new LasReader(outFiles[target], null);
+                tmpLasReader.open();
+                ILasHeader tmpLasHeader = tmpLasReader.getHeader();
+                assertEquals(expectedDots.size(), tmpLasHeader.getRecordsCount());
+                ReferencedEnvelope3D tmpLasEnv = tmpLasHeader.getDataEnvelope();
+                if (target == 0) {
+                    assertTrue(tmpLasEnv.getMaxX() < xSplit);
+                } else {
+                    assertTrue(tmpLasEnv.getMinX() >= xSplit);
+                }
+                assertTrue(tmpLasEnv.getMaxY() < ySplit);
+                for( int i = 0; i < expectedDots.size(); i++ ) {
+                    assertTrue(LasUtils.lasRecordEqual(expectedDots.get(i), tmpLasReader.getPointAt(i)));
+                }
+                tmpLasReader.close();
+                outFiles[target].deleteOnExit();
+            }
+        }
+        lasReader.close();
+    }
+
+    public void testLasFolderIndexQueries() throws Exception {
+        URL lasUrl = this.getClass().getClassLoader().getResource("las/1.2-with-color.las");
+        File lasFile = new File(lasUrl.toURI());
+        File lasFolder = File.createTempFile("lasfolder", "");
+        lasFolder.delete();
+        lasFolder.mkdirs();
+        FileUtilities.copyFile(lasFile, new File(lasFolder, lasFile.getName()));
+        CoordinateReferenceSystem crs = CRS.decode("EPSG:32617");
+
+        // tiles of about 70 points, so that the queries read several index ranges
+        LasIndexer indexer = new LasIndexer();
+        indexer.inFolder = lasFolder.getAbsolutePath();
+        indexer.pCode = "EPSG:32617";
+        indexer.pCellsize = 300;
+        indexer.pm = pm;
+        indexer.process();
+        File indexedLasFile = new File(lasFolder, "1.2-with-color_indexed.las");
+        File lasIndexFile = new File(lasFolder, "1.2-with-color_indexed.lasfix");
+
+        LasReader lasReader = new LasReader(indexedLasFile, null);
+        lasReader.open();
+        ReferencedEnvelope3D env = lasReader.getHeader().getDataEnvelope();
+        double w = env.getMinX();
+        double s = env.getMinY();
+        double width = env.getWidth();
+        double height = env.getHeight();
+        GeometryFactory gf = GeometryUtilities.gf();
+        final List<Geometry> geometries = new ArrayList<Geometry>();
+        geometries.add(gf.toGeometry(new Envelope(w + width * 0.2, w + width * 0.7, s + height * 0.3, s + height * 0.9)));
+        geometries.add(gf.createPolygon(new Coordinate[]{new Coordinate(w - 10, s - 10), new Coordinate(w + width * 0.9, s),
+                new Coordinate(w + width * 0.4, s + height), new Coordinate(w - 10, s - 10)}));
+        geometries.add(gf.toGeometry(new Envelope(w - 100, w + width + 100, s - 100, s + height + 100)));
+
+        // the points of the index leaves read one by one, as the queries used to
+        PackedHilbertRtree lasIndex = OmsLasIndexReader.readIndex(lasIndexFile.getAbsolutePath());
+        final List<List<LasRecord>> expected = new ArrayList<List<LasRecord>>();
+        for( Geometry geometry : geometries ) {
+            for( boolean doOnlyEnvelope : new boolean[]{true, false} ) {
+                Envelope checkEnv = geometry.getEnvelopeInternal();
+                PreparedGeometry preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+                List<LasRecord> points = new ArrayList<LasRecord>();
+                for( Object obj : lasIndex.query(checkEnv) ) {
+                    if (!(obj instanceof double[])) {
+                        continue;
+                    }
+                    double[] addresses = (double[]) obj;
+                    List<LasRecord> rangePoints = new ArrayList<LasRecord>();
+                    lasReader.getPointsInRange((long) addresses[0], (long) addresses[1], checkEnv, rangePoints);
+                    int index = 0;
+                    for( long pointNum = (long) addresses[0]; pointNum < (long) addresses[1]; pointNum++ ) {
+                        LasRecord lasDot = lasReader.getPointAt(pointNum);
+                        Coordinate c = new Coordinate(lasDot.x, lasDot.y);
+                        if (checkEnv.contains(c)) {
+                            // the range read gives the same points
+                            assertTrue(LasUtils.lasRecordEqual(lasDot, rangePoints.get(index++)));
+                            if (doOnlyEnvelope || preparedGeometry.contains(gf.createPoint(c))) {
+                                points.add(lasDot);
+                            }
+                        }
+                    }
+                    assertEquals(index, rangePoints.size());
+                }
+                sortRecords(points);
+                expected.add(points);
+            }
+        }
+        assertEquals(lasReader.getHeader().getRecordsCount(), expected.get(4).size());
+        lasReader.close();
+        assertTrue(expected.get(1).size() < expected.get(0).size());
+        assertTrue(expected.get(3).size() < expected.get(2).size());
+
+        // queries run concurrently on the same manager
+        final ALasDataManager lasData = ALasDataManager.getDataManager(new File(lasFolder, LasIndexer.INDEX_LASFOLDER), null,
+                0, crs);
+        lasData.open();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<LasRecord>>> futures = new ArrayList<Future<List<LasRecord>>>();
+            for( int i = 0; i < 4 * expected.size(); i++ ) {
+                final int query = i % expected.size();
+                futures.add(executor.submit(new Callable<List<LasRecord>>(){
+                    public List<LasRecord> call() throws Exception {
+                        return lasData.getPointsInGeometry(geometries.get(query / 2), query % 2 == 0);
+                    }
+                }));
+            }
+            for( int i = 0; i < futures.size(); i++ ) {
+                List<LasRecord> expectedDots = expected.get(i % expected.size());
+                List<LasRecord> dots = futures.get(i).get();
+                sortRecords(dots);
+                assertEquals(expectedDots.size(), dots.size());
+                for( int j = 0; j < dots.size(); j++ ) {
+                    assertTrue(LasUtils.lasRecordEqual(expectedDots.get(j), dots.get(j)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            lasData.close();
+            for( File file : lasFolder.listFiles() ) {
+                file.delete();
+            }
+            lasFolder.delete();
+        }
+    }
+
+    private static void sortRecords( List<LasRecord> records ) {
+        Collections.sort(records, new Comparator<LasRecord>(){
+            public int compare( LasRecord o1, LasRecord o2 ) {
+                if (o1.x != o2.x) {
+                    return o1.x < o2.x ? -1 : 1;
+                }
+                if (o1.y != o2.y) {
+                    return o1.y < o2.y ? -1 : 1;
+                }
+                if (o1.z != o2.z) {
+                    return o1.z < o2.z ? -1 : 1;
+                }
+                return Double.compare(o1.gpsTime, o2.gpsTime);
+            }
+        });
+    }
+
     private void processFile( String name, long expectedCount, boolean hasColor ) throws URISyntaxException, Exception,
             IOException {
         URL lasUrl = this.getClass().getClassLoader().getResource(name);
@@ -18,12 +18,18 @@
  */
 package org.jgrasstools.gears.modules;
 
+import static java.lang.Double.NaN;
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.modules.r.mosaic.MosaicEngine;
 import org.jgrasstools.gears.modules.r.mosaic.OmsMosaic;
 import org.jgrasstools.gears.modules.r.mosaic.OmsMosaic12;
 import org.jgrasstools.gears.utils.HMTestCase;
@@ -50,6 +56,69 @@ public class TestMosaic extends HMTestCase {
         checkMatrixEqual(readCoverage.getRenderedImage(), HMTestMaps.mapData);
     }
 
+    public void testMosaicOverlapRules() throws Exception {
+        // the second map is shifted by one cell to the east and to the north
+        File first = writeAsc("mosaic_first", 0, 0, new double[][]{//
+                {1, 2, 3}, //
+                        {4, NaN, 6}, //
+                        {7, 8, 9}});
+        File second = writeAsc("mosaic_second", 1, 1, new double[][]{//
+                {10, 20, 30}, //
+                        {40, 0.5, 60}, //
+                        {70, 80, 90}});
+        List<File> filesList = Arrays.asList(first, second);
+
+        // the overlap values are in column 1 and 2 of row 1 and 2
+        String[] rules = {MosaicEngine.FIRST, MosaicEngine.LAST, MosaicEngine.MEAN, MosaicEngine.MIN, MosaicEngine.MAX};
+        double[][] overlaps = {//
+        {2, 3, 70, 6}, //
+                {40, 0.5, 70, 80}, //
+                {21, 1.75, 70, 43}, //
+                {2, 0.5, 70, 6}, //
+                {40, 3, 70, 80}};
+        for( int i = 0; i < rules.length; i++ ) {
+            double[] o = overlaps[i];
+            double[][] expected = {//
+            {NaN, 10, 20, 30}, //
+                    {1, o[0], o[1], 60}, //
+                    {4, o[2], o[3], 90}, //
+                    {7, 8, 9, NaN}};
+
+            OmsMosaic mosaic = new OmsMosaic();
+            mosaic.inFiles = filesList;
+            mosaic.pOverlap = rules[i];
+            mosaic.pm = pm;
+            mosaic.process();
+            checkMatrixEqual(mosaic.outRaster.getRenderedImage(), expected);
+        }
+
+        first.delete();
+        second.delete();
+    }
+
+    private File writeAsc( String name, double xll, double yll, double[][] data ) throws IOException {
+        File file = File.createTempFile(name, ".asc");
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("NCOLS " + data[0].length + "\n");
+            writer.write("NROWS " + data.length + "\n");
+            writer.write("XLLCORNER " + xll + "\n");
+            writer.write("YLLCORNER " + yll + "\n");
+            writer.write("CELLSIZE 1.0\n");
+            writer.write("NODATA_VALUE -9999\n");
+            for( double[] row : data ) {
+                StringBuilder sb = new StringBuilder();
+                for( double value : row ) {
+                    sb.append(isNovalue(value) ? "-9999" : String.valueOf(value)).append(" ");
+                }
+                writer.write(sb.toString().trim() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
     public void testMosaic12() throws Exception {
         URL testUrl = this.getClass().getClassLoader().getResource("dtm_test_left.asc");
         File left = new File(testUrl.toURI());
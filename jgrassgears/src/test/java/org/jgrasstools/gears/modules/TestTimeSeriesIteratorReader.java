@@ -93,6 +93,42 @@ public class TestTimeSeriesIteratorReader extends HMTestCase {
         }
 
     }
+
+    public void testId2ValueReaderPrefetching() throws Exception {
+        URL dataUrl = this.getClass().getClassLoader().getResource("csvtest2.csv");
+
+        OmsTimeSeriesIteratorReader reader = new OmsTimeSeriesIteratorReader();
+        reader.file = new File(dataUrl.toURI()).getAbsolutePath();
+        reader.idfield = "ID";
+        reader.tStart = "1997-01-01 00:00";
+        reader.tEnd = "2006-12-31 00:00";
+        reader.tTimestep = 1440;
+        reader.pPrefetch = 2;
+        reader.doReuseBuffers = true;
+        try {
+            reader.initProcess();
+            int count = 0;
+            while( reader.doProcess ) {
+                reader.nextRecord();
+                HashMap<Integer, double[]> id2ValueMap = reader.outData;
+                if (count == 0) {
+                    assertEquals(14.9, id2ValueMap.get(1)[0]);
+                    assertEquals(15.2, id2ValueMap.get(2)[0]);
+                } else if (count == 1) {
+                    assertEquals(17.2, id2ValueMap.get(1)[0]);
+                    assertEquals(17.4, id2ValueMap.get(2)[0]);
+                } else if (count == 2) {
+                    assertEquals(19.8, id2ValueMap.get(1)[0]);
+                    assertEquals(20.0, id2ValueMap.get(2)[0]);
+                    break;
+                }
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
     public static void main( String[] args ) throws Exception {
         new TestTimeSeriesIteratorReader().testId2ValueReader2();
     }
@@ -23,6 +23,7 @@ import java.util.HashMap;
 
 import org.jgrasstools.gears.io.timedependent.OmsTimeSeriesIteratorReader;
 import org.jgrasstools.gears.io.timedependent.OmsTimeSeriesIteratorWriter;
+import org.jgrasstools.gears.io.timedependent.TimeSeriesBinarySink;
 import org.jgrasstools.gears.utils.HMTestCase;
 /**
  * Test {@link OmsTimeSeriesIteratorWriter}.
@@ -167,4 +168,71 @@ public class TestTimeSeriesIteratorWriter extends HMTestCase {
 
     }
 
+    public void testTimeSeriesIteratorWriterAsyncBinary() throws Exception {
+
+        String startDate = "2000-01-01 00:00";
+        String endDate = "2000-12-31 00:00";
+        String id = "ID";
+        int timeStep = 1440;
+
+        URL dataUrl = this.getClass().getClassLoader().getResource("timeseriesiteratorreader_test.csv");
+        String dataPath = new File(dataUrl.toURI()).getAbsolutePath();
+
+        OmsTimeSeriesIteratorReader reader = new OmsTimeSeriesIteratorReader();
+        reader.file = dataPath;
+        reader.idfield = id;
+        reader.tStart = startDate;
+        reader.tEnd = endDate;
+        reader.tTimestep = timeStep;
+        reader.doReuseBuffers = true;
+        reader.initProcess();
+
+        File binFile = File.createTempFile("test", "jgtbin");
+        OmsTimeSeriesIteratorWriter writer = new OmsTimeSeriesIteratorWriter();
+        writer.file = binFile.getAbsolutePath();
+        writer.inTablename = "testrain";
+        writer.fileNovalue = "-9999.0";
+        writer.tStart = startDate;
+        writer.tTimestep = timeStep;
+        writer.doAsync = true;
+        writer.doBinary = true;
+        writer.pBufferSize = 4;
+        while( reader.doProcess ) {
+            reader.nextRecord();
+            writer.inData = reader.outData;
+            writer.writeNextLine();
+        }
+        writer.close();
+        reader.close();
+
+        File csvFile = File.createTempFile("test", "jgt");
+        TimeSeriesBinarySink.toCsv(binFile, csvFile, "-9999.0");
+
+        reader = new OmsTimeSeriesIteratorReader();
+        reader.file = csvFile.getAbsolutePath();
+        reader.idfield = id;
+        reader.tStart = startDate;
+        reader.tEnd = endDate;
+        reader.tTimestep = timeStep;
+
+        reader.nextRecord();
+        HashMap<Integer, double[]> id2ValueMap = reader.outData;
+        assertEquals(-2.5, id2ValueMap.get(1)[0]);
+        assertEquals(-2.0, id2ValueMap.get(2)[0]);
+        assertEquals(-1.3, id2ValueMap.get(3)[0]);
+        assertEquals(-1.1, id2ValueMap.get(4)[0]);
+
+        reader.nextRecord();
+        id2ValueMap = reader.outData;
+        assertEquals(-2.0, id2ValueMap.get(1)[0]);
+        assertEquals(2.6, id2ValueMap.get(2)[0]);
+        assertEquals(3.9, id2ValueMap.get(3)[0]);
+        assertEquals(3.4, id2ValueMap.get(4)[0]);
+
+        reader.close();
+
+        binFile.delete();
+        csvFile.delete();
+    }
+
 }
@@ -17,13 +17,17 @@
  */
 package org.jgrasstools.gears.modules;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.jgrasstools.gears.libs.modules.Variables;
 import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
 import org.jgrasstools.gears.modules.r.summary.OmsZonalStats;
+import org.jgrasstools.gears.modules.r.summary.ZonalStatistics;
+import org.jgrasstools.gears.modules.r.summary.ZonalStatistics.Spans;
 import org.jgrasstools.gears.utils.HMTestCase;
 import org.jgrasstools.gears.utils.HMTestMaps;
 import org.jgrasstools.gears.utils.RegionMap;
@@ -81,4 +85,97 @@ public class TestZonalStats extends HMTestCase {
         assertEquals(17, invalidCells);
     }
 
+    public void testZonalStatisticsThreads() throws Exception {
+        int rows = 300;
+        int cols = 50;
+        Random random = new Random(42);
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                data[r][c] = random.nextDouble() < 0.1 ? Double.NaN : random.nextDouble() * 100.0 - 20.0;
+            }
+        }
+        GridCoverage2D coverage = CoverageUtilities.buildCoverage("random", data, ep, crs, true);
+
+        // overlapping zones, the last one has no spans
+        Spans spans = new Spans();
+        for( int r = 0; r < rows; r++ ) {
+            spans.add(0, r, 0, cols - 1);
+            if (r >= 10 && r <= 250) {
+                spans.add(1, r, 5, 20);
+            }
+            spans.add(2, r, r % 40, r % 40 + 9);
+        }
+        int zonesNum = 4;
+        double referenceMean = 30.0;
+
+        // direct two pass calculation
+        long[] counts = new long[zonesNum];
+        long[] novalueCounts = new long[zonesNum];
+        double[] sums = new double[zonesNum];
+        double[] mins = new double[zonesNum];
+        double[] maxs = new double[zonesNum];
+        double[] absDeviationSums = new double[zonesNum];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        for( int i = 0; i < spans.size(); i++ ) {
+            int zone = spans.getZone(i);
+            for( int c = spans.getFromCol(i); c <= spans.getToCol(i); c++ ) {
+                double value = data[spans.getRow(i)][c];
+                if (Double.isNaN(value)) {
+                    novalueCounts[zone]++;
+                    continue;
+                }
+                counts[zone]++;
+                sums[zone] += value;
+                mins[zone] = Math.min(mins[zone], value);
+                maxs[zone] = Math.max(maxs[zone], value);
+                absDeviationSums[zone] += Math.abs(value - referenceMean);
+            }
+        }
+        double[] m2s = new double[zonesNum];
+        for( int i = 0; i < spans.size(); i++ ) {
+            int zone = spans.getZone(i);
+            for( int c = spans.getFromCol(i); c <= spans.getToCol(i); c++ ) {
+                double value = data[spans.getRow(i)][c];
+                if (!Double.isNaN(value)) {
+                    double delta = value - sums[zone] / counts[zone];
+                    m2s[zone] += delta * delta;
+                }
+            }
+        }
+
+        for( int threads : new int[]{1, 3, 8} ) {
+            ZonalStatistics stats = new ZonalStatistics(zonesNum);
+            stats.setReferenceMean(referenceMean);
+            stats.accumulate(coverage.getRenderedImage(), spans, threads, new DummyProgressMonitor());
+            for( int zone = 0; zone < zonesNum - 1; zone++ ) {
+                assertEquals(counts[zone], stats.getCount(zone));
+                assertEquals(novalueCounts[zone], stats.getNovalueCount(zone));
+                assertEquals(mins[zone], stats.getMin(zone));
+                assertEquals(maxs[zone], stats.getMax(zone));
+                assertEquals(sums[zone], stats.getSum(zone), 1E-6);
+                assertEquals(sums[zone] / counts[zone], stats.getMean(zone), DELTA);
+                assertEquals(m2s[zone] / counts[zone], stats.getVariance(zone), 1E-6);
+                assertEquals(m2s[zone] / (counts[zone] - 1), stats.getSampleVariance(zone), 1E-6);
+                assertEquals(absDeviationSums[zone] / counts[zone], stats.getMeanAbsoluteDeviation(zone), DELTA);
+            }
+            int empty = zonesNum - 1;
+            assertEquals(0, stats.getCount(empty));
+            assertEquals(0, stats.getNovalueCount(empty));
+            assertTrue(Double.isNaN(stats.getMean(empty)));
+            assertTrue(Double.isNaN(stats.getVariance(empty)));
+        }
+        // all the novalues of the raster are in the zone covering it
+        long novalues = 0;
+        for( double[] row : data ) {
+            for( double value : row ) {
+                if (Double.isNaN(value)) {
+                    novalues++;
+                }
+            }
+        }
+        assertEquals(novalues, novalueCounts[0]);
+    }
+
 }
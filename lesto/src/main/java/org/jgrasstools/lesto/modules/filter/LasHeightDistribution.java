@@ -23,10 +23,9 @@ import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
-import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.WritableRandomIter;
 
 import oms3.annotations.Author;
@@ -44,12 +43,13 @@ import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.geometry.DirectPosition2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.jgrasstools.gears.io.las.ALasDataManager;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
-import org.jgrasstools.gears.io.las.utils.LasRecordGroundElevationComparator;
+import org.jgrasstools.gears.io.las.utils.LasBinning.DensityGrid;
+import org.jgrasstools.gears.io.las.utils.LasBlockCache;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.modules.r.filter.OmsKernelFilter;
@@ -96,6 +96,10 @@ public class LasHeightDistribution extends JGTModel {
     @In
     public double pOverlapPerc = 80.0;
 
+    @Description("The size of the decoded points cache in MB (0 disables it).")
+    @In
+    public double pCacheSize = 0.0;
+
     @Description("Field name for tile id.")
     @In
     public String fId = "id";
@@ -141,6 +145,11 @@ public class LasHeightDistribution extends JGTModel {
 
         try (ALasDataManager dataManager = ALasDataManager.getDataManager(indexFile, inDemGC, pThres, null)) {
             dataManager.open();
+            LasBlockCache blockCache = null;
+            if (pCacheSize > 0) {
+                blockCache = new LasBlockCache((long) (pCacheSize * 1024 * 1024), null);
+                dataManager.setBlockCache(blockCache);
+            }
 
             for( int i = 0; i < tilesMates.size(); i++ ) {
                 pm.message("Processing tile: " + i + "/" + tilesMates.size());
@@ -168,33 +177,23 @@ public class LasHeightDistribution extends JGTModel {
                     pm.errorMessage("Not enough points found in tile: " + id);
                     continue;
                 }
-                List<double[]> negativeRanges = analyseNegativeLayerRanges(id, pointsListForTile);
-                List<GridCoverage2D> rangeCoverages = new ArrayList<GridCoverage2D>();
-
-                for( double[] range : negativeRanges ) {
-                    List<LasRecord> pointsInVerticalRange = ALasDataManager.getPointsInVerticalRange(pointsListForTile, range[0],
-                            range[1], true);
-
-                    WritableRaster[] wrH = new WritableRaster[1];
-                    GridCoverage2D tmpCoverage = CoverageUtilities.createSubCoverageFromTemplate(inDemGC, tileEnvelope,
-                            doubleNovalue, wrH);
-                    rangeCoverages.add(tmpCoverage);
-
-                    WritableRandomIter tmpIter = CoverageUtilities.getWritableRandomIterator(wrH[0]);
-
-                    final DirectPosition2D wp = new DirectPosition2D();
-                    for( LasRecord lasRecord : pointsInVerticalRange ) {
-                        wp.setLocation(lasRecord.x, lasRecord.y);
-                        GridCoordinates2D gp = tileGridGeometry.worldToGrid(wp);
-                        double count = tmpIter.getSampleDouble(gp.x, gp.y, 0);
-                        if (isNovalue(count)) {
-                            count = 0;
-                        }
-                        tmpIter.setSample(gp.x, gp.y, 0, count + 1);
-                    }
+                LasPointBatch tileBatch = new LasPointBatch(pointsListForTile.size());
+                for( LasRecord lasRecord : pointsListForTile ) {
+                    tileBatch.add(lasRecord);
+                }
+                pointsListForTile = null;
 
-                    tmpIter.done();
+                List<double[]> negativeRanges = analyseNegativeLayerRanges(id, tileBatch);
 
+                int cols = tileRegionMap.getCols();
+                int rows = tileRegionMap.getRows();
+                List<DensityGrid> rangeGrids = new ArrayList<DensityGrid>();
+                for( double[] range : negativeRanges ) {
+                    DensityGrid rangeGrid = new DensityGrid(tileRegionMap.getWest(), tileRegionMap.getSouth(),
+                            tileRegionMap.getXres(), tileRegionMap.getYres(), cols, rows);
+                    rangeGrid.setVerticalRange(range[0], range[1]);
+                    rangeGrid.add(tileBatch);
+                    rangeGrids.add(rangeGrid);
                 }
 
                 /*
@@ -205,11 +204,11 @@ public class LasHeightDistribution extends JGTModel {
                  * single at variable heights. 
                  */
                 boolean isDoubleLayered = false;
-                if (rangeCoverages.size() > 1) {
-                    for( int j = 0; j < rangeCoverages.size() - 1; j++ ) {
-                        GridCoverage2D cov1 = rangeCoverages.get(j);
-                        GridCoverage2D cov2 = rangeCoverages.get(j + 1);
-                        if (overlapForPercentage(cov1, cov2, percentageOverlap)) {
+                if (rangeGrids.size() > 1) {
+                    for( int j = 0; j < rangeGrids.size() - 1; j++ ) {
+                        DensityGrid grid1 = rangeGrids.get(j);
+                        DensityGrid grid2 = rangeGrids.get(j + 1);
+                        if (overlapForPercentage(grid1, grid2, percentageOverlap)) {
                             isDoubleLayered = true;
                             break;
                         }
@@ -224,18 +223,13 @@ public class LasHeightDistribution extends JGTModel {
                  */
                 GridGeometry2D gridGeometry = outCatsGC.getGridGeometry();
                 // RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(outCats);
-                double[] gridValue = new double[1];
-                int cols = tileRegionMap.getCols();
-                int rows = tileRegionMap.getRows();
                 for( int c = 0; c < cols; c++ ) {
                     for( int r = 0; r < rows; r++ ) {
                         int value = 0;
                         GridCoordinates2D gridPosition = new GridCoordinates2D(c, r);
-                        for( int j = 0; j < rangeCoverages.size(); j++ ) {
-                            GridCoverage2D cov = rangeCoverages.get(j);
-                            cov.evaluate(gridPosition, gridValue);
-
-                            if (!isNovalue(gridValue[0])) {
+                        for( int j = 0; j < rangeGrids.size(); j++ ) {
+                            // the grid rows are counted from south
+                            if (rangeGrids.get(j).getCount(c, rows - 1 - r) > 0) {
                                 value++;
                             }
                         }
@@ -255,7 +249,10 @@ public class LasHeightDistribution extends JGTModel {
                     }
                 }
             }
-
+            if (blockCache != null) {
+                pm.message(blockCache.toString());
+                blockCache.clear();
+            }
         }
 
         RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(outCatsGC);
@@ -275,12 +272,9 @@ public class LasHeightDistribution extends JGTModel {
 
     }
 
-    private boolean overlapForPercentage( GridCoverage2D cov1, GridCoverage2D cov2, double forPercentage ) {
-        RandomIter cov1Iter = CoverageUtilities.getRandomIterator(cov1);
-        RandomIter cov2Iter = CoverageUtilities.getRandomIterator(cov2);
-        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(cov1);
-        int cols = regionMap.getCols();
-        int rows = regionMap.getRows();
+    private boolean overlapForPercentage( DensityGrid grid1, DensityGrid grid2, double forPercentage ) {
+        int cols = grid1.getCols();
+        int rows = grid1.getRows();
 
         int valid1 = 0;
         int valid2 = 0;
@@ -288,25 +282,22 @@ public class LasHeightDistribution extends JGTModel {
 
         for( int c = 0; c < cols; c++ ) {
             for( int r = 0; r < rows; r++ ) {
-                double v1 = cov1Iter.getSampleDouble(c, r, 0);
-                double v2 = cov2Iter.getSampleDouble(c, r, 0);
+                boolean has1 = grid1.getCount(c, r) > 0;
+                boolean has2 = grid2.getCount(c, r) > 0;
 
-                if (!isNovalue(v1)) {
+                if (has1) {
                     valid1++;
                 }
-                if (!isNovalue(v2)) {
+                if (has2) {
                     valid2++;
                 }
-                if (!isNovalue(v1) && !isNovalue(v2)) {
+                if (has1 && has2) {
                     overlapping++;
                 }
 
             }
         }
 
-        cov1Iter.done();
-        cov2Iter.done();
-
         if (overlapping == 0) {
             return false;
         }
@@ -321,14 +312,8 @@ public class LasHeightDistribution extends JGTModel {
         return false;
     }
 
-    private List<double[]> analyseNegativeLayerRanges( String id, List<LasRecord> pointsList ) throws Exception {
-        Collections.sort(pointsList, new LasRecordGroundElevationComparator());
-
-        double[] pointsArray = new double[pointsList.size()];
-        for( int i = 0; i < pointsArray.length; i++ ) {
-            LasRecord lasRecord = pointsList.get(i);
-            pointsArray[i] = lasRecord.groundElevation;
-        }
+    private List<double[]> analyseNegativeLayerRanges( String id, LasPointBatch tileBatch ) throws Exception {
+        double[] pointsArray = Arrays.copyOf(tileBatch.groundElevation, tileBatch.size());
 
         double binSize = 0.5;
         double[][] bins = toBins(pointsArray, binSize);
@@ -453,29 +438,34 @@ public class LasHeightDistribution extends JGTModel {
         return paddedCountsArray;
     }
 
+    /**
+     * Count values in bins of a given size, starting from the min value.
+     * 
+     * @param values the values, in any order.
+     * @param binSize the size of the bins.
+     * @return the bin centers and counts as [centers, counts].
+     */
     public static double[][] toBins( double[] values, double binSize ) {
-        double min = values[0];
-        double max = values[values.length - 1];
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for( double value : values ) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
         int num = (int) Math.ceil((max - min) / binSize);
         if (num == 0) {
             num = 1;
         }
-        double from = min;
-        double to = min + binSize;
         double[][] result = new double[2][num];
         for( int i = 0; i < num; i++ ) {
-            int count = 0;
-            for( int j = 0; j < values.length; j++ ) {
-                if (values[j] >= from && values[j] < to) {
-                    count++;
-                }
+            result[0][i] = min + binSize * i + binSize / 2.0;
+        }
+        for( double value : values ) {
+            int bin = (int) Math.floor((value - min) / binSize);
+            // bins are open on the upper side
+            if (bin < num) {
+                result[1][bin]++;
             }
-            double centerValue = from + binSize / 2.0;
-            result[0][i] = centerValue;
-            result[1][i] = count;
-
-            from = from + binSize;
-            to = to + binSize;
         }
         return result;
     }
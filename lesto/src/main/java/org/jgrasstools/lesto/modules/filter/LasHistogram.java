@@ -31,10 +31,13 @@ import oms3.annotations.Name;
 import oms3.annotations.Status;
 import oms3.annotations.UI;
 
+import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.utils.LasBinning;
+import org.jgrasstools.gears.io.las.utils.LasBinning.Histogram;
 import org.jgrasstools.gears.io.las.utils.LasUtils;
+import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.chart.CategoryHistogram;
@@ -49,6 +52,8 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 @Status(Status.EXPERIMENTAL)
 @License(JGTConstants.GPL3_LICENSE)
 public class LasHistogram extends JGTModel {
+    private static final int BATCH_SIZE = 65536;
+
     @Description("A las file to analyze.")
     @UI(JGTConstants.FILEIN_UI_HINT)
     @In
@@ -71,88 +76,89 @@ public class LasHistogram extends JGTModel {
     public void process() throws Exception {
         checkNull(inLas);
 
-        boolean doIntensity = false;
-        boolean doClassification = false;
-        DecimalFormat formatter = new DecimalFormat("0.0");
+        // a single column is analyzed
+        int column;
+        DecimalFormat formatter;
         if (pType.equals(LasUtils.INTENSITY)) {
-            doIntensity = true;
+            column = LasBinning.INTENSITY;
             formatter = new DecimalFormat("0");
-        }
-        if (pType.equals(LasUtils.CLASSIFICATION)) {
-            doClassification = true;
+        } else if (pType.equals(LasUtils.CLASSIFICATION)) {
+            column = LasBinning.CLASSIFICATION;
             formatter = new DecimalFormat("0");
+        } else if (pType.equals(LasUtils.ELEVATION)) {
+            column = LasBinning.Z;
+            formatter = new DecimalFormat("0.0");
+        } else {
+            throw new ModelsIllegalargumentException("Unknown value to analyze: " + pType, this);
         }
 
         CoordinateReferenceSystem crs = null;
         File lasFile = new File(inLas);
-        double min = Double.POSITIVE_INFINITY;
-        double max = Double.NEGATIVE_INFINITY;
-        int recordsCount = 0;
+        double min;
+        double max;
+        Histogram histogram;
         try (ALasReader reader = ALasReader.getReader(lasFile, crs)) {
             reader.open();
             ILasHeader header = reader.getHeader();
-            recordsCount = (int) header.getRecordsCount();
-            pm.beginTask(MessageFormat.format("Calculating range of {0} points...", recordsCount), recordsCount);
-            while( reader.hasNextPoint() ) {
-                LasRecord readNextLasDot = reader.getNextPoint();
-                double value = readNextLasDot.z;
-                if (doIntensity) {
-                    value = readNextLasDot.intensity;
+            int recordsCount = (int) header.getRecordsCount();
+            pm.message(MessageFormat.format("Binning {0} points...", recordsCount));
+            if (column != LasBinning.Z) {
+                /*
+                 * integer values are counted exactly, the range is taken from 
+                 * the counts and they are grouped in the final bins afterwards
+                 */
+                // bins are upper inclusive, so the bin of value v is (v - Short.MIN_VALUE)
+                Histogram valuesCount = new Histogram(column, Short.MIN_VALUE - 1, 1.0, Short.MAX_VALUE - Short.MIN_VALUE + 1);
+                LasBinning.accumulate(reader, BATCH_SIZE, getDefaultThreadsNum(), pm, valuesCount);
+
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+                for( int i = 0; i < valuesCount.getBinsNum(); i++ ) {
+                    if (valuesCount.getCount(i) > 0) {
+                        double value = i + Short.MIN_VALUE;
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                }
+                histogram = null;
+                if (Double.isFinite(max) && Double.isFinite(min)) {
+                    histogram = new Histogram(column, min, getStep(min, max), pBin);
+                    for( int i = 0; i < valuesCount.getBinsNum(); i++ ) {
+                        long count = valuesCount.getCount(i);
+                        if (count > 0) {
+                            histogram.add(histogram.getBin(i + Short.MIN_VALUE), count);
+                        }
+                    }
                 }
-                if (doClassification) {
-                    value = readNextLasDot.classification;
+            } else {
+                // the elevation range is available from the header
+                ReferencedEnvelope3D dataEnvelope = header.getDataEnvelope();
+                min = dataEnvelope.getMinZ();
+                max = dataEnvelope.getMaxZ();
+                histogram = null;
+                if (Double.isFinite(max) && Double.isFinite(min)) {
+                    histogram = new Histogram(column, min, getStep(min, max), pBin);
+                    LasBinning.accumulate(reader, BATCH_SIZE, getDefaultThreadsNum(), pm, histogram);
                 }
-                min = Math.min(min, value);
-                max = Math.max(max, value);
-                pm.worked(1);
             }
         }
-        pm.done();
 
         pm.message("Max: " + max);
         pm.message("Min: " + min);
-        if (!Double.isFinite(max) || !Double.isFinite(min)) {
+        if (histogram == null) {
             pm.errorMessage("A problem occurred while reading the data, exiting...");
             return;
         }
 
-        double range = max - min;
-        double step = range / pBin;
         double[] count = new double[pBin];
-        double[] markers = new double[pBin];
-        for( int i = 0; i < markers.length; i++ ) {
-            markers[i] = min + step * (i + 1);
+        for( int i = 0; i < count.length; i++ ) {
+            count[i] = histogram.getCount(i);
         }
 
-        pm.beginTask("Creating histogram...", recordsCount);
-        // now read them all and split them into files following the markers
-        try (ALasReader reader = ALasReader.getReader(lasFile, crs)) {
-            reader.open();
-            while( reader.hasNextPoint() ) {
-                LasRecord readNextLasDot = reader.getNextPoint();
-                double value = readNextLasDot.z;
-                if (doIntensity) {
-                    value = readNextLasDot.intensity;
-                }
-                if (doClassification) {
-                    value = readNextLasDot.classification;
-                }
-                for( int j = 0; j < markers.length; j++ ) {
-                    if (value <= markers[j]) {
-                        count[j] = count[j] + 1;
-                        break;
-                    }
-                }
-                pm.worked(1);
-            }
-        }
-        pm.done();
-
         pm.message("value, \tcount");
         String[] markersLabels = new String[pBin];
         for( int i = 0; i < markersLabels.length; i++ ) {
-            double center = markers[i] - step / 2.0;
-            markersLabels[i] = formatter.format(center);
+            markersLabels[i] = formatter.format(histogram.getCenter(i));
             pm.message(markersLabels[i] + ",\t" + count[i]);
         }
 
@@ -163,6 +169,15 @@ public class LasHistogram extends JGTModel {
         }
     }
 
+    private double getStep( double min, double max ) {
+        double step = (max - min) / pBin;
+        if (step <= 0) {
+            // a single value, all in the first bin
+            step = 1.0;
+        }
+        return step;
+    }
+
     public static void main( String[] args ) throws Exception {
 
         String base = "D:/Dropbox/hydrologis/lavori/OLD/2014_unibz/aurina/elaborazioni/LAS_PLOTS/";
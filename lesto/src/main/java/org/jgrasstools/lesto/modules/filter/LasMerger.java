@@ -22,6 +22,7 @@ import static java.lang.Math.min;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import oms3.annotations.Author;
@@ -39,8 +40,9 @@ import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasWriter;
+import org.jgrasstools.gears.io.las.utils.LasPipeline;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -53,6 +55,9 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 @Status(Status.EXPERIMENTAL)
 @License(JGTConstants.GPL3_LICENSE)
 public class LasMerger extends JGTModel {
+    private static final int BATCH_SIZE = 65536;
+    private static final int QUEUE_SIZE = 4;
+
     @Description("A folder of las files to merge.")
     @UI(JGTConstants.FOLDERIN_UI_HINT)
     @In
@@ -106,21 +111,29 @@ public class LasMerger extends JGTModel {
             readers.add(reader);
         }
 
-        File outFile = new File(outLas);
-        ALasWriter writer = new LasWriter(outFile, crs);
-        writer.setBounds(xMin, xMax, yMin, yMax, zMin, zMax);
-        writer.open();
-
+        final File outFile = new File(outLas);
+        final double[] bounds = new double[]{xMin, xMax, yMin, yMax, zMin, zMax};
+        final CoordinateReferenceSystem outCrs = crs;
+        LasPipeline pipeline = new LasPipeline(BATCH_SIZE, QUEUE_SIZE, 1, pm);
         pm.beginTask("Merging...", count);
-        for( ALasReader reader : readers ) {
-            while( reader.hasNextPoint() ) {
-                LasRecord readNextLasDot = reader.getNextPoint();
-                writer.addPoint(readNextLasDot);
-                pm.worked(1);
+        try {
+            pipeline.run(readers, new LasPipeline.PointRouter(){
+                public void route( LasPointBatch batch, int[] targets ) {
+                    Arrays.fill(targets, 0, batch.size(), 0);
+                }
+            }, new LasPipeline.WriterFactory(){
+                public ALasWriter createWriter( int target ) throws Exception {
+                    ALasWriter writer = new LasWriter(outFile, outCrs);
+                    writer.setBounds(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+                    writer.open();
+                    return writer;
+                }
+            });
+        } finally {
+            for( ALasReader reader : readers ) {
+                reader.close();
             }
-            reader.close();
         }
-        writer.close();
         pm.done();
     }
 
@@ -17,23 +17,19 @@
  */
 package org.jgrasstools.lesto.modules.filter;
 import java.io.File;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
 
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.io.las.utils.LasPipeline;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.index.strtree.STRtree;
-
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
@@ -66,71 +62,89 @@ public class LasSplitter extends JGTModel {
     @In
     public int pCols;
 
-    @SuppressWarnings("unchecked")
+    @Description("The number of threads to use for writing the pieces.")
+    @In
+    public int pThreads = 1;
+
+    private static final int BATCH_SIZE = 16384;
+    private static final int QUEUE_SIZE = 4;
+
     @Execute
     public void process() throws Exception {
         checkNull(inFile);
 
-        File inLas = new File(inFile);
-        String lasName = FileUtilities.getNameWithoutExtention(inLas);
+        final File inLas = new File(inFile);
+        final String lasName = FileUtilities.getNameWithoutExtention(inLas);
         try (ALasReader reader = ALasReader.getReader(inLas, null)) {
             reader.open();
             ILasHeader header = reader.getHeader();
             long recordsNum = header.getRecordsCount();
-            double[] xyzScale = header.getXYZScale();
-            double[] xyzOffset = header.getXYZOffset();
-            ReferencedEnvelope3D env = header.getDataEnvelope();
-
-            double[] xRange = NumericsUtilities.range2Bins(env.getMinX(), env.getMaxX(), pCols);
-            double[] yRange = NumericsUtilities.range2Bins(env.getMinY(), env.getMaxY(), pRows);
-
-            STRtree envelopeTree = new STRtree();
-            HashMap<Envelope, ALasWriter> env2LaswriterMap = new HashMap<>();
-            int fileCount = 1;
-            for( int x = 0; x < xRange.length - 1; x++ ) {
-                double minX = xRange[x];
-                double maxX = xRange[x + 1];
-                for( int y = 0; y < yRange.length - 1; y++ ) {
-                    double minY = yRange[y];
-                    double maxY = yRange[y + 1];
-
-                    Envelope envelope = new Envelope(new Coordinate(minX, minY), new Coordinate(maxX, maxY));
-
-                    File outLasPiece = new File(inLas.getParentFile(), lasName + "_" + fileCount + ".las");
+            final double[] xyzScale = header.getXYZScale();
+            final double[] xyzOffset = header.getXYZOffset();
+            final ReferencedEnvelope3D env = header.getDataEnvelope();
+
+            final double[] xRange = NumericsUtilities.range2Bins(env.getMinX(), env.getMaxX(), pCols);
+            final double[] yRange = NumericsUtilities.range2Bins(env.getMinY(), env.getMaxY(), pRows);
+            final int cols = xRange.length - 1;
+            final int rows = yRange.length - 1;
+
+            /*
+             * the pieces are numbered column by column, the piece of a point
+             * is found from its position, the same as for the envelopes.
+             */
+            LasPipeline.PointRouter router = new LasPipeline.PointRouter(){
+                public void route( LasPointBatch batch, int[] targets ) {
+                    for( int i = 0; i < batch.size(); i++ ) {
+                        int col = bin(xRange, batch.x[i]);
+                        int row = bin(yRange, batch.y[i]);
+                        targets[i] = col < 0 || row < 0 ? -1 : col * rows + row;
+                    }
+                }
+            };
+            LasPipeline.WriterFactory writerFactory = new LasPipeline.WriterFactory(){
+                public ALasWriter createWriter( int target ) throws Exception {
+                    int col = target / rows;
+                    int row = target % rows;
+                    File outLasPiece = new File(inLas.getParentFile(), lasName + "_" + (target + 1) + ".las");
                     ALasWriter writer = ALasWriter.getWriter(outLasPiece, env.getCoordinateReferenceSystem());
                     writer.setOffset(xyzOffset[0], xyzOffset[1], xyzOffset[2]);
                     writer.setScales(xyzScale[0], xyzScale[1], xyzScale[2]);
-                    writer.setBounds(minX, maxX, minY, maxY, env.getMinZ(), env.getMaxZ());
+                    writer.setBounds(xRange[col], xRange[col + 1], yRange[row], yRange[row + 1], env.getMinZ(), env.getMaxZ());
                     writer.open();
-
-                    envelopeTree.insert(envelope, writer);
-                    env2LaswriterMap.put(envelope, writer);
-
-                    fileCount++;
+                    return writer;
                 }
-            }
+            };
 
             pm.beginTask("Split file...", (int) recordsNum);
-            while( reader.hasNextPoint() ) {
-                LasRecord dot = reader.getNextPoint();
-                Coordinate coord = new Coordinate(dot.x, dot.y);
-
-                List<ALasWriter> result = envelopeTree.query(new Envelope(coord));
-                int size = result.size();
-                if (size == 0) {
-                    continue;
-                }
-
-                ALasWriter aLasWriter = result.get(0);
-                aLasWriter.addPoint(dot);
-                pm.worked(1);
-            }
+            LasPipeline pipeline = new LasPipeline(BATCH_SIZE, QUEUE_SIZE, Math.max(1, pThreads), pm);
+            int piecesCount = pipeline.run(Collections.singletonList(reader), router, writerFactory);
             pm.done();
+            pm.message("Pieces written: " + piecesCount + " of " + cols * rows);
+        }
+    }
 
-            for( ALasWriter writer : env2LaswriterMap.values() ) {
-                writer.close();
-            }
+    /**
+     * Get the bin of a value, the last bin includes the upper bound.
+     *
+     * @return the bin index or -1 if outside of the range.
+     */
+    private static int bin( double[] range, double value ) {
+        int bins = range.length - 1;
+        if (value < range[0] || value > range[bins]) {
+            return -1;
+        }
+        int bin = (int) ((value - range[0]) / (range[bins] - range[0]) * bins);
+        // correct rounding at the bin bounds
+        if (bin >= bins) {
+            bin = bins - 1;
+        }
+        while( bin > 0 && value < range[bin] ) {
+            bin--;
+        }
+        while( bin < bins - 1 && value >= range[bin + 1] ) {
+            bin++;
         }
+        return bin;
     }
 
 }
@@ -57,6 +57,7 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.jgrasstools.gears.io.las.ALasDataManager;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.utils.LasBlockCache;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -117,6 +118,10 @@ public class Las2BivariateRasterMosaic extends JGTModel {
     @In
     public int pThreads = 1;
 
+    @Description("The size of the decoded points cache in MB (0 disables it).")
+    @In
+    public double pCacheSize = 0.0;
+
     @Description("If true, intensity is used instead of elevation.")
     @In
     public boolean doIntensity = false;
@@ -148,6 +153,11 @@ public class Las2BivariateRasterMosaic extends JGTModel {
             if (pImpulse != null) {
                 lasData.setImpulsesConstraint(new double[]{pImpulse});
             }
+            LasBlockCache blockCache = null;
+            if (pCacheSize > 0) {
+                blockCache = new LasBlockCache((long) (pCacheSize * 1024 * 1024), null);
+                lasData.setBlockCache(blockCache);
+            }
 
             ReferencedEnvelope roiEnvelope = lasData.getOverallEnvelope();
             crs = roiEnvelope.getCoordinateReferenceSystem();
@@ -210,6 +220,10 @@ public class Las2BivariateRasterMosaic extends JGTModel {
                 runnable.waitAndClose();
             }
             pm.done();
+            if (blockCache != null) {
+                pm.message(blockCache.toString());
+                blockCache.clear();
+            }
 
         }
 
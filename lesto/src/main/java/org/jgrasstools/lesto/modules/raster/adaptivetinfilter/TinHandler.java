@@ -23,12 +23,12 @@ import static org.jgrasstools.gears.utils.geometry.GeometryUtilities.getLineWith
 import static org.jgrasstools.gears.utils.geometry.GeometryUtilities.getTriangleCentroid;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
@@ -52,7 +52,9 @@ import com.vividsolutions.jts.geom.Location;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.index.strtree.STRtree;
-import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+import com.vividsolutions.jts.triangulate.IncrementalDelaunayTriangulator;
+import com.vividsolutions.jts.triangulate.quadedge.QuadEdgeSubdivision;
+import com.vividsolutions.jts.triangulate.quadedge.Vertex;
 
 /**
  * A helper class for tin handling.
@@ -64,17 +66,36 @@ public class TinHandler {
     public static final double POINTENVELOPE_EXPAND = 0.1;
 
     /**
-     * The list of coordinates that will be used at the next tin generation.
+     * The list of coordinates that are part of the tin.
      */
     private List<Coordinate> tinCoordinateList = new ArrayList<Coordinate>();
 
+    /**
+     * The set of the {@link #tinCoordinateList} coordinates, for fast lookups.
+     */
+    private Set<Coordinate> tinCoordinateSet = new HashSet<Coordinate>();
+
     /**
      * The list of coordinates that are left out as non ground points at each filtering.
      */
     private List<Coordinate> leftOverCoordinateList = new ArrayList<Coordinate>();
 
     /**
-     * The geometries of the last calculated tin.
+     * The index of the leftover coordinates. 
+     * 
+     * <p>Leftover coordinates only get less while filtering on them, so the index is 
+     * kept until the list is replaced by a filtering on all data.</p> 
+     */
+    private STRtree leftOverCoordinatesTree = null;
+
+    /**
+     * The incremental delaunay triangulation the ground points are inserted into.
+     */
+    private QuadEdgeSubdivision tinSubdivision;
+    private IncrementalDelaunayTriangulator tinTriangulator;
+
+    /**
+     * The geometries of the last extracted tin.
      */
     private Geometry[] tinGeometries = null;
 
@@ -96,8 +117,6 @@ public class TinHandler {
 
     private double calculatedDistanceThreshold;
 
-    private final ReadWriteLock monitor = new ReentrantReadWriteLock();
-
     private final Double maxEdgeLength;
     private double maxEdgeLengthThreshold;
 
@@ -128,25 +147,24 @@ public class TinHandler {
      * <p>Generates the tin on the first set of coordinates and adds the 
      * coordinates to the {@link #tinCoordinateList} for future use.</p>
      * 
+     * <p>The points accepted by the filters are later inserted in the same
+     * tin, which is therefore never rebuilt. Since they are always found inside
+     * triangles of the tin, the initial coordinates also define its extent.</p>
+     * 
      * <p><b>Note that it is mandatory to call this method to initialize.</b></p>
      * 
      * @param coordinateList the initial list of coordinates.
      */
     public void setStartCoordinates( List<Coordinate> coordinateList ) {
-        generateTin(coordinateList);
-        for( int i = 0; i < tinGeometries.length; i++ ) {
-            Coordinate[] coordinates = tinGeometries[i].getCoordinates();
-            if (!tinCoordinateList.contains(coordinates[0])) {
-                tinCoordinateList.add(coordinates[0]);
-            }
-            if (!tinCoordinateList.contains(coordinates[1])) {
-                tinCoordinateList.add(coordinates[1]);
-            }
-            if (!tinCoordinateList.contains(coordinates[2])) {
-                tinCoordinateList.add(coordinates[2]);
-            }
+        Envelope envelope = new Envelope();
+        for( Coordinate coordinate : coordinateList ) {
+            envelope.expandToInclude(coordinate);
         }
+        tinSubdivision = new QuadEdgeSubdivision(envelope, 0.0);
+        tinTriangulator = new IncrementalDelaunayTriangulator(tinSubdivision);
+        addToTin(coordinateList);
         didInitialize = true;
+        generateTin();
     }
 
     /**
@@ -174,9 +192,7 @@ public class TinHandler {
      * @return the size of the non ground points list.
      */
     public int getCurrentNonGroundPointsNum() {
-        synchronized (leftOverCoordinateList) {
-            return leftOverCoordinateList.size();
-        }
+        return leftOverCoordinateList.size();
     }
 
     /**
@@ -197,31 +213,16 @@ public class TinHandler {
             pm.beginTask("Filtering all data on seeds tin...", tinGeometries.length);
         }
         try {
-            final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
-            if (threadsNum > 1) {
-                // multithreaded
-                ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
-                for( final Geometry tinGeom : tinGeometries ) {
-                    tRun.executeRunnable(new Runnable(){
-                        public void run() {
-                            List<Coordinate> leftOverList = runFilterOnAllData(lasHandler, angleSet, distanceSet, tinGeom);
-                            synchronized (newTotalLeftOverCoordinateList) {
-                                newTotalLeftOverCoordinateList.addAll(leftOverList);
-                            }
-                        }
-                    });
+            PassResult[] results = runPass(tinGeometries, new TriangleFilter(){
+                public void filter( Geometry triangle, PassResult result ) {
+                    runFilterOnAllData(lasHandler, angleSet, distanceSet, triangle, result);
                 }
-                tRun.waitAndClose();
-            } else {
-                for( final Geometry tinGeom : tinGeometries ) {
-                    List<Coordinate> leftOverList = runFilterOnAllData(lasHandler, angleSet, distanceSet, tinGeom);
-                    newTotalLeftOverCoordinateList.addAll(leftOverList);
-                }
-            }
+            });
             pm.done();
 
             leftOverCoordinateList.clear();
-            leftOverCoordinateList.addAll(newTotalLeftOverCoordinateList);
+            leftOverCoordinatesTree = null;
+            mergePassResults(results);
 
             /*
              * now recalculate the thresholds
@@ -255,9 +256,8 @@ public class TinHandler {
         }
     }
 
-    private List<Coordinate> runFilterOnAllData( final ALasDataManager lasHandler, final ConcurrentSkipListSet<Double> angleSet,
-            final ConcurrentSkipListSet<Double> distanceSet, final Geometry tinGeom ) {
-        final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
+    private void runFilterOnAllData( final ALasDataManager lasHandler, final ConcurrentSkipListSet<Double> angleSet,
+            final ConcurrentSkipListSet<Double> distanceSet, final Geometry tinGeom, PassResult result ) {
         try {
             Coordinate[] tinCoords = tinGeom.getCoordinates();
             Coordinate triangleCentroid = getTriangleCentroid(tinCoords[0], tinCoords[1], tinCoords[2]);
@@ -281,8 +281,7 @@ public class TinHandler {
             boolean foundOne = false;
             for( Coordinate c : centroidNearestSet ) {
                 if (foundOne && !isFirstStatsCalculation) {
-                    if (!newTotalLeftOverCoordinateList.contains(c))
-                        newTotalLeftOverCoordinateList.add(c);
+                    result.leftOver.add(c);
                 } else {
                     /*
                      * find the nearest node and distance
@@ -295,8 +294,7 @@ public class TinHandler {
                          * for the next round only on the kept data.
                          */
                         if (nearestDistance > calculatedDistanceThreshold) {
-                            if (!newTotalLeftOverCoordinateList.contains(c))
-                                newTotalLeftOverCoordinateList.add(c);
+                            result.leftOver.add(c);
                             continue;
                         }
                     }
@@ -311,19 +309,14 @@ public class TinHandler {
                     }
                     if (!isFirstStatsCalculation) {
                         if (angle > calculatedAngleThreshold) {
-                            if (!newTotalLeftOverCoordinateList.contains(c))
-                                newTotalLeftOverCoordinateList.add(c);
+                            result.leftOver.add(c);
                             continue;
-                        } else {
+                        } else if (!tinCoordinateSet.contains(c)) {
                             // add it to the next tin
-                            synchronized (tinCoordinateList) {
-                                if (!tinCoordinateList.contains(c)) {
-                                    tinCoordinateList.add(c);
-                                    foundOne = true;
-                                    angleSet.add(angle);
-                                    distanceSet.add(nearestDistance);
-                                }
-                            }
+                            result.ground.add(c);
+                            foundOne = true;
+                            angleSet.add(angle);
+                            distanceSet.add(nearestDistance);
                         }
                     } else {
                         angleSet.add(angle);
@@ -335,19 +328,14 @@ public class TinHandler {
             e.printStackTrace();
         }
         pm.worked(1);
-        return newTotalLeftOverCoordinateList;
     }
 
     public void filterOnLeftOverData() {
         if (isFirstStatsCalculation) {
             throw new IllegalArgumentException("The first round needs to be filtered on all data.");
         }
-        pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
-        final STRtree leftOverCoordinatesTree = new STRtree(leftOverCoordinateList.size());
-        for( Coordinate c : leftOverCoordinateList ) {
-            leftOverCoordinatesTree.insert(new Envelope(c), c);
-        }
-        pm.done();
+        final STRtree leftOverTree = getLeftOverCoordinatesTree();
+        final Set<Coordinate> leftOverCoordinateSet = new HashSet<Coordinate>(leftOverCoordinateList);
 
         if (maxEdgeLength != null) {
             maxEdgeLengthThreshold = maxEdgeLength;
@@ -356,37 +344,20 @@ public class TinHandler {
         Geometry[] triangles = getTriangles();
         final ConcurrentSkipListSet<Double> angleSet = new ConcurrentSkipListSet<Double>();
         final ConcurrentSkipListSet<Double> distanceSet = new ConcurrentSkipListSet<Double>();
-        final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
         pm.beginTask("Filtering leftover coordinates on previous tin...", triangles.length);
-        if (threadsNum > 1) {
-            ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
-            for( int i = 0; i < triangles.length; i++ ) {
-                final Geometry triangle = triangles[i];
-                tRun.executeRunnable(new Runnable(){
-                    public void run() {
-                        if (maxEdgeLength != null && triangle.getLength() < maxEdgeLengthThreshold * 3.0) {
-                            return;
-                        }
-                        List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverCoordinatesTree, angleSet, distanceSet,
-                                triangle);
-                        synchronized (newTotalLeftOverCoordinateList) {
-                            newTotalLeftOverCoordinateList.addAll(leftOverList);
-                        }
-                    }
-                });
-            }
-            tRun.waitAndClose();
-        } else {
-            for( int i = 0; i < triangles.length; i++ ) {
-                Geometry triangle = triangles[i];
-                List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverCoordinatesTree, angleSet, distanceSet, triangle);
-                newTotalLeftOverCoordinateList.addAll(leftOverList);
+        PassResult[] results = runPass(triangles, new TriangleFilter(){
+            public void filter( Geometry triangle, PassResult result ) {
+                if (maxEdgeLength != null && triangle.getLength() < maxEdgeLengthThreshold * 3.0) {
+                    return;
+                }
+                runfilterOnLeftOverData(leftOverTree, leftOverCoordinateSet, angleSet, distanceSet, triangle,
+                        result);
             }
-        }
+        });
         pm.done();
 
         leftOverCoordinateList.clear();
-        leftOverCoordinateList.addAll(newTotalLeftOverCoordinateList);
+        mergePassResults(results);
 
         /*
          * now recalculate the thresholds
@@ -419,21 +390,15 @@ public class TinHandler {
     }
 
     @SuppressWarnings("rawtypes")
-    private List<Coordinate> runfilterOnLeftOverData( final STRtree leftOverCoordsTree,
-            final ConcurrentSkipListSet<Double> angleSet, final ConcurrentSkipListSet<Double> distanceSet, final Geometry triangle ) {
+    private void runfilterOnLeftOverData( final STRtree leftOverCoordsTree, final Set<Coordinate> leftOverCoordinateSet,
+            final ConcurrentSkipListSet<Double> angleSet, final ConcurrentSkipListSet<Double> distanceSet,
+            final Geometry triangle, PassResult result ) {
 
-        List<Coordinate> newLeftOverCoordinateList = new ArrayList<Coordinate>();
         Coordinate[] tinCoords = triangle.getCoordinates();
         Coordinate triangleCentroid = getTriangleCentroid(tinCoords[0], tinCoords[1], tinCoords[2]);
 
         // get left coords around triangle
-        List triangleCoordinates = null;
-        monitor.readLock().lock();
-        try {
-            triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
-        } finally {
-            monitor.readLock().unlock();
-        }
+        List triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
 
         /*
          * now sort the points in the triangle in distance order
@@ -442,6 +407,10 @@ public class TinHandler {
         TreeSet<Coordinate> centroidNearestSet = new TreeSet<Coordinate>(new PointsToCoordinateComparator(triangleCentroid));
         for( Object coordinateObj : triangleCoordinates ) {
             Coordinate c = (Coordinate) coordinateObj;
+            if (!leftOverCoordinateSet.contains(c)) {
+                // no longer a leftover
+                continue;
+            }
             if (c.equals(tinCoords[0]) || c.equals(tinCoords[1]) || c.equals(tinCoords[2])) {
                 // the seed point was reread
                 continue;
@@ -456,8 +425,7 @@ public class TinHandler {
         boolean foundOne = false;
         for( Coordinate c : centroidNearestSet ) {
             if (foundOne && !isFirstStatsCalculation) {
-                if (!newLeftOverCoordinateList.contains(c))
-                    newLeftOverCoordinateList.add(c);
+                result.leftOver.add(c);
             } else {
                 /*
                  * find the nearest node and distance
@@ -469,8 +437,7 @@ public class TinHandler {
                  * for the next round only on the kept data.
                  */
                 if (nearestDistance > calculatedDistanceThreshold) {
-                    if (!newLeftOverCoordinateList.contains(c))
-                        newLeftOverCoordinateList.add(c);
+                    result.leftOver.add(c);
                     continue;
                 }
                 /*
@@ -483,81 +450,59 @@ public class TinHandler {
                     angle = 0.0;
                 }
                 if (angle > calculatedAngleThreshold && angle > angleThreshold) { // TODO
-                    if (!newLeftOverCoordinateList.contains(c))
-                        newLeftOverCoordinateList.add(c);
+                    result.leftOver.add(c);
                     continue;
-                } else {
+                } else if (!tinCoordinateSet.contains(c)) {
                     // add it to the next tin
-                    synchronized (tinCoordinateList) {
-                        if (!tinCoordinateList.contains(c)) {
-                            tinCoordinateList.add(c);
-                            foundOne = true;
-                            angleSet.add(angle);
-                            distanceSet.add(nearestDistance);
-                        }
-                    }
+                    result.ground.add(c);
+                    foundOne = true;
+                    angleSet.add(angle);
+                    distanceSet.add(nearestDistance);
                 }
             }
         }
 
         pm.worked(1);
-        return newLeftOverCoordinateList;
     }
 
     public void finalCleanup( final double pFinalCleanupDist ) {
         if (isFirstStatsCalculation) {
             throw new IllegalArgumentException("The first round needs to be filtered on all data.");
         }
-        pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
-        final STRtree leftOverCoordinatesTree = new STRtree(leftOverCoordinateList.size());
-        for( Coordinate c : leftOverCoordinateList ) {
-            leftOverCoordinatesTree.insert(new Envelope(c), c);
-        }
-        pm.done();
+        final STRtree leftOverTree = getLeftOverCoordinatesTree();
+        final Set<Coordinate> leftOverCoordinateSet = new HashSet<Coordinate>(leftOverCoordinateList);
 
-        final AtomicInteger removedCount = new AtomicInteger();
         Geometry[] triangles = getTriangles();
-        final List<Coordinate> newLeftOverCoordinateList = new ArrayList<Coordinate>();
         pm.beginTask("Final cleanup through triangle to point distance filter...", triangles.length);
-        ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
-        for( int i = 0; i < triangles.length; i++ ) {
-            final Geometry triangle = triangles[i];
-            tRun.executeRunnable(new Runnable(){
-                public void run() {
-                    runFinalFilter(leftOverCoordinatesTree, newLeftOverCoordinateList, triangle, pFinalCleanupDist, removedCount);
-                }
-            });
-        }
-        tRun.waitAndClose();
+        PassResult[] results = runPass(triangles, new TriangleFilter(){
+            public void filter( Geometry triangle, PassResult result ) {
+                runFinalFilter(leftOverTree, leftOverCoordinateSet, triangle, pFinalCleanupDist, result);
+            }
+        });
         pm.done();
 
-        pm.message("Final points removed from non ground: " + removedCount.get());
-        pm.message("Final points left as non ground: " + newLeftOverCoordinateList.size());
+        int nonGroundBefore = leftOverCoordinateList.size();
         leftOverCoordinateList.clear();
-        leftOverCoordinateList.addAll(newLeftOverCoordinateList);
+        leftOverCoordinatesTree = null;
+        mergePassResults(results);
+        pm.message("Final points removed from non ground: " + (nonGroundBefore - leftOverCoordinateList.size()));
+        pm.message("Final points left as non ground: " + leftOverCoordinateList.size());
     }
 
-    private void runFinalFilter( final STRtree leftOverCoordsTree, List<Coordinate> newLeftOverCoordinateList,
-            final Geometry triangle, double pFinalCleanupDist, AtomicInteger removedCount ) {
+    @SuppressWarnings("rawtypes")
+    private void runFinalFilter( final STRtree leftOverCoordsTree, final Set<Coordinate> leftOverCoordinateSet,
+            final Geometry triangle, double pFinalCleanupDist, PassResult result ) {
 
         Coordinate[] tinCoords = triangle.getCoordinates();
 
         // get left coords around triangle
-        List triangleCoordinates = null;
-        monitor.readLock().lock();
-        try {
-            triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
-        } finally {
-            monitor.readLock().unlock();
-        }
+        List triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
 
-        /*
-         * now sort the points in the triangle in distance order
-         * from the triangle centroid, nearest first
-         */
-        int count = 0;
         for( Object coordinateObj : triangleCoordinates ) {
             Coordinate c = (Coordinate) coordinateObj;
+            if (!leftOverCoordinateSet.contains(c)) {
+                continue;
+            }
             int loc = SimplePointInAreaLocator.locate(c, triangle);
             if (loc == Location.INTERIOR) {
                 Coordinate c1 = new Coordinate(c.x, c.y, 1E6);
@@ -565,31 +510,110 @@ public class TinHandler {
                 Coordinate intersection = getLineWithPlaneIntersection(c1, c2, tinCoords[0], tinCoords[1], tinCoords[2]);
                 double distance = distance3d(intersection, c, null);
                 if (distance > pFinalCleanupDist) {
-                    count++;
-                    synchronized (newLeftOverCoordinateList) {
-                        newLeftOverCoordinateList.add(c);
-                    }
+                    result.leftOver.add(c);
                 }
             }
         }
-        removedCount.addAndGet(count);
         pm.worked(1);
     }
 
+    /**
+     * Forces the extraction of the triangles from the tin, to include the added points.
+     */
     public void resetTin() {
         tinGeometries = null;
     }
 
     /**
-     * Generate a tin from a given coords list. The internal tin geoms array is set from the result.
+     * Runs a filter on all triangles.
+     * 
+     * <p>Every thread works on its own share of the triangles and collects the 
+     * results in its own buffers, so no locking is needed.</p>
+     * 
+     * @param triangles the triangles to filter.
+     * @param filter the filter to apply.
+     * @return the results of every thread, to be merged.
+     */
+    private PassResult[] runPass( final Geometry[] triangles, final TriangleFilter filter ) {
+        final int chunks = Math.max(1, threadsNum);
+        final PassResult[] results = new PassResult[chunks];
+        for( int i = 0; i < chunks; i++ ) {
+            results[i] = new PassResult();
+        }
+        if (chunks > 1) {
+            ThreadedRunnable< ? > tRun = new ThreadedRunnable<Object>(chunks, null);
+            for( int i = 0; i < chunks; i++ ) {
+                final int chunk = i;
+                tRun.executeRunnable(new Runnable(){
+                    public void run() {
+                        // interleaved shares, to balance denser areas
+                        for( int t = chunk; t < triangles.length; t = t + chunks ) {
+                            filter.filter(triangles[t], results[chunk]);
+                        }
+                    }
+                });
+            }
+            tRun.waitAndClose();
+        } else {
+            for( Geometry triangle : triangles ) {
+                filter.filter(triangle, results[0]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Merges the results of a pass into the leftover list and the tin.
+     * 
+     * @param results the results of all threads.
+     */
+    private void mergePassResults( PassResult[] results ) {
+        List<Coordinate> groundList = new ArrayList<Coordinate>();
+        for( PassResult result : results ) {
+            leftOverCoordinateList.addAll(result.leftOver);
+            groundList.addAll(result.ground);
+        }
+        addToTin(groundList);
+    }
+
+    /**
+     * Inserts new ground points into the tin, ignoring the ones that are already in.
      * 
-     * @param coordinateList the coords to use for the tin generation.
+     * @param coordinateList the coordinates to add.
      */
-    private void generateTin( List<Coordinate> coordinateList ) {
+    private void addToTin( List<Coordinate> coordinateList ) {
+        Coordinate[] coordinates = coordinateList.toArray(new Coordinate[coordinateList.size()]);
+        // inserting in sorted order keeps the point location walks in the tin short
+        Arrays.sort(coordinates);
+        for( Coordinate coordinate : coordinates ) {
+            if (tinCoordinateSet.add(coordinate)) {
+                tinCoordinateList.add(coordinate);
+                tinTriangulator.insertSite(new Vertex(coordinate));
+            }
+        }
+    }
+
+    private STRtree getLeftOverCoordinatesTree() {
+        if (leftOverCoordinatesTree == null) {
+            pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
+            leftOverCoordinatesTree = new STRtree();
+            for( Coordinate c : leftOverCoordinateList ) {
+                leftOverCoordinatesTree.insert(new Envelope(c), c);
+                pm.worked(1);
+            }
+            // build before the concurrent queries
+            leftOverCoordinatesTree.build();
+            pm.done();
+        }
+        return leftOverCoordinatesTree;
+    }
+
+    /**
+     * Extracts the triangles from the tin. The internal tin geoms array is set from the result.
+     */
+    private void generateTin() {
         pm.beginTask("Generate tin...", -1);
-        DelaunayTriangulationBuilder b = new DelaunayTriangulationBuilder();
-        b.setSites(coordinateList);
-        Geometry tinTriangles = b.getTriangles(gf);
+        Geometry tinTriangles = tinSubdivision.getTriangles(gf);
         tinGeometries = new Geometry[tinTriangles.getNumGeometries()];
         for( int i = 0; i < tinTriangles.getNumGeometries(); i++ ) {
             tinGeometries[i] = tinTriangles.getGeometryN(i);
@@ -635,7 +659,7 @@ public class TinHandler {
             throw new IllegalArgumentException("Not initialized properly. Did you call setStartCoordinates?");
         }
         if (tinGeometries == null) {
-            generateTin(tinCoordinateList);
+            generateTin();
         }
     }
 
@@ -785,6 +809,21 @@ public class TinHandler {
         return new double[]{min, max};
     }
 
+    /**
+     * A filter applied to the triangles of the tin.
+     */
+    private static interface TriangleFilter {
+        void filter( Geometry triangle, PassResult result );
+    }
+
+    /**
+     * The results collected by a thread during a pass.
+     */
+    private static class PassResult {
+        final List<Coordinate> leftOver = new ArrayList<Coordinate>();
+        final List<Coordinate> ground = new ArrayList<Coordinate>();
+    }
+
     // private AtomicInteger count = new AtomicInteger();
     // private void dumpPointsInGeom( Geometry tinGeom, List<LasRecord> pointsInGeom,
     // List<Coordinate> addedPoints )
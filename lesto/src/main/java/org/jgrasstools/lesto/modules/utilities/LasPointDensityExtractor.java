@@ -23,8 +23,6 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_DRAFT;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -44,7 +42,8 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.utils.LasBinning;
+import org.jgrasstools.gears.io.las.utils.LasBinning.DensityGrid;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -54,12 +53,8 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.index.strtree.STRtree;
 
 @Description("Creates a vector map of the point cloud density over a given grid.")
 @Author(name = OMSHYDRO_AUTHORNAMES, contact = OMSHYDRO_AUTHORCONTACTS)
@@ -85,6 +80,8 @@ public class LasPointDensityExtractor extends JGTModel {
     @In
     public String outFile;
 
+    private static final int BATCH_SIZE = 65536;
+
     private CoordinateReferenceSystem crs;
 
     @Execute
@@ -95,8 +92,10 @@ public class LasPointDensityExtractor extends JGTModel {
             throw new ModelsIllegalargumentException("The grid step has to be major than 0.", this);
         }
 
-        List<DensityData> densityDataList = new ArrayList<DensityData>();
         final File lasFile = new File(inFile);
+        double[] xBins;
+        double[] yBins;
+        DensityGrid grid;
         try (ALasReader lasReader = ALasReader.getReader(lasFile, null)) {
             lasReader.open();
 
@@ -104,59 +103,13 @@ public class LasPointDensityExtractor extends JGTModel {
             crs = header.getCrs();
             ReferencedEnvelope3D dataEnvelope = header.getDataEnvelope();
 
-            double[] xBins = NumericsUtilities.range2Bins(dataEnvelope.getMinX(), dataEnvelope.getMaxX(), pGridStep, false);
-            double[] yBins = NumericsUtilities.range2Bins(dataEnvelope.getMinY(), dataEnvelope.getMaxY(), pGridStep, false);
-
-            STRtree tree = new STRtree();
-            for( int x = 0; x < xBins.length - 1; x++ ) {
-                double minX = xBins[x];
-                double maxX = xBins[x + 1];
-                for( int y = 0; y < yBins.length - 1; y++ ) {
-                    double minY = yBins[y];
-                    double maxY = yBins[y + 1];
-                    Envelope envelope = new Envelope(minX, maxX, minY, maxY);
-                    DensityData densityData = new DensityData();
-                    tree.insert(envelope, densityData);
-                    densityDataList.add(densityData);
-                    Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(envelope);
-                    densityData.geometry = polygon;
-                }
-            }
-
-            final long recordsCount = header.getRecordsCount();
-            pm.beginTask("Sorting las data...", (int) recordsCount);
-            while( lasReader.hasNextPoint() ) {
-                pm.worked(1);
-
-                final LasRecord lasDot = lasReader.getNextPoint();
-
-                final double x = lasDot.x;
-                final double y = lasDot.y;
-                final short impulse = lasDot.returnNumber;
-
-                Coordinate p = new Coordinate(x, y);
-                Envelope envelope = new Envelope(p);
-                List result = tree.query(envelope);
-                if (result.size() < 1)
-                    throw new RuntimeException();
-
-                DensityData densityData = null;
-                if (result.size() == 1) {
-                    densityData = (DensityData) result.get(0);
-                } else {
-                    for( Object object : result ) {
-                        densityData = (DensityData) object;
-                        Point point = gf.createPoint(p);
-                        if (densityData.geometry.intersects(point)) {
-                            break;
-                        }
-                    }
-                }
-                densityData.imp[impulse]++; // update impulse count
-                densityData.imp[0]++; // update total count
-            }
-            pm.done();
+            xBins = NumericsUtilities.range2Bins(dataEnvelope.getMinX(), dataEnvelope.getMaxX(), pGridStep, false);
+            yBins = NumericsUtilities.range2Bins(dataEnvelope.getMinY(), dataEnvelope.getMaxY(), pGridStep, false);
 
+            // the last bins can be smaller, the points on the max bound fall in them
+            grid = new DensityGrid(xBins[0], yBins[0], pGridStep, pGridStep, Math.max(1, xBins.length - 1), Math.max(1,
+                    yBins.length - 1));
+            LasBinning.accumulate(lasReader, BATCH_SIZE, getDefaultThreadsNum(), pm, grid);
         }
 
         DefaultFeatureCollection outGeodata = new DefaultFeatureCollection();
@@ -174,26 +127,23 @@ public class LasPointDensityExtractor extends JGTModel {
         final SimpleFeatureType type = b.buildFeatureType();
         final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
 
-        for( DensityData d : densityDataList ) {
-            Object[] objs = {d.geometry, d.imp[1], d.imp[2], d.imp[3], d.imp[4], d.imp[5], d.imp[0]};
-
-            if (d.imp[0] > 0) {
-                builder.addAll(objs);
-                final SimpleFeature feature = builder.buildFeature(null);
+        for( int x = 0; x < xBins.length - 1; x++ ) {
+            for( int y = 0; y < yBins.length - 1; y++ ) {
+                int total = grid.getCount(x, y);
+                if (total > 0) {
+                    Envelope envelope = new Envelope(xBins[x], xBins[x + 1], yBins[y], yBins[y + 1]);
+                    Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(envelope);
+                    Object[] objs = {polygon, grid.getCount(x, y, 1), grid.getCount(x, y, 2), grid.getCount(x, y, 3),
+                            grid.getCount(x, y, 4), grid.getCount(x, y, 5), total};
+                    builder.addAll(objs);
+                    final SimpleFeature feature = builder.buildFeature(null);
 
-                outGeodata.add(feature);
+                    outGeodata.add(feature);
+                }
             }
         }
 
         dumpVector(outGeodata, outFile);
     }
 
-    private static class DensityData {
-        /**
-         * contains the count of [total, imp1, imp2, imp3, imp4, imp5]
-         */
-        int[] imp = new int[6];
-        Geometry geometry;
-    }
-
 }
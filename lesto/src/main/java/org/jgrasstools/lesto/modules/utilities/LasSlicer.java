@@ -29,10 +29,12 @@ import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.media.jai.iterator.WritableRandomIter;
@@ -150,55 +152,95 @@ public class LasSlicer extends JGTModel {
             double[] xRange = NumericsUtilities.range2Bins(minX, maxX, 3.0, false);
             double[] yRange = NumericsUtilities.range2Bins(minY, maxY, 3.0, false);
 
-            int tilesNum = xRange.length * yRange.length;
-            int tilesCount = 0;
-            LinkedHashMap<String, List<LasRecord>> recordsMap = new LinkedHashMap<>();
-            pm.beginTask("Producing slices...", (xRange.length - 1));
+            // the slices, with their height range
+            List<Double> slicesZList = new ArrayList<Double>();
+            for( double z = minZ + pInterval; z < maxZ; z = z + pInterval ) {
+                slicesZList.add(z);
+            }
+            int slicesNum = slicesZList.size();
+            double[] slicesZ = new double[slicesNum];
+            double[] slicesLow = new double[slicesNum];
+            double[] slicesHigh = new double[slicesNum];
+            for( int i = 0; i < slicesNum; i++ ) {
+                slicesZ[i] = slicesZList.get(i);
+                double height = slicesZ[i] - minZ;
+                slicesLow[i] = height - pThickness / 2.0;
+                slicesHigh[i] = height + pThickness / 2.0;
+            }
+            @SuppressWarnings("unchecked")
+            List<LasRecord>[] slicesPoints = new List[slicesNum];
+            boolean[] sliceChanged = new boolean[slicesNum];
+
+            final List<Envelope> tilesList = new ArrayList<Envelope>();
+            final List<String> tilesNames = new ArrayList<String>();
             for( int x = 0; x < xRange.length - 1; x++ ) {
                 for( int y = 0; y < yRange.length - 1; y++ ) {
-                    tilesCount++;
-                    Envelope env = new Envelope(xRange[x], xRange[x + 1], yRange[y], yRange[y + 1]);
-                    Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(env);
-                    List<LasRecord> pointsInGeometry = dataManager.getPointsInGeometry(polygon, true);
+                    tilesList.add(new Envelope(xRange[x], xRange[x + 1], yRange[y], yRange[y + 1]));
+                    tilesNames.add(x + "/" + y);
+                }
+            }
+            int tilesNum = xRange.length * yRange.length;
+
+            /*
+             * the points of the next tile are read in background
+             * while the current one is sliced
+             */
+            ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+            try {
+                Future<List<LasRecord>> nextTile = readTile(readExecutor, dataManager, tilesList.get(0));
+                pm.beginTask("Producing slices...", tilesList.size());
+                for( int tile = 0; tile < tilesList.size(); tile++ ) {
+                    List<LasRecord> pointsInGeometry = nextTile.get();
+                    if (tile + 1 < tilesList.size()) {
+                        nextTile = readTile(readExecutor, dataManager, tilesList.get(tile + 1));
+                    }
 
-                    pm.message("Points in tile " + x + "/" + y + "(" + tilesCount + " of " + tilesNum + "): "
+                    pm.message("Points in tile " + tilesNames.get(tile) + "(" + (tile + 1) + " of " + tilesNum + "): "
                             + pointsInGeometry.size());
                     if (pointsInGeometry.size() == 0) {
+                        pm.worked(1);
                         continue;
                     }
-                    for( double z = minZ + pInterval; z < maxZ; z = z + pInterval ) {
-                        String key = String.valueOf(z);
-                        List<LasRecord> pointsInSlice = recordsMap.get(key);
-                        if (pointsInSlice == null) {
-                            pointsInSlice = new ArrayList<LasRecord>();
-                            recordsMap.put(key, pointsInSlice);
+                    for( int i = 0; i < slicesNum; i++ ) {
+                        if (slicesPoints[i] == null) {
+                            slicesPoints[i] = new ArrayList<LasRecord>();
                         }
-                        double height = z - minZ;
-                        double low = height - pThickness / 2.0;
-                        double high = height + pThickness / 2.0;
-                        List<LasRecord> pointsInHeightRange = ALasDataManager.getPointsInHeightRange(pointsInGeometry, low, high);
-                        if (pointsInHeightRange.size() > 0) {
-                            pointsInSlice.addAll(pointsInHeightRange);
-                            // pm.message("Added points: " + pointsInHeightRange.size());
-                            if (!doRaster)
-                                chartPoints(outputFolder, height, pointsInSlice, chartWidth, chartHeigth, minX, maxX, minY, maxY);
+                    }
+                    for( LasRecord dot : pointsInGeometry ) {
+                        double h = dot.groundElevation;
+                        if (Double.isNaN(h)) {
+                            continue;
+                        }
+                        // the slices are ordered, start from the first one reaching the point
+                        int i = firstSliceReaching(slicesHigh, h);
+                        for( ; i < slicesNum && slicesLow[i] <= h; i++ ) {
+                            slicesPoints[i].add(dot);
+                            sliceChanged[i] = true;
                         }
                     }
+                    if (!doRaster) {
+                        for( int i = 0; i < slicesNum; i++ ) {
+                            if (sliceChanged[i]) {
+                                chartPoints(outputFolder, slicesZ[i] - minZ, slicesPoints[i], chartWidth, chartHeigth, minX,
+                                        maxX, minY, maxY);
+                            }
+                        }
+                    }
+                    Arrays.fill(sliceChanged, false);
+                    pm.worked(1);
                 }
-                pm.worked(1);
+                pm.done();
+            } finally {
+                readExecutor.shutdownNow();
             }
-            pm.done();
 
             if (doRaster) {
-                Set<Entry<String, List<LasRecord>>> entrySet = recordsMap.entrySet();
-                int size = entrySet.size();
-                pm.beginTask("Generating rasters...", size);
-                for( Entry<String, List<LasRecord>> entry : entrySet ) {
-                    double z = Double.parseDouble(entry.getKey());
-                    double height = z - minZ;
-                    List<LasRecord> points = entry.getValue();
-
-                    dumpRaster(outputFolder, height, points, pResolution, minX, maxX, minY, maxY, crs);
+                pm.beginTask("Generating rasters...", slicesNum);
+                for( int i = 0; i < slicesNum; i++ ) {
+                    if (slicesPoints[i] != null) {
+                        double height = slicesZ[i] - minZ;
+                        dumpRaster(outputFolder, height, slicesPoints[i], pResolution, minX, maxX, minY, maxY, crs);
+                    }
                     pm.worked(1);
                 }
                 pm.done();
@@ -207,6 +249,33 @@ public class LasSlicer extends JGTModel {
         }
     }
 
+    private static Future<List<LasRecord>> readTile( ExecutorService executor, final ALasDataManager dataManager,
+            final Envelope env ) {
+        return executor.submit(new Callable<List<LasRecord>>(){
+            public List<LasRecord> call() throws Exception {
+                Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(env);
+                return dataManager.getPointsInGeometry(polygon, true);
+            }
+        });
+    }
+
+    /**
+     * Binary search of the first slice with upper bound not below the height.
+     */
+    private static int firstSliceReaching( double[] slicesHigh, double h ) {
+        int low = 0;
+        int high = slicesHigh.length;
+        while( low < high ) {
+            int mid = (low + high) >>> 1;
+            if (slicesHigh[mid] < h) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     private void dumpRaster( File outputFolder, double height, List<LasRecord> points, double resolution, double minX,
             double maxX, double minY, double maxY, CoordinateReferenceSystem crs ) throws Exception {
 
@@ -27,9 +27,6 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.iterator.RandomIter;
@@ -57,10 +54,12 @@ import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.GridNode;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
+import org.jgrasstools.gears.utils.geometry.SpatialHash;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -123,12 +122,18 @@ public class OmsPointCloudMaximaFinder extends JGTModel {
     public static final String inRoi_DESCR = "A set of polygons to use as region of interest.";
     public static final String inDtm_DESCR = "A dtm raster to use for the area of interest and to calculate the elevation threshold.";
     public static final String inLas_DESCR = "The input las.";
+    public static final String pCacheSize_DESCR = "The size of the decoded points cache in MB (0 disables it).";
     public static final String NAME = "pointcloudmaximafinder";
     public static final String KEYWORDS = "Local maxima, las, lidar";
     public static final String DESCR = "Module that identifies local maxima in point clouds.";
     public static final String LABEL = JGTConstants.LESTO + "/vegetation";
     // VARS DOCS END
 
+    /**
+     * The number of points checked by a single task.
+     */
+    private static final int BLOCK_SIZE = 10000;
+
     private AtomicInteger index = new AtomicInteger();
 
     @Execute
@@ -180,95 +185,92 @@ public class OmsPointCloudMaximaFinder extends JGTModel {
     public static void doProcess( final List<LasRecord> pointsInTile, final double pMaxRadius, final boolean doDynamicRadius,
             final DsmDtmDiffHelper helper, final DefaultFeatureCollection outTopsFC, final SimpleFeatureBuilder lasBuilder,
             final AtomicInteger index, final IJGTProgressMonitor pm ) throws Exception {
+        final int size = pointsInTile.size();
+        final double[] xs = new double[size];
+        final double[] ys = new double[size];
+        final double[] elevs = new double[size];
+        for( int i = 0; i < size; i++ ) {
+            LasRecord dot = pointsInTile.get(i);
+            xs[i] = dot.x;
+            ys[i] = dot.y;
+            elevs[i] = dot.groundElevation;
+        }
+        // the radius is never larger than the max radius
+        final SpatialHash hash = new SpatialHash(xs, ys, size, pMaxRadius > 0 ? pMaxRadius : 1.0);
+
         /*
-         * we use the intensity value to mark local maxima
-         * - 1 = maxima
-         * - 0 = non maxima
+         * the points are checked in blocks, each collecting its own maxima 
          */
-        final GeometryFactory gf = new GeometryFactory();
-        pm.beginTask("Mark local maxima...", pointsInTile.size());
-        ExecutorService fixedThreadPool = Executors.newFixedThreadPool(getDefaultThreadsNum());
-        for( final LasRecord currentDot : pointsInTile ) {
-            Runnable runner = new Runnable(){
+        final int blocksNum = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int[][] blockMaxima = new int[blocksNum][];
+        final int[] blockMaximaNum = new int[blocksNum];
+        pm.beginTask("Mark local maxima...", size);
+        ThreadedRunnable< ? > runner = new ThreadedRunnable<Object>(getDefaultThreadsNum(), null);
+        for( int b = 0; b < blocksNum; b++ ) {
+            final int block = b;
+            runner.executeRunnable(new Runnable(){
                 public void run() {
-                    try {
-                        // check if it is a local maxima
-                        boolean isLocalMaxima = true;
-                        for( LasRecord tmpDot : pointsInTile ) {
-                            double distance = LasUtils.distance(currentDot, tmpDot);
-                            double maxRadius = pMaxRadius;
-                            if (doDynamicRadius) {
-                                // use Popescu lowered to 70% (Popescu & Kini 2004 for mixed pines
-                                // and
-                                // deciduous trees)
-                                maxRadius = (2.51503 + 0.00901 * pow(currentDot.groundElevation, 2.0)) / 2.0 * 0.7;
-                                if (maxRadius > pMaxRadius) {
-                                    maxRadius = pMaxRadius;
-                                }
-                            }
-                            if (distance > maxRadius) {
-                                continue;
-                            }
-                            if (tmpDot.groundElevation > currentDot.groundElevation) {
-                                // not local maxima
-                                isLocalMaxima = false;
-                                break;
+                    int from = block * BLOCK_SIZE;
+                    int to = Math.min(size, from + BLOCK_SIZE);
+                    int[] maxima = new int[to - from];
+                    int maximaNum = 0;
+                    SpatialHash.Neighbours neighbours = new SpatialHash.Neighbours();
+                    for( int i = from; i < to; i++ ) {
+                        try {
+                            if (isLocalMaxima(i, xs, ys, elevs, hash, neighbours, pMaxRadius, doDynamicRadius)
+                                    && (helper == null || helper.isValidTop(xs[i], ys[i]))) {
+                                maxima[maximaNum++] = i;
                             }
+                        } catch (Exception e) {
+                            e.printStackTrace();
                         }
-                        // mark it
-                        if (isLocalMaxima) {
-                            if (helper != null) {
-                                // check if it is some border or noise
-                                GridCoordinates2D gridCoord = helper.gridGeometry.worldToGrid(new DirectPosition2D(currentDot.x,
-                                        currentDot.y));
-                                GridNode node = new GridNode(helper.dsmDtmDiffIter, helper.cols, helper.rows, helper.xres,
-                                        helper.yres, gridCoord.x, gridCoord.y);
-                                double topElevation = node.elevation;
-                                if (!node.isValid() || node.touchesBound()) {
-                                    isLocalMaxima = false;
-                                } else {
-                                    List<GridNode> validSurroundingNodes = node.getValidSurroundingNodes();
-                                    for( GridNode tmpNode : validSurroundingNodes ) {
-                                        double tmpElevation = tmpNode.elevation;
-                                        if (abs(topElevation - tmpElevation) > helper.pElevDiffThres) {
-                                            isLocalMaxima = false;
-                                        }
-                                    }
-                                }
-                            }
-                            if (isLocalMaxima) {
-                                synchronized (lasBuilder) {
-                                    final Point point = gf.createPoint(new Coordinate(currentDot.x, currentDot.y));
-                                    double groundElevation = currentDot.groundElevation;
-                                    // round to meter with 1 decimal
-                                    groundElevation = ((int) round(groundElevation * 10)) / 10.0;
-                                    final Object[] values = new Object[]{point, index.getAndIncrement(), groundElevation,
-                                            currentDot.intensity, currentDot.classification, currentDot.returnNumber,
-                                            currentDot.numberOfReturns};
-                                    lasBuilder.addAll(values);
-                                    final SimpleFeature feature = lasBuilder.buildFeature(null);
-                                    outTopsFC.add(feature);
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    } finally {
-                        pm.worked(1);
                     }
+                    blockMaxima[block] = maxima;
+                    blockMaximaNum[block] = maximaNum;
+                    pm.worked(to - from);
                 }
-            };
-            fixedThreadPool.execute(runner);
-        }
-        try {
-            fixedThreadPool.shutdown();
-            fixedThreadPool.awaitTermination(30, TimeUnit.DAYS);
-            fixedThreadPool.shutdownNow();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            });
         }
+        runner.waitAndClose();
         pm.done();
 
+        final GeometryFactory gf = new GeometryFactory();
+        for( int b = 0; b < blocksNum; b++ ) {
+            for( int m = 0; m < blockMaximaNum[b]; m++ ) {
+                LasRecord currentDot = pointsInTile.get(blockMaxima[b][m]);
+                final Point point = gf.createPoint(new Coordinate(currentDot.x, currentDot.y));
+                double groundElevation = currentDot.groundElevation;
+                // round to meter with 1 decimal
+                groundElevation = ((int) round(groundElevation * 10)) / 10.0;
+                final Object[] values = new Object[]{point, index.getAndIncrement(), groundElevation, currentDot.intensity,
+                        currentDot.classification, currentDot.returnNumber, currentDot.numberOfReturns};
+                lasBuilder.addAll(values);
+                final SimpleFeature feature = lasBuilder.buildFeature(null);
+                outTopsFC.add(feature);
+            }
+        }
+    }
+
+    private static boolean isLocalMaxima( int i, double[] xs, double[] ys, double[] elevs, SpatialHash hash,
+            SpatialHash.Neighbours neighbours, double pMaxRadius, boolean doDynamicRadius ) {
+        double maxRadius = pMaxRadius;
+        if (doDynamicRadius) {
+            // use Popescu lowered to 70% (Popescu & Kini 2004 for mixed pines
+            // and
+            // deciduous trees)
+            maxRadius = (2.51503 + 0.00901 * pow(elevs[i], 2.0)) / 2.0 * 0.7;
+            if (maxRadius > pMaxRadius) {
+                maxRadius = pMaxRadius;
+            }
+        }
+        hash.radius(xs[i], ys[i], maxRadius, neighbours);
+        for( int k = 0; k < neighbours.size(); k++ ) {
+            if (elevs[neighbours.get(k)] > elevs[i]) {
+                // not local maxima
+                return false;
+            }
+        }
+        return true;
     }
 
     static class DsmDtmDiffHelper {
@@ -280,6 +282,26 @@ public class OmsPointCloudMaximaFinder extends JGTModel {
         double xres;
         double yres;
         RandomIter dsmDtmDiffIter;
+
+        /**
+         * Check if a top is not some border or noise.
+         */
+        boolean isValidTop( double x, double y ) throws Exception {
+            GridCoordinates2D gridCoord = gridGeometry.worldToGrid(new DirectPosition2D(x, y));
+            GridNode node = new GridNode(dsmDtmDiffIter, cols, rows, xres, yres, gridCoord.x, gridCoord.y);
+            double topElevation = node.elevation;
+            if (!node.isValid() || node.touchesBound()) {
+                return false;
+            }
+            List<GridNode> validSurroundingNodes = node.getValidSurroundingNodes();
+            for( GridNode tmpNode : validSurroundingNodes ) {
+                double tmpElevation = tmpNode.elevation;
+                if (abs(topElevation - tmpElevation) > pElevDiffThres) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
 }
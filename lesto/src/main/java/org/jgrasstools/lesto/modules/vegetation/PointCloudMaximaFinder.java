@@ -45,6 +45,7 @@ import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.jgrasstools.gears.io.las.ALasDataManager;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.utils.LasBlockCache;
 import org.jgrasstools.gears.io.las.utils.LasUtils;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
@@ -109,6 +110,10 @@ public class PointCloudMaximaFinder extends JGTModel {
     @In
     public String pClass = null;
 
+    @Description(pCacheSize_DESCR)
+    @In
+    public double pCacheSize = 0.0;
+
     @Description(outTops_DESCR)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -157,6 +162,11 @@ public class PointCloudMaximaFinder extends JGTModel {
                 double[] classes = StringUtilities.stringToDoubleArray(pClass, ",");
                 lasData.setClassesConstraint(classes);
             }
+            LasBlockCache blockCache = null;
+            if (pCacheSize > 0) {
+                blockCache = new LasBlockCache((long) (pCacheSize * 1024 * 1024), null);
+                lasData.setBlockCache(blockCache);
+            }
 
             DefaultFeatureCollection outTopsFC = new DefaultFeatureCollection();
             SimpleFeatureBuilder lasBuilder = LasUtils.getLasFeatureBuilder(crs);
@@ -187,6 +197,10 @@ public class PointCloudMaximaFinder extends JGTModel {
                 }
             }
             dumpVector(outTopsFC, outTops);
+            if (blockCache != null) {
+                pm.message(blockCache.toString());
+                blockCache.clear();
+            }
         }
         if (helper != null)
             helper.dsmDtmDiffIter.done();
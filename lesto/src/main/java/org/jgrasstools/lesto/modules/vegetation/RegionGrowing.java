@@ -19,11 +19,10 @@ package org.jgrasstools.lesto.modules.vegetation;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
-import javax.media.jai.iterator.WritableRandomIter;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -39,7 +38,6 @@ import oms3.annotations.Unit;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.jgrasstools.gears.libs.modules.GridNode;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.RegionMap;
@@ -97,32 +95,48 @@ public class RegionGrowing extends JGTModel {
     @In
     public String outRaster;
 
-    private WritableRandomIter outIter;
+    /**
+     * The col and row offsets of the 8 surrounding cells.
+     */
+    private static final int[] DCOL = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DROW = {0, 1, 1, 1, 0, -1, -1, -1};
+
+    private int cols;
+    private int rows;
+    private double xRes;
+    private double yRes;
+    private double[] dsm;
+    private double[] dtm;
+    private double[] out;
+    private int[] stack;
 
     public void process() throws Exception {
         checkNull(inMaxima, inDsm, outRaster);
 
         GridCoverage2D inDsmGC = getRaster(inDsm);
         RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(inDsmGC);
-        int cols = regionMap.getCols();
-        int rows = regionMap.getRows();
-        double xRes = regionMap.getXres();
-        double yRes = regionMap.getYres();
+        cols = regionMap.getCols();
+        rows = regionMap.getRows();
+        xRes = regionMap.getXres();
+        yRes = regionMap.getYres();
 
         GridGeometry2D gridGeometry = inDsmGC.getGridGeometry();
 
         RandomIter dsmIter = CoverageUtilities.getRandomIterator(inDsmGC);
-        RandomIter dtmIter;
+        dsm = readRowMajor(dsmIter);
+        dsmIter.done();
         if (inDtm != null) {
             GridCoverage2D inDtmGC = getRaster(inDtm);
-            dtmIter = CoverageUtilities.getRandomIterator(inDtmGC);
+            RandomIter dtmIter = CoverageUtilities.getRandomIterator(inDtmGC);
+            dtm = readRowMajor(dtmIter);
+            dtmIter.done();
         } else {
-            WritableRaster dtmWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, 0.0);
-            dtmIter = RandomIterFactory.createWritable(dtmWR, null);
+            dtm = new double[cols * rows];
         }
 
-        WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, JGTConstants.doubleNovalue);
-        outIter = RandomIterFactory.createWritable(outWR, null);
+        out = new double[cols * rows];
+        Arrays.fill(out, JGTConstants.doubleNovalue);
+        stack = new int[64];
 
         SimpleFeatureCollection inMaximaFC = getVector(inMaxima);
         List<SimpleFeature> maximaList = FeatureUtilities.featureCollectionToList(inMaximaFC);
@@ -132,85 +146,102 @@ public class RegionGrowing extends JGTModel {
         for( SimpleFeature maximaFeature : maximaList ) {
             Coordinate coordinate = ((Geometry) maximaFeature.getDefaultGeometry()).getCoordinate();
             int[] colRow = CoverageUtilities.colRowFromCoordinate(coordinate, gridGeometry, null);
-
-            GridNode startDsmNode = new GridNode(dsmIter, cols, rows, xRes, yRes, colRow[0], colRow[1]);
-            GridNode startDtmNode = new GridNode(dtmIter, cols, rows, xRes, yRes, colRow[0], colRow[1]);
-            growRegion(startDsmNode, startDtmNode, index, startDsmNode, startDtmNode);
+            growRegion(colRow[0], colRow[1], index);
 
             index++;
             pm.worked(1);
         }
         pm.done();
 
-        dtmIter.done();
-        outIter.done();
-
+        WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
+        outWR.setSamples(0, 0, cols, rows, 0, out);
         GridCoverage2D outRasterGC = CoverageUtilities.buildCoverage("filtered", outWR, regionMap,
                 inDsmGC.getCoordinateReferenceSystem());
         dumpRaster(outRasterGC, outRaster);
     }
 
-    private void growRegion( final GridNode topDsmNode, final GridNode topDtmNode, final int index, GridNode dsmNode,
-            GridNode dtmNode ) {
-        if (dsmNode.isValid() && dtmNode.isValid()) {
-            double topDsmElevation = topDsmNode.elevation;
-            double topDtmElevation = topDtmNode.elevation;
-
-            // do region growing
-            if (doElev) {
-                dsmNode.setValueInMap(outIter, topDsmElevation);
-            } else {
-                dsmNode.setValueInMap(outIter, index);
+    private double[] readRowMajor( RandomIter iter ) {
+        double[] values = new double[cols * rows];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                values[r * cols + c] = iter.getSampleDouble(c, r, 0);
             }
+        }
+        return values;
+    }
 
-            double currentDsmElevation = dsmNode.elevation;
-            // double currentDtmElevation = dtmNode.elevation;
+    /**
+     * Grow the region of a top with a cell stack.
+     * 
+     * <p>A cell joins the region if it is lower than the region cell it is reached from
+     * and passes the checks on the top, which don't depend on the path, so the visiting 
+     * order doesn't change the region.</p>
+     */
+    private void growRegion( int topCol, int topRow, int index ) {
+        if (topCol < 0 || topCol >= cols || topRow < 0 || topRow >= rows) {
+            return;
+        }
+        int top = topRow * cols + topCol;
+        double topDsmElevation = dsm[top];
+        double topDtmElevation = dtm[top];
+        if (isNovalue(topDsmElevation) || isNovalue(topDtmElevation)) {
+            return;
+        }
+        double value = doElev ? topDsmElevation : index;
+        double minTopDelta = pPtop / 100.0 * (topDsmElevation - topDtmElevation);
+        double radius2 = pRadius * pRadius;
+
+        out[top] = value;
+        int stackSize = 0;
+        stack[stackSize++] = top;
+        while( stackSize > 0 ) {
+            int current = stack[--stackSize];
+            int col = current % cols;
+            int row = current / cols;
+            double currentDsmElevation = dsm[current];
 
             // check surrounding
-            List<GridNode> surroundingDsmNodes = dsmNode.getSurroundingNodes();
-            List<GridNode> surroundingDtmNodes = dtmNode.getSurroundingNodes();
-            for( int k = 0; k < surroundingDsmNodes.size(); k++ ) {
-                GridNode surroundingDsmNode = surroundingDsmNodes.get(k);
-                GridNode surroundingDtmNode = surroundingDtmNodes.get(k);
-                if (surroundingDsmNode == null || surroundingDtmNode == null || !surroundingDsmNode.isValid()
-                        || !surroundingDtmNode.isValid()) {
+            for( int k = 0; k < 8; k++ ) {
+                int c = col + DCOL[k];
+                int r = row + DROW[k];
+                if (c < 0 || c >= cols || r < 0 || r >= rows) {
                     continue;
                 }
-
-                int col = surroundingDsmNode.col;
-                int row = surroundingDsmNode.row;
-                double outValue = outIter.getSampleDouble(col, row, 0);
-                if (!isNovalue(outValue)) {
+                int cell = r * cols + c;
+                double surroundingDsmElevation = dsm[cell];
+                double surroundingDtmElevation = dtm[cell];
+                if (isNovalue(surroundingDsmElevation) || isNovalue(surroundingDtmElevation)) {
+                    continue;
+                }
+                if (!isNovalue(out[cell])) {
                     // someone already passed there
                     continue;
                 }
+                if (surroundingDsmElevation >= currentDsmElevation) {
+                    continue;
+                }
+                // height is lower than 5 meters
+                double deltaElevation = surroundingDsmElevation - surroundingDtmElevation;
+                if (deltaElevation < pHeight) {
+                    continue;
+                }
+                // height is lower than 75% of the top
+                if (deltaElevation < minTopDelta) {
+                    continue;
+                }
+                // distance from the top
+                double dx = (c - topCol) * xRes;
+                double dy = (r - topRow) * yRes;
+                if (dx * dx + dy * dy > radius2) {
+                    continue;
+                }
 
-                double surroundingDsmElevation = surroundingDsmNode.elevation;
-                double surroundingDtmElevation = surroundingDtmNode.elevation;
-                if (surroundingDsmElevation < currentDsmElevation) {
-                    // do checks
-                    // height is lower than 5 meters
-                    double deltaElevation = surroundingDsmElevation - surroundingDtmElevation;
-                    if (deltaElevation < pHeight) {
-                        continue;
-                    } else
-                    // height is lower than 75% of the top
-                    if (deltaElevation < pPtop / 100.0 * (topDsmElevation - topDtmElevation)) {
-                        continue;
-                    } else
-                    // distance from
-                    if (topDsmNode.getDistance(surroundingDsmNode) > pRadius) {
-                        continue;
-                    }
-
-                    // mark it
-                    if (doElev) {
-                        surroundingDsmNode.setValueInMap(outIter, topDsmElevation);
-                    } else {
-                        surroundingDsmNode.setValueInMap(outIter, index);
-                    }
-                    growRegion(topDsmNode, topDtmNode, index, surroundingDsmNode, surroundingDtmNode);
+                // mark it
+                out[cell] = value;
+                if (stackSize == stack.length) {
+                    stack = Arrays.copyOf(stack, stackSize * 2);
                 }
+                stack[stackSize++] = cell;
             }
         }
     }
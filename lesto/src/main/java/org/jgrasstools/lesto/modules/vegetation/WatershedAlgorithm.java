@@ -22,7 +22,6 @@ package org.jgrasstools.lesto.modules.vegetation;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
 
 import java.awt.image.WritableRaster;
-import java.util.List;
 
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
@@ -44,9 +43,7 @@ import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
-import org.jgrasstools.lesto.modules.vegetation.watershed.WatershedFIFO;
-import org.jgrasstools.lesto.modules.vegetation.watershed.WatershedPixel;
-import org.jgrasstools.lesto.modules.vegetation.watershed.WatershedStructure;
+import org.jgrasstools.lesto.modules.vegetation.watershed.WatershedEngine;
 
 /**
  *  This algorithm is an implementation of the watershed immersion algorithm
@@ -101,6 +98,12 @@ import org.jgrasstools.lesto.modules.vegetation.watershed.WatershedStructure;
 @License("GPL2")
 public class WatershedAlgorithm extends JGTModel {
 
+    /**
+     * The rows of overlap between tiles, enough for the crowns of large trees
+     * at sub meter resolution.
+     */
+    private static final int TILE_OVERLAP = 64;
+
     @Description("An elevation raster")
     @UI(JGTConstants.FILEIN_UI_HINT)
     @In
@@ -110,6 +113,10 @@ public class WatershedAlgorithm extends JGTModel {
     @In
     public boolean doBorders = true;
 
+    @Description("The number of rows of the tiles that are processed in parallel (if not set, the raster is processed at once).")
+    @In
+    public Integer pTileRows = null;
+
     @Description("Watershed raster")
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -126,136 +133,27 @@ public class WatershedAlgorithm extends JGTModel {
 
         byte[] input = CoverageUtilities.renderedImage2ByteArray(inRasterGC.getRenderedImage(), true);
 
-        /** First step : the pixels are sorted according to increasing grey values **/
-        WatershedStructure watershedStructure = new WatershedStructure(input, nCols, nRows, pm);
-
-        /** Start flooding **/
-        WatershedFIFO queue = new WatershedFIFO();
-        int curlab = 0;
-
-        int heightIndex1 = 0;
-        int heightIndex2 = 0;
-
-        for( int h = 0; h < 256; h++ ) /*Geodesic SKIZ of level h-1 inside level h */{
-
-            for( int pixelIndex = heightIndex1; pixelIndex < watershedStructure.size(); pixelIndex++ ) /*mask all pixels at level h*/{
-                WatershedPixel p = watershedStructure.get(pixelIndex);
-
-                if (p.getIntHeight() != h) {
-                    /** This pixel is at level h+1 **/
-                    heightIndex1 = pixelIndex;
-                    break;
-                }
-
-                p.setLabelToMASK();
-
-                List<WatershedPixel> neighbours = p.getNeighbours();
-                for( int i = 0; i < neighbours.size(); i++ ) {
-                    WatershedPixel q = (WatershedPixel) neighbours.get(i);
-
-                    if (q.getLabel() >= 0) {/*Initialise queue with neighbours at level h of current basins or watersheds*/
-                        p.setDistance(1);
-                        queue.fifo_add(p);
-                        break;
-                    } // end if
-                } // end for
-            } // end for
-
-            int curdist = 1;
-            queue.fifo_add_FICTITIOUS();
-
-            while( true ) /** extend basins **/
-            {
-                WatershedPixel p = queue.fifo_remove();
-
-                if (p.isFICTITIOUS())
-                    if (queue.fifo_empty())
-                        break;
-                    else {
-                        queue.fifo_add_FICTITIOUS();
-                        curdist++;
-                        p = queue.fifo_remove();
-                    }
-
-                List<WatershedPixel> neighbours = p.getNeighbours();
-                for( int i = 0; i < neighbours.size(); i++ ) /* Labelling p by inspecting neighbours */{
-                    WatershedPixel q = (WatershedPixel) neighbours.get(i);
-
-                    /* Original algorithm : 
-                       if( (q.getDistance() < curdist) &&
-                       (q.getLabel()>0 || q.isLabelWSHED()) ) {*/
-                    if ((q.getDistance() <= curdist) && (q.getLabel() >= 0)) {
-                        /* q belongs to an existing basin or to a watershed */
-
-                        if (q.getLabel() > 0) {
-                            if (p.isLabelMASK())
-                                // Removed from original algorithm || p.isLabelWSHED() )
-                                p.setLabel(q.getLabel());
-                            else if (p.getLabel() != q.getLabel())
-                                p.setLabelToWSHED();
-                        } // end if lab>0
-                        else if (p.isLabelMASK())
-                            p.setLabelToWSHED();
-                    } else if (q.isLabelMASK() && (q.getDistance() == 0)) {
-
-                        q.setDistance(curdist + 1);
-                        queue.fifo_add(q);
-                    }
-                } // end for, end processing neighbours
-
-            } // end while (loop)
-
-            /* Detect and process new minima at level h */
-            for( int pixelIndex = heightIndex2; pixelIndex < watershedStructure.size(); pixelIndex++ ) {
-                WatershedPixel p = watershedStructure.get(pixelIndex);
-
-                if (p.getIntHeight() != h) {
-                    /** This pixel is at level h+1 **/
-                    heightIndex2 = pixelIndex;
-                    break;
-                }
-
-                p.setDistance(0); /* Reset distance to zero */
-
-                if (p.isLabelMASK()) { /* the pixel is inside a new minimum */
-                    curlab++;
-                    p.setLabel(curlab);
-                    queue.fifo_add(p);
-
-                    while( !queue.fifo_empty() ) {
-                        WatershedPixel q = queue.fifo_remove();
-
-                        List<WatershedPixel> neighbours = q.getNeighbours();
-
-                        for( int i = 0; i < neighbours.size(); i++ ) /* inspect neighbours of p2*/{
-                            WatershedPixel r = (WatershedPixel) neighbours.get(i);
-
-                            if (r.isLabelMASK()) {
-                                r.setLabel(curlab);
-                                queue.fifo_add(r);
-                            }
-                        }
-                    } // end while
-                } // end if
-            } // end for
+        int[] labels;
+        if (pTileRows == null) {
+            labels = new WatershedEngine(input, nCols, nRows).run(pm);
+        } else {
+            labels = WatershedEngine.runTiled(input, nCols, nRows, pTileRows, TILE_OVERLAP, getDefaultThreadsNum(), pm);
         }
-        /** End of flooding **/
+        input = null;
 
         WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(nCols, nRows, null, null, doubleNovalue);
         WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
 
-        pm.beginTask("Setting watersheds...", watershedStructure.size());
-
-        for( int pixelIndex = 0; pixelIndex < watershedStructure.size(); pixelIndex++ ) {
-            WatershedPixel p = watershedStructure.get(pixelIndex);
-            int c = p.getX();
-            int r = p.getY();
-            if (p.isLabelWSHED() && !p.allNeighboursAreWSHED()) {
-                if (doBorders)
-                    outIter.setSample(c, r, 0, 1.0);
-            } else {
-                if (!doBorders)
-                    outIter.setSample(c, r, 0, 1.0);
+        pm.beginTask("Setting watersheds...", nRows);
+        for( int r = 0; r < nRows; r++ ) {
+            for( int c = 0; c < nCols; c++ ) {
+                if (WatershedEngine.isBorder(labels, nCols, nRows, r * nCols + c)) {
+                    if (doBorders)
+                        outIter.setSample(c, r, 0, 1.0);
+                } else {
+                    if (!doBorders)
+                        outIter.setSample(c, r, 0, 1.0);
+                }
             }
             pm.worked(1);
         }
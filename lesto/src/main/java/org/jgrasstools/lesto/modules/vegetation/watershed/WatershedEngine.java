@@ -0,0 +1,466 @@
+package org.jgrasstools.lesto.modules.vegetation.watershed;
+
+/*
+ * Watershed plugin
+ *
+ * Copyright (c) 2003 by Christopher Mei (christopher.mei@sophia.inria.fr)
+ *
+ * This plugin is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this plugin; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ *  The Vincent and Soille (1991) watershed immersion
+ *  on primitive arrays.
+ *
+ *  Pixels are addressed by their index in the row
+ *  major array of the image. They are grouped by grey
+ *  level through a counting sort, which gives the
+ *  hierarchical queue of the levels, and the basins
+ *  are grown with a FIFO queue of pixel indexes. Apart
+ *  from the image, 16 bytes per pixel are used.
+ *
+ *  Large images can be processed in row tiles in parallel.
+ *  Each tile is flooded with an overlap on the neighbour
+ *  tiles. A basin whose minimum lies beyond a seam is
+ *  merged with the basin of the neighbour tile it shares
+ *  most pixels with.
+ *
+ **/
+
+public class WatershedEngine {
+    /** Value used to initialise the image */
+    final static int INIT = -1;
+    /** Value used to indicate the new pixels that
+     *  are going to be processed (intial value
+     *  at each level)
+     **/
+    final static int MASK = -2;
+    /** Value indicating that the pixel belongs
+     *  to a watershed.
+     **/
+    public final static int WSHED = 0;
+    /** Fictitious pixel in the queue **/
+    private final static int FICTITIOUS = -3;
+
+    /** Neighbour offsets, in the order the original implementation visited them **/
+    private final static int[] DC = {1, 1, 1, -1, -1, -1, 0, 0};
+    private final static int[] DR = {0, -1, 1, 0, -1, 1, -1, 1};
+
+    private final byte[] pixels;
+    private final int offset;
+    private final int cols;
+    private final int rows;
+
+    /** Label used in the Watershed immersion algorithm **/
+    private int[] labels;
+    /** Number of basins found **/
+    private int basinsNum;
+    /** The first pixel of the minimum of each basin, by basin number **/
+    private int[] minima;
+
+    /**
+     * Constructor.
+     *
+     * @param pixels the grey levels of the image, row by row.
+     * @param cols the columns of the image.
+     * @param rows the rows of the image.
+     */
+    public WatershedEngine( byte[] pixels, int cols, int rows ) {
+        this(pixels, 0, cols, rows);
+    }
+
+    private WatershedEngine( byte[] pixels, int offset, int cols, int rows ) {
+        this.pixels = pixels;
+        this.offset = offset;
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+    /**
+     * Run the immersion.
+     *
+     * @param pm the monitor.
+     * @return the labels of the pixels, {@link #WSHED} for watershed pixels and
+     *          the basin number, starting from 1, for the others.
+     */
+    public int[] run( IJGTProgressMonitor pm ) {
+        int n = cols * rows;
+
+        /** First step : the pixels are sorted according to increasing grey values **/
+        int[] levelStart = new int[257];
+        for( int i = 0; i < n; i++ ) {
+            levelStart[level(i) + 1]++;
+        }
+        for( int h = 0; h < 256; h++ ) {
+            levelStart[h + 1] += levelStart[h];
+        }
+        int[] sorted = new int[n];
+        int[] fill = new int[256];
+        System.arraycopy(levelStart, 0, fill, 0, 256);
+        for( int i = 0; i < n; i++ ) {
+            sorted[fill[level(i)]++] = i;
+        }
+        fill = null;
+
+        labels = new int[n];
+        Arrays.fill(labels, INIT);
+        int[] dist = new int[n];
+        IntFifo queue = new IntFifo(n + 1);
+        int curlab = 0;
+        minima = new int[64];
+
+        /** Start flooding **/
+        if (pm != null)
+            pm.beginTask("Flooding...", 256);
+        for( int h = 0; h < 256; h++ ) /*Geodesic SKIZ of level h-1 inside level h */{
+            int from = levelStart[h];
+            int to = levelStart[h + 1];
+
+            for( int k = from; k < to; k++ ) /*mask all pixels at level h*/{
+                int p = sorted[k];
+                labels[p] = MASK;
+
+                int pc = p % cols;
+                int pr = p / cols;
+                for( int i = 0; i < 8; i++ ) {
+                    int q = neighbour(pc, pr, i);
+                    if (q >= 0 && labels[q] >= 0) {/*Initialise queue with neighbours at level h of current basins or watersheds*/
+                        dist[p] = 1;
+                        queue.add(p);
+                        break;
+                    }
+                }
+            }
+
+            int curdist = 1;
+            queue.add(FICTITIOUS);
+
+            while( true ) /** extend basins **/
+            {
+                int p = queue.remove();
+
+                if (p == FICTITIOUS)
+                    if (queue.isEmpty())
+                        break;
+                    else {
+                        queue.add(FICTITIOUS);
+                        curdist++;
+                        p = queue.remove();
+                    }
+
+                int pc = p % cols;
+                int pr = p / cols;
+                for( int i = 0; i < 8; i++ ) /* Labelling p by inspecting neighbours */{
+                    int q = neighbour(pc, pr, i);
+                    if (q < 0) {
+                        continue;
+                    }
+                    if ((dist[q] <= curdist) && (labels[q] >= 0)) {
+                        /* q belongs to an existing basin or to a watershed */
+                        if (labels[q] > 0) {
+                            if (labels[p] == MASK)
+                                labels[p] = labels[q];
+                            else if (labels[p] != labels[q])
+                                labels[p] = WSHED;
+                        } else if (labels[p] == MASK)
+                            labels[p] = WSHED;
+                    } else if (labels[q] == MASK && dist[q] == 0) {
+                        dist[q] = curdist + 1;
+                        queue.add(q);
+                    }
+                }
+            }
+
+            /* Detect and process new minima at level h */
+            for( int k = from; k < to; k++ ) {
+                int p = sorted[k];
+                dist[p] = 0; /* Reset distance to zero */
+
+                if (labels[p] == MASK) { /* the pixel is inside a new minimum */
+                    curlab++;
+                    labels[p] = curlab;
+                    if (curlab == minima.length) {
+                        minima = Arrays.copyOf(minima, 2 * curlab);
+                    }
+                    minima[curlab] = p;
+                    queue.add(p);
+
+                    while( !queue.isEmpty() ) {
+                        int q = queue.remove();
+                        int qc = q % cols;
+                        int qr = q / cols;
+                        for( int i = 0; i < 8; i++ ) /* inspect neighbours of q*/{
+                            int r = neighbour(qc, qr, i);
+                            if (r >= 0 && labels[r] == MASK) {
+                                labels[r] = curlab;
+                                queue.add(r);
+                            }
+                        }
+                    }
+                }
+            }
+            if (pm != null)
+                pm.worked(1);
+        }
+        if (pm != null)
+            pm.done();
+        /** End of flooding **/
+
+        basinsNum = curlab;
+        return labels;
+    }
+
+    /**
+     * @return the number of basins of the last run.
+     */
+    public int getBasinsNum() {
+        return basinsNum;
+    }
+
+    /**
+     * Checks if a pixel is a watershed pixel that has at least one neighbour that is not.
+     *
+     * @param labels the labels of a run.
+     * @param cols the columns of the image.
+     * @param rows the rows of the image.
+     * @param index the index of the pixel.
+     * @return <code>true</code> if the pixel is on a border between basins.
+     */
+    public static boolean isBorder( int[] labels, int cols, int rows, int index ) {
+        if (labels[index] != WSHED) {
+            return false;
+        }
+        int c = index % cols;
+        int r = index / cols;
+        for( int i = 0; i < 8; i++ ) {
+            int nc = c + DC[i];
+            int nr = r + DR[i];
+            if (nc >= 0 && nc < cols && nr >= 0 && nr < rows && labels[nr * cols + nc] != WSHED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the immersion on row tiles in parallel.
+     *
+     * <p>Each tile is flooded with an overlap of rows on both sides. A pixel
+     * takes the label of the tile it belongs to. A basin of a tile whose minimum
+     * lies beyond a seam, in the overlap, is cut by the end of the tile and is
+     * merged with the basin of the neighbour tile that labels most of its pixels
+     * in the overlap. Basins with their minimum in their own tile are never
+     * merged with each other, so crowns that just meet at a seam stay apart.
+     * The result is the same as the one of {@link #run(IJGTProgressMonitor)}
+     * as long as the basins at the seams are not much larger than the overlap.</p>
+     *
+     * @param pixels the grey levels of the image, row by row.
+     * @param cols the columns of the image.
+     * @param rows the rows of the image.
+     * @param tileRows the number of rows of the tiles.
+     * @param overlap the number of overlapping rows with the neighbour tiles.
+     * @param threads the number of threads to use.
+     * @param pm the monitor.
+     * @return the labels of the pixels, as for {@link #run(IJGTProgressMonitor)}.
+     */
+    public static int[] runTiled( final byte[] pixels, final int cols, final int rows, int tileRows, int overlap, int threads,
+            IJGTProgressMonitor pm ) {
+        if (tileRows < 1 || overlap < 1) {
+            throw new IllegalArgumentException("Tile rows and overlap need to be positive.");
+        }
+        final int tilesNum = (rows + tileRows - 1) / tileRows;
+        final int[] tileFrom = new int[tilesNum];
+        final int[] tileTo = new int[tilesNum];
+        final int[] floodFrom = new int[tilesNum];
+        final int[] floodTo = new int[tilesNum];
+        for( int k = 0; k < tilesNum; k++ ) {
+            tileFrom[k] = k * tileRows;
+            tileTo[k] = Math.min(rows, tileFrom[k] + tileRows);
+            floodFrom[k] = Math.max(0, tileFrom[k] - overlap);
+            floodTo[k] = Math.min(rows, tileTo[k] + overlap);
+        }
+
+        final int[][] tileLabels = new int[tilesNum][];
+        final int[][] tileMinima = new int[tilesNum][];
+        final int[] tileBasins = new int[tilesNum];
+        final ThreadedRunnable< ? > runner = new ThreadedRunnable<Object>(threads, pm);
+        runner.setWorkLoad("Flooding tiles...", tilesNum);
+        for( int k = 0; k < tilesNum; k++ ) {
+            final int tile = k;
+            runner.executeRunnable(new Runnable(){
+                public void run() {
+                    WatershedEngine engine = new WatershedEngine(pixels, floodFrom[tile] * cols, cols, floodTo[tile]
+                            - floodFrom[tile]);
+                    tileLabels[tile] = engine.run(null);
+                    tileMinima[tile] = engine.minima;
+                    tileBasins[tile] = engine.getBasinsNum();
+                    runner.worked(1);
+                }
+            });
+        }
+        runner.waitAndClose();
+
+        // make the basin numbers unique over the tiles
+        int[] basinsOffset = new int[tilesNum + 1];
+        for( int k = 0; k < tilesNum; k++ ) {
+            basinsOffset[k + 1] = basinsOffset[k] + tileBasins[k];
+        }
+        int[] parent = new int[basinsOffset[tilesNum] + 1];
+        for( int i = 0; i < parent.length; i++ ) {
+            parent[i] = i;
+        }
+
+        // merge the basins whose minimum lies beyond a seam with the basin of the tile owning it
+        for( int k = 0; k < tilesNum - 1; k++ ) {
+            int seam = tileTo[k] * cols;
+            int from = floodFrom[k + 1] * cols;
+            int to = floodTo[k] * cols;
+            int[] minima1 = tileMinima[k];
+            int[] minima2 = tileMinima[k + 1];
+            Map<Long, Integer> shared = new HashMap<Long, Integer>();
+            for( int i = from; i < to; i++ ) {
+                int l1 = tileLabels[k][i - floodFrom[k] * cols];
+                int l2 = tileLabels[k + 1][i - from];
+                if (l1 > 0 && l2 > 0) {
+                    Long key = ((long) l1 << 32) | l2;
+                    Integer count = shared.get(key);
+                    shared.put(key, count == null ? 1 : count + 1);
+                }
+            }
+            // the basin of the other tile that shares most pixels, by basin
+            int[] best1 = new int[tileBasins[k] + 1];
+            int[] bestCount1 = new int[tileBasins[k] + 1];
+            int[] best2 = new int[tileBasins[k + 1] + 1];
+            int[] bestCount2 = new int[tileBasins[k + 1] + 1];
+            for( Entry<Long, Integer> entry : shared.entrySet() ) {
+                int l1 = (int) (entry.getKey() >>> 32);
+                int l2 = (int) (entry.getKey() & 0xffffffffL);
+                int count = entry.getValue();
+                if (count > bestCount1[l1]) {
+                    bestCount1[l1] = count;
+                    best1[l1] = l2;
+                }
+                if (count > bestCount2[l2]) {
+                    bestCount2[l2] = count;
+                    best2[l2] = l1;
+                }
+            }
+            for( int b = 1; b <= tileBasins[k]; b++ ) {
+                if (minima1[b] + floodFrom[k] * cols >= seam && best1[b] > 0) {
+                    union(parent, b + basinsOffset[k], best1[b] + basinsOffset[k + 1]);
+                }
+            }
+            for( int b = 1; b <= tileBasins[k + 1]; b++ ) {
+                if (minima2[b] + from < seam && best2[b] > 0) {
+                    union(parent, best2[b] + basinsOffset[k], b + basinsOffset[k + 1]);
+                }
+            }
+            tileMinima[k] = null;
+        }
+
+        // relabel with consecutive numbers
+        int[] newLabel = new int[parent.length];
+        int basins = 0;
+        for( int i = 1; i < parent.length; i++ ) {
+            int root = find(parent, i);
+            if (newLabel[root] == 0) {
+                newLabel[root] = ++basins;
+            }
+            newLabel[i] = newLabel[root];
+        }
+
+        int[] labels = new int[cols * rows];
+        for( int k = 0; k < tilesNum; k++ ) {
+            int[] tLabels = tileLabels[k];
+            int shift = (tileFrom[k] - floodFrom[k]) * cols;
+            for( int i = tileFrom[k] * cols; i < tileTo[k] * cols; i++ ) {
+                int label = tLabels[i - tileFrom[k] * cols + shift];
+                labels[i] = label > 0 ? newLabel[label + basinsOffset[k]] : label;
+            }
+            tileLabels[k] = null;
+        }
+        return labels;
+    }
+
+    private static int find( int[] parent, int i ) {
+        while( parent[i] != i ) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union( int[] parent, int a, int b ) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    private int level( int index ) {
+        return (int) pixels[offset + index] & 0xff;
+    }
+
+    private int neighbour( int c, int r, int i ) {
+        int nc = c + DC[i];
+        int nr = r + DR[i];
+        if (nc < 0 || nc >= cols || nr < 0 || nr >= rows) {
+            return -1;
+        }
+        return nr * cols + nc;
+    }
+
+    /**
+     * A FIFO queue of pixel indexes on a ring buffer.
+     **/
+    private static class IntFifo {
+        private final int[] buffer;
+        private int head = 0;
+        private int tail = 0;
+        private int size = 0;
+
+        IntFifo( int capacity ) {
+            buffer = new int[capacity];
+        }
+
+        void add( int p ) {
+            if (size == buffer.length) {
+                throw new IllegalStateException("Watershed queue overflow.");
+            }
+            buffer[tail] = p;
+            tail = tail + 1 == buffer.length ? 0 : tail + 1;
+            size++;
+        }
+
+        int remove() {
+            int p = buffer[head];
+            head = head + 1 == buffer.length ? 0 : head + 1;
+            size--;
+            return p;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.lesto.modules;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope3D;
+import org.jgrasstools.gears.io.las.ALasDataManager;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.utils.features.FeatureUtilities;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.lesto.modules.raster.adaptivetinfilter.TinHandler;
+import org.jgrasstools.lesto.utils.HMTestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+/**
+ * Test for the {@link TinHandler}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestTinHandler extends HMTestCase {
+
+    private static final double SIZE = 40.0;
+    private static final double CELL = 10.0;
+
+    public void testTinDensification() throws Exception {
+        // a sloping ground with some vegetation above it
+        Random random = new Random(7);
+        List<LasRecord> records = new ArrayList<LasRecord>();
+        for( int i = 0; i < 600; i++ ) {
+            double x = 0.5 + random.nextDouble() * (SIZE - 1.0);
+            double y = 0.5 + random.nextDouble() * (SIZE - 1.0);
+            double z = ground(x, y) + random.nextDouble() * 0.05;
+            if (i % 3 == 0) {
+                z = z + 1.0 + random.nextDouble() * 9.0;
+            }
+            records.add(record(x, y, z));
+        }
+        // the seeds are the corners, which give the extent of the tin, and the lowest point of every cell
+        List<Coordinate> seeds = new ArrayList<Coordinate>();
+        for( double[] corner : new double[][]{{0, 0}, {SIZE, 0}, {0, SIZE}, {SIZE, SIZE}} ) {
+            LasRecord record = record(corner[0], corner[1], ground(corner[0], corner[1]));
+            records.add(record);
+            seeds.add(new Coordinate(record.x, record.y, record.z));
+        }
+        int cells = (int) (SIZE / CELL);
+        LasRecord[] lowest = new LasRecord[cells * cells];
+        for( LasRecord record : records ) {
+            int cell = Math.min(cells - 1, (int) (record.y / CELL)) * cells + Math.min(cells - 1, (int) (record.x / CELL));
+            if (lowest[cell] == null || record.z < lowest[cell].z) {
+                lowest[cell] = record;
+            }
+        }
+        for( LasRecord record : lowest ) {
+            Coordinate seed = new Coordinate(record.x, record.y, record.z);
+            if (!seeds.contains(seed)) {
+                seeds.add(seed);
+            }
+        }
+
+        MemoryLasDataManager lasHandler = new MemoryLasDataManager(records);
+        Set<Coordinate> singleThreadGround = null;
+        for( int threads : new int[]{1, 4} ) {
+            TinHandler tinHandler = new TinHandler(pm, null, 10.0, 0.5, null, threads);
+            tinHandler.setStartCoordinates(seeds);
+            checkTinAsRebuilt(tinHandler);
+
+            // statistics, then the filtering on all data, as the adaptive tin filter does
+            tinHandler.filterOnAllData(lasHandler);
+            tinHandler.filterOnAllData(lasHandler);
+            tinHandler.resetTin();
+            int groundNum = tinHandler.getCurrentGroundPointsNum();
+            assertTrue(groundNum > seeds.size());
+            checkTinAsRebuilt(tinHandler);
+
+            // a densification iteration on the leftovers
+            tinHandler.filterOnLeftOverData();
+            tinHandler.resetTin();
+            assertTrue(tinHandler.getCurrentGroundPointsNum() > groundNum);
+            checkTinAsRebuilt(tinHandler);
+
+            Set<Coordinate> ground = new HashSet<Coordinate>(getGroundCoordinates(tinHandler));
+            assertEquals(tinHandler.getCurrentGroundPointsNum(), ground.size());
+            if (singleThreadGround == null) {
+                singleThreadGround = ground;
+            } else {
+                assertEquals(singleThreadGround, ground);
+            }
+        }
+    }
+
+    /**
+     * The tin used to be rebuilt from all ground points at every iteration. The points
+     * accepted by a filter pass only depend on the triangles, so the incremental tin
+     * needs to give the triangles of the rebuilt one.
+     */
+    private void checkTinAsRebuilt( TinHandler tinHandler ) throws Exception {
+        DelaunayTriangulationBuilder builder = new DelaunayTriangulationBuilder();
+        builder.setSites(getGroundCoordinates(tinHandler));
+        Geometry rebuilt = builder.getTriangles(GeometryUtilities.gf());
+        Geometry[] rebuiltTriangles = new Geometry[rebuilt.getNumGeometries()];
+        for( int i = 0; i < rebuiltTriangles.length; i++ ) {
+            rebuiltTriangles[i] = rebuilt.getGeometryN(i);
+        }
+        assertEquals(toTriangleSet(rebuiltTriangles), toTriangleSet(tinHandler.getTriangles()));
+    }
+
+    private List<Coordinate> getGroundCoordinates( TinHandler tinHandler ) {
+        List<Geometry> points = FeatureUtilities.featureCollectionToGeometriesList(tinHandler.toFeatureCollectionTinPoints(),
+                false, null);
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for( Geometry point : points ) {
+            coordinates.add(point.getCoordinate());
+        }
+        return coordinates;
+    }
+
+    private Set<List<Coordinate>> toTriangleSet( Geometry[] triangles ) {
+        Set<List<Coordinate>> triangleSet = new HashSet<List<Coordinate>>();
+        for( Geometry triangle : triangles ) {
+            Coordinate[] coordinates = triangle.getCoordinates();
+            Coordinate[] vertexes = {coordinates[0], coordinates[1], coordinates[2]};
+            Arrays.sort(vertexes);
+            triangleSet.add(Arrays.asList(vertexes));
+        }
+        return triangleSet;
+    }
+
+    private static double ground( double x, double y ) {
+        return 100.0 + 0.1 * x + 0.05 * y + 0.5 * Math.sin(x / 5.0);
+    }
+
+    private static LasRecord record( double x, double y, double z ) {
+        LasRecord record = new LasRecord();
+        record.x = x;
+        record.y = y;
+        record.z = z;
+        return record;
+    }
+
+    /**
+     * Las data kept in memory.
+     */
+    private static class MemoryLasDataManager extends ALasDataManager {
+        private final List<LasRecord> records;
+
+        MemoryLasDataManager( List<LasRecord> records ) {
+            this.records = records;
+        }
+
+        public File getFile() {
+            return null;
+        }
+
+        public void open() throws Exception {
+        }
+
+        public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+            Envelope envelope = checkGeom.getEnvelopeInternal();
+            List<LasRecord> pointsInGeom = new ArrayList<LasRecord>();
+            for( LasRecord record : records ) {
+                Coordinate c = new Coordinate(record.x, record.y);
+                if (envelope.contains(c) && (doOnlyEnvelope || checkGeom.contains(gf.createPoint(c)))) {
+                    pointsInGeom.add(record);
+                }
+            }
+            return pointsInGeom;
+        }
+
+        public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+                throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public ReferencedEnvelope getOverallEnvelope() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<ReferencedEnvelope> getEnvelopeList() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public ReferencedEnvelope3D getEnvelope3D() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public SimpleFeatureCollection getOverviewFeatures() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws Exception {
+        }
+    }
+}
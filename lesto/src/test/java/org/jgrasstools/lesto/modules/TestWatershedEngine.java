@@ -0,0 +1,79 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.lesto.modules;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrasstools.lesto.modules.vegetation.watershed.WatershedEngine;
+import org.jgrasstools.lesto.utils.HMTestCase;
+/**
+ * Test for the {@link WatershedEngine}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestWatershedEngine extends HMTestCase {
+
+    public void testTiledWatershed() throws Exception {
+        int cols = 30;
+        int rows = 40;
+        // crowns as cones of column, row and height, some of them meeting close to the seams at rows 10, 20 and 30
+        int[][] crowns = {//
+        /*    */{2, 4, 150}, {10, 2, 190}, {20, 5, 250}, {26, 3, 230}, //
+                {4, 13, 160}, {12, 12, 250}, {18, 11, 170}, {26, 11, 200}, //
+                {5, 19, 190}, {11, 19, 160}, {21, 19, 250}, {30, 18, 200}, //
+                {2, 30, 190}, {13, 26, 160}, {20, 26, 220}, {28, 28, 190}, //
+                {3, 36, 220}, {11, 37, 160}, {19, 37, 150}, {30, 35, 230}};
+        // the watershed floods the inverted heights
+        byte[] pixels = new byte[cols * rows];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                double height = 0;
+                for( int[] crown : crowns ) {
+                    height = Math.max(height, crown[2] - 8 * Math.hypot(c - crown[0], r - crown[1]));
+                }
+                pixels[r * cols + c] = (byte) (255 - (int) height);
+            }
+        }
+
+        WatershedEngine engine = new WatershedEngine(pixels, cols, rows);
+        int[] labels = engine.run(pm);
+        int[] tiledLabels = WatershedEngine.runTiled(pixels, cols, rows, 10, 4, 3, pm);
+
+        // same basins, up to their numbering, and same watersheds
+        Map<Integer, Integer> tiled2Labels = new HashMap<Integer, Integer>();
+        Set<Integer> tiledBasins = new HashSet<Integer>();
+        for( int i = 0; i < labels.length; i++ ) {
+            if (labels[i] == WatershedEngine.WSHED) {
+                assertEquals(WatershedEngine.WSHED, tiledLabels[i]);
+                continue;
+            }
+            assertTrue(tiledLabels[i] != WatershedEngine.WSHED);
+            Integer label = tiled2Labels.get(tiledLabels[i]);
+            if (label == null) {
+                tiled2Labels.put(tiledLabels[i], labels[i]);
+            } else {
+                assertEquals(label.intValue(), labels[i]);
+            }
+            tiledBasins.add(tiledLabels[i]);
+        }
+        assertEquals(engine.getBasinsNum(), tiledBasins.size());
+    }
+}
@@ -30,6 +30,10 @@ public class Labeler extends OmsLabeler {
     @In
     public String inMap = null;
 
+    @Description("Connect cells also through their corners (8 connectivity), else only through their sides (4 connectivity).")
+    @In
+    public boolean doDiagonal = true;
+
     @Description("The resulting map.")
     @In
     public String outMap = null;
@@ -38,6 +42,7 @@ public class Labeler extends OmsLabeler {
     public void process() throws Exception {
         OmsLabeler labeler = new OmsLabeler();
         labeler.inMap = getRaster(inMap);
+        labeler.doDiagonal = doDiagonal;
         labeler.pm = pm;
         labeler.process();
         dumpRaster(labeler.outMap, outMap);
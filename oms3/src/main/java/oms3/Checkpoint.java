@@ -0,0 +1,498 @@
+/*
+ * $Id$
+ * 
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ * 
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ * 
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ * 
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import oms3.annotations.Persistent;
+
+/** Compound level checkpoint/restart.
+ *
+ * A snapshot contains all component fields tagged {@link Persistent} and
+ * the last values passed through feedback connections, recursively for
+ * nested compounds. This is the state that is carried over from one
+ * iteration to the next. The values of the other data objects are not part
+ * of a snapshot, they are invalidated and produced again at every iteration.
+ * The state is captured into memory on the simulation thread at the
+ * iteration boundary, the file is written asynchronously.
+ * Files are written to a temporary file first and renamed, so the
+ * snapshot file always holds the last complete snapshot.
+ *
+ * Snapshots are positional, resuming requires the same model structure.
+ *
+ * @author od
+ * @version $Id$ 
+ */
+class Checkpoint {
+
+    private static final Logger log = Logger.getLogger("oms3.sim");
+    //
+    static final int MAGIC = 0x4F4D5343;
+    static final int VERSION = 2;
+    //
+    private static final byte T_NULL = 1;
+    private static final byte T_BOOLEAN = 2;
+    private static final byte T_BYTE = 3;
+    private static final byte T_CHAR = 4;
+    private static final byte T_SHORT = 5;
+    private static final byte T_INT = 6;
+    private static final byte T_LONG = 7;
+    private static final byte T_FLOAT = 8;
+    private static final byte T_DOUBLE = 9;
+    private static final byte T_STRING = 10;
+    private static final byte T_DOUBLE_ARR = 11;
+    private static final byte T_FLOAT_ARR = 12;
+    private static final byte T_INT_ARR = 13;
+    private static final byte T_LONG_ARR = 14;
+    private static final byte T_BOOLEAN_ARR = 15;
+    private static final byte T_DOUBLE_ARR2 = 16;
+    private static final byte T_CALENDAR = 17;
+    private static final byte T_DATE = 18;
+    private static final byte T_SERIALIZABLE = 19;
+    //
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "oms3.checkpoint");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    //
+    final File file;
+    final int interval;
+    Future<?> pending;
+
+    Checkpoint(File file, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("checkpoint interval < 1: " + interval);
+        }
+        this.file = file;
+        this.interval = interval;
+    }
+
+    /** Take a snapshot. The state is captured immediately, the
+     * file is written in the background.
+     * 
+     * @param c the controller
+     * @param iteration the number of completed iterations.
+     */
+    void snapshot(Controller c, long iteration) {
+        final byte[] state;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(iteration);
+            capture(c, out);
+            out.close();
+            state = bos.toByteArray();
+        } catch (Exception E) {
+            throw new ComponentException(E, c.ca.getComponent());
+        }
+        await();
+        pending = writer.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    write(file, state);
+                } catch (IOException E) {
+                    log.severe("Cannot write checkpoint " + file + ": " + E.getMessage());
+                }
+            }
+        });
+    }
+
+    /** Wait for the pending snapshot to be written.
+     */
+    void await() {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (Exception E) {
+                log.warning("Checkpoint write failed: " + E.getMessage());
+            }
+            pending = null;
+        }
+    }
+
+    private static void write(File file, byte[] state) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(state);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Checkpoint written: " + file);
+        }
+    }
+
+    /** Restore the state from a snapshot file.
+     * 
+     * @param c the controller
+     * @param file the snapshot
+     * @return the number of completed iterations at the time of the snapshot.
+     */
+    static long restore(Controller c, File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new ComponentException("Not a checkpoint file: " + file);
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new ComponentException("Unsupported checkpoint version " + version + " in " + file);
+                }
+                long iteration = in.readLong();
+                apply(c, in);
+                if (log.isLoggable(Level.INFO)) {
+                    log.info("Resumed from checkpoint " + file + " at iteration " + iteration);
+                }
+                return iteration;
+            } finally {
+                in.close();
+            }
+        } catch (ComponentException E) {
+            throw E;
+        } catch (Exception E) {
+            throw new ComponentException(E, c.ca.getComponent());
+        }
+    }
+
+    private static void capture(Controller c, DataOutputStream out) throws Exception {
+        out.writeInt(c.feedbackSet.size());
+        for (FieldContent data : c.feedbackSet) {
+            writeValue(out, data.getShadow());
+        }
+        out.writeInt(c.oMap.size());
+        for (Object comp : c.oMap.keySet()) {
+            out.writeUTF(comp.getClass().getName());
+            List<Field> fields = persistentFields(comp.getClass());
+            out.writeInt(fields.size());
+            for (Field f : fields) {
+                out.writeUTF(f.getName());
+                writeValue(out, f.get(comp));
+            }
+            if (comp instanceof Compound) {
+                capture(((Compound) comp).getController(), out);
+            }
+        }
+    }
+
+    private static void apply(Controller c, DataInputStream in) throws Exception {
+        int n = in.readInt();
+        if (n != c.feedbackSet.size()) {
+            throw new ComponentException("Checkpoint does not match the model, feedbacks: " + n + " != " + c.feedbackSet.size());
+        }
+        for (FieldContent data : c.feedbackSet) {
+            data.setValue0(readValue(in, in.readByte()));
+        }
+        n = in.readInt();
+        if (n != c.oMap.size()) {
+            throw new ComponentException("Checkpoint does not match the model, components: " + n + " != " + c.oMap.size());
+        }
+        for (Object comp : c.oMap.keySet()) {
+            String cn = in.readUTF();
+            if (!cn.equals(comp.getClass().getName())) {
+                throw new ComponentException("Checkpoint does not match the model, component: " + cn + " != " + comp.getClass().getName());
+            }
+            List<Field> fields = persistentFields(comp.getClass());
+            int nf = in.readInt();
+            if (nf != fields.size()) {
+                throw new ComponentException("Checkpoint does not match the persistent fields of " + cn);
+            }
+            for (Field f : fields) {
+                String fn = in.readUTF();
+                if (!fn.equals(f.getName())) {
+                    throw new ComponentException("Checkpoint does not match the persistent field " + cn + "." + f.getName());
+                }
+                Object v = readValue(in, in.readByte());
+                if (v != null || !f.getType().isPrimitive()) {
+                    f.set(comp, v);
+                }
+            }
+            if (comp instanceof Compound) {
+                apply(((Compound) comp).getController(), in);
+            }
+        }
+    }
+
+    static List<Field> persistentFields(Class<?> c) {
+        List<Field> l = new ArrayList<Field>();
+        while (c != null && c != Object.class) {
+            Field[] fields = c.getDeclaredFields();
+            Arrays.sort(fields, new Comparator<Field>() {
+
+                @Override
+                public int compare(Field o1, Field o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            });
+            for (Field f : fields) {
+                if (f.isAnnotationPresent(Persistent.class)) {
+                    if (Modifier.isStatic(f.getModifiers()) || Modifier.isFinal(f.getModifiers())) {
+                        throw new ComponentException("@Persistent field must not be static/final: " + f);
+                    }
+                    f.setAccessible(true);
+                    l.add(f);
+                }
+            }
+            c = c.getSuperclass();
+        }
+        return l;
+    }
+
+    static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v == null) {
+            out.writeByte(T_NULL);
+        } else if (v instanceof Double) {
+            out.writeByte(T_DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Integer) {
+            out.writeByte(T_INT);
+            out.writeInt((Integer) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Long) {
+            out.writeByte(T_LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Float) {
+            out.writeByte(T_FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Short) {
+            out.writeByte(T_SHORT);
+            out.writeShort((Short) v);
+        } else if (v instanceof Byte) {
+            out.writeByte(T_BYTE);
+            out.writeByte((Byte) v);
+        } else if (v instanceof Character) {
+            out.writeByte(T_CHAR);
+            out.writeChar((Character) v);
+        } else if (v instanceof String) {
+            out.writeByte(T_STRING);
+            out.writeUTF((String) v);
+        } else if (v instanceof double[]) {
+            double[] a = (double[]) v;
+            out.writeByte(T_DOUBLE_ARR);
+            out.writeInt(a.length);
+            for (double d : a) {
+                out.writeDouble(d);
+            }
+        } else if (v instanceof double[][]) {
+            double[][] a = (double[][]) v;
+            out.writeByte(T_DOUBLE_ARR2);
+            out.writeInt(a.length);
+            for (double[] row : a) {
+                if (row == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(row.length);
+                for (double d : row) {
+                    out.writeDouble(d);
+                }
+            }
+        } else if (v instanceof float[]) {
+            float[] a = (float[]) v;
+            out.writeByte(T_FLOAT_ARR);
+            out.writeInt(a.length);
+            for (float d : a) {
+                out.writeFloat(d);
+            }
+        } else if (v instanceof int[]) {
+            int[] a = (int[]) v;
+            out.writeByte(T_INT_ARR);
+            out.writeInt(a.length);
+            for (int d : a) {
+                out.writeInt(d);
+            }
+        } else if (v instanceof long[]) {
+            long[] a = (long[]) v;
+            out.writeByte(T_LONG_ARR);
+            out.writeInt(a.length);
+            for (long d : a) {
+                out.writeLong(d);
+            }
+        } else if (v instanceof boolean[]) {
+            boolean[] a = (boolean[]) v;
+            out.writeByte(T_BOOLEAN_ARR);
+            out.writeInt(a.length);
+            for (boolean d : a) {
+                out.writeBoolean(d);
+            }
+        } else if (v instanceof GregorianCalendar) {
+            Calendar cal = (Calendar) v;
+            out.writeByte(T_CALENDAR);
+            out.writeLong(cal.getTimeInMillis());
+            out.writeUTF(cal.getTimeZone().getID());
+        } else if (v instanceof Date) {
+            out.writeByte(T_DATE);
+            out.writeLong(((Date) v).getTime());
+        } else if (v instanceof Serializable) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(v);
+            oos.close();
+            byte[] b = bos.toByteArray();
+            out.writeByte(T_SERIALIZABLE);
+            out.writeInt(b.length);
+            out.write(b);
+        } else {
+            throw new IOException("Cannot checkpoint value of type " + v.getClass().getName());
+        }
+    }
+
+    static Object readValue(DataInputStream in, byte type) throws Exception {
+        switch (type) {
+            case T_NULL:
+                return null;
+            case T_BOOLEAN:
+                return in.readBoolean();
+            case T_BYTE:
+                return in.readByte();
+            case T_CHAR:
+                return in.readChar();
+            case T_SHORT:
+                return in.readShort();
+            case T_INT:
+                return in.readInt();
+            case T_LONG:
+                return in.readLong();
+            case T_FLOAT:
+                return in.readFloat();
+            case T_DOUBLE:
+                return in.readDouble();
+            case T_STRING:
+                return in.readUTF();
+            case T_DOUBLE_ARR: {
+                double[] a = new double[in.readInt()];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = in.readDouble();
+                }
+                return a;
+            }
+            case T_DOUBLE_ARR2: {
+                double[][] a = new double[in.readInt()][];
+                for (int i = 0; i < a.length; i++) {
+                    int len = in.readInt();
+                    if (len < 0) {
+                        continue;
+                    }
+                    a[i] = new double[len];
+                    for (int j = 0; j < len; j++) {
+                        a[i][j] = in.readDouble();
+                    }
+                }
+                return a;
+            }
+            case T_FLOAT_ARR: {
+                float[] a = new float[in.readInt()];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = in.readFloat();
+                }
+                return a;
+            }
+            case T_INT_ARR: {
+                int[] a = new int[in.readInt()];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = in.readInt();
+                }
+                return a;
+            }
+            case T_LONG_ARR: {
+                long[] a = new long[in.readInt()];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = in.readLong();
+                }
+                return a;
+            }
+            case T_BOOLEAN_ARR: {
+                boolean[] a = new boolean[in.readInt()];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = in.readBoolean();
+                }
+                return a;
+            }
+            case T_CALENDAR: {
+                long millis = in.readLong();
+                GregorianCalendar cal = new GregorianCalendar(TimeZone.getTimeZone(in.readUTF()));
+                cal.setTimeInMillis(millis);
+                return cal;
+            }
+            case T_DATE:
+                return new Date(in.readLong());
+            case T_SERIALIZABLE: {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(b));
+                try {
+                    return ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            }
+            default:
+                throw new IOException("Invalid checkpoint value type: " + type);
+        }
+    }
+}
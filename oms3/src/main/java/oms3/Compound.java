@@ -22,6 +22,7 @@
  */
 package oms3;
 
+import java.io.File;
 import oms3.annotations.*;
 
 
@@ -51,6 +52,7 @@ public  class Compound {
      */
     public void finalizeComponents() {
         controller.callAnnotated(Finalize.class, true);
+        controller.awaitCheckpoint();
     }
 
 
@@ -63,6 +65,42 @@ public  class Compound {
         internalExec();
     }
 
+    /** Enables checkpointing for this compound.
+     * Every <code>interval</code> iterations all fields tagged {@link Persistent}
+     * and the values of all feedback connections within this compound
+     * (including nested compounds) are written to <code>file</code>. Other
+     * component state is not saved and starts over on a resume.
+     * Writing happens in the background.
+     *
+     * @param file the snapshot file, overwritten by every snapshot.
+     * @param interval the number of iterations between snapshots.
+     */
+    public void checkpoint(File file, int interval) {
+        controller.checkpoint = new Checkpoint(file, interval);
+    }
+
+    /** Resumes from a snapshot file. The state is restored at the
+     * beginning of the next execution, after initialization.
+     *
+     * @param file the snapshot file written by a previous run.
+     */
+    public void restore(File file) {
+        controller.restoreFrom = file;
+    }
+
+    /** Get the number of completed executions of this compound, including
+     * the ones restored from a snapshot.
+     *
+     * @return the iteration count.
+     */
+    public long getIteration() {
+        return controller.iteration;
+    }
+
+    Controller getController() {
+        return controller;
+    }
+
     /** Shutting down the execution service
      * 
      */
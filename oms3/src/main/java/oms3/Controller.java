@@ -22,6 +22,7 @@
  */
 package oms3;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
 import java.util.*;
 import java.util.concurrent.*;
@@ -44,12 +45,18 @@ class Controller {
     Notification ens = new Notification(this);
     /* data set */
     Set<FieldContent> dataSet = new LinkedHashSet<FieldContent>();
+    /* feedback data, carried over from one iteration to the next */
+    Set<FieldContent> feedbackSet = new LinkedHashSet<FieldContent>();
     /*  All the Commands that have been added to the controller */
     Map<Object, ComponentAccess> oMap = new LinkedHashMap<Object, ComponentAccess>(32);
     /* The compount where this controller belongs to */
     ComponentAccess ca;
     // optional skipping the integrity checking.
     Validator validator;
+    // optional checkpointing
+    Checkpoint checkpoint;
+    File restoreFrom;
+    long iteration;
 
     Controller(Object compound) {
         if (checkCircular) {
@@ -290,6 +297,7 @@ class Controller {
         data.tagOut();
 
         //      dataSet.add(data);
+        feedbackSet.add(data);
         to_access.setData(data);                       // connect the two
 
         ca_from.setOutput(from_out, new AsyncFieldAccess(from_access));
@@ -386,6 +394,10 @@ class Controller {
         if (comps.isEmpty()) {
             return;        // compound inputs to internals
         }
+        if (restoreFrom != null) {
+            iteration = Checkpoint.restore(this, restoreFrom);
+            restoreFrom = null;
+        }
         try {
             for (Access a : ca.inputs()) {   // map the inputs
                 a.out();
@@ -474,6 +486,19 @@ class Controller {
         } catch (Exception Ex) {
             throw new ComponentException(Ex, ca.getComponent());
         }
+        iteration++;
+        if (checkpoint != null && iteration % checkpoint.interval == 0) {
+            checkpoint.snapshot(this, iteration);
+        }
+    }
+
+    /**
+     * Wait for pending checkpoint writes.
+     */
+    void awaitCheckpoint() {
+        if (checkpoint != null) {
+            checkpoint.await();
+        }
     }
 
     /**
@@ -1,6 +1,7 @@
 package oms3.compiler;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
@@ -74,6 +75,24 @@ import javax.tools.ToolProvider;
         return c;
     }
 
+    /**
+     * Get the bytes of a compiled class and its nested classes.
+     *
+     * @param name the name of the compiled class.
+     * @return class name to class bytes.
+     * @throws IOException
+     */
+    public synchronized Map<String, byte[]> getClassBytes(String name) throws IOException {
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        for (Map.Entry<String, MemoryOutputJavaFileObject> e : fileManager.outputMap.entrySet()) {
+            String cn = e.getKey();
+            if (cn.equals(name) || cn.startsWith(name + "$")) {
+                m.put(cn, JavaFileManagerClassLoader.readClassData(e.getValue().openInputStream()));
+            }
+        }
+        return m;
+    }
+
     public synchronized Class<?> getCompiledClass(String name) {
         try {
             return Class.forName(name);
@@ -1,6 +1,8 @@
 package oms3.compiler;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -12,11 +14,13 @@ import javax.tools.JavaFileObject.Kind;
 /**
  * A class loader that loads classes generated from a Java file manager.
  * This can be used in conjunction with the compiler API to compile and run
- * classes on the fly.
+ * classes on the fly. Alternatively, classes are loaded from a
+ * (cache) directory of class files.
  */
 public class JavaFileManagerClassLoader extends ClassLoader {
 
     JavaFileManager fileManager;
+    File classDir;
 
     /**
      * Constructs a <code>ClassDataClassLoader</code>.
@@ -35,34 +39,57 @@ public class JavaFileManagerClassLoader extends ClassLoader {
         }
         this.fileManager = fileManager;
     }
+
+    /**
+     * Constructs a class loader for a directory of compiled classes.
+     *
+     * @param classDir the directory containing the class files
+     *          (flat, named by binary class name).
+     * @param parent the parent classloader to delegate to if a class
+     * 			is not found in the directory.
+     */
+    public JavaFileManagerClassLoader(File classDir, final ClassLoader parent) {
+        super(parent);
+        if (classDir == null) {
+            throw new NullPointerException("classDir");
+        }
+        this.classDir = classDir;
+    }
     
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
         try {
-            JavaFileObject classFile = fileManager.getJavaFileForInput(StandardLocation.CLASS_OUTPUT, name, Kind.CLASS);
-            if (classFile != null) {
-                byte[] classData = readClassData(classFile);
-                return defineClass(name, classData, 0, classData.length);
-            } else {
-                return super.findClass(name);
+            if (fileManager != null) {
+                JavaFileObject classFile = fileManager.getJavaFileForInput(StandardLocation.CLASS_OUTPUT, name, Kind.CLASS);
+                if (classFile != null) {
+                    byte[] classData = readClassData(classFile.openInputStream());
+                    return defineClass(name, classData, 0, classData.length);
+                }
+            }
+            if (classDir != null) {
+                File f = new File(classDir, name + ".class");
+                if (f.exists()) {
+                    byte[] classData = readClassData(new FileInputStream(f));
+                    return defineClass(name, classData, 0, classData.length);
+                }
             }
+            return super.findClass(name);
         } catch (IOException e) {
             throw new ClassNotFoundException(name, e);
         }
     }
     
     /**
-     * Reads all class file data into a byte array from the given file
-     * object.
+     * Reads all class file data into a byte array from the given
+     * stream. The stream is closed.
      *
-     * @param classFile the class file to read.
+     * @param classStream the class data stream to read.
      * @return the class data.
      * @throws IOException if an I/O error occurs.
      */
-    private byte[] readClassData(JavaFileObject classFile) throws IOException {
+    static byte[] readClassData(InputStream classStream) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         byte[] buf = new byte[4096];
-        InputStream classStream = classFile.openInputStream();
         int n = classStream.read(buf);
         while (n > 0) {
             bos.write(buf, 0, n);
@@ -0,0 +1,224 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package oms3.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed on-disk cache of compiled model classes.
+ *
+ * Entries are keyed by the digest of the generated source and a
+ * fingerprint of the classpath (path, size and modification time of
+ * each entry), so any change to the model or to a component jar
+ * results in a new compilation.
+ *
+ * The cache is enabled by setting the system property
+ * <code>oms.modelcache</code> to a directory. The optional property
+ * <code>oms.modelcache.max</code> limits the number of entries kept,
+ * least recently used entries are removed first.
+ *
+ * @author od
+ */
+public class ModelCache {
+
+    static final String CLASS_EXT = ".class";
+    //
+    File root;
+    int maxEntries;
+
+    public ModelCache(File root, int maxEntries) {
+        this.root = root;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Get the cache as configured by the system properties.
+     *
+     * @return the cache or null if not enabled.
+     */
+    public static ModelCache fromSystemProperties() {
+        String dir = System.getProperty("oms.modelcache");
+        if (dir == null || dir.trim().isEmpty()) {
+            return null;
+        }
+        int max = Integer.parseInt(System.getProperty("oms.modelcache.max", "0"));
+        return new ModelCache(new File(dir.trim()), max);
+    }
+
+    /**
+     * Hex encoded SHA-1 digest of a string.
+     *
+     * @param s the string
+     * @return the digest.
+     */
+    public static String digest(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] d = md.digest(s.getBytes("UTF-8"));
+            StringBuilder b = new StringBuilder(d.length * 2);
+            for (byte v : d) {
+                b.append(Character.forDigit((v >> 4) & 0xF, 16));
+                b.append(Character.forDigit(v & 0xF, 16));
+            }
+            return b.toString();
+        } catch (Exception E) {
+            throw new RuntimeException(E);
+        }
+    }
+
+    /**
+     * The cache key for a source compiled against the classpath of a loader.
+     *
+     * @param src the source
+     * @param loader the loader providing the additional classpath.
+     * @return the key
+     */
+    public static String key(String src, URLClassLoader loader) {
+        StringBuilder b = new StringBuilder(src);
+        b.append('\n');
+        StringTokenizer t = new StringTokenizer(System.getProperty("java.class.path", ""), File.pathSeparator);
+        while (t.hasMoreTokens()) {
+            fingerprint(b, new File(t.nextToken()));
+        }
+        if (loader != null) {
+            for (URL url : loader.getURLs()) {
+                fingerprint(b, new File(url.getFile()));
+            }
+        }
+        return digest(b.toString());
+    }
+
+    private static void fingerprint(StringBuilder b, File f) {
+        b.append(f.getAbsolutePath()).append(':').append(f.length()).append(':').append(f.lastModified()).append('\n');
+    }
+
+    File entry(String key) {
+        return new File(root, key);
+    }
+
+    /**
+     * Load a class from the cache.
+     *
+     * @param key the cache key
+     * @param name the class name
+     * @param parent the parent class loader.
+     * @return the class or null if not cached.
+     */
+    public Class<?> load(Logger log, String key, String name, ClassLoader parent) {
+        File dir = entry(key);
+        if (!new File(dir, name + CLASS_EXT).exists()) {
+            return null;
+        }
+        try {
+            Class<?> c = new JavaFileManagerClassLoader(dir, parent).loadClass(name);
+            // keep track of usage for the eviction.
+            dir.setLastModified(System.currentTimeMillis());
+            if (log.isLoggable(Level.INFO)) {
+                log.info("Model cache hit: " + name + " <- " + dir);
+            }
+            return c;
+        } catch (ClassNotFoundException E) {
+            log.warning("Invalid model cache entry: " + dir);
+            return null;
+        } catch (LinkageError E) {
+            // corrupt or incompatible class files, compile again.
+            log.warning("Invalid model cache entry: " + dir);
+            return null;
+        }
+    }
+
+    /**
+     * Store compiled classes.
+     *
+     * The entry is written to a temporary directory first and then renamed,
+     * so concurrent runs never see partial entries.
+     *
+     * @param key the cache key
+     * @param classes class name to class bytes.
+     */
+    public void store(Logger log, String key, Map<String, byte[]> classes) {
+        if (classes.isEmpty()) {
+            return;
+        }
+        File dir = entry(key);
+        if (dir.exists()) {
+            return;
+        }
+        File tmp = new File(root, "tmp_" + UUID.randomUUID().toString());
+        try {
+            if (!tmp.mkdirs()) {
+                throw new IOException("Cannot create " + tmp);
+            }
+            for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+                OutputStream out = new FileOutputStream(new File(tmp, e.getKey() + CLASS_EXT));
+                try {
+                    out.write(e.getValue());
+                } finally {
+                    out.close();
+                }
+            }
+            if (!tmp.renameTo(dir)) {
+                // another run stored it in the meantime.
+                delete(tmp);
+            } else if (log.isLoggable(Level.INFO)) {
+                log.info("Model cache store: " + dir);
+            }
+        } catch (IOException E) {
+            log.warning("Cannot write model cache entry: " + E.getMessage());
+            delete(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * Remove the least recently used entries beyond the maximum.
+     */
+    void evict() {
+        if (maxEntries <= 0) {
+            return;
+        }
+        File[] entries = root.listFiles();
+        if (entries == null || entries.length <= maxEntries) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+
+            @Override
+            public int compare(File o1, File o2) {
+                long l1 = o1.lastModified();
+                long l2 = o2.lastModified();
+                return l1 < l2 ? 1 : (l1 == l2 ? 0 : -1);
+            }
+        });
+        for (int i = maxEntries; i < entries.length; i++) {
+            if (!entries[i].getName().startsWith("tmp_")) {
+                delete(entries[i]);
+            }
+        }
+    }
+
+    static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        f.delete();
+    }
+}
@@ -6,11 +6,14 @@ package oms3.compiler;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.net.URLClassLoader;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.tools.JavaCompiler;
@@ -25,7 +28,38 @@ import oms3.util.Processes;
  */
 public abstract class ModelCompiler {
 
-    public abstract Class<?> compile(Logger log, URLClassLoader loader, String name, String src) throws Exception;
+    /**
+     * Compile a generated model class. If the model cache is enabled
+     * (see {@link ModelCache}) it is checked first and a cached class is
+     * returned without compiling.
+     *
+     * @param log the logger
+     * @param loader the loader with the model classpath
+     * @param name the class name
+     * @param src the source
+     * @return the compiled class.
+     * @throws Exception
+     */
+    public Class<?> compile(Logger log, URLClassLoader loader, String name, String src) throws Exception {
+        ModelCache cache = ModelCache.fromSystemProperties();
+        if (cache == null) {
+            return compile0(log, loader, name, src);
+        }
+        String key = ModelCache.key(src, loader);
+        Class<?> c = cache.load(log, key, name, loader);
+        if (c == null) {
+            c = compile0(log, loader, name, src);
+            cache.store(log, key, classBytes(loader, name));
+        }
+        return c;
+    }
+
+    protected abstract Class<?> compile0(Logger log, URLClassLoader loader, String name, String src) throws Exception;
+
+    /**
+     * The bytes of the class (and its nested classes) compiled last.
+     */
+    protected abstract Map<String, byte[]> classBytes(URLClassLoader loader, String name) throws IOException;
 
     public static ModelCompiler create(String sysprop) {
         if ("javac".equals(sysprop)) {
@@ -37,6 +71,25 @@ public abstract class ModelCompiler {
         }
     }
 
+    private static Map<String, byte[]> readClassDir(File classDir, String name) throws IOException {
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        File[] files = classDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String fn = f.getName();
+                if (fn.equals(name + ".class") || (fn.startsWith(name + "$") && fn.endsWith(".class"))) {
+                    String cn = fn.substring(0, fn.length() - ".class".length());
+                    m.put(cn, JavaFileManagerClassLoader.readClassData(new FileInputStream(f)));
+                }
+            }
+        }
+        return m;
+    }
+
+    private static File distDir() {
+        return new File(System.getProperty("oms.prj") + File.separatorChar + "dist");
+    }
+
     private static void write(File file, String s) throws Exception {
         BufferedWriter out = new BufferedWriter(new FileWriter(file));
         out.write(s);
@@ -48,9 +101,14 @@ public abstract class ModelCompiler {
         JavaCompiler jc = ToolProvider.getSystemJavaCompiler();
 
         @Override
-        public Class<?> compile(Logger log, URLClassLoader loader, String name, String src) throws Exception {
+        protected Map<String, byte[]> classBytes(URLClassLoader loader, String name) throws IOException {
+            return readClassDir(distDir(), name);
+        }
+
+        @Override
+        protected Class<?> compile0(Logger log, URLClassLoader loader, String name, String src) throws Exception {
             log.fine("Expernal compiler");
-            File classDir = new File(System.getProperty("oms.prj") + File.separatorChar + "dist");
+            File classDir = distDir();
             File srcDir = new File(System.getProperty("java.io.tmpdir"));
 
             File javaFile = new File(srcDir, name + ".java");
@@ -71,7 +129,12 @@ public abstract class ModelCompiler {
     private static class Memory extends ModelCompiler {
 
         @Override
-        public Class<?> compile(Logger log, URLClassLoader loader, String name, String src) throws Exception {
+        protected Map<String, byte[]> classBytes(URLClassLoader loader, String name) throws IOException {
+            return oms3.compiler.Compiler.singleton(loader).getClassBytes(name);
+        }
+
+        @Override
+        protected Class<?> compile0(Logger log, URLClassLoader loader, String name, String src) throws Exception {
             log.info("Memory compiler");
             oms3.compiler.Compiler tc = oms3.compiler.Compiler.singleton(loader);
             Class jc = tc.compileSource(name, src);
@@ -83,9 +146,14 @@ public abstract class ModelCompiler {
         // javac -cp "/home/od/.oms/3.1rc6/oms-all.jar:/od/projects/oms_examples/oms3.prj.csm/dist/csm.jar" /tmp/Comp_f61514ea_4e12_431c_a26b_b6b016c273df.java -d /tmp/javafiles
 
         @Override
-        public Class<?> compile(final Logger log, URLClassLoader loader, String name, String src) throws Exception {
+        protected Map<String, byte[]> classBytes(URLClassLoader loader, String name) throws IOException {
+            return readClassDir(distDir(), name);
+        }
+
+        @Override
+        protected Class<?> compile0(final Logger log, URLClassLoader loader, String name, String src) throws Exception {
             log.info("Javac compiler");
-            File classDir = new File(System.getProperty("oms.prj") + File.separatorChar + "dist");
+            File classDir = distDir();
             File srcDir = new File(System.getProperty("java.io.tmpdir"));
             File javaFile = new File(srcDir, name + ".java");
 
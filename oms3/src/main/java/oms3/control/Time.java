@@ -25,6 +25,7 @@ package oms3.control;
 import oms3.annotations.Execute;
 import oms3.annotations.In;
 import oms3.annotations.Out;
+import oms3.annotations.Persistent;
 import java.util.GregorianCalendar;
 
 /** 
@@ -42,8 +43,8 @@ public class Time extends While {
     
     public static class TimeControl  {
 
-        @Out public boolean done;
-        @Out public GregorianCalendar current;
+        @Persistent @Out public boolean done;
+        @Persistent @Out public GregorianCalendar current;
         
         @In  public GregorianCalendar start;
         @In  public GregorianCalendar end;
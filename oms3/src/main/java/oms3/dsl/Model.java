@@ -10,12 +10,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import oms3.ComponentException;
 import oms3.annotations.Name;
 import oms3.annotations.Role;
+import oms3.compiler.ModelCache;
 import oms3.compiler.ModelCompiler;
 import oms3.io.CSProperties;
 import oms3.io.CSTable;
@@ -287,8 +287,8 @@ public class Model implements Buildable {
 
     private Class<?> getGeneratedComponent(URLClassLoader loader) {
         try {
-            // TODO Generate Digest instead of UUID.
-            String name = "Comp_" + UUID.randomUUID().toString().replace('-', '_');
+            // name by digest, so the same model always maps to the same class (see ModelCache).
+            String name = "Comp_" + ModelCache.digest(generateSource("Comp"));
             String source = generateSource(name);
             if (log.isLoggable(Level.FINE)) {
                 log.fine("Generated Class :" + name);
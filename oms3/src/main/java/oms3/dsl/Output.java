@@ -23,6 +23,7 @@ import java.util.TreeSet;
 import java.util.logging.Logger;
 import oms3.*;
 import oms3.Notification.*;
+import oms3.io.AsyncRowWriter;
 import oms3.io.DataIO;
 
 /**
@@ -64,7 +65,10 @@ public class Output implements Buildable {
         }
 
         String valueString() {
-            Object v = value();
+            return valueString(value());
+        }
+
+        String valueString(Object v) {
             if (v == null) {
                 throw new IllegalArgumentException("Missing output: " + token);
             }
@@ -78,6 +82,22 @@ public class Output implements Buildable {
             return v.toString();
         }
 
+        /**
+         * A copy of the current value that is safe to format later
+         * on the writer thread.
+         */
+        Object snapshot() {
+            Object v = value();
+            if (v == null || v instanceof Number || v instanceof String || v instanceof Boolean) {
+                return v;
+            } else if (v instanceof double[]) {
+                return ((double[]) v).clone();
+            } else if (v instanceof Calendar) {
+                return ((Calendar) v).clone();
+            }
+            return v.toString();
+        }
+
         String dblfmt(double[] d) {
             StringBuilder b = new StringBuilder();
             for (int i = 0; i < d.length - 1; i++) {
@@ -113,6 +133,10 @@ public class Output implements Buildable {
     PrintWriter w;
     boolean printHeader = true;
     //
+    boolean async = false;
+    int buffer = AsyncRowWriter.DEFAULT_CAPACITY;
+    AsyncRowWriter<Object[]> asyncWriter;
+    //
     String fformat = "%7.3f";
     String dformat = "%10d";
     SimpleDateFormat dfmt = Conversions.ISO();
@@ -129,6 +153,24 @@ public class Output implements Buildable {
         dformat = (!format.startsWith("%")) ? ('%' + format) : format;
     }
 
+    /**
+     * Format and write the rows on a separate thread.
+     *
+     * @param async true for asynchronous output.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * The number of rows buffered for asynchronous output.
+     *
+     * @param buffer the buffer capacity.
+     */
+    public void setBuffer(int buffer) {
+        this.buffer = buffer;
+    }
+
     public void setFile(String file) {
         this.file = file;
     }
@@ -167,6 +209,21 @@ public class Output implements Buildable {
                 w = new PrintWriter(new OutputStreamWriter(System.out));
             }
 
+            if (async) {
+                asyncWriter = new AsyncRowWriter<Object[]>(new AsyncRowWriter.Sink<Object[]>() {
+
+                    @Override
+                    public void write(Object[] row) throws IOException {
+                        printRow(row);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        w.flush();
+                    }
+                }, buffer, "oms3.output." + (file == null ? "stdout" : file));
+            }
+
             c.addListener(new Listener() {
 
                 int count = 0;
@@ -189,7 +246,11 @@ public class Output implements Buildable {
                                     if (printHeader) {
                                         printHeader(header);
                                     }
-                                    printRow();
+                                    if (asyncWriter != null) {
+                                        bufferRow();
+                                    } else {
+                                        printRow();
+                                    }
                                     count = 0;
                                 }
                             }
@@ -228,7 +289,32 @@ public class Output implements Buildable {
         w.println();
     }
 
+    void bufferRow() {
+        Object[] row = new Object[vars.size()];
+        int i = 0;
+        for (V v : vars) {
+            row[i++] = v.snapshot();
+        }
+        try {
+            asyncWriter.add(row);
+        } catch (IOException E) {
+            throw new ComponentException("Output failed: " + E.getMessage());
+        }
+    }
+
+    void printRow(Object[] row) {
+        int i = 0;
+        for (V v : vars) {
+            w.print(", " + v.valueString(row[i++]));
+        }
+        w.println();
+    }
+
     public void done() throws IOException {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+            asyncWriter = null;
+        }
         w.flush();
         if (file != null) {
             w.close();
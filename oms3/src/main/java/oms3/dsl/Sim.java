@@ -200,6 +200,20 @@ public class Sim extends AbstractSimulation {
             }
         }
 
+        // checkpoint/restart
+        String cpFile = System.getProperty("oms.checkpoint");
+        if (cpFile != null && comp instanceof Compound) {
+            Compound c = (Compound) comp;
+            File cp = new File(cpFile);
+            if (Boolean.getBoolean("oms.checkpoint.restore") && cp.exists()) {
+                c.restore(cp);
+                if (log.isLoggable(Level.CONFIG)) {
+                    log.config("Resuming from checkpoint " + cp);
+                }
+            }
+            c.checkpoint(cp, Integer.getInteger("oms.checkpoint.interval", 100));
+        }
+
         for (Efficiency e : eff) {
             e.setup(comp);
         }
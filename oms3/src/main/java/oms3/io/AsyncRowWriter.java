@@ -0,0 +1,163 @@
+/*
+ * $Id:$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Asynchronous row writer.
+ *
+ * Rows are handed over to a bounded buffer and formatted/written by a
+ * dedicated writer thread, so that the simulation thread only blocks
+ * if the writer falls behind by more than the buffer capacity.
+ *
+ * @param <T> the row type.
+ * @author od
+ */
+public class AsyncRowWriter<T> {
+
+    /**
+     * The sink doing the actual formatting and writing. All methods are
+     * called from the writer thread only.
+     *
+     * @param <T> the row type.
+     */
+    public interface Sink<T> {
+
+        void write(T row) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    //
+    private static final Object EOF = new Object();
+    //
+    final BlockingQueue<Object> buffer;
+    final Sink<T> sink;
+    final Thread writer;
+    volatile Exception error;
+    boolean closed = false;
+
+    public AsyncRowWriter(Sink<T> sink) {
+        this(sink, DEFAULT_CAPACITY, "oms3.async.writer");
+    }
+
+    public AsyncRowWriter(Sink<T> sink, int capacity, String name) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1: " + capacity);
+        }
+        this.sink = sink;
+        this.buffer = new ArrayBlockingQueue<Object>(capacity);
+        writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        List<Object> batch = new ArrayList<Object>();
+        try {
+            while (true) {
+                batch.add(buffer.take());
+                buffer.drainTo(batch);
+                for (Object row : batch) {
+                    if (row == EOF) {
+                        return;
+                    }
+                    // after an error keep consuming, so the producer never blocks forever.
+                    if (error == null) {
+                        try {
+                            sink.write((T) row);
+                        } catch (Exception E) {
+                            error = E;
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException E) {
+            // terminated.
+        }
+    }
+
+    /**
+     * Add a row to the buffer. Blocks if the buffer is full.
+     *
+     * @param row the row, must not be modified by the caller afterwards.
+     * @throws IOException if the writer thread failed.
+     */
+    public void add(T row) throws IOException {
+        if (closed) {
+            throw new IOException("Writer already closed.");
+        }
+        checkError();
+        try {
+            buffer.put(row);
+        } catch (InterruptedException E) {
+            throw new IOException("Interrupted while buffering row.");
+        }
+    }
+
+    /**
+     * Write all pending rows and close the sink.
+     *
+     * @throws IOException if the writer thread failed.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            buffer.put(EOF);
+            writer.join();
+        } catch (InterruptedException E) {
+            throw new IOException("Interrupted while flushing rows.");
+        }
+        try {
+            sink.close();
+        } finally {
+            checkError();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            throw new IOException(error);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3;
+
+import java.io.File;
+import junit.framework.TestCase;
+import oms3.annotations.Execute;
+import oms3.annotations.In;
+import oms3.annotations.Out;
+import oms3.annotations.Persistent;
+
+/** Checkpoint/restart round trip.
+ *
+ * @author od
+ * @version $Id$
+ */
+public class TestCheckpoint extends TestCase {
+
+    public static class Source {
+
+        @In public Double previous;
+        @Persistent public int step;
+        @Out public double value;
+
+        @Execute
+        public void execute() {
+            step++;
+            value = step + (previous == null ? 0 : previous / 2);
+        }
+    }
+
+    public static class Sum {
+
+        @In public double value;
+        @Persistent public double sum;
+        @Out public Double total;
+
+        @Execute
+        public void execute() {
+            sum += value;
+            total = sum;
+        }
+    }
+
+    public static class Model extends Compound {
+
+        Source source = new Source();
+        Sum sum = new Sum();
+
+        public Model() {
+            out2in(source, "value", sum, "value");
+            feedback(sum, "total", source, "previous");
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        Model full = new Model();
+        for (int i = 0; i < 10; i++) {
+            full.execute();
+        }
+
+        File file = File.createTempFile("oms3checkpoint", ".bin");
+        try {
+            // stops after 6 iterations, the snapshot is the one of iteration 4
+            Model first = new Model();
+            first.checkpoint(file, 4);
+            for (int i = 0; i < 6; i++) {
+                first.execute();
+            }
+            first.finalizeComponents();
+
+            Model resumed = new Model();
+            resumed.restore(file);
+            while (resumed.getIteration() < 10) {
+                resumed.execute();
+            }
+            assertEquals(10, resumed.getIteration());
+            assertEquals(full.source.step, resumed.source.step);
+            assertEquals(full.source.value, resumed.source.value, 0.0);
+            assertEquals(full.sum.sum, resumed.sum.sum, 0.0);
+            assertEquals(full.sum.total, resumed.sum.total, 0.0);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3.compiler;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+
+/** On-disk model cache.
+ *
+ * @author od
+ * @version $Id$
+ */
+public class TestModelCache extends TestCase {
+
+    static final Logger log = Logger.getLogger("oms3.sim");
+    //
+    File root;
+    URLClassLoader loader;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("oms3modelcache", "");
+        root.delete();
+        root.mkdirs();
+        loader = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        System.clearProperty("oms.modelcache");
+        System.clearProperty("oms.modelcache.max");
+        ModelCache.delete(root);
+    }
+
+    public void testCompileAndHit() throws Exception {
+        System.setProperty("oms.modelcache", root.toString());
+        String src = "public class CachedModel {\n"
+                + "    public static class Part {}\n"
+                + "    public String toString() { return \"model\" + new Part().getClass().getSimpleName(); }\n"
+                + "}\n";
+
+        ModelCompiler compiler = ModelCompiler.create(null);
+        Class<?> compiled = compiler.compile(log, loader, "CachedModel", src);
+        assertEquals("modelPart", compiled.newInstance().toString());
+
+        // the class and its nested class are stored under the key
+        File entry = new File(root, ModelCache.key(src, loader));
+        assertTrue(new File(entry, "CachedModel.class").exists());
+        assertTrue(new File(entry, "CachedModel$Part.class").exists());
+        assertEquals(1, root.listFiles().length);
+
+        // the second time it is loaded from the entry, not compiled
+        Class<?> cached = compiler.compile(log, loader, "CachedModel", src);
+        assertNotSame(compiled, cached);
+        assertTrue(cached.getClassLoader() instanceof JavaFileManagerClassLoader);
+        assertSame(loader, cached.getClassLoader().getParent());
+        assertEquals("modelPart", cached.newInstance().toString());
+        assertEquals(1, root.listFiles().length);
+    }
+
+    public void testKey() throws Exception {
+        String src = "public class A {}";
+        assertEquals(ModelCache.key(src, loader), ModelCache.key(src, loader));
+        assertFalse(ModelCache.key(src, loader).equals(ModelCache.key("public class B {}", loader)));
+
+        // a changed component jar gives a new key
+        File jar = new File(root, "component.jar");
+        jar.createNewFile();
+        URLClassLoader jarLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()});
+        String key = ModelCache.key(src, jarLoader);
+        assertFalse(key.equals(ModelCache.key(src, loader)));
+        jar.setLastModified(jar.lastModified() - 10000);
+        assertFalse(key.equals(ModelCache.key(src, jarLoader)));
+    }
+
+    public void testEviction() throws Exception {
+        ModelCache cache = new ModelCache(root, 2);
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        classes.put("M", new byte[]{1, 2, 3});
+
+        cache.store(log, "a", classes);
+        new File(root, "a").setLastModified(10000);
+        cache.store(log, "b", classes);
+        new File(root, "b").setLastModified(20000);
+        assertTrue(new File(root, "a/M.class").exists());
+
+        // the least recently used entry goes
+        cache.store(log, "c", classes);
+        assertFalse(new File(root, "a").exists());
+        assertTrue(new File(root, "b/M.class").exists());
+        assertTrue(new File(root, "c/M.class").exists());
+
+        // not a class, so not a hit
+        assertNull(cache.load(log, "c", "M", loader));
+        assertNull(cache.load(log, "d", "M", loader));
+    }
+}